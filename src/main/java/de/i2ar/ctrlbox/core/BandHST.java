@@ -1,6 +1,9 @@
 package de.i2ar.ctrlbox.core;
 
+import java.util.concurrent.ExecutionException;
+
 import de.i2ar.ctrlbox.io.IO;
+import de.i2ar.ctrlbox.io.RegisterBatch;
 import de.i2ar.ctrlbox.io.modbus_tcp.ModbusTCP;
 
 public class BandHST {
@@ -62,9 +65,11 @@ public class BandHST {
 //			e1.printStackTrace();
 //		}
 		
-		io.setRegister(MBReg.HST_BAND_OUT_DATA_2_1, addr);
-		io.setRegister(MBReg.HST_BAND_OUT_DATA_4_3, getSecondParam(addr));
-		io.setRegister(MBReg.HST_BAND_OUT_INDEX_HIGH_LOW, 24205);
+		// 1029-1031 liegen direkt hintereinander -> ein Request
+		commit(io.batch()
+				.set(MBReg.HST_BAND_OUT_DATA_2_1, addr)
+				.set(MBReg.HST_BAND_OUT_DATA_4_3, getSecondParam(addr))
+				.set(MBReg.HST_BAND_OUT_INDEX_HIGH_LOW, 24205));
 
 		try {
 			Thread.sleep(SLEEP_1);
@@ -76,9 +81,10 @@ public class BandHST {
 
 		io.waitUntil(MBReg.HST_BAND_IN_SERVICE_SUBINDEX, 16384);
 
-		io.setRegister(MBReg.HST_BAND_OUT_DATA_2_1, 0);
-		io.setRegister(MBReg.HST_BAND_OUT_DATA_4_3, val);
-		io.setRegister(MBReg.HST_BAND_OUT_INDEX_HIGH_LOW, 24529);
+		commit(io.batch()
+				.set(MBReg.HST_BAND_OUT_DATA_2_1, 0)
+				.set(MBReg.HST_BAND_OUT_DATA_4_3, val)
+				.set(MBReg.HST_BAND_OUT_INDEX_HIGH_LOW, 24529));
 
 		try {
 			Thread.sleep(SLEEP_1);
@@ -99,6 +105,14 @@ public class BandHST {
 //		this.mutex.release();
 	}
 	
+	private void commit(RegisterBatch batch) {
+		try {
+			batch.commit().get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	public void start(int band) {
 		write(band, BandHST.AN);
 	}
@@ -0,0 +1,258 @@
+package de.i2ar.ctrlbox.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.i2ar.ctrlbox.io.RegType;
+import de.i2ar.ctrlbox.io.modbus_tcp.ModbusTCP;
+import de.i2ar.ctrlbox.io.modbus_tcp.ModbusTCPEndpoint;
+import de.i2ar.ctrlbox.io.modbus_tcp.ModbusTCPPollStats;
+import de.i2ar.ctrlbox.io.modbus_tcp.ModbusTCPRegister;
+import de.i2ar.ctrlbox.io.modbus_tcp.ModbusTCPSlaveSimulator;
+import de.i2ar.ctrlbox.util.Message;
+import de.i2ar.ctrlbox.util.MsgHandlerThread;
+
+/**
+ * Misst den Modbus/TCP Stack gegen einen ModbusTCPSlaveSimulator, ohne SPS.
+ *
+ * Aufruf: Benchmark [latencyMs [jitterMs]], Standard 2 +/- 1 ms je Antwort.
+ *
+ *  - Poll-Durchsatz: viele Register auf zwei Poll-Raten, Requests/s am Slave und getPollStats()
+ *  - Event-Latenz: Coil im Simulator umschalten bis MsgHandlerThread.handle()
+ *  - Write-Round-Trip: setRegister(), Batch ueber drei Register, getRegister()
+ *  - BandHST: start()/stop() mit den Registern aus MBReg, der Simulator spielt den Umrichter
+ */
+public class Benchmark {
+
+	private static final int POLL_SECONDS = 5;
+	private static final int EVENTS = 200;
+	private static final int WRITES = 500;
+	private static final int BAND_RUNS = 5;
+	private static final int PIPELINE = 50;
+
+	// Poll-Rate der Register in den Benchmarks
+	private static final int FAST_MS = 10;
+	private static final int SLOW_MS = 50;
+
+	private static ModbusTCPSlaveSimulator sim;
+
+
+	public static void main(String args[]) throws IOException, InterruptedException {
+
+		int latencyMs = (args.length > 0) ? Integer.parseInt(args[0]) : 2;
+		int jitterMs = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+
+		sim = new ModbusTCPSlaveSimulator(0);
+		sim.setLatency(latencyMs, jitterMs);
+
+		System.out.println("Simulator " + sim.getEndpoint() + ", Antwortzeit " + latencyMs + " +/- " + jitterMs + " ms\n");
+
+		pollThroughput();
+		eventLatency();
+		writeRoundTrip();
+		bandHST();
+
+		sim.stop();
+	}
+
+
+	private static void pollThroughput() throws InterruptedException {
+
+		ModbusTCP io = new ModbusTCP();
+		MsgHandlerThread handler = new MsgHandlerThread() {
+			@Override
+			protected void handle(Message msg) { }
+		};
+		handler.start();
+
+		// 100 Coils (ueber 2000 Adressen verteilt) schnell, 100 Register (ueber 500) langsam
+		for (int i = 0; i < 100; i++) {
+			io.subscribeToEvent(register(RegType.MB_COIL, i * 20, FAST_MS), 1, handler, new Message());
+			io.subscribeToEvent(register(RegType.MB_REG, i * 5, SLOW_MS), 1, handler, new Message());
+		}
+
+		Thread.sleep(500);
+		long requests = sim.getRequests();
+		long start = System.nanoTime();
+
+		Thread.sleep(POLL_SECONDS * 1000);
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("Poll-Durchsatz: %.0f Requests/s%n", (sim.getRequests() - requests) / seconds);
+		for (ModbusTCPPollStats stats : io.getPollStats()) System.out.println("  " + stats);
+		System.out.println();
+
+		io.stop();
+		handler.kill();
+	}
+
+	private static void eventLatency() throws InterruptedException {
+
+		ModbusTCP io = new ModbusTCP();
+		ModbusTCPRegister coil = register(RegType.MB_COIL, 3000, FAST_MS);
+
+		Samples samples = new Samples(EVENTS);
+		Semaphore handled = new Semaphore(0);
+		AtomicLong changedAt = new AtomicLong();
+
+		MsgHandlerThread handler = new MsgHandlerThread() {
+			@Override
+			protected void handle(Message msg) {
+				samples.add(System.nanoTime() - changedAt.get());
+				handled.release();
+			}
+		};
+		handler.start();
+
+		io.subscribeToEvent(coil, 1, handler, new Message());
+		io.subscribeToEvent(coil, 0, handler, new Message());
+
+		// erster Poll meldet den Anfangswert 0
+		handled.tryAcquire(1, TimeUnit.SECONDS);
+		samples.clear();
+
+		Random random = new Random();
+		boolean value = false;
+		int lost = 0;
+
+		for (int i = 0; i < EVENTS; i++) {
+
+			// zufaellig versetzt, damit die Aenderung nicht immer gleich zum Poll liegt
+			Thread.sleep(FAST_MS + random.nextInt(2 * FAST_MS));
+
+			value = !value;
+			changedAt.set(System.nanoTime());
+			sim.setCoil(3000, value);
+
+			if (!handled.tryAcquire(1, TimeUnit.SECONDS)) lost++;
+		}
+
+		samples.print("Event-Latenz (Poll alle " + FAST_MS + " ms)");
+		if (lost > 0) System.out.println("  " + lost + " Events nicht gemeldet");
+		System.out.println();
+
+		io.stop();
+		handler.kill();
+	}
+
+	private static void writeRoundTrip() {
+
+		ModbusTCP io = new ModbusTCP();
+		ModbusTCPRegister r0 = register(RegType.MB_REG, 4000, SLOW_MS);
+		ModbusTCPRegister r1 = register(RegType.MB_REG, 4001, SLOW_MS);
+		ModbusTCPRegister r2 = register(RegType.MB_REG, 4002, SLOW_MS);
+
+		// Verbindung aufbauen, nicht mitmessen
+		io.setRegister(r0, 0);
+
+		Samples single = new Samples(WRITES);
+		Samples batch = new Samples(WRITES);
+		Samples read = new Samples(WRITES);
+
+		for (int i = 0; i < WRITES; i++) {
+			long start = System.nanoTime();
+			io.setRegister(r0, i);
+			single.add(System.nanoTime() - start);
+
+			start = System.nanoTime();
+			io.batch().set(r0, i).set(r1, i).set(r2, i).commit().join();
+			batch.add(System.nanoTime() - start);
+
+			start = System.nanoTime();
+			io.getRegister(r2);
+			read.add(System.nanoTime() - start);
+		}
+
+		single.print("setRegister");
+		batch.print("Batch (3 Register)");
+		read.print("getRegister");
+
+		// gepipelined: immer PIPELINE Writes auf einmal abschicken
+		// (nicht alle, sonst laufen die hinteren in der Queue in den Request-Timeout)
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[PIPELINE];
+		long start = System.nanoTime();
+		for (int i = 0; i < WRITES; i += PIPELINE) {
+			for (int j = 0; j < PIPELINE; j++) futures[j] = io.setRegisterAsync(r0, i + j);
+			CompletableFuture.allOf(futures).join();
+		}
+		double ms = (System.nanoTime() - start) / 1e6;
+		System.out.printf("setRegisterAsync (je %d gepipelined): %.0f Writes/s%n%n", PIPELINE, 1000 * WRITES / ms);
+
+		io.stop();
+	}
+
+	private static void bandHST() {
+
+		ModbusTCP io = new ModbusTCP();
+		io.redirect(MBReg.HST_BAND_IN_SERVICE_SUBINDEX.getEndpoint(), sim.getEndpoint());
+
+		// Umrichter: bestaetigt Service-Request 29184 mit 16384, Abschluss 12800 mit 0
+		int in = MBReg.HST_BAND_IN_SERVICE_SUBINDEX.getRegAddr();
+		sim.onWrite(RegType.MB_REG, MBReg.HST_BAND_OUT_SERVICE_SUBINDEX.getRegAddr(), v -> {
+			if (v == 29184) sim.at(5, () -> sim.setRegister(in, 16384));
+			else if (v == 12800) sim.at(5, () -> sim.setRegister(in, 0));
+		});
+
+		BandHST band = new BandHST(io);
+		Samples samples = new Samples(2 * BAND_RUNS);
+
+		for (int i = 0; i < BAND_RUNS; i++) {
+			long start = System.nanoTime();
+			band.start(BandHST.BAND_2);
+			samples.add(System.nanoTime() - start);
+
+			start = System.nanoTime();
+			band.stop(BandHST.BAND_2);
+			samples.add(System.nanoTime() - start);
+		}
+
+		samples.print("BandHST start/stop");
+		System.out.println("  davon " + (2 * BandHST.SLEEP_1 + BandHST.SLEEP_2) + " ms feste Wartezeit");
+		System.out.println();
+
+		io.stop();
+	}
+
+	private static ModbusTCPRegister register(RegType type, int addr, int pollIntervalMs) {
+		ModbusTCPEndpoint endpoint = sim.getEndpoint();
+		return new ModbusTCPRegister(type, endpoint.getAddr(), endpoint.getPort(), addr, pollIntervalMs);
+	}
+
+
+	// Messwerte in ns, Ausgabe als Perzentile in ms
+	private static class Samples {
+		private long[] ns;
+		private int n = 0;
+
+		Samples(int capacity) { this.ns = new long[capacity]; }
+
+		synchronized void add(long value) {
+			if (this.n == this.ns.length) this.ns = Arrays.copyOf(this.ns, 2 * this.n);
+			this.ns[this.n++] = value;
+		}
+
+		synchronized void clear() { this.n = 0; }
+
+		synchronized void print(String name) {
+			if (this.n == 0) {
+				System.out.println(name + ": keine Messwerte");
+				return;
+			}
+
+			long[] sorted = Arrays.copyOf(this.ns, this.n);
+			Arrays.sort(sorted);
+
+			System.out.printf("%s (n=%d): p50=%.2f p90=%.2f p99=%.2f max=%.2f ms%n", name, this.n,
+					percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted[this.n - 1] / 1e6);
+		}
+
+		private static double percentile(long[] sorted, int p) {
+			return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)] / 1e6;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package de.i2ar.ctrlbox.io;
 
+import java.util.concurrent.CompletableFuture;
+
 import de.i2ar.ctrlbox.util.Message;
 import de.i2ar.ctrlbox.util.MsgHandlerThread;
 
@@ -13,5 +15,14 @@ public interface IO {
 	public void subscribeToEvent(Register reg, int regValue, MsgHandlerThread handler, Message msg);
 	public void waitUntil(Register reg, int regValue);
 	
+	// Nicht-blockierende Varianten. Die Futures werden in einem Callback-Thread der
+	// Implementierung abgeschlossen, nie im Thread, der die Antworten liest. Folgeaktionen
+	// duerfen blockieren (z.B. setRegister()), belegen dann aber einen Callback-Thread.
+	public CompletableFuture<Void> setRegisterAsync(Register reg, int regValue);
+	public CompletableFuture<Integer> getRegisterAsync(Register reg);
+	public CompletableFuture<Void> whenRegisterEquals(Register reg, int regValue, long timeoutMs);
+	
+	public RegisterBatch batch();
+	
 	public void stop();
 }
@@ -0,0 +1,17 @@
+package de.i2ar.ctrlbox.io;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sammelt Schreibzugriffe und schickt sie mit commit() gemeinsam ab.
+ *
+ * Mehrfache Writes auf dieselbe Adresse werden zusammengefasst (der letzte Wert gewinnt),
+ * benachbarte Adressen darf die Implementierung in einen Request packen.
+ * Die Reihenfolge der Writes innerhalb eines Batches ist daher nicht garantiert.
+ */
+public interface RegisterBatch {
+
+	public RegisterBatch set(Register reg, int regValue);
+	
+	public CompletableFuture<Void> commit();
+}
@@ -1,15 +1,23 @@
 package de.i2ar.ctrlbox.io.modbus_tcp;
 
-import java.util.HashMap;
-import java.util.concurrent.Semaphore;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntConsumer;
 
 import de.i2ar.ctrlbox.io.IO;
 import de.i2ar.ctrlbox.io.IOType;
 import de.i2ar.ctrlbox.io.Register;
+import de.i2ar.ctrlbox.io.RegisterBatch;
 import de.i2ar.ctrlbox.util.Message;
 import de.i2ar.ctrlbox.util.MsgHandlerThread;
-import net.wimpi.modbus.ModbusException;
-import net.wimpi.modbus.io.ModbusTCPTransaction;
 import net.wimpi.modbus.msg.ModbusRequest;
 import net.wimpi.modbus.msg.ReadCoilsRequest;
 import net.wimpi.modbus.msg.ReadCoilsResponse;
@@ -21,29 +29,32 @@ import net.wimpi.modbus.procimg.SimpleRegister;
 
 public class ModbusTCP implements IO {
 	
-	private HashMap<ModbusTCPRegisterSpeed, ModbusTCPEventNoticer> speedToNoticer = new HashMap<ModbusTCPRegisterSpeed, ModbusTCPEventNoticer>();
+	// ein Poller fuer alle Slaves und Poll-Raten
+	private ModbusTCPEventNoticer noticer;
 	
+	// Channels zu allen Slaves, alle Requests (Polls, Lesen, Schreiben) laufen darueber
+	private ModbusTCPConnectionManager connections = new ModbusTCPConnectionManager();
 	
-	static Semaphore mutex = new Semaphore(1);
+	private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+		Thread t = new Thread(r, "ModbusTCP-Poller");
+		t.setDaemon(true);
+		return t;
+	});
 	
-	private MsgHandlerThread waitUntilHandler = new MsgHandlerThread() {
-		@Override
-		protected void handle(Message msg) {
-			synchronized (msg) { msg.notify(); }
-		}
-	};
+	// Futures fuer Aufrufer und Value-Listener werden hier abgeschlossen bzw. aufgerufen,
+	// damit Folgeaktionen weder den Reader-Thread eines Channels noch den Poller blockieren
+	// (whenRegisterEquals(...).thenRun(() -> setRegister(...)) wartet sonst auf die eigene Antwort)
+	private ExecutorService callbacks = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "ModbusTCP-Callback");
+		t.setDaemon(true);
+		return t;
+	});
 	
 	
 	public ModbusTCP() {
 		
-		ModbusTCPEventNoticer noticer;
-		for ( ModbusTCPRegisterSpeed speed : ModbusTCPRegisterSpeed.values()) {
-			noticer = new ModbusTCPEventNoticer(this, speed);
-			this.speedToNoticer.put(speed, noticer);
-			noticer.start();
-		}
-		
-		this.waitUntilHandler.start();
+		this.noticer = new ModbusTCPEventNoticer(this);
+		this.noticer.start();
 	}
 
 	@Override
@@ -53,140 +64,193 @@ public class ModbusTCP implements IO {
 
 	@Override
 	public void setRegister(Register reg, int regValue) {
+		try {
+			setRegisterAsync(reg, regValue).get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public int getRegister(Register reg) {
+		try {
+			return getRegisterAsync(reg).get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> setRegisterAsync(Register reg, int regValue) {
 		
-		if (!(reg instanceof ModbusTCPRegister)) return; // EVTL EXCEPTION WERFEN!!
+		if (!(reg instanceof ModbusTCPRegister)) return notModbusTCP(reg);
 		
+		ModbusTCPRegister mbReg = (ModbusTCPRegister)reg;
 		ModbusRequest req;
-		ModbusTCPTransaction trans;
-		
-		switch (((ModbusTCPRegister)reg).getRegType()) {
 		
-			case MB_COIL:
-				
-				req = new WriteCoilRequest(((ModbusTCPRegister)reg).getRegAddr(), regValue == 1);
-				trans = new ModbusTCPTransaction(((ModbusTCPRegister)reg).getConn());
-				trans.setRequest(req);
-				
-				try {
-					mutex.acquire();
-					trans.execute();
-				} catch (ModbusException | InterruptedException e) { // | InterruptedException e
-					e.printStackTrace();
-				}
-				mutex.release();
-				
-				break;
-				
-			case MB_REG:
-				
-				req = new WriteSingleRegisterRequest(((ModbusTCPRegister)reg).getRegAddr(), new SimpleRegister(regValue));
-				trans = new ModbusTCPTransaction(((ModbusTCPRegister)reg).getConn());
-				trans.setRequest(req);
-				
-				try {
-					mutex.acquire();
-					trans.execute();
-				} catch (ModbusException | InterruptedException e) {
-					e.printStackTrace();
-				}
-				mutex.release();
-				
-				break;
+		switch (mbReg.getRegType()) {
+			case MB_COIL:	req = new WriteCoilRequest(mbReg.getRegAddr(), regValue == 1); break;
+			case MB_REG:	req = new WriteSingleRegisterRequest(mbReg.getRegAddr(), new SimpleRegister(regValue)); break;
+			default:		return notModbusTCP(reg);
 		}
+		
+		return completeAsync(getWriteChannel(mbReg.getEndpoint()).execute(req).thenApply(resp -> null));
 	}
 
 	@Override
-	public int getRegister(Register reg) {
-		
-//		System.out.println("GET REGISTER " + ((ModbusTCPRegister)reg).getRegAddr() );
+	public CompletableFuture<Integer> getRegisterAsync(Register reg) {
 		
-		if (!(reg instanceof ModbusTCPRegister)) return -1; // EVTL EXCEPTION WERFEN!!
+		if (!(reg instanceof ModbusTCPRegister)) return notModbusTCP(reg);
 		
+		ModbusTCPRegister mbReg = (ModbusTCPRegister)reg;
 		ModbusRequest req;
-		ModbusTCPTransaction trans;
-		int returnValue = -1;
 		
-		switch (((ModbusTCPRegister)reg).getRegType()) {
-		
-			case MB_COIL:
-				
-				req = new ReadCoilsRequest(((ModbusTCPRegister)reg).getRegAddr(), 1);
-				trans = new ModbusTCPTransaction(((ModbusTCPRegister)reg).getConn());
-				trans.setRequest(req);
-				
-				try {
-					mutex.acquire();
-					trans.execute();
-					ReadCoilsResponse resp = (ReadCoilsResponse)trans.getResponse();
-					if (resp.getCoilStatus(0)) returnValue = 1;
-					else returnValue = 0;
-					
-					
-				} catch (ModbusException | InterruptedException e) {
-					e.printStackTrace();
-					returnValue = -1;
-				}
-				mutex.release();
-				
-				break;
-				
-			case MB_REG:
-				
-				req = new ReadInputRegistersRequest(((ModbusTCPRegister)reg).getRegAddr(), 1);
-				
-				trans = new ModbusTCPTransaction(((ModbusTCPRegister)reg).getConn());
-				trans.setRequest(req);
-				
-				try {
-					mutex.acquire();
-					trans.execute();
-					ReadInputRegistersResponse resp = (ReadInputRegistersResponse)trans.getResponse();
-					returnValue = resp.getRegisterValue(0);
-					
-				} catch (ModbusException | InterruptedException e) {
-					e.printStackTrace();
-					returnValue = -1;
-				}
-				mutex.release();
-				
-				break;
+		switch (mbReg.getRegType()) {
+			case MB_COIL:	req = new ReadCoilsRequest(mbReg.getRegAddr(), 1); break;
+			case MB_REG:	req = new ReadInputRegistersRequest(mbReg.getRegAddr(), 1); break;
+			default:		return notModbusTCP(reg);
 		}
 		
-		
-		return returnValue;
+		return completeAsync(getChannel(mbReg.getEndpoint()).execute(req).thenApply(resp -> {
+			if (resp instanceof ReadCoilsResponse) return ((ReadCoilsResponse)resp).getCoilStatus(0) ? 1 : 0;
+			else return ((ReadInputRegistersResponse)resp).getRegisterValue(0);
+		}));
 	}
 
 	@Override
 	public void subscribeToEvent(Register reg, int regValue, MsgHandlerThread handler, Message msg) {
-		this.speedToNoticer
-		.get(((ModbusTCPRegister)reg).getSpeed())
-		.addSubscription(reg, regValue, handler, msg);
+		this.noticer.addSubscription(reg, regValue, handler, msg);
+	}
+	
+	/**
+	 * listener bekommt den aktuellen Wert des Registers und danach jede Aenderung, in einem
+	 * Callback-Thread (ohne MsgHandlerThread), je Slave der Reihe nach. Sollte nicht blockieren,
+	 * sonst warten die folgenden Werte des Slaves.
+	 */
+	public void addValueListener(ModbusTCPRegister reg, IntConsumer listener) {
+		this.noticer.addValueListener(reg, listener);
+	}
+	
+	public void removeValueListener(ModbusTCPRegister reg, IntConsumer listener) {
+		this.noticer.removeValueListener(reg, listener);
 	}
 	
 	@Override
 	public void waitUntil(Register reg, int regValue) {
-		Message msg = new Message();
+		try {
+			whenRegisterEquals(reg, regValue, 0).get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Wird vom Poller des Registers abgeschlossen, sobald der Wert anliegt (auch wenn
+	 * er das schon tut). Bei timeoutMs &gt; 0 endet das Future sonst mit einer
+	 * TimeoutException. Die Subscription wird in jedem Fall wieder entfernt,
+	 * auch wenn das Future von aussen abgebrochen wird.
+	 */
+	@Override
+	public CompletableFuture<Void> whenRegisterEquals(Register reg, int regValue, long timeoutMs) {
+		
+		if (!(reg instanceof ModbusTCPRegister)) return notModbusTCP(reg);
 		
-		this.subscribeToEvent(reg, regValue, this.waitUntilHandler, msg);
+		CompletableFuture<Void> future = this.noticer.whenEquals(reg, regValue);
 		
-		synchronized (msg) {
-			try {
-				msg.wait();
-			}
-			catch (InterruptedException e) { e.printStackTrace(); }
+		if (timeoutMs > 0 && !future.isDone()) {
+			ScheduledFuture<?> t = this.scheduler.schedule(
+					() -> callback(() -> future.completeExceptionally(new TimeoutException(reg + " != " + regValue + " nach " + timeoutMs + " ms"))),
+					timeoutMs, TimeUnit.MILLISECONDS);
+			future.whenComplete((v, e) -> t.cancel(false));
 		}
 		
-		// Scheint nicht reibungslos zu funktionieren, oder doch mittlerweile?!?!?!?!?!?!?!?
-		this.speedToNoticer
-		.get(((ModbusTCPRegister)reg).getSpeed())
-		.removeSubscription(reg, regValue, this.waitUntilHandler, msg);
+		return future;
+	}
+
+	@Override
+	public RegisterBatch batch() {
+		return new ModbusTCPBatch(this);
+	}
+
+	private static <T> CompletableFuture<T> notModbusTCP(Register reg) {
+		CompletableFuture<T> f = new CompletableFuture<T>();
+		f.completeExceptionally(new IllegalArgumentException("Kein Modbus/TCP Register: " + reg));
+		return f;
+	}
+
+	/**
+	 * Poll-Statistik je Slave und Poll-Rate (erreichte vs. angeforderte Periode, Latenz, Jitter, Overruns).
+	 */
+	public List<ModbusTCPPollStats> getPollStats() {
+		return this.noticer.getPollStats();
+	}
+	
+	/**
+	 * Erreichbarkeit eines Slaves (UP/DOWN, Fehler, naechster Verbindungsversuch).
+	 */
+	public ModbusTCPEndpointHealth getHealth(ModbusTCPEndpoint endpoint) {
+		return this.connections.getHealth(endpoint);
+	}
+	
+	/**
+	 * Mehrere parallele Verbindungen zu einem Slave, falls die SPS das kann. Nur Reads
+	 * werden verteilt, Writes eines Slaves bleiben auf einer Verbindung und damit in
+	 * Reihenfolge. Muss vor dem ersten Zugriff auf den Slave aufgerufen werden.
+	 */
+	public void setPoolSize(ModbusTCPEndpoint endpoint, int size) {
+		this.connections.setPoolSize(endpoint, size);
+	}
+	
+	/**
+	 * Lenkt alle Verbindungen zu endpoint auf target um, z.B. auf einen ModbusTCPSlaveSimulator.
+	 * Muss vor dem ersten Zugriff auf den Slave aufgerufen werden.
+	 */
+	public void redirect(ModbusTCPEndpoint endpoint, ModbusTCPEndpoint target) {
+		this.connections.redirect(endpoint, target);
+	}
+	
+	ModbusTCPChannel getChannel(ModbusTCPEndpoint endpoint) {
+		return this.connections.getChannel(endpoint);
+	}
+	
+	ModbusTCPChannel getWriteChannel(ModbusTCPEndpoint endpoint) {
+		return this.connections.getWriteChannel(endpoint);
+	}
+	
+	boolean isAvailable(ModbusTCPEndpoint endpoint) {
+		return this.connections.isAvailable(endpoint);
+	}
+	
+	ScheduledExecutorService getScheduler() {
+		return this.scheduler;
+	}
+	
+	// Folgeaktion im Callback-Executor ausfuehren, nach stop() direkt im aufrufenden Thread
+	void callback(Runnable r) {
+		try {
+			this.callbacks.execute(r);
+		} catch (RejectedExecutionException e) {
+			r.run();
+		}
+	}
+	
+	// Future, das im Callback-Executor abgeschlossen wird, sobald f fertig ist
+	<T> CompletableFuture<T> completeAsync(CompletableFuture<T> f) {
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		f.whenComplete((v, e) -> callback(() -> {
+			if (e != null) result.completeExceptionally(e);
+			else result.complete(v);
+		}));
+		return result;
 	}
 
 	@Override
 	public void stop() {
-		for (ModbusTCPEventNoticer noticer : this.speedToNoticer.values()) noticer.kill();
+		this.noticer.kill();
 		
-		this.waitUntilHandler.kill();
-		ModbusTCPRegister.closeConnections();
+		this.scheduler.shutdown();
+		this.connections.close();
+		this.callbacks.shutdown();
 	}
 }
@@ -0,0 +1,117 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+import de.i2ar.ctrlbox.io.RegType;
+import de.i2ar.ctrlbox.io.Register;
+import de.i2ar.ctrlbox.io.RegisterBatch;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.WriteCoilRequest;
+import net.wimpi.modbus.msg.WriteMultipleCoilsRequest;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteSingleRegisterRequest;
+import net.wimpi.modbus.procimg.SimpleRegister;
+import net.wimpi.modbus.util.BitVector;
+
+/**
+ * Batch von Writes fuer ModbusTCP.
+ *
+ * Writes werden je Slave und Registertyp nach Adresse sortiert gesammelt, spaetere
+ * Writes auf dieselbe Adresse ueberschreiben fruehere. Beim commit() wird jeder
+ * zusammenhaengende Adressbereich ein FC15 (Coils) bzw. FC16 (Register) Request,
+ * einzelne Adressen weiterhin FC5/FC6. Alle Requests gehen gepipelined ueber die
+ * Channels der Slaves raus.
+ */
+class ModbusTCPBatch implements RegisterBatch {
+
+	// Protokollgrenzen fuer FC15/FC16
+	static final int MAX_WRITE_COILS = 1968;
+	static final int MAX_WRITE_REGISTERS = 123;
+
+	private ModbusTCP io;
+	private LinkedHashMap<ModbusTCPEndpoint, EnumMap<RegType, TreeMap<Integer, Integer>>> writes =
+			new LinkedHashMap<ModbusTCPEndpoint, EnumMap<RegType, TreeMap<Integer, Integer>>>();
+	private boolean committed = false;
+
+
+	ModbusTCPBatch(ModbusTCP io) {
+		this.io = io;
+	}
+
+
+	@Override
+	public synchronized RegisterBatch set(Register reg, int regValue) {
+
+		if (this.committed) throw new IllegalStateException("Batch wurde bereits abgeschickt");
+		if (!(reg instanceof ModbusTCPRegister)) throw new IllegalArgumentException("Kein Modbus/TCP Register: " + reg);
+
+		ModbusTCPRegister mbReg = (ModbusTCPRegister)reg;
+
+		EnumMap<RegType, TreeMap<Integer, Integer>> byType = this.writes.get(mbReg.getEndpoint());
+		if (byType == null) this.writes.put(mbReg.getEndpoint(), byType = new EnumMap<RegType, TreeMap<Integer, Integer>>(RegType.class));
+
+		TreeMap<Integer, Integer> values = byType.get(mbReg.getRegType());
+		if (values == null) byType.put(mbReg.getRegType(), values = new TreeMap<Integer, Integer>());
+
+		values.put(mbReg.getRegAddr(), regValue);
+		return this;
+	}
+
+	@Override
+	public synchronized CompletableFuture<Void> commit() {
+
+		if (this.committed) throw new IllegalStateException("Batch wurde bereits abgeschickt");
+		this.committed = true;
+
+		ArrayList<CompletableFuture<?>> sent = new ArrayList<CompletableFuture<?>>();
+
+		for (Map.Entry<ModbusTCPEndpoint, EnumMap<RegType, TreeMap<Integer, Integer>>> slave : this.writes.entrySet()) {
+			ModbusTCPChannel channel = this.io.getWriteChannel(slave.getKey());
+
+			for (Map.Entry<RegType, TreeMap<Integer, Integer>> table : slave.getValue().entrySet()) {
+				RegType regType = table.getKey();
+				int max = (regType == RegType.MB_COIL) ? MAX_WRITE_COILS : MAX_WRITE_REGISTERS;
+
+				// zusammenhaengende Bereiche bilden
+				ArrayList<Integer> run = new ArrayList<Integer>();
+				int start = -1;
+
+				for (Map.Entry<Integer, Integer> w : table.getValue().entrySet()) {
+					if (start >= 0 && (w.getKey() != start + run.size() || run.size() == max)) {
+						sent.add(channel.execute(createRequest(regType, start, run)));
+						run.clear();
+					}
+					if (run.isEmpty()) start = w.getKey();
+					run.add(w.getValue());
+				}
+				if (!run.isEmpty()) sent.add(channel.execute(createRequest(regType, start, run)));
+			}
+		}
+
+		return this.io.completeAsync(CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[sent.size()])));
+	}
+
+
+	private static ModbusRequest createRequest(RegType regType, int start, ArrayList<Integer> values) {
+
+		if (regType == RegType.MB_COIL) {
+			if (values.size() == 1) return new WriteCoilRequest(start, values.get(0) == 1);
+
+			BitVector bits = new BitVector(values.size());
+			for (int i = 0; i < values.size(); i++) bits.setBit(i, values.get(i) == 1);
+			return new WriteMultipleCoilsRequest(start, bits);
+		}
+		else {
+			if (values.size() == 1) return new WriteSingleRegisterRequest(start, new SimpleRegister(values.get(0)));
+
+			SimpleRegister[] regs = new SimpleRegister[values.size()];
+			for (int i = 0; i < regs.length; i++) regs[i] = new SimpleRegister(values.get(i));
+			return new WriteMultipleRegistersRequest(start, regs);
+		}
+	}
+}
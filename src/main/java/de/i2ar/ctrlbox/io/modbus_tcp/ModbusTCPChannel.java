@@ -0,0 +1,350 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Asynchroner Modbus/TCP Kanal zu genau einem Slave.
+ *
+ * Requests werden sofort mit eigener Transaction-ID auf die Leitung geschrieben
+ * (bis zu maxOutstanding gleichzeitig, Rest wartet in der Queue), ein
+ * Reader-Thread pro Kanal ordnet die Antworten ueber die Transaction-ID wieder
+ * den CompletableFutures zu. Dadurch blockiert ein langsamer Slave weder andere
+ * Slaves noch die eigenen folgenden Requests.
+ *
+ * Verbindungsaufbau passiert ebenfalls im Reader-Thread, execute() blockiert nie.
+ * Verbindungsfehler, Timeouts abgeschickter Requests und Antworten gehen an den
+ * ModbusTCPEndpointHealth des Slaves, waehrend dessen Backoff schlaegt execute()
+ * sofort fehl.
+ * Die Futures werden im Reader- bzw. Timer-Thread abgeschlossen, Callbacks
+ * duerfen also nicht blockieren. ModbusTCP reicht sie deshalb ueber seinen
+ * Callback-Executor an die Aufrufer weiter.
+ */
+class ModbusTCPChannel {
+
+	static final int DEFAULT_MAX_OUTSTANDING = 8;
+	static final int DEFAULT_TIMEOUT_MS = 1000;
+
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "ModbusTCPChannel-Timer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final ModbusTCPEndpoint endpoint;
+	private final ModbusTCPEndpointHealth health;
+	private final int maxOutstanding;
+	private final int timeoutMs;
+
+	// alles folgende nur unter lock
+	private final Object lock = new Object();
+	private final ArrayDeque<Pending> waiting = new ArrayDeque<Pending>();
+	private final HashMap<Integer, Pending> outstanding = new HashMap<Integer, Pending>();
+	private Socket socket;
+	private DataOutputStream out;
+	private int lastTransactionID = 0;
+	private Thread reader;
+	private boolean closed = false;
+
+
+	ModbusTCPChannel(ModbusTCPEndpoint endpoint, ModbusTCPEndpointHealth health) {
+		this(endpoint, health, DEFAULT_MAX_OUTSTANDING, DEFAULT_TIMEOUT_MS);
+	}
+
+	ModbusTCPChannel(ModbusTCPEndpoint endpoint, ModbusTCPEndpointHealth health, int maxOutstanding, int timeoutMs) {
+		this.endpoint = endpoint;
+		this.health = health;
+		this.maxOutstanding = maxOutstanding;
+		this.timeoutMs = timeoutMs;
+	}
+
+
+	ModbusTCPEndpoint getEndpoint() {
+		return this.endpoint;
+	}
+
+	/**
+	 * Schickt den Request ab, sobald Verbindung und Pipeline-Fenster es erlauben.
+	 * Die Transaction-ID des Requests wird dabei ueberschrieben.
+	 */
+	CompletableFuture<ModbusResponse> execute(ModbusRequest req) {
+
+		Pending p = new Pending(req);
+
+		// toter Slave -> sofort fehlschlagen statt auf Connect-Timeout zu warten
+		if (!this.health.isAvailable()) {
+			p.future.completeExceptionally(new ModbusIOException("Slave nicht erreichbar: " + this.health));
+			return p.future;
+		}
+
+		ScheduledFuture<?> t = timer.schedule(() -> timeout(p), this.timeoutMs, TimeUnit.MILLISECONDS);
+		p.future.whenComplete((resp, e) -> t.cancel(false));
+
+		synchronized (this.lock) {
+			if (this.closed) {
+				p.future.completeExceptionally(new ModbusIOException("Channel " + this.endpoint + " geschlossen"));
+				return p.future;
+			}
+
+			this.waiting.addLast(p);
+
+			if (this.reader == null) {
+				this.reader = new Thread(this::readLoop, "ModbusTCPChannel " + this.endpoint);
+				this.reader.setDaemon(true);
+				this.reader.start();
+			}
+			else if (this.socket == null) this.lock.notifyAll();
+			else flush();
+		}
+
+		return p.future;
+	}
+
+	void close() {
+
+		ArrayList<Pending> failed = new ArrayList<Pending>();
+		Socket s;
+
+		synchronized (this.lock) {
+			this.closed = true;
+			failed.addAll(this.waiting);
+			failed.addAll(this.outstanding.values());
+			this.waiting.clear();
+			this.outstanding.clear();
+
+			s = this.socket;
+			this.socket = null;
+			this.out = null;
+			this.lock.notifyAll();
+		}
+
+		closeQuietly(s);
+		fail(failed, new ModbusIOException("Channel " + this.endpoint + " geschlossen"));
+	}
+
+
+	// Requests aus der Queue schreiben, solange das Fenster Platz hat (nur unter lock)
+	private void flush() {
+
+		if (this.out == null) return;
+
+		boolean wrote = false;
+
+		try {
+			while (this.outstanding.size() < this.maxOutstanding && !this.waiting.isEmpty()) {
+				Pending p = this.waiting.pollFirst();
+				if (p.future.isDone()) continue;
+
+				p.tid = nextTransactionID();
+				p.req.setTransactionID(p.tid);
+				this.outstanding.put(p.tid, p);
+				p.req.writeTo(this.out);
+				wrote = true;
+			}
+
+			if (wrote) this.out.flush();
+
+		} catch (IOException e) {
+			// Reader-Thread bekommt das beim naechsten read() mit und raeumt auf
+			closeQuietly(this.socket);
+		}
+	}
+
+	private int nextTransactionID() {
+		do {
+			this.lastTransactionID = (this.lastTransactionID == 0xFFFF) ? 1 : this.lastTransactionID + 1;
+		} while (this.outstanding.containsKey(this.lastTransactionID));
+
+		return this.lastTransactionID;
+	}
+
+	private void timeout(Pending p) {
+
+		boolean sent = false;
+
+		synchronized (this.lock) {
+			if (p.future.isDone()) return;
+
+			if (p.tid < 0) this.waiting.remove(p);
+			else if (this.outstanding.remove(p.tid) == p) {
+				sent = true;
+				flush();
+			}
+		}
+
+		ModbusIOException e = new ModbusIOException("Timeout nach " + this.timeoutMs + " ms (" + this.endpoint + ")");
+		// nur abgeschickte Requests zaehlen, wartende haben den Slave nie erreicht
+		if (sent) this.health.timedOut(e);
+		p.future.completeExceptionally(e);
+	}
+
+
+	private void readLoop() {
+
+		while (true) {
+
+			Socket s;
+
+			synchronized (this.lock) {
+				while (!this.closed && this.socket == null && this.waiting.isEmpty()) {
+					try { this.lock.wait(); }
+					catch (InterruptedException e) { return; }
+				}
+				if (this.closed) return;
+				s = this.socket;
+			}
+
+			if (s == null) {
+				connect();
+				continue;
+			}
+
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				while (true) readFrame(in);
+			}
+			catch (IOException e) {
+				connectionLost(s, e);
+			}
+		}
+	}
+
+	private void connect() {
+
+		Socket s = new Socket();
+
+		try {
+			s.connect(new InetSocketAddress(this.endpoint.getAddr(), this.endpoint.getPort()), this.timeoutMs);
+			s.setTcpNoDelay(true);
+			DataOutputStream o = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+			synchronized (this.lock) {
+				if (this.closed) {
+					closeQuietly(s);
+					return;
+				}
+				this.socket = s;
+				this.out = o;
+				flush();
+			}
+
+			this.health.connected();
+
+		} catch (IOException e) {
+
+			closeQuietly(s);
+
+			ArrayList<Pending> failed;
+			synchronized (this.lock) {
+				failed = new ArrayList<Pending>(this.waiting);
+				this.waiting.clear();
+			}
+			this.health.failed(e);
+			fail(failed, e);
+		}
+	}
+
+	private void connectionLost(Socket s, IOException cause) {
+
+		ArrayList<Pending> failed;
+
+		synchronized (this.lock) {
+			if (this.socket == s) {
+				this.socket = null;
+				this.out = null;
+			}
+			failed = new ArrayList<Pending>(this.outstanding.values());
+			this.outstanding.clear();
+		}
+
+		closeQuietly(s);
+		if (!this.closed) this.health.failed(cause);
+		fail(failed, cause);
+	}
+
+	// MBAP Header + PDU lesen und der passenden Transaktion zuordnen
+	private void readFrame(DataInputStream in) throws IOException {
+
+		int tid = in.readUnsignedShort();
+		in.readUnsignedShort(); // Protocol-ID
+		int len = in.readUnsignedShort();
+		int unit = in.readUnsignedByte();
+		int fc = in.readUnsignedByte();
+
+		if (len < 2) throw new IOException("Ungueltige Laenge im MBAP Header: " + len);
+
+		byte[] data = new byte[len - 2];
+		in.readFully(data);
+
+		Pending p;
+		synchronized (this.lock) {
+			p = this.outstanding.remove(tid);
+			if (p != null) flush();
+		}
+
+		this.health.answered();
+
+		if (p == null) return; // verspaetete Antwort, Request ist schon per Timeout beendet
+
+		if ((fc & 0x7F) != p.req.getFunctionCode()) {
+			p.future.completeExceptionally(new ModbusIOException("Unerwarteter Function-Code " + fc + " (" + this.endpoint + ")"));
+		}
+		else if ((fc & 0x80) != 0) {
+			p.future.completeExceptionally(new ModbusSlaveException(data.length > 0 ? data[0] & 0xFF : 0));
+		}
+		else {
+			ModbusResponse resp = ModbusResponse.createModbusResponse(fc);
+			resp.readData(new DataInputStream(new ByteArrayInputStream(data)));
+			resp.setTransactionID(tid);
+			resp.setUnitID(unit);
+			p.future.complete(resp);
+		}
+	}
+
+	private static void fail(ArrayList<Pending> failed, Exception cause) {
+
+		ModbusException e;
+		if (cause instanceof ModbusException) e = (ModbusException)cause;
+		else {
+			e = new ModbusIOException(cause.getMessage());
+			e.initCause(cause);
+		}
+
+		for (Pending p : failed) p.future.completeExceptionally(e);
+	}
+
+	private static void closeQuietly(Socket s) {
+		if (s == null) return;
+		try { s.close(); }
+		catch (IOException e) { }
+	}
+
+
+	private static class Pending {
+		final ModbusRequest req;
+		final CompletableFuture<ModbusResponse> future = new CompletableFuture<ModbusResponse>();
+		int tid = -1;
+
+		Pending(ModbusRequest req) { this.req = req; }
+	}
+}
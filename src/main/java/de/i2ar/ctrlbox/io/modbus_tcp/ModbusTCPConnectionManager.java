@@ -0,0 +1,107 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verwaltet die Channels zu allen Slaves.
+ *
+ * Lookup per ModbusTCPEndpoint ohne Lock (ConcurrentHashMap.get, nur beim ersten
+ * Zugriff auf einen Slave wird angelegt). Pro Slave gibt es normalerweise einen
+ * Channel; unterstuetzt die SPS mehrere parallele Sessions, kann per setPoolSize()
+ * ein kleiner Pool eingestellt werden. Lesende Requests werden dann reihum verteilt,
+ * Writes gehen immer ueber den ersten Channel des Slaves, damit sie in der Reihenfolge
+ * ankommen, in der sie abgeschickt wurden. Ein Read kann einen vorher abgeschickten
+ * Write dann allerdings ueberholen (erst auf das Future des Writes warten).
+ * Alle Channels eines Slaves teilen sich einen ModbusTCPEndpointHealth.
+ * Per redirect() kann ein Slave auf eine andere Adresse umgelenkt werden
+ * (z.B. auf einen ModbusTCPSlaveSimulator), die Register bleiben unveraendert.
+ */
+class ModbusTCPConnectionManager {
+
+	static final int MAX_POOL_SIZE = 8;
+
+	private ConcurrentHashMap<ModbusTCPEndpoint, Pool> pools = new ConcurrentHashMap<ModbusTCPEndpoint, Pool>();
+	private ConcurrentHashMap<ModbusTCPEndpoint, Integer> poolSizes = new ConcurrentHashMap<ModbusTCPEndpoint, Integer>();
+	private ConcurrentHashMap<ModbusTCPEndpoint, ModbusTCPEndpoint> redirects = new ConcurrentHashMap<ModbusTCPEndpoint, ModbusTCPEndpoint>();
+	private volatile boolean closed = false;
+
+
+	/**
+	 * Anzahl paralleler Verbindungen zu einem Slave, muss vor dem ersten Zugriff gesetzt werden.
+	 */
+	void setPoolSize(ModbusTCPEndpoint endpoint, int size) {
+		if (size < 1 || size > MAX_POOL_SIZE) throw new IllegalArgumentException("Poolgroesse 1.." + MAX_POOL_SIZE + ": " + size);
+		if (this.pools.containsKey(endpoint)) throw new IllegalStateException("Verbindung zu " + endpoint + " besteht bereits");
+
+		this.poolSizes.put(endpoint, size);
+	}
+
+	/**
+	 * Verbindungen zu endpoint gehen stattdessen an target, muss vor dem ersten Zugriff gesetzt werden.
+	 */
+	void redirect(ModbusTCPEndpoint endpoint, ModbusTCPEndpoint target) {
+		if (this.pools.containsKey(endpoint)) throw new IllegalStateException("Verbindung zu " + endpoint + " besteht bereits");
+
+		this.redirects.put(endpoint, target);
+	}
+
+	// Channel fuer lesende Requests, reihum
+	ModbusTCPChannel getChannel(ModbusTCPEndpoint endpoint) {
+		return getPool(endpoint).next();
+	}
+
+	// Channel fuer Writes, immer derselbe je Slave
+	ModbusTCPChannel getWriteChannel(ModbusTCPEndpoint endpoint) {
+		return getPool(endpoint).channels[0];
+	}
+
+	ModbusTCPEndpointHealth getHealth(ModbusTCPEndpoint endpoint) {
+		return getPool(endpoint).health;
+	}
+
+	boolean isAvailable(ModbusTCPEndpoint endpoint) {
+		Pool pool = this.pools.get(endpoint);
+		return pool == null || pool.health.isAvailable();
+	}
+
+	void close() {
+		this.closed = true;
+		for (Pool pool : this.pools.values()) pool.close();
+	}
+
+
+	private Pool getPool(ModbusTCPEndpoint endpoint) {
+		Pool pool = this.pools.get(endpoint);
+		if (pool != null) return pool;
+
+		pool = this.pools.computeIfAbsent(endpoint, Pool::new);
+
+		// close() kann zwischen Pruefung und Anlegen gelaufen sein
+		if (this.closed) pool.close();
+		return pool;
+	}
+
+
+	private class Pool {
+		final ModbusTCPEndpointHealth health;
+		final ModbusTCPChannel[] channels;
+		final AtomicInteger next = new AtomicInteger();
+
+		Pool(ModbusTCPEndpoint endpoint) {
+			this.health = new ModbusTCPEndpointHealth(endpoint);
+			this.channels = new ModbusTCPChannel[poolSizes.getOrDefault(endpoint, 1)];
+			ModbusTCPEndpoint target = redirects.getOrDefault(endpoint, endpoint);
+			for (int i = 0; i < this.channels.length; i++) this.channels[i] = new ModbusTCPChannel(target, this.health);
+		}
+
+		ModbusTCPChannel next() {
+			if (this.channels.length == 1) return this.channels[0];
+			return this.channels[(this.next.getAndIncrement() & Integer.MAX_VALUE) % this.channels.length];
+		}
+
+		void close() {
+			for (ModbusTCPChannel channel : this.channels) channel.close();
+		}
+	}
+}
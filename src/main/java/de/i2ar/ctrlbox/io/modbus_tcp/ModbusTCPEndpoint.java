@@ -0,0 +1,50 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+import java.net.InetAddress;
+
+/**
+ * Adresse eines Modbus/TCP Slaves (IP + Port).
+ *
+ * Unveraenderlich, hashCode wird einmal im Konstruktor berechnet, damit
+ * das Objekt direkt als Schluessel fuer Channels und Poller dienen kann
+ * (statt bei jedem Zugriff einen "ip:port" String zu bauen).
+ */
+public final class ModbusTCPEndpoint {
+
+	private final InetAddress addr;
+	private final int port;
+	private final int hash;
+
+	public ModbusTCPEndpoint(InetAddress addr, int port) {
+		this.addr = addr;
+		this.port = port;
+		this.hash = 31 * addr.hashCode() + port;
+	}
+
+	public InetAddress getAddr() {
+		return this.addr;
+	}
+
+	public int getPort() {
+		return this.port;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) return true;
+		if (!(other instanceof ModbusTCPEndpoint)) return false;
+
+		ModbusTCPEndpoint o = (ModbusTCPEndpoint)other;
+		return this.port == o.port && this.addr.equals(o.addr);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hash;
+	}
+
+	@Override
+	public String toString() {
+		return this.addr.getHostAddress() + ":" + this.port;
+	}
+}
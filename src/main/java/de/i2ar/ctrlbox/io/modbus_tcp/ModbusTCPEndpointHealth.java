@@ -0,0 +1,91 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+/**
+ * Erreichbarkeit eines Slaves, gemeinsam fuer alle Channels auf diesen Endpoint.
+ *
+ * Nach einem Verbindungsfehler ist der Slave DOWN und wird erst nach einer
+ * exponentiell wachsenden Wartezeit (BASE_BACKOFF_MS, verdoppelt bis
+ * MAX_BACKOFF_MS) wieder versucht. In der Zwischenzeit schlagen Requests sofort
+ * fehl und die Poller lassen den Slave aus, statt auf Timeouts zu warten.
+ *
+ * Ein Slave, der Verbindungen annimmt, aber nicht mehr antwortet, gilt nach
+ * TIMEOUTS_UNTIL_DOWN aufeinanderfolgenden Timeouts ebenfalls als DOWN. Die
+ * naechste Antwort macht ihn wieder UP.
+ */
+public class ModbusTCPEndpointHealth {
+
+	static final long BASE_BACKOFF_MS = 250;
+	static final long MAX_BACKOFF_MS = 30000;
+	static final int TIMEOUTS_UNTIL_DOWN = 3;
+
+	public enum State { UNKNOWN, UP, DOWN }
+
+	private final ModbusTCPEndpoint endpoint;
+
+	private volatile State state = State.UNKNOWN;
+	private volatile long retryAtNs;
+	private int failures;
+	private volatile int timeouts;
+	private Throwable lastError;
+
+
+	ModbusTCPEndpointHealth(ModbusTCPEndpoint endpoint) {
+		this.endpoint = endpoint;
+	}
+
+
+	/**
+	 * true, wenn der Slave oben ist oder die Wartezeit fuer den naechsten Versuch um ist.
+	 * Ohne Lock, wird bei jedem Request und Poll gefragt.
+	 */
+	boolean isAvailable() {
+		return this.state != State.DOWN || System.nanoTime() - this.retryAtNs >= 0;
+	}
+
+	synchronized void connected() {
+		this.state = State.UP;
+		this.failures = 0;
+		this.timeouts = 0;
+	}
+
+	/**
+	 * Antwort erhalten. Ohne Lock, solange der Slave UP ist und es keine Timeouts gab.
+	 */
+	void answered() {
+		if (this.timeouts != 0 || this.state != State.UP) connected();
+	}
+
+	synchronized void timedOut(Throwable cause) {
+		if (++this.timeouts < TIMEOUTS_UNTIL_DOWN) return;
+
+		this.timeouts = 0;
+		failed(cause);
+	}
+
+	synchronized void failed(Throwable cause) {
+		this.failures++;
+		this.lastError = cause;
+
+		long backoffMs = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(this.failures - 1, 16));
+		this.retryAtNs = System.nanoTime() + backoffMs * 1000000L;
+		this.state = State.DOWN;
+	}
+
+
+	public ModbusTCPEndpoint getEndpoint() { return this.endpoint; }
+
+	public State getState() { return this.state; }
+
+	public synchronized int getFailures() { return this.failures; }
+
+	public synchronized Throwable getLastError() { return this.lastError; }
+
+	public long getRetryInMs() {
+		return (this.state != State.DOWN) ? 0 : Math.max(0, (this.retryAtNs - System.nanoTime()) / 1000000L);
+	}
+
+	@Override
+	public String toString() {
+		return this.endpoint + " " + this.state + ((this.state == State.DOWN) ? " (naechster Versuch in " + getRetryInMs() + " ms)" : "");
+	}
+}
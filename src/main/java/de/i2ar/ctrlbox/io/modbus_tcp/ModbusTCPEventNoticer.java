@@ -1,248 +1,621 @@
 package de.i2ar.ctrlbox.io.modbus_tcp;
 
-import java.net.InetAddress;
-import java.util.LinkedList;
-import java.util.concurrent.Semaphore;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
 
 import de.i2ar.ctrlbox.io.Register;
+import de.i2ar.ctrlbox.io.modbus_tcp.ModbusTCPReadPlanner.Block;
+import de.i2ar.ctrlbox.io.modbus_tcp.ModbusTCPReadPlanner.Table;
 import de.i2ar.ctrlbox.util.Message;
 import de.i2ar.ctrlbox.util.MsgHandlerThread;
-import net.wimpi.modbus.io.ModbusTCPTransaction;
-import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
-import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
-
-public class ModbusTCPEventNoticer extends Thread {
-
-	private boolean alive = true;
-	private int pollIntervallMs;
-	
-	private LinkedList<Slave> slaves = new LinkedList<Slave>();
-	
-	Semaphore subMutex = new Semaphore(1);
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Pollt die abonnierten Register aller Slaves.
+ *
+ * Jedes Register bringt seine eigene Poll-Rate mit (ModbusTCPRegister.getPollIntervalMs()),
+ * pro Slave gibt es je Rate eine Poll-Klasse mit eigener Deadline. Die Deadlines laufen
+ * im festen Raster (fixed-rate): die naechste ist immer die vorige plus Periode, egal wie
+ * lange der Poll gedauert hat. Ist ein Slave mehr als eine Periode hinterher, werden die
+ * verpassten Termine uebersprungen statt nachgeholt, das Raster bleibt erhalten.
+ * Sind mehrere Klassen eines Slaves gleichzeitig faellig (z.B. 5 ms und 100 ms bei jedem
+ * 20. Takt), werden ihre Adressen zu einem gemeinsamen Plan zusammengelegt und in
+ * einem Durchgang gelesen.
+ *
+ * Was gelesen wird, bestimmt der ModbusTCPReadPlanner (Coils per FC1, Register per FC3,
+ * in Bloecken innerhalb der Protokollgrenzen).
+ *
+ * Jeder Slave haelt ein Abbild der zuletzt gelesenen Worte (ModbusTCPShadowImage). Neue
+ * Werte werden wortweise per XOR dagegen verglichen, und nur fuer geaenderte Adressen
+ * werden die Subscriptions ueber einen Adress-Index nachgeschlagen. Der Aufwand pro Poll
+ * haengt also von der Zahl der Aenderungen ab, nicht von der Zahl der Subscriptions.
+ * Wird eine Adresse von keiner Poll-Klasse mehr gelesen, wird sie im Abbild vergessen.
+ * Eine neue Subscription wird erst mit einem Poll geprueft, der nach ihrem Anmelden
+ * gestartet wurde und ihre Adresse gelesen hat, nie gegen einen aelteren Wert im Abbild.
+ * Neben Subscriptions auf einen Wert gibt es Value-Listener, die jeden neuen Wert
+ * eines Registers bekommen, ohne MsgHandlerThread dazwischen.
+ *
+ * Ausgewertet wird im Reader-Thread des Channels. Value-Listener und die Futures von
+ * whenEquals() laufen deshalb im Callback-Executor von ModbusTCP, sonst wuerde z.B.
+ * whenEquals(...).thenRun(() -> io.setRegister(...)) den Reader auf seine eigene
+ * Antwort warten lassen. Die Listener eines Slaves werden dabei der Reihe nach aufgerufen.
+ *
+ * Jeder Slave hat seinen eigenen Zeitplan auf dem Scheduler von ModbusTCP und liest
+ * asynchron ueber seinen ModbusTCPChannel, ein langsamer oder toter Slave haelt die
+ * anderen also nicht auf. Ist ein Slave DOWN (siehe ModbusTCPEndpointHealth), wird er
+ * bis zum naechsten Verbindungsversuch gar nicht gepollt. Ist der vorige Poll eines
+ * Slaves noch unterwegs, wird der faellige ausgelassen und als Overrun gezaehlt.
+ */
+public class ModbusTCPEventNoticer {
+
+	// so frueh vor der Deadline darf eine Klasse mitgenommen werden (max. 1 ms bzw. 1/4 Periode)
+	private static final long MAX_SLACK_NS = 1000000L;
+
+	private volatile boolean alive = false;
+
+	private ConcurrentHashMap<ModbusTCPEndpoint, Slave> slaves = new ConcurrentHashMap<ModbusTCPEndpoint, Slave>();
+
 	ModbusTCP io;
-	
-	
-	public ModbusTCPEventNoticer(ModbusTCP io, ModbusTCPRegisterSpeed speed) {
+
+
+	public ModbusTCPEventNoticer(ModbusTCP io) {
 		this.io = io;
-		this.pollIntervallMs = speed.getIntervalMs();
-	}
-	
-	
-	
-	@Override
-	public void run() {
-		
-//		long timeOld = 0, timeNew = 0, timeDiff = 0;
-		
-		while (alive) {
-			
-			try {
-				subMutex.acquire();
-				
-								
-				int minCoil, maxCoil, minReg, maxReg;
-				int addr;
-				
-				
-				
-				
-				// Modbus Slaves durch-iterieren
-				
-				for (Slave slave : this.slaves) {
-					
-					// Benchmark-Outputs
-//					timeOld = timeNew;
-//					timeNew = System.currentTimeMillis();
-//					timeDiff = timeNew - timeOld;
-//					
-//					System.out.println("\nNoticer Polling-Speed:\n Interval-Setting: "
-//					+ this.pollIntervallMs + " -- True Interval: " + timeDiff + "\n");
-					
-					// Grenzen der Register-Adressen ermitteln
-					
-					minCoil = -1;
-					maxCoil = -1;
-					minReg = -1;
-					maxReg = -1;
-					
-					for (Subscription sub : slave.subs) {
-						addr = ((ModbusTCPRegister)sub.reg).getRegAddr();
-						
-						switch (((ModbusTCPRegister)sub.reg).getRegType()) {
-						
-							case MB_COIL:
-								if ((minCoil == -1) || (addr < minCoil)) minCoil = addr;
-								if ((maxCoil == -1) || (addr > maxCoil)) maxCoil = addr;
-								break;
-								
-							case MB_REG:
-								if ((minReg == -1) || (addr < minReg)) minReg = addr;
-								if ((maxReg == -1) || (addr > maxReg)) maxReg = addr;
-								break;
-						}
-					}
-					
-					minCoil /= 16; maxCoil /= 16;
-					if (((minCoil != -1) && (minCoil < minReg)) || (minReg == -1)) minReg = minCoil;
-					if (((maxCoil != -1) && (maxCoil > maxReg)) || (maxReg == -1)) maxReg = maxCoil;
-					int regAmount = maxReg - minReg + 1;
-										
-					// Registerwerte holen
-					
-					ModbusTCP.mutex.acquire();
-					
-					ReadMultipleRegistersRequest req = new ReadMultipleRegistersRequest(minReg, regAmount);
-					
-					ModbusTCPTransaction trans = new ModbusTCPTransaction(
-							((ModbusTCPRegister)slave.subs.getFirst().reg).getConn());
-					trans.setRequest(req);
-					
-					trans.execute();
-					ReadMultipleRegistersResponse resp = (ReadMultipleRegistersResponse)trans.getResponse();
-					
-					ModbusTCP.mutex.release();
-					
-					// Messages an Handler senden falls gesuchte Werte vorliegen
-					for (Subscription sub : slave.subs) {
-						addr = ((ModbusTCPRegister)sub.reg).getRegAddr();
-						
-						switch (((ModbusTCPRegister)sub.reg).getRegType()) {
-						
-							case MB_COIL:
-								if (!sub.noticed && getCoilValue(resp, minReg, addr) == sub.regValue) {
-									sub.handler.addMsg(sub.msg);
-									sub.noticed = true;
-								} else if (sub.noticed && getCoilValue(resp, minReg, addr) != sub.regValue) {
-									sub.noticed = false;
-								}
-								break;
-								
-							case MB_REG:
-								if (!sub.noticed && resp.getRegisterValue(addr - minReg) == sub.regValue) {
-									sub.handler.addMsg(sub.msg);
-									sub.noticed = true;
-								} else if (sub.noticed && resp.getRegisterValue(addr - minReg) != sub.regValue) {
-									sub.noticed = false;
-								}
-								break;
-						}
-					}
-				}
-			}
-			catch (Exception e1) { e1.printStackTrace(); }
-			finally { subMutex.release(); }
-			
-			
-			try { sleep(pollIntervallMs); }
-			catch (InterruptedException e) { e.printStackTrace(); }
-		}
-		
-				
-		alive = true;
-	}
-	
-	
-	private int getCoilValue(ReadMultipleRegistersResponse resp, int firstRegID, int coilID) {
-		
-		int reg = coilID/16;
-		int bit = -((coilID%16) - 15);
-		
-		reg -= firstRegID;
-		
-		if ((resp.getRegisterValue(reg) & (int)Math.pow(2, bit)) == 0) return 0;
-		else return 1;
-	}
-	
-	
+	}
+
+
+	public void start() {
+		this.alive = true;
+		for (Slave slave : this.slaves.values()) slave.schedule();
+	}
+
 	public void kill() {
 		this.alive = false;
-		while (this.alive != true) {
-			try { sleep(100); }
-			catch (InterruptedException e) { e.printStackTrace(); }
-		}
+		for (Slave slave : this.slaves.values()) slave.cancel();
 	}
-	
+
 	public void addSubscription(Register reg, int regValue,	MsgHandlerThread handler, Message msg) {
-		
-		boolean slaveExisted = false;
-		Subscription newSub = new Subscription(reg, regValue, handler, msg);
-		
-		try {
-			this.subMutex.acquire();
-			
-			for (Slave slave : this.slaves) {
-				if (slave.ip.equals(((ModbusTCPRegister)(newSub.reg)).getNodeAddr())) {
-					slave.subs.addLast(newSub);
-					slaveExisted = true;
-					break;
-				}
-			}
-			
-			if (!slaveExisted) {
-				Slave newSlave = new Slave(((ModbusTCPRegister)(newSub.reg)).getNodeAddr());
-				newSlave.subs.add(newSub);
-				this.slaves.addLast(newSlave);
+		add(new Subscription(reg, regValue, handler, msg));
+	}
+
+	/**
+	 * Einmalige Subscription: das Future wird abgeschlossen, sobald der Wert anliegt,
+	 * danach (oder wenn es von aussen abgeschlossen wird) ist die Subscription weg.
+	 */
+	CompletableFuture<Void> whenEquals(Register reg, int regValue) {
+		Subscription sub = new Subscription(reg, regValue, new CompletableFuture<Void>());
+		add(sub);
+		sub.future.whenComplete((v, e) -> remove(sub));
+		return sub.future;
+	}
+
+	private void add(Subscription newSub) {
+
+		ModbusTCPEndpoint endpoint = newSub.reg.getEndpoint();
+
+		while (true) {
+			Slave slave = this.slaves.computeIfAbsent(endpoint, Slave::new);
+
+			synchronized (slave) {
+				// Slave wurde gerade entfernt -> neuen anlegen
+				if (slave.removed) continue;
+
+				slave.add(newSub);
+				if (this.alive) slave.schedule();
+				return;
 			}
 		}
-		catch (InterruptedException e) { e.printStackTrace(); }
-		finally { this.subMutex.release();	}
 	}
-	
+
+	/**
+	 * listener bekommt den aktuellen Wert (sobald gelesen) und danach jede Aenderung,
+	 * im Callback-Executor, je Slave der Reihe nach. Sollte nicht blockieren.
+	 */
+	public void addValueListener(Register reg, IntConsumer listener) {
+		add(new Subscription(reg, listener));
+	}
+
+	public void removeValueListener(Register reg, IntConsumer listener) {
+		remove(new Subscription(reg, listener));
+	}
+
 	public void removeSubscription(Register reg, int regValue, MsgHandlerThread handler, Message msg) {
-		
-		Subscription oldSub = new Subscription(reg, regValue, handler, msg);
-		
-		try {
-			this.subMutex.acquire();
-			
-			
-			for (Slave slave : this.slaves) {
-				if (slave.ip.equals(((ModbusTCPRegister)(oldSub.reg)).getNodeAddr())) {
-					slave.subs.remove(oldSub);
-					
-					if (slave.subs.isEmpty()) this.slaves.remove(slave);
-						
-					break;
-				}
+		remove(new Subscription(reg, regValue, handler, msg));
+	}
+
+	private void remove(Subscription oldSub) {
+
+		ModbusTCPEndpoint endpoint = oldSub.reg.getEndpoint();
+
+		Slave slave = this.slaves.get(endpoint);
+		if (slave == null) return;
+
+		synchronized (slave) {
+			slave.remove(oldSub);
+
+			if (slave.subCount == 0) {
+				slave.removed = true;
+				slave.cancel();
+				this.slaves.remove(endpoint, slave);
+			}
+		}
+	}
+
+	/**
+	 * Poll-Statistik je Slave und Poll-Rate (angeforderte vs. erreichte Periode, Latenz, Jitter).
+	 */
+	public List<ModbusTCPPollStats> getPollStats() {
+		ArrayList<ModbusTCPPollStats> stats = new ArrayList<ModbusTCPPollStats>();
+		for (Slave slave : this.slaves.values()) {
+			synchronized (slave) {
+				for (PollClass pc : slave.classes) stats.add(pc.stats);
 			}
 		}
-		catch (InterruptedException e) { e.printStackTrace(); }
-		this.subMutex.release();
+		return stats;
+	}
+
+
+	// Schluessel fuer den Subscription-Index: Tabelle und Adresse in einem int
+	private static int indexKey(Table table, int addr) {
+		return (table.ordinal() << 16) | addr;
+	}
+
+	// Wort im Abbild und Bits darin fuer eine Adresse (Coils zu je 16 in einem Wort)
+	private static int wordOf(Table table, int addr) {
+		return table.bits ? addr >> 4 : addr;
 	}
-	
+
+	private static int maskOf(Table table, int addr) {
+		return table.bits ? 1 << (addr & 15) : 0xFFFF;
+	}
+
+
+	// alle Adressen einer Poll-Rate auf einem Slave
+	private static class PollClass {
+		final int periodMs;
+		final long periodNs;
+		final long slackNs;
+		final ModbusTCPPollStats stats;
+		ModbusTCPReadPlanner planner = new ModbusTCPReadPlanner();
+		long deadlineNs;
+		int subCount = 0;
+
+		PollClass(ModbusTCPEndpoint endpoint, int periodMs, long now) {
+			this.periodMs = periodMs;
+			this.periodNs = periodMs * 1000000L;
+			this.slackNs = Math.min(MAX_SLACK_NS, this.periodNs / 4);
+			this.stats = new ModbusTCPPollStats(endpoint, periodMs);
+			this.deadlineNs = now;
+		}
+
+		boolean isDue(long now) {
+			return this.deadlineNs - now <= this.slackNs;
+		}
+
+		// naechste Deadline im festen Raster, verpasste Termine ueberspringen
+		void advance(long now) {
+			this.deadlineNs += this.periodNs;
+			if (this.deadlineNs - now <= 0) this.deadlineNs += ((now - this.deadlineNs) / this.periodNs + 1) * this.periodNs;
+		}
+	}
+
+
 	private class Slave {
-		InetAddress ip;
-		LinkedList<Subscription> subs = new LinkedList<Subscription>();
-		
-		Slave(InetAddress ip) { this.ip = ip; }
+		final ModbusTCPEndpoint endpoint;
+
+		// Poll-Klassen, Index in der Liste = Bit in der Maske der faelligen Klassen
+		ArrayList<PollClass> classes = new ArrayList<PollClass>();
+		HashMap<Long, List<Block>> planCache = new HashMap<Long, List<Block>>();
+
+		// Tabelle+Adresse -> Subscriptions auf diese Adresse
+		HashMap<Integer, ArrayList<Subscription>> index = new HashMap<Integer, ArrayList<Subscription>>();
+		int subCount = 0;
+
+		// neue Subscriptions, die einmal gegen den aktuellen Wert geprueft werden
+		ArrayList<Subscription> fresh = new ArrayList<Subscription>();
+
+		// erfuellte einmalige Subscriptions, deren Futures nach dem Poll abgeschlossen werden
+		ArrayList<Subscription> matched = new ArrayList<Subscription>();
+
+		// Value-Listener und ihre neuen Werte, werden nach dem Poll ausserhalb des Locks aufgerufen
+		ArrayList<Subscription> changed = new ArrayList<Subscription>();
+		int[] changedValues = new int[16];
+
+		EnumMap<Table, ModbusTCPShadowImage> shadow = new EnumMap<Table, ModbusTCPShadowImage>(Table.class);
+		int[] scratch = new int[128]; // groesster Block: 125 Register bzw. 2000 Coils = 126 Worte
+
+		// Listener-Aufrufe der Polls, der Reihe nach im Callback-Executor abgearbeitet
+		ArrayDeque<Runnable> notifications = new ArrayDeque<Runnable>();
+		boolean notifying = false;
+
+		ScheduledFuture<?> task;
+		long armToken = 0;
+		long polls = 0; // Nummer des zuletzt gestarteten Polls
+		boolean removed = false;
+		boolean inFlight = false;
+
+		Slave(ModbusTCPEndpoint endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		synchronized void schedule() {
+			if (this.task == null && !this.removed) arm();
+		}
+
+		synchronized void cancel() {
+			this.armToken++;
+			if (this.task == null) return;
+			this.task.cancel(false);
+			this.task = null;
+		}
+
+		// naechsten Takt zur fruehesten Deadline einplanen
+		private void arm() {
+			if (this.classes.isEmpty()) return;
+
+			long next = this.classes.get(0).deadlineNs;
+			for (PollClass pc : this.classes) if (pc.deadlineNs - next < 0) next = pc.deadlineNs;
+
+			final long token = ++this.armToken;
+			this.task = io.getScheduler().schedule(() -> tick(token),
+					Math.max(0, next - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+
+		synchronized void add(Subscription sub) {
+			Table table = Table.of(sub.reg.getRegType());
+			int addr = sub.reg.getRegAddr();
+
+			ArrayList<Subscription> subs = this.index.get(indexKey(table, addr));
+			if (subs == null) this.index.put(indexKey(table, addr), subs = new ArrayList<Subscription>(2));
+
+			subs.add(sub);
+			this.subCount++;
+			sub.since = this.polls;
+			this.fresh.add(sub);
+
+			PollClass pc = getClass(sub.reg.getPollIntervalMs());
+			pc.subCount++;
+			if (pc.planner.add(table, addr)) this.planCache.clear();
+		}
+
+		synchronized void remove(Subscription sub) {
+			Table table = Table.of(sub.reg.getRegType());
+			int addr = sub.reg.getRegAddr();
+
+			ArrayList<Subscription> subs = this.index.get(indexKey(table, addr));
+			if (subs == null || !subs.remove(sub)) return;
+
+			if (subs.isEmpty()) this.index.remove(indexKey(table, addr));
+			this.subCount--;
+			this.fresh.remove(sub);
+
+			PollClass pc = getClass(sub.reg.getPollIntervalMs());
+			if (pc.planner.remove(table, addr)) {
+				this.planCache.clear();
+				forgetUnplanned(table, addr);
+			}
+
+			if (--pc.subCount == 0) {
+				this.classes.remove(pc);
+				this.planCache.clear(); // Bits der Masken haben sich verschoben
+			}
+		}
+
+		// liest keine Poll-Klasse die Adresse mehr, veraltet ihr Wert im Abbild und
+		// darf bei einer spaeteren Subscription nicht mehr als bekannt gelten
+		private void forgetUnplanned(Table table, int addr) {
+			for (PollClass pc : this.classes) if (pc.planner.contains(table, addr)) return;
+
+			ModbusTCPShadowImage image = this.shadow.get(table);
+			if (image != null) image.forget(wordOf(table, addr), maskOf(table, addr));
+		}
+
+		private PollClass getClass(int periodMs) {
+			for (PollClass pc : this.classes) if (pc.periodMs == periodMs) return pc;
+
+			if (this.classes.size() == Long.SIZE) throw new IllegalStateException("Zu viele Poll-Raten fuer " + this.endpoint);
+
+			PollClass pc = new PollClass(this.endpoint, periodMs, System.nanoTime());
+			this.classes.add(pc);
+			this.planCache.clear();
+
+			// neue Klasse ist sofort faellig -> Takt vorziehen
+			if (this.task != null) {
+				cancel();
+				arm();
+			}
+			return pc;
+		}
+
+		private synchronized void tick(long token) {
+
+			if (token != this.armToken) return; // inzwischen neu eingeplant
+			this.task = null;
+
+			long now = System.nanoTime();
+			long due = 0;
+			ArrayList<PollClass> dueClasses = new ArrayList<PollClass>(this.classes.size());
+
+			for (int i = 0; i < this.classes.size(); i++) {
+				PollClass pc = this.classes.get(i);
+				if (!pc.isDue(now)) continue;
+
+				due |= 1L << i;
+				dueClasses.add(pc);
+				pc.advance(now);
+			}
+
+			if (due != 0) {
+				if (this.inFlight) for (PollClass pc : dueClasses) pc.stats.overrun();
+				else if (!io.isAvailable(this.endpoint)) for (PollClass pc : dueClasses) pc.stats.unavailable();
+				else poll(due, dueClasses, now);
+			}
+
+			if (!this.removed) arm();
+		}
+
+		private void poll(long due, ArrayList<PollClass> dueClasses, long start) {
+
+			// Plan fuer diese Kombination faelliger Klassen (zusammengelegte Adressen)
+			List<Block> plan = this.planCache.get(due);
+			if (plan == null) {
+				ModbusTCPReadPlanner merged = new ModbusTCPReadPlanner();
+				for (PollClass pc : dueClasses) merged.addAll(pc.planner);
+				this.planCache.put(due, plan = merged.getPlan());
+			}
+			if (plan.isEmpty()) return;
+
+			for (PollClass pc : dueClasses) pc.stats.pollStarted(start);
+			this.inFlight = true;
+			final long seq = ++this.polls;
+
+			// alle Bloecke asynchron holen (gepipelined ueber den Channel),
+			// ausgewertet wird wenn alle da sind, im Reader-Thread des Channels
+			// (darf nicht blockieren, Listener und Futures laufen im Callback-Executor)
+
+			ModbusTCPChannel channel = io.getChannel(this.endpoint);
+			ModbusResponse[] resps = new ModbusResponse[plan.size()];
+			CompletableFuture<?>[] reads = new CompletableFuture<?>[plan.size()];
+
+			for (int i = 0; i < reads.length; i++) {
+				final int block = i;
+				reads[i] = channel.execute(plan.get(i).createRequest()).thenAccept(resp -> resps[block] = resp);
+			}
+
+			final List<Block> p = plan;
+			CompletableFuture.allOf(reads).whenComplete((v, e) -> completed(p, seq, dueClasses, resps, e, start));
+		}
+
+		private void completed(List<Block> plan, long seq, List<PollClass> dueClasses, ModbusResponse[] resps, Throwable e, long start) {
+
+			ArrayList<Subscription> matched = null;
+			ArrayList<Subscription> changed = null;
+			int[] values = null;
+
+			synchronized (this) {
+				evaluate(plan, seq, dueClasses, resps, e, start);
+
+				if (!this.matched.isEmpty()) {
+					matched = new ArrayList<Subscription>(this.matched);
+					this.matched.clear();
+				}
+				if (!this.changed.isEmpty()) {
+					changed = new ArrayList<Subscription>(this.changed);
+					values = Arrays.copyOf(this.changedValues, this.changed.size());
+					this.changed.clear();
+				}
+			}
+
+			// nicht im Reader-Thread: Listener der Reihe nach, Futures jedes fuer sich,
+			// damit eine blockierende Folgeaktion die anderen nicht aufhaelt
+			if (changed != null) {
+				final ArrayList<Subscription> listeners = changed;
+				final int[] listenerValues = values;
+				notifyListeners(() -> {
+					for (int i = 0; i < listeners.size(); i++) {
+						try { listeners.get(i).listener.accept(listenerValues[i]); }
+						catch (RuntimeException ex) { ex.printStackTrace(); }
+					}
+				});
+			}
+			if (matched != null) for (Subscription sub : matched) io.callback(() -> sub.future.complete(null));
+		}
+
+		private void notifyListeners(Runnable calls) {
+			synchronized (this.notifications) {
+				this.notifications.addLast(calls);
+				if (this.notifying) return;
+				this.notifying = true;
+			}
+			io.callback(this::drainNotifications);
+		}
+
+		private void drainNotifications() {
+			while (true) {
+				Runnable calls;
+				synchronized (this.notifications) {
+					calls = this.notifications.pollFirst();
+					if (calls == null) {
+						this.notifying = false;
+						return;
+					}
+				}
+				calls.run();
+			}
+		}
+
+		private void evaluate(List<Block> plan, long seq, List<PollClass> dueClasses, ModbusResponse[] resps, Throwable e, long start) {
+
+			this.inFlight = false;
+
+			long latency = System.nanoTime() - start;
+			for (PollClass pc : dueClasses) pc.stats.pollCompleted(latency, e == null);
+
+			if (e != null) {
+				// nach kill() schlagen laufende Polls mit geschlossenem Channel fehl
+				if (alive) e.printStackTrace();
+				return;
+			}
+
+			// neue Werte gegen das Abbild diffen, nur geaenderte Adressen auswerten
+			for (int i = 0; i < resps.length; i++) {
+				Block block = plan.get(i);
+				ModbusTCPShadowImage image = getShadow(block.table);
+				int first = block.firstWord();
+				int words = block.words();
+
+				block.unpack(resps[i], this.scratch);
+
+				for (int w = 0; w < words; w++) {
+					int diff = image.update(first + w, this.scratch[w], block.mask(w));
+					if (diff == 0) continue;
+
+					if (!block.table.bits) {
+						dispatch(block.table, block.addrOf(w, 0), this.scratch[w], seq);
+						continue;
+					}
+
+					while (diff != 0) {
+						int bit = Integer.numberOfTrailingZeros(diff);
+						dispatch(block.table, block.addrOf(w, bit), (this.scratch[w] >>> bit) & 1, seq);
+						diff &= diff - 1;
+					}
+				}
+			}
+
+			// neue Subscriptions einmal gegen den aktuellen Wert pruefen
+			for (int i = this.fresh.size() - 1; i >= 0; i--) {
+				Subscription sub = this.fresh.get(i);
+
+				// im selben Poll schon per Diff geprueft (erstes Lesen der Adresse)
+				if (!sub.fresh) {
+					this.fresh.remove(i);
+					continue;
+				}
+
+				// erst angemeldet, als der Poll schon unterwegs war -> naechstes Mal
+				if (sub.since >= seq) continue;
+
+				Table table = Table.of(sub.reg.getRegType());
+				int addr = sub.reg.getRegAddr();
+
+				int word = wordOf(table, addr);
+				int mask = maskOf(table, addr);
+
+				// nur gegen Worte pruefen, die dieser Poll gelesen hat (andere Poll-Rate)
+				if (!reads(plan, table, word, mask)) continue;
+
+				int value = getShadow(table).get(word);
+				if (table.bits) value = ((value & mask) != 0) ? 1 : 0;
+
+				check(sub, value);
+				this.fresh.remove(i);
+			}
+		}
+
+		private ModbusTCPShadowImage getShadow(Table table) {
+			ModbusTCPShadowImage image = this.shadow.get(table);
+			if (image == null) this.shadow.put(table, image = new ModbusTCPShadowImage());
+			return image;
+		}
+
+		// ob der Plan die Bits mask von word liest
+		private boolean reads(List<Block> plan, Table table, int word, int mask) {
+			for (Block block : plan) {
+				int w = word - block.firstWord();
+				if (block.table == table && w >= 0 && w < block.words() && (block.mask(w) & mask) == mask) return true;
+			}
+			return false;
+		}
+
+		private void dispatch(Table table, int addr, int value, long seq) {
+			ArrayList<Subscription> subs = this.index.get(indexKey(table, addr));
+			if (subs == null) return;
+
+			// Subscriptions, die erst waehrend des Polls dazukamen, prueft der naechste
+			for (int i = 0; i < subs.size(); i++) if (subs.get(i).since < seq) check(subs.get(i), value);
+		}
+
+		private void check(Subscription sub, int value) {
+			sub.fresh = false;
+
+			if (sub.listener != null) {
+				if (this.changed.size() == this.changedValues.length) this.changedValues = Arrays.copyOf(this.changedValues, 2 * this.changedValues.length);
+				this.changedValues[this.changed.size()] = value;
+				this.changed.add(sub);
+			}
+			else if (sub.future == null) sub.check(value);
+			else if (value == sub.regValue && !sub.noticed) {
+				sub.noticed = true;
+				this.matched.add(sub);
+			}
+		}
+
 		public boolean equals(Object other) {
 			if (!(other instanceof Slave)) return false;
-			else return this.ip.equals(((Slave)other).ip);
+			else return this.endpoint.equals(((Slave)other).endpoint);
 		}
 	}
-	
+
 	private class Subscription {
-		Register reg;
+		ModbusTCPRegister reg;
 		int regValue;
 		MsgHandlerThread handler;
 		Message msg;
+		CompletableFuture<Void> future;	// nur bei einmaligen Subscriptions, dann ohne handler/msg
+		IntConsumer listener;			// nur bei Value-Listenern, dann ohne regValue/handler/msg
 		boolean noticed = false;
-		
-		
+		boolean fresh = true;			// noch nie gegen einen Wert geprueft
+		long since;						// Nummer des letzten Polls vor dem Anmelden
+
+
 		Subscription(Register reg, int regValue, MsgHandlerThread handler, Message msg) {
-			this.reg = reg;
+			this.reg = (ModbusTCPRegister)reg;
 			this.regValue = regValue;
 			this.handler = handler;
 			this.msg = msg;
 		}
-		
+
+		Subscription(Register reg, int regValue, CompletableFuture<Void> future) {
+			this.reg = (ModbusTCPRegister)reg;
+			this.regValue = regValue;
+			this.future = future;
+		}
+
+		Subscription(Register reg, IntConsumer listener) {
+			this.reg = (ModbusTCPRegister)reg;
+			this.listener = listener;
+		}
+
+		// Messages an Handler senden falls gesuchter Wert vorliegt
+		void check(int value) {
+			if (!this.noticed && value == this.regValue) {
+				this.handler.addMsg(this.msg);
+				this.noticed = true;
+			} else if (this.noticed && value != this.regValue) {
+				this.noticed = false;
+			}
+		}
+
 		@Override
 		public boolean equals(Object other) {
+			if (this == other) return true;
 			if (!(other instanceof Subscription)) return false;
-			
-			if (this.reg.equals(((Subscription)other).reg) && 
+			if (this.future != null || ((Subscription)other).future != null) return false;
+			if (this.listener != null || ((Subscription)other).listener != null)
+				return this.listener == ((Subscription)other).listener && this.reg.equals(((Subscription)other).reg);
+
+			if (this.reg.equals(((Subscription)other).reg) &&
 					this.regValue == ((Subscription)other).regValue &&
-					this.handler.equals(((Subscription)other).handler) && 
+					this.handler.equals(((Subscription)other).handler) &&
 					this.msg.equals(((Subscription)other).msg))
 				return true;
 			else return false;
@@ -0,0 +1,101 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+/**
+ * Messwerte einer Poll-Rate auf einem Slave.
+ *
+ * Periode = tatsaechlicher Abstand zweier Polls (angefordert: getRequestedPeriodMs()),
+ * Latenz = Zeit vom Absenden bis zur Antwort eines Polls,
+ * Jitter = Abweichung des tatsaechlichen Poll-Abstands vom eingestellten Intervall,
+ * Overruns = Polls, die ausgelassen wurden, weil der vorige noch lief,
+ * Unavailable = Polls, die ausgelassen wurden, weil der Slave gerade DOWN ist.
+ */
+public class ModbusTCPPollStats {
+
+	private final ModbusTCPEndpoint endpoint;
+	private final long intervalNs;
+
+	private long polls;
+	private long errors;
+	private long overruns;
+	private long unavailable;
+
+	private long latencySumNs;
+	private long latencyMaxNs;
+
+	private long lastStartNs = -1;
+	private long periodSumNs;
+	private long jitterSumNs;
+	private long jitterMaxNs;
+	private long periods;
+
+
+	ModbusTCPPollStats(ModbusTCPEndpoint endpoint, long intervalMs) {
+		this.endpoint = endpoint;
+		this.intervalNs = intervalMs * 1000000L;
+	}
+
+
+	synchronized void pollStarted(long nowNs) {
+		if (this.lastStartNs >= 0) {
+			long period = nowNs - this.lastStartNs;
+			long jitter = Math.abs(period - this.intervalNs);
+			this.periodSumNs += period;
+			this.jitterSumNs += jitter;
+			if (jitter > this.jitterMaxNs) this.jitterMaxNs = jitter;
+			this.periods++;
+		}
+		this.lastStartNs = nowNs;
+	}
+
+	synchronized void pollCompleted(long latencyNs, boolean ok) {
+		this.polls++;
+		if (!ok) this.errors++;
+
+		this.latencySumNs += latencyNs;
+		if (latencyNs > this.latencyMaxNs) this.latencyMaxNs = latencyNs;
+	}
+
+	synchronized void overrun() {
+		this.overruns++;
+	}
+
+	synchronized void unavailable() {
+		this.unavailable++;
+	}
+
+
+	public ModbusTCPEndpoint getEndpoint() { return this.endpoint; }
+
+	public double getRequestedPeriodMs() { return this.intervalNs / 1e6; }
+
+	public synchronized double getMeanPeriodMs() {
+		return (this.periods == 0) ? 0 : this.periodSumNs / (this.periods * 1e6);
+	}
+
+	public synchronized long getPolls() { return this.polls; }
+
+	public synchronized long getErrors() { return this.errors; }
+
+	public synchronized long getOverruns() { return this.overruns; }
+
+	public synchronized long getUnavailable() { return this.unavailable; }
+
+	public synchronized double getMeanLatencyMs() {
+		return (this.polls == 0) ? 0 : this.latencySumNs / (this.polls * 1e6);
+	}
+
+	public synchronized double getMaxLatencyMs() { return this.latencyMaxNs / 1e6; }
+
+	public synchronized double getMeanJitterMs() {
+		return (this.periods == 0) ? 0 : this.jitterSumNs / (this.periods * 1e6);
+	}
+
+	public synchronized double getMaxJitterMs() { return this.jitterMaxNs / 1e6; }
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s @%.0f ms: period=%.2f ms polls=%d errors=%d overruns=%d unavailable=%d latency(mean/max)=%.2f/%.2f ms jitter(mean/max)=%.2f/%.2f ms",
+				this.endpoint, getRequestedPeriodMs(), getMeanPeriodMs(), this.polls, this.errors, this.overruns, this.unavailable,
+				getMeanLatencyMs(), getMaxLatencyMs(), getMeanJitterMs(), getMaxJitterMs());
+	}
+}
@@ -0,0 +1,248 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.i2ar.ctrlbox.io.RegType;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
+import net.wimpi.modbus.msg.ReadInputRegistersRequest;
+import net.wimpi.modbus.msg.ReadInputRegistersResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+
+/**
+ * Plant die Lese-Requests fuer die abonnierten Adressen eines Slaves.
+ *
+ * Pro Tabelle (Function-Code) werden die Adressen sortiert und zu Bloecken
+ * zusammengefasst. Eine Luecke wird mitgelesen, solange die ueberfluessigen
+ * Bytes billiger sind als ein weiterer Request (REQUEST_COST_BYTES), und ein
+ * Block ist nie groesser als das Protokoll erlaubt (125 Register, 2000 Coils).
+ *
+ * Der Plan wird nur fuer Tabellen neu berechnet, deren Adressmenge sich
+ * tatsaechlich geaendert hat. Nicht thread-safe, der Aufrufer synchronisiert.
+ */
+class ModbusTCPReadPlanner {
+
+	/**
+	 * Geschaetzte Kosten eines zusaetzlichen Requests in Bytes auf der Leitung
+	 * (MBAP + PDU von Request und Response plus TCP/IP Header, ~100 Bytes).
+	 * Die Round-Trip-Zeit kommt noch dazu, daher eher grosszuegig gewaehlt.
+	 */
+	static final int REQUEST_COST_BYTES = 100;
+
+	enum Table {
+		COIL				(1,	2000,	true),
+		DISCRETE_INPUT		(2,	2000,	true),
+		HOLDING_REGISTER	(3,	125,	false),
+		INPUT_REGISTER		(4,	125,	false);
+
+		final int functionCode;
+		final int maxCount;
+		final boolean bits;
+
+		Table(int functionCode, int maxCount, boolean bits) {
+			this.functionCode = functionCode;
+			this.maxCount = maxCount;
+			this.bits = bits;
+		}
+
+		// groesste Luecke (in Adressen), die noch billiger ist als ein eigener Request
+		int maxGap() {
+			return this.bits ? REQUEST_COST_BYTES * 8 : REQUEST_COST_BYTES / 2;
+		}
+
+		static Table of(RegType regType) {
+			switch (regType) {
+				case MB_COIL:	return COIL;
+				case MB_REG:	return HOLDING_REGISTER;
+				default:		throw new IllegalArgumentException("Kein Modbus-Registertyp: " + regType);
+			}
+		}
+	}
+
+	/**
+	 * Ein zusammenhaengender Lesebereich, also ein Request.
+	 */
+	static final class Block {
+		final Table table;
+		final int start;
+		final int count;
+
+		Block(Table table, int start, int count) {
+			this.table = table;
+			this.start = start;
+			this.count = count;
+		}
+
+		ModbusRequest createRequest() {
+			switch (this.table) {
+				case COIL:				return new ReadCoilsRequest(this.start, this.count);
+				case DISCRETE_INPUT:	return new ReadInputDiscretesRequest(this.start, this.count);
+				case HOLDING_REGISTER:	return new ReadMultipleRegistersRequest(this.start, this.count);
+				default:				return new ReadInputRegistersRequest(this.start, this.count);
+			}
+		}
+
+		// erstes Wort im Abbild: Register 1:1, Coils zu je 16 an Adresse/16 ausgerichtet
+		int firstWord() {
+			return this.table.bits ? this.start >> 4 : this.start;
+		}
+
+		int words() {
+			return this.table.bits ? ((this.start + this.count - 1) >> 4) - firstWord() + 1 : this.count;
+		}
+
+		// Bits von Wort w, die zu diesem Block gehoeren (Rand-Worte bei Coils nur teilweise)
+		int mask(int w) {
+			if (!this.table.bits) return 0xFFFF;
+
+			int base = (firstWord() + w) << 4;
+			int lo = Math.max(this.start, base);
+			int hi = Math.min(this.start + this.count - 1, base + 15);
+			return ((1 << (hi - lo + 1)) - 1) << (lo - base);
+		}
+
+		// Response dieses Blocks ins (ausgerichtete) Wort-Abbild schreiben
+		void unpack(ModbusResponse resp, int[] words) {
+			switch (this.table) {
+				case COIL:
+				case DISCRETE_INPUT:
+					int n = words();
+					int offset = this.start - (firstWord() << 4);
+					for (int w = 0; w < n; w++) words[w] = 0;
+					for (int i = 0; i < this.count; i++) {
+						boolean bit = (this.table == Table.COIL)
+								? ((ReadCoilsResponse)resp).getCoilStatus(i)
+								: ((ReadInputDiscretesResponse)resp).getDiscreteStatus(i);
+						if (bit) words[(i + offset) >> 4] |= 1 << ((i + offset) & 15);
+					}
+					break;
+				case HOLDING_REGISTER:
+					for (int i = 0; i < this.count; i++) words[i] = ((ReadMultipleRegistersResponse)resp).getRegisterValue(i);
+					break;
+				default:
+					for (int i = 0; i < this.count; i++) words[i] = ((ReadInputRegistersResponse)resp).getRegisterValue(i);
+			}
+		}
+
+		// Adresse des Bits bzw. Registers an Wort w, Bit bit (bit nur fuer Coils)
+		int addrOf(int w, int bit) {
+			return this.table.bits ? ((firstWord() + w) << 4) + bit : this.start + w;
+		}
+
+		@Override
+		public String toString() {
+			return "FC" + this.table.functionCode + " " + this.start + "+" + this.count;
+		}
+	}
+
+
+	// Adresse -> Anzahl Abonnenten, je Tabelle
+	private EnumMap<Table, TreeMap<Integer, Integer>> addrs = new EnumMap<Table, TreeMap<Integer, Integer>>(Table.class);
+	private EnumMap<Table, List<Block>> blocks = new EnumMap<Table, List<Block>>(Table.class);
+	private List<Block> plan = Collections.emptyList();
+	private boolean dirty = false;
+
+
+	/**
+	 * @return true wenn sich die Adressmenge (und damit der Plan) geaendert hat
+	 */
+	boolean add(Table table, int addr) {
+		TreeMap<Integer, Integer> set = this.addrs.get(table);
+		if (set == null) this.addrs.put(table, set = new TreeMap<Integer, Integer>());
+
+		Integer n = set.get(addr);
+		set.put(addr, (n == null) ? 1 : n + 1);
+
+		if (n == null) replan(table);
+		return n == null;
+	}
+
+	boolean remove(Table table, int addr) {
+		TreeMap<Integer, Integer> set = this.addrs.get(table);
+		if (set == null) return false;
+
+		Integer n = set.get(addr);
+		if (n == null) return false;
+
+		if (n > 1) {
+			set.put(addr, n - 1);
+			return false;
+		}
+
+		set.remove(addr);
+		replan(table);
+		return true;
+	}
+
+	boolean contains(Table table, int addr) {
+		TreeMap<Integer, Integer> set = this.addrs.get(table);
+		return set != null && set.containsKey(addr);
+	}
+
+	/**
+	 * Alle Adressen eines anderen Planners uebernehmen (fuer zusammengelegte Poll-Raten).
+	 */
+	void addAll(ModbusTCPReadPlanner other) {
+		for (Map.Entry<Table, TreeMap<Integer, Integer>> t : other.addrs.entrySet()) {
+			TreeMap<Integer, Integer> set = this.addrs.get(t.getKey());
+			if (set == null) this.addrs.put(t.getKey(), set = new TreeMap<Integer, Integer>());
+
+			boolean changed = false;
+			for (Map.Entry<Integer, Integer> e : t.getValue().entrySet()) {
+				Integer n = set.get(e.getKey());
+				set.put(e.getKey(), (n == null) ? e.getValue() : n + e.getValue());
+				changed |= (n == null);
+			}
+			if (changed) replan(t.getKey());
+		}
+	}
+
+	/**
+	 * Aktueller Plan, unveraenderlich (kann also ueber einen Poll hinweg gehalten werden).
+	 */
+	List<Block> getPlan() {
+		if (this.dirty) {
+			ArrayList<Block> all = new ArrayList<Block>();
+			for (List<Block> b : this.blocks.values()) all.addAll(b);
+			this.plan = Collections.unmodifiableList(all);
+			this.dirty = false;
+		}
+		return this.plan;
+	}
+
+	private void replan(Table table) {
+
+		ArrayList<Block> result = new ArrayList<Block>();
+		int maxGap = table.maxGap();
+		int start = -1, end = -1;
+
+		for (Map.Entry<Integer, Integer> e : this.addrs.get(table).entrySet()) {
+			int addr = e.getKey();
+
+			if (start < 0) {
+				start = end = addr;
+			}
+			else if (addr - end - 1 <= maxGap && addr - start + 1 <= table.maxCount) {
+				end = addr;
+			}
+			else {
+				result.add(new Block(table, start, end - start + 1));
+				start = end = addr;
+			}
+		}
+		if (start >= 0) result.add(new Block(table, start, end - start + 1));
+
+		this.blocks.put(table, result);
+		this.dirty = true;
+	}
+}
@@ -2,42 +2,53 @@ package de.i2ar.ctrlbox.io.modbus_tcp;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.concurrent.Semaphore;
 
 import de.i2ar.ctrlbox.io.RegType;
 import de.i2ar.ctrlbox.io.Register;
-import net.wimpi.modbus.net.TCPMasterConnection;
 
 public class ModbusTCPRegister extends Register {
 	
-	private static HashMap<String, TCPMasterConnection> connObjects = new HashMap<String, TCPMasterConnection>();
-	private static Semaphore connMutex = new Semaphore(1);
-	
 	private InetAddress nodeAddr;
 	private int nodePort;
 	private int regAddr;
 	private ModbusTCPRegisterSpeed speed;
+	private int pollIntervalMs;
+	private ModbusTCPEndpoint endpoint;
 	
 	public ModbusTCPRegister(RegType regType, InetAddress nodeAddr, int nodePort, int regAddr, ModbusTCPRegisterSpeed speed) {
+		this(regType, nodeAddr, nodePort, regAddr, speed.getIntervalMs());
+		this.speed = speed;
+	}
+	
+	public ModbusTCPRegister(RegType regType, String nodeAddr, int nodePort, int regAddr, ModbusTCPRegisterSpeed speed) {
+		this(regType, nodeAddr, nodePort, regAddr, speed.getIntervalMs());
+		this.speed = speed;
+	}
+	
+	/**
+	 * Register mit beliebiger Poll-Rate (fuer Subscriptions bzw. waitUntil).
+	 */
+	public ModbusTCPRegister(RegType regType, InetAddress nodeAddr, int nodePort, int regAddr, int pollIntervalMs) {
+		if (pollIntervalMs <= 0) throw new IllegalArgumentException("Poll-Intervall muss > 0 sein: " + pollIntervalMs);
+		
 		this.regType = regType;
 		this.nodeAddr = nodeAddr;
 		this.nodePort = nodePort;
 		this.regAddr = regAddr;
-		this.speed = speed;
+		this.pollIntervalMs = pollIntervalMs;
+		this.endpoint = new ModbusTCPEndpoint(nodeAddr, nodePort);
 	}
 	
-	public ModbusTCPRegister(RegType regType, String nodeAddr, int nodePort, int regAddr, ModbusTCPRegisterSpeed speed) {
-		
+	public ModbusTCPRegister(RegType regType, String nodeAddr, int nodePort, int regAddr, int pollIntervalMs) {
+		this(regType, resolve(nodeAddr), nodePort, regAddr, pollIntervalMs);
+	}
+	
+	private static InetAddress resolve(String nodeAddr) {
 		try {
-			this.regType = regType;
-			this.nodeAddr = InetAddress.getByName(nodeAddr);
-			this.nodePort = nodePort;
-			this.regAddr = regAddr;
-			this.speed = speed;
-			
-		} catch (UnknownHostException e) { e.printStackTrace(); }
+			return InetAddress.getByName(nodeAddr);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Unbekannter Host: " + nodeAddr, e);
+		}
 	}
 
 	
@@ -48,10 +59,15 @@ public class ModbusTCPRegister extends Register {
 				this.nodeAddr.equals(((ModbusTCPRegister)other).getNodeAddr()) &&
 				(this.nodePort == ((ModbusTCPRegister)other).getNodePort()) &&
 				(this.regAddr == ((ModbusTCPRegister)other).getRegAddr()) &&
-				this.speed.equals(((ModbusTCPRegister)other).getSpeed())
+				(this.pollIntervalMs == ((ModbusTCPRegister)other).getPollIntervalMs())
 				);
 	}
 	
+	@Override
+	public int hashCode() {
+		return 31 * (31 * this.endpoint.hashCode() + this.regAddr) + this.pollIntervalMs;
+	}
+	
 
 	public InetAddress getNodeAddr() {
 		return nodeAddr;
@@ -65,45 +81,12 @@ public class ModbusTCPRegister extends Register {
 		return regAddr;
 	}
 	
-	public TCPMasterConnection getConn() {
-		
-		TCPMasterConnection conn = null;
-		
-		try {
-			
-			connMutex.acquire();
-		
-			if (connObjects.containsKey(this.nodeAddr.getHostAddress() + ":" + this.nodePort))
-				conn = connObjects.get(this.nodeAddr.getHostAddress() + ":" + this.nodePort);
-			else {
-						
-				conn = new TCPMasterConnection(this.nodeAddr);
-				conn.setPort(this.nodePort);
-				try {
-					conn.connect();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-				
-				connObjects.put(this.nodeAddr.getHostAddress() + ":" + this.nodePort, conn);
-			}
-		
-			connMutex.release();
-			
-		} catch (InterruptedException e1) {
-			e1.printStackTrace();
-		}
-		
-		return conn;
+	public ModbusTCPEndpoint getEndpoint() {
+		return this.endpoint;
 	}
 	
+	// nur gesetzt, wenn das Register mit einer der voreingestellten Raten erzeugt wurde
 	public ModbusTCPRegisterSpeed getSpeed() { return this.speed; }
 	
-	static void closeConnections() {
-		Iterator<TCPMasterConnection> it = connObjects.values().iterator();
-		
-		while (it.hasNext()) {
-			it.next().close();
-		}
-	}
+	public int getPollIntervalMs() { return this.pollIntervalMs; }
 }
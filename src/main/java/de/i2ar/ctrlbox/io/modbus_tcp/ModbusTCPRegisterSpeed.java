@@ -1,10 +1,14 @@
 package de.i2ar.ctrlbox.io.modbus_tcp;
 
+/**
+ * Voreingestellte Poll-Raten. Beliebige Raten gehen ueber die Konstruktoren von
+ * ModbusTCPRegister mit pollIntervalMs.
+ */
 public enum ModbusTCPRegisterSpeed {
 	
 	SLOW(100), FAST(5);
 	
 	private int intervalMs;
 	ModbusTCPRegisterSpeed(int intervalMs) { this.intervalMs = intervalMs; }
-	int getIntervalMs() { return this.intervalMs; }
+	public int getIntervalMs() { return this.intervalMs; }
 }
\ No newline at end of file
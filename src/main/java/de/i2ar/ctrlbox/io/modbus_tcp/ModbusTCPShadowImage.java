@@ -0,0 +1,64 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+import java.util.HashMap;
+
+/**
+ * Abbild der zuletzt gelesenen Worte einer Tabelle eines Slaves, nach Wort-Adresse.
+ *
+ * Duenn besetzt in Seiten zu 64 Worten. Zu jedem Wort wird gemerkt, welche Bits
+ * schon einmal gelesen wurden (bis sie mit forget() wieder vergessen werden);
+ * unbekannte Bits zaehlen beim Vergleich als geaendert.
+ * Da das Abbild an der Adresse haengt und nicht am Lese-Block, ist es egal, mit
+ * welchem Plan (welcher Poll-Rate) eine Adresse zuletzt gelesen wurde.
+ * Nicht thread-safe.
+ */
+class ModbusTCPShadowImage {
+
+	private static final int PAGE_BITS = 6;
+	private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+	// Seite: [0] = Werte, [1] = bekannte Bits
+	private HashMap<Integer, int[][]> pages = new HashMap<Integer, int[][]>();
+
+
+	/**
+	 * Uebernimmt die Bits von value innerhalb mask und liefert die Bits (innerhalb mask),
+	 * die sich geaendert haben oder bisher unbekannt waren.
+	 */
+	int update(int word, int value, int mask) {
+
+		int[][] page = this.pages.get(word >>> PAGE_BITS);
+		if (page == null) this.pages.put(word >>> PAGE_BITS, page = new int[2][1 << PAGE_BITS]);
+
+		int i = word & PAGE_MASK;
+		int old = page[0][i];
+		int known = page[1][i];
+
+		page[0][i] = (old & ~mask) | (value & mask);
+		page[1][i] = known | mask;
+
+		return ((old ^ value) | ~known) & mask;
+	}
+
+	/**
+	 * Vergisst die Bits mask von word, z.B. wenn die Adresse nicht mehr gelesen wird.
+	 * Beim naechsten update() zaehlen sie wieder als geaendert.
+	 */
+	void forget(int word, int mask) {
+		int[][] page = this.pages.get(word >>> PAGE_BITS);
+		if (page == null) return;
+
+		int i = word & PAGE_MASK;
+		page[0][i] &= ~mask;
+		page[1][i] &= ~mask;
+
+		// leere Seite freigeben
+		for (int known : page[1]) if (known != 0) return;
+		this.pages.remove(word >>> PAGE_BITS);
+	}
+
+	int get(int word) {
+		int[][] page = this.pages.get(word >>> PAGE_BITS);
+		return (page == null) ? 0 : page[0][word & PAGE_MASK];
+	}
+}
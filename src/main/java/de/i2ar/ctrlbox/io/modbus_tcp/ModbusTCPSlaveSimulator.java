@@ -0,0 +1,290 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+import de.i2ar.ctrlbox.io.RegType;
+
+/**
+ * Modbus/TCP Slave im eigenen Prozess, zum Testen und Benchmarken ohne echte SPS.
+ *
+ * Haelt 65536 Coils und 65536 Register (Holding- und Input-Register sind dasselbe
+ * Abbild, ebenso Coils und Discrete Inputs). Unterstuetzt FC1-6, 15 und 16.
+ * Per addRange() wird die Register-Map eingeschraenkt, Zugriffe ausserhalb werden
+ * dann wie bei einer echten SPS mit Exception-Code 2 (Illegal Data Address) beantwortet.
+ * Jede Antwort wird um latencyMs +/- jitterMs verzoegert; Requests einer Verbindung
+ * werden wie bei einer SPS nacheinander abgearbeitet, gepipelinte Requests warten
+ * also in der Verbindung. Werte koennen von aussen jederzeit oder per at() zeitversetzt
+ * gesetzt werden (gescriptete Sensoraenderungen), per onWrite() kann der Simulator
+ * auf Writes des Masters reagieren (z.B. Handshake eines Frequenzumrichters).
+ */
+public class ModbusTCPSlaveSimulator {
+
+	private final AtomicIntegerArray coils = new AtomicIntegerArray(65536);
+	private final AtomicIntegerArray registers = new AtomicIntegerArray(65536);
+
+	private final ServerSocket server;
+	private final ScheduledExecutorService script = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "ModbusTCPSlaveSimulator-Script");
+		t.setDaemon(true);
+		return t;
+	});
+	// gueltige Adressen je Typ, ohne Eintrag ist alles gueltig
+	private final EnumMap<RegType, BitSet> map = new EnumMap<RegType, BitSet>(RegType.class);
+	private final ConcurrentHashMap<Integer, IntConsumer> reactions = new ConcurrentHashMap<Integer, IntConsumer>();
+
+	private final CopyOnWriteArrayList<Socket> clients = new CopyOnWriteArrayList<Socket>();
+	private final Random random = new Random();
+
+	private volatile int latencyMs = 0;
+	private volatile int jitterMs = 0;
+	private volatile boolean running = true;
+
+	private final AtomicLong requests = new AtomicLong();
+
+
+	/**
+	 * Startet den Simulator auf localhost, port 0 = freier Port (siehe getEndpoint()).
+	 */
+	public ModbusTCPSlaveSimulator(int port) throws IOException {
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+		Thread acceptor = new Thread(this::accept, "ModbusTCPSlaveSimulator-Accept " + this.server.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+
+	public ModbusTCPEndpoint getEndpoint() {
+		return new ModbusTCPEndpoint(this.server.getInetAddress(), this.server.getLocalPort());
+	}
+
+	public void setLatency(int latencyMs, int jitterMs) {
+		this.latencyMs = latencyMs;
+		this.jitterMs = jitterMs;
+	}
+
+	public void setCoil(int addr, boolean value) { this.coils.set(addr, value ? 1 : 0); }
+
+	public boolean getCoil(int addr) { return this.coils.get(addr) != 0; }
+
+	public void setRegister(int addr, int value) { this.registers.set(addr, value & 0xFFFF); }
+
+	public int getRegister(int addr) { return this.registers.get(addr); }
+
+	/**
+	 * Macht die Adressen start..start+count-1 gueltig, sobald ein Bereich eines Typs
+	 * angegeben ist, sind alle anderen Adressen dieses Typs ungueltig.
+	 */
+	public synchronized void addRange(RegType type, int start, int count) {
+		BitSet valid = this.map.get(type);
+		if (valid == null) this.map.put(type, valid = new BitSet(65536));
+		valid.set(start, start + count);
+	}
+
+	/**
+	 * reaction wird nach jedem Write des Masters auf addr mit dem neuen Wert aufgerufen
+	 * (im Thread der Verbindung, vor der Antwort).
+	 */
+	public void onWrite(RegType type, int addr, IntConsumer reaction) {
+		this.reactions.put(key(type, addr), reaction);
+	}
+
+	/**
+	 * Fuehrt action nach delayMs im Script-Thread aus, z.B. einen Sensor umschalten.
+	 */
+	public void at(long delayMs, Runnable action) {
+		this.script.schedule(action, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	public long getRequests() { return this.requests.get(); }
+
+	public void stop() {
+		this.running = false;
+		this.script.shutdownNow();
+		try { this.server.close(); }
+		catch (IOException e) { }
+		for (Socket s : this.clients) {
+			try { s.close(); }
+			catch (IOException e) { }
+		}
+	}
+
+
+	private void accept() {
+		while (this.running) {
+			try {
+				Socket s = this.server.accept();
+				s.setTcpNoDelay(true);
+				this.clients.add(s);
+
+				Thread t = new Thread(() -> serve(s), "ModbusTCPSlaveSimulator-Client " + s.getRemoteSocketAddress());
+				t.setDaemon(true);
+				t.start();
+			}
+			catch (IOException e) {
+				if (this.running) e.printStackTrace();
+			}
+		}
+	}
+
+	private void serve(Socket s) {
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+			while (this.running) {
+				int tid = in.readUnsignedShort();
+				in.readUnsignedShort(); // Protocol-ID
+				int len = in.readUnsignedShort();
+				// Unit-ID + Function-Code mindestens, PDU hoechstens 253 Byte
+				if (len < 2 || len > 254) throw new IOException("Ungueltige Laenge im MBAP Header: " + len);
+				int unit = in.readUnsignedByte();
+				byte[] pdu = new byte[len - 1];
+				in.readFully(pdu);
+
+				this.requests.incrementAndGet();
+				delay();
+
+				byte[] resp = process(pdu);
+
+				out.writeShort(tid);
+				out.writeShort(0);
+				out.writeShort(resp.length + 1);
+				out.writeByte(unit);
+				out.write(resp);
+				out.flush();
+			}
+		}
+		catch (IOException e) {
+			// Verbindung zu
+		}
+		finally {
+			this.clients.remove(s);
+			try { s.close(); }
+			catch (IOException e) { }
+		}
+	}
+
+	private void delay() {
+		int ms = this.latencyMs;
+		if (this.jitterMs > 0) ms += this.random.nextInt(2 * this.jitterMs + 1) - this.jitterMs;
+		if (ms <= 0) return;
+
+		try { Thread.sleep(ms); }
+		catch (InterruptedException e) { }
+	}
+
+	// PDU (ab Function-Code) verarbeiten, liefert die Antwort-PDU
+	private byte[] process(byte[] pdu) {
+
+		int fc = pdu[0] & 0xFF;
+		if (pdu.length < 5) return error(fc, 3);
+		int ref = word(pdu, 1);
+		int n = word(pdu, 3);
+
+		switch (fc) {
+
+			case 1:
+			case 2: {
+				if (n < 1 || n > 2000 || ref + n > 65536) return error(fc, 3);
+				if (!valid(RegType.MB_COIL, ref, n)) return error(fc, 2);
+				byte[] r = new byte[2 + (n + 7) / 8];
+				r[0] = (byte)fc;
+				r[1] = (byte)((n + 7) / 8);
+				for (int i = 0; i < n; i++) if (this.coils.get(ref + i) != 0) r[2 + (i >> 3)] |= 1 << (i & 7);
+				return r;
+			}
+
+			case 3:
+			case 4: {
+				if (n < 1 || n > 125 || ref + n > 65536) return error(fc, 3);
+				if (!valid(RegType.MB_REG, ref, n)) return error(fc, 2);
+				byte[] r = new byte[2 + 2 * n];
+				r[0] = (byte)fc;
+				r[1] = (byte)(2 * n);
+				for (int i = 0; i < n; i++) {
+					int v = this.registers.get(ref + i);
+					r[2 + 2 * i] = (byte)(v >> 8);
+					r[3 + 2 * i] = (byte)v;
+				}
+				return r;
+			}
+
+			case 5:
+				if (!valid(RegType.MB_COIL, ref, 1)) return error(fc, 2);
+				written(RegType.MB_COIL, ref, (n == 0xFF00) ? 1 : 0);
+				return echo(pdu);
+
+			case 6:
+				if (!valid(RegType.MB_REG, ref, 1)) return error(fc, 2);
+				written(RegType.MB_REG, ref, n);
+				return echo(pdu);
+
+			case 15:
+				if (n < 1 || n > 1968 || ref + n > 65536 || pdu.length < 6 + (n + 7) / 8) return error(fc, 3);
+				if (!valid(RegType.MB_COIL, ref, n)) return error(fc, 2);
+				for (int i = 0; i < n; i++) written(RegType.MB_COIL, ref + i, (pdu[6 + (i >> 3)] >> (i & 7)) & 1);
+				return echo(pdu);
+
+			case 16:
+				if (n < 1 || n > 123 || ref + n > 65536 || pdu.length < 6 + 2 * n) return error(fc, 3);
+				if (!valid(RegType.MB_REG, ref, n)) return error(fc, 2);
+				for (int i = 0; i < n; i++) written(RegType.MB_REG, ref + i, word(pdu, 6 + 2 * i));
+				return echo(pdu);
+
+			default:
+				return error(fc, 1);
+		}
+	}
+
+	private synchronized boolean valid(RegType type, int ref, int n) {
+		BitSet valid = this.map.get(type);
+		return valid == null || valid.nextClearBit(ref) >= ref + n;
+	}
+
+	private void written(RegType type, int addr, int value) {
+		if (type == RegType.MB_COIL) this.coils.set(addr, value);
+		else this.registers.set(addr, value);
+
+		IntConsumer reaction = this.reactions.get(key(type, addr));
+		if (reaction != null) reaction.accept(value);
+	}
+
+	private static Integer key(RegType type, int addr) {
+		return (type.ordinal() << 16) | addr;
+	}
+
+	private static int word(byte[] b, int i) {
+		return ((b[i] & 0xFF) << 8) | (b[i + 1] & 0xFF);
+	}
+
+	// Antwort auf Writes: Function-Code, Adresse, Wert bzw. Anzahl
+	private static byte[] echo(byte[] pdu) {
+		byte[] r = new byte[5];
+		System.arraycopy(pdu, 0, r, 0, 5);
+		return r;
+	}
+
+	private static byte[] error(int fc, int code) {
+		return new byte[] { (byte)(fc | 0x80), (byte)code };
+	}
+}
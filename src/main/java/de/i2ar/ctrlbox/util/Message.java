@@ -17,6 +17,10 @@ public class Message {
 		else return this.id.equals(((Message)other).getID());
 	}
 	
+	public int hashCode() {
+		return this.id.hashCode();
+	}
+	
 	Long getID() {
 		return this.id;
 	}
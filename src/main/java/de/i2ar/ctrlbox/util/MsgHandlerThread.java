@@ -1,74 +1,161 @@
 package de.i2ar.ctrlbox.util;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Thread, der Messages aus seiner Mailbox nacheinander an handle() gibt.
+ *
+ * Die Mailbox ist eine lock-freie Multi-Producer/Single-Consumer Queue
+ * (verkettete Knoten, Producer haengen per getAndSet an), addMsg() blockiert also
+ * nie, auch nicht waehrend handle() laeuft. Der Thread parkt wenn nichts anliegt und
+ * wird von addMsg() per unpark geweckt, ein Wecken vor dem Parken geht nicht verloren.
+ *
+ * Eine Message, die schon in der Queue liegt, wird nicht ein zweites Mal eingereiht
+ * (Hash-Set statt contains() auf der Queue). Mit batchSize &gt; 1 werden bis zu so viele
+ * Messages auf einmal an handleBatch() gegeben.
+ */
 public abstract class MsgHandlerThread extends Thread {
-	
-	ConcurrentLinkedQueue<Message> msgQueue = new ConcurrentLinkedQueue<Message>();
-	Semaphore queueMutex = new Semaphore(1);
-	
-	private boolean alive = true;
-	
+
+	private final int batchSize;
+
+	// Mailbox: Producer haengen an tail an, nur der eigene Thread liest ab head
+	private final AtomicReference<Node> tail;
+	private Node head;
+
+	private final Set<Message> queued = ConcurrentHashMap.newKeySet();
+	private volatile boolean parked = false;
+	private volatile boolean alive = true;
+
+	// Zaehler
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private volatile int maxQueueDepth;
+	private volatile long handled;
+	private volatile long handlerNsSum;
+	private volatile long handlerNsMax;
+
+
+	public MsgHandlerThread() {
+		this(1);
+	}
+
+	public MsgHandlerThread(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+		this.head = new Node(null);
+		this.tail = new AtomicReference<Node>(this.head);
+	}
+
 	@Override
 	public void run() {
-		
+
+		ArrayList<Message> batch = new ArrayList<Message>(this.batchSize);
 		Message msg;
-		
+
 		while (alive) {
-			synchronized(this.msgQueue) {
-				try {
-					
-					this.msgQueue.wait();
-					this.queueMutex.acquire();
-					
-					while (!this.msgQueue.isEmpty()) {
-						
-						msg = this.msgQueue.poll();
-						this.queueMutex.release();
-						
-						handle(msg);
-						
-						this.queueMutex.acquire();
-					}
-										
-				} catch (InterruptedException e) {
-				} finally {
-					this.queueMutex.release();
-				}
+
+			while ((msg = poll()) != null) {
+				batch.add(msg);
+				if (batch.size() == this.batchSize) dispatch(batch);
 			}
+			if (!batch.isEmpty()) dispatch(batch);
+
+			// parken bis addMsg() weckt, vorher nochmal nachsehen (sonst verlorenes Wecken)
+			this.parked = true;
+			if (this.head.next == null && alive) LockSupport.park(this);
+			this.parked = false;
 		}
-		alive = true;
 	}
-	
+
 	protected abstract void handle(Message msg);
-	
+
+	/**
+	 * Wird bei batchSize &gt; 1 mit den gesammelten Messages aufgerufen,
+	 * standardmaessig einzeln an handle().
+	 */
+	protected void handleBatch(List<Message> msgs) {
+		for (int i = 0; i < msgs.size(); i++) handle(msgs.get(i));
+	}
+
 	public void addMsg(Message msg) {
-		synchronized(this.msgQueue) {
-			try {
-				
-				this.queueMutex.acquire();
-				if (!this.msgQueue.contains(msg)) this.msgQueue.add(msg);
-				this.msgQueue.notify();
-				
-				
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} finally {
-				this.queueMutex.release();
-			}
-		}
+
+		if (!this.queued.add(msg)) return; // liegt schon in der Queue
+
+		Node n = new Node(msg);
+		this.tail.getAndSet(n).next = n;
+
+		int depth = this.queueDepth.incrementAndGet();
+		if (depth > this.maxQueueDepth) this.maxQueueDepth = depth;
+
+		if (this.parked) LockSupport.unpark(this);
 	}
-	
-	//equals methode wahrscheinlich nicht noetig, da hoffentlich bereits gut von Thread implementiert
-	
+
 	public void kill() {
 		this.alive = false;
-		this.interrupt();
-		
-		while (this.alive != true) {
-			try { sleep(100); }
-			catch (InterruptedException e) { e.printStackTrace(); }
+		LockSupport.unpark(this);
+
+		try { this.join(); }
+		catch (InterruptedException e) { e.printStackTrace(); }
+
+		alive = true;
+	}
+
+
+	public int getQueueDepth() { return this.queueDepth.get(); }
+
+	public int getMaxQueueDepth() { return this.maxQueueDepth; }
+
+	public long getHandled() { return this.handled; }
+
+	public double getMeanHandlerLatencyMs() {
+		long n = this.handled;
+		return (n == 0) ? 0 : this.handlerNsSum / (n * 1e6);
+	}
+
+	public double getMaxHandlerLatencyMs() { return this.handlerNsMax / 1e6; }
+
+
+	// nur im eigenen Thread
+	private Message poll() {
+		Node next = this.head.next;
+		if (next == null) return null;
+
+		Message msg = next.msg;
+		next.msg = null;
+		this.head = next;
+
+		this.queueDepth.decrementAndGet();
+		this.queued.remove(msg);
+		return msg;
+	}
+
+	// Zaehler werden nur hier geschrieben (ein Thread), volatile reicht fuer die Getter
+	private void dispatch(ArrayList<Message> batch) {
+
+		long start = System.nanoTime();
+
+		try {
+			if (this.batchSize == 1) handle(batch.get(0));
+			else handleBatch(batch);
 		}
+		catch (RuntimeException e) { e.printStackTrace(); }
+
+		long ns = (System.nanoTime() - start) / batch.size();
+		this.handlerNsSum += ns * batch.size();
+		if (ns > this.handlerNsMax) this.handlerNsMax = ns;
+		this.handled += batch.size();
+
+		batch.clear();
+	}
+
+	private static class Node {
+		Message msg;
+		volatile Node next;
+
+		Node(Message msg) { this.msg = msg; }
 	}
 }
@@ -13,6 +13,7 @@ import org.ws4d.java.configuration.DPWSProperties;
 import org.ws4d.java.schema.ComplexType;
 import org.ws4d.java.schema.Element;
 import org.ws4d.java.schema.SchemaUtil;
+import org.ws4d.java.schema.Type;
 import org.ws4d.java.security.CredentialInfo;
 import org.ws4d.java.service.DefaultDevice;
 import org.ws4d.java.service.DefaultEventSource;
@@ -156,6 +157,30 @@ public class DPWS implements WS {
 		}
 	}
 
+	/**
+	 * Event-Source mit einem einzelnen typisierten Element key (z.B. SchemaUtil.TYPE_INT),
+	 * fuer die DPWSEventBridge. Gefeuert wird direkt auf der zurueckgegebenen Source.
+	 */
+	DefaultEventSource addEventSource(String name, String key, Type type) {
+		
+		if (DPWS.nameToEventSource.containsKey(name)) throw new IllegalArgumentException("Event-Source " + name + " existiert bereits");
+		
+		DefaultEventSource eventSource = new DefaultEventSource(name, new QName(DPWS.NAMESPACE));
+		
+		ComplexType eventType = new ComplexType (new QName ("eventType", DPWS.NAMESPACE),
+				ComplexType.CONTAINER_SEQUENCE);
+		eventType.addElement(new Element(new QName(key, DPWS.NAMESPACE), type));
+		
+		Element event = new Element(new QName("reply", DPWS.NAMESPACE), eventType);
+		eventSource.setOutput(event);
+		
+		DPWS.nameToEventSource.put(name, eventSource);
+		DPWS.nameToNumberOfEvents.put(name, 0);
+		
+		this.service.addEventSource(eventSource);
+		return eventSource;
+	}
+
 	@Override
 	public void fireEvent(String name, WSMessage output) {
 		DefaultEventSource eventSource = DPWS.nameToEventSource.get(name);
@@ -0,0 +1,145 @@
+package de.i2ar.ctrlbox.ws.dpws;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import org.ws4d.java.schema.SchemaUtil;
+import org.ws4d.java.security.CredentialInfo;
+import org.ws4d.java.service.DefaultEventSource;
+import org.ws4d.java.service.parameter.ParameterValue;
+import org.ws4d.java.service.parameter.ParameterValueManagement;
+
+import de.i2ar.ctrlbox.io.modbus_tcp.ModbusTCP;
+
+/**
+ * Veroeffentlicht Modbus-Register direkt als DPWS-Events.
+ *
+ * Jedes DPWSSignal bekommt eine eigene Event-Source mit einem typisierten Element
+ * "value" (xs:int bzw. xs:boolean) und haengt als Value-Listener am Poller von ModbusTCP.
+ * Der Wert wird typisiert gesetzt (IntValue bzw. BooleanValue), als Text erst beim Senden.
+ * Eine Aenderung geht vom Poll-Ergebnis ohne MsgHandlerThread, WSMessage oder
+ * Namens-Lookup direkt an DefaultEventSource.fire(). Nur wenn ein Signal wegen
+ * minInterval oder coalesce warten muss, sendet der Timer-Thread der Bridge spaeter.
+ *
+ * Signale muessen vor DPWS.start() hinzugefuegt werden.
+ */
+public class DPWSEventBridge {
+
+	static final String KEY = "value";
+
+	private final DPWS dpws;
+	private final ModbusTCP io;
+
+	private ArrayList<Publisher> publishers = new ArrayList<Publisher>();
+
+	private ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "DPWSEventBridge");
+		t.setDaemon(true);
+		return t;
+	});
+
+
+	public DPWSEventBridge(DPWS dpws, ModbusTCP io) {
+		this.dpws = dpws;
+		this.io = io;
+	}
+
+
+	public synchronized void add(DPWSSignal signal) {
+
+		DefaultEventSource source = this.dpws.addEventSource(signal.getName(), KEY,
+				(signal.getType() == DPWSSignal.Type.BOOL) ? SchemaUtil.TYPE_BOOLEAN : SchemaUtil.TYPE_INT);
+
+		Publisher p = new Publisher(signal, source);
+		this.publishers.add(p);
+		this.io.addValueListener(signal.getRegister(), p);
+	}
+
+	public synchronized void stop() {
+		for (Publisher p : this.publishers) {
+			this.io.removeValueListener(p.signal.getRegister(), p);
+			p.cancel();
+		}
+		this.publishers.clear();
+		this.timer.shutdownNow();
+	}
+
+
+	// Zustand eines Signals, accept() laeuft im Poll-Thread, flush() im Timer-Thread
+	private class Publisher implements IntConsumer {
+		final DPWSSignal signal;
+		final DefaultEventSource source;
+		final boolean bool;
+		final int deadband;
+		final long minIntervalNs;
+		final long coalesceNs;
+
+		int pending;
+		boolean hasPending = false;
+		int published;
+		boolean hasPublished = false;
+		long publishedAtNs;
+		int number = 0;
+		ScheduledFuture<?> flush;
+
+		Publisher(DPWSSignal signal, DefaultEventSource source) {
+			this.signal = signal;
+			this.source = source;
+			this.bool = signal.getType() == DPWSSignal.Type.BOOL;
+			this.deadband = this.bool ? 1 : Math.max(1, signal.getDeadband());
+			this.minIntervalNs = signal.getMinIntervalMs() * 1000000L;
+			this.coalesceNs = signal.getCoalesceMs() * 1000000L;
+		}
+
+		@Override
+		public synchronized void accept(int value) {
+
+			this.pending = (this.bool && value != 0) ? 1 : value;
+			this.hasPending = true;
+
+			// Senden ist schon eingeplant und nimmt dann den letzten Wert
+			if (this.flush != null) return;
+
+			long now = System.nanoTime();
+			long delayNs = this.coalesceNs;
+			if (this.hasPublished) delayNs = Math.max(delayNs, this.publishedAtNs + this.minIntervalNs - now);
+
+			if (delayNs <= 0) publish(now);
+			else this.flush = timer.schedule(this::flush, delayNs, TimeUnit.NANOSECONDS);
+		}
+
+		synchronized void flush() {
+			this.flush = null;
+			if (this.hasPending) publish(System.nanoTime());
+		}
+
+		synchronized void cancel() {
+			if (this.flush != null) this.flush.cancel(false);
+			this.flush = null;
+			this.hasPending = false;
+		}
+
+		private void publish(long now) {
+
+			this.hasPending = false;
+
+			// zurueck auf den gesendeten Wert (coalesce) oder innerhalb der Deadband
+			if (this.hasPublished && Math.abs(this.pending - this.published) < this.deadband) return;
+
+			this.published = this.pending;
+			this.hasPublished = true;
+			this.publishedAtNs = now;
+
+			ParameterValue result = this.source.createOutputValue();
+			if (this.bool) ParameterValueManagement.setBoolean(result, KEY, this.published != 0);
+			else ParameterValueManagement.setInt(result, KEY, this.published);
+
+			try { this.source.fire(result, ++this.number, CredentialInfo.EMPTY_CREDENTIAL_INFO); }
+			catch (RuntimeException e) { e.printStackTrace(); }
+		}
+	}
+}
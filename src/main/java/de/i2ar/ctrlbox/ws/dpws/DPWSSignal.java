@@ -0,0 +1,70 @@
+package de.i2ar.ctrlbox.ws.dpws;
+
+import de.i2ar.ctrlbox.io.modbus_tcp.ModbusTCPRegister;
+
+/**
+ * Ein Register, das ueber die DPWSEventBridge als DPWS-Event veroeffentlicht wird.
+ *
+ *  - deadband: INT-Werte gehen erst raus, wenn sie mindestens so weit vom zuletzt
+ *    gesendeten Wert abweichen (0 = jede Aenderung)
+ *  - minInterval: hoechstens ein Event je minIntervalMs, was dazwischen kommt,
+ *    wird am Ende des Intervalls mit dem letzten Wert gesendet
+ *  - coalesce: nach einer Aenderung noch coalesceMs auf weitere warten und nur den
+ *    letzten Wert senden (flatternde Sensoren, mehrere Register einer Bewegung)
+ */
+public class DPWSSignal {
+
+	public enum Type { INT, BOOL }
+
+	private final String name;
+	private final ModbusTCPRegister reg;
+	private final Type type;
+
+	private int deadband = 0;
+	private int minIntervalMs = 0;
+	private int coalesceMs = 0;
+
+
+	public DPWSSignal(String name, ModbusTCPRegister reg, Type type) {
+		this.name = name;
+		this.reg = reg;
+		this.type = type;
+	}
+
+
+	public DPWSSignal deadband(int deadband) {
+		if (deadband < 0) throw new IllegalArgumentException("Deadband < 0: " + deadband);
+		this.deadband = deadband;
+		return this;
+	}
+
+	public DPWSSignal minInterval(int minIntervalMs) {
+		if (minIntervalMs < 0) throw new IllegalArgumentException("Intervall < 0: " + minIntervalMs);
+		this.minIntervalMs = minIntervalMs;
+		return this;
+	}
+
+	public DPWSSignal coalesce(int coalesceMs) {
+		if (coalesceMs < 0) throw new IllegalArgumentException("Zeitfenster < 0: " + coalesceMs);
+		this.coalesceMs = coalesceMs;
+		return this;
+	}
+
+
+	public String getName() { return this.name; }
+
+	public ModbusTCPRegister getRegister() { return this.reg; }
+
+	public Type getType() { return this.type; }
+
+	public int getDeadband() { return this.deadband; }
+
+	public int getMinIntervalMs() { return this.minIntervalMs; }
+
+	public int getCoalesceMs() { return this.coalesceMs; }
+
+	@Override
+	public String toString() {
+		return this.name + " (" + this.type + ", Register " + this.reg.getRegAddr() + "@" + this.reg.getEndpoint() + ")";
+	}
+}
@@ -0,0 +1,410 @@
+package de.i2ar.ctrlbox.ws.opcua;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.UnsignedShort;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.Identifiers;
+import org.opcfoundation.ua.core.StatusCodes;
+
+import com.prosysopc.ua.StatusException;
+
+/**
+ * Computes the aggregates of a processed history read in a single pass over
+ * the samples.
+ * <p>
+ * The samples are passed in time order (as a {@link SampleVisitor}) and only
+ * the state of the current interval is kept; an interval is finished and its
+ * result added as soon as a sample behind it arrives. Bad samples and samples
+ * without a numeric value are ignored. TimeAverage and Interpolative use linear
+ * interpolation between the samples, including the bounding samples before
+ * and after the requested time range; after the last sample the last value is
+ * held and the result is Uncertain. Summary aggregates can also be fed from the
+ * buckets of a {@link HistoryRollup} instead of the samples.
+ */
+final class Aggregator implements SampleVisitor {
+	private static final int MAX_INTERVALS = 1000000;
+
+	enum Type {
+		AVERAGE(Identifiers.AggregateFunction_Average, true),
+		MINIMUM(Identifiers.AggregateFunction_Minimum, true),
+		MAXIMUM(Identifiers.AggregateFunction_Maximum, true),
+		COUNT(Identifiers.AggregateFunction_Count, true),
+		TIME_AVERAGE(Identifiers.AggregateFunction_TimeAverage, false),
+		INTERPOLATIVE(Identifiers.AggregateFunction_Interpolative, false),
+		START(Identifiers.AggregateFunction_Start, true),
+		END(Identifiers.AggregateFunction_End, true);
+
+		private final NodeId nodeId;
+		private final boolean summary;
+
+		Type(NodeId nodeId, boolean summary) {
+			this.nodeId = nodeId;
+			this.summary = summary;
+		}
+
+		/**
+		 * @return the type of the aggregate function, null if it is not
+		 *         supported
+		 */
+		static Type forNodeId(NodeId aggregateType) {
+			for (Type t : values())
+				if (t.nodeId.equals(aggregateType))
+					return t;
+			return null;
+		}
+
+		/**
+		 * @return true if the aggregate only depends on the samples inside the
+		 *         interval, i.e. it can be computed from per-bucket summaries
+		 */
+		boolean isSummary() {
+			return summary;
+		}
+	}
+
+	private final Type type;
+	private final long start;
+	private final long end;
+	private final long step;
+	private final int intervals;
+	private final List<DataValue> results = new ArrayList<DataValue>();
+	private boolean done;
+
+	// the current interval
+	private int interval;
+	private long intervalStart;
+	private long intervalEnd;
+	private int count;
+	private double sum;
+	private double min;
+	private double max;
+	private long firstTime;
+	private double firstValue;
+	private long lastTime;
+	private double lastValue;
+	// integral of the interpolated values and the time it covers
+	private double area;
+	private long covered;
+	private boolean extrapolated;
+	// the interpolated value at the start of the interval
+	private double bound;
+	private boolean bounded;
+	private boolean boundExtrapolated;
+
+	// the previous good sample
+	private boolean hasPrevious;
+	private long previousTime;
+	private double previousValue;
+
+	/**
+	 * @param start
+	 *            the start of the first interval, in DateTime ticks
+	 * @param end
+	 *            the end of the last interval (exclusive)
+	 * @param step
+	 *            the length of the intervals, 0 for a single interval
+	 * @throws StatusException
+	 *             if there would be too many intervals
+	 */
+	Aggregator(Type type, long start, long end, long step) throws StatusException {
+		this.type = type;
+		this.start = start;
+		this.end = end;
+		this.step = step <= 0 ? end - start : step;
+		long n = (end - start + this.step - 1) / this.step;
+		if (n > MAX_INTERVALS)
+			throw new StatusException(StatusCodes.Bad_TooManyOperations);
+		this.intervals = (int) n;
+		if (intervals == 0)
+			done = true;
+		else
+			begin(0);
+	}
+
+	/**
+	 * Read processed values from a history.
+	 *
+	 * @param source
+	 *            the history
+	 * @param rollup
+	 *            the summaries of the history, or null
+	 * @param resampleInterval
+	 *            the length of the intervals in milliseconds, 0 for a single
+	 *            interval
+	 * @return one value per interval, in the order of startTime to endTime
+	 * @throws StatusException
+	 *             if the aggregate is not supported or the arguments are
+	 *             invalid
+	 */
+	static DataValue[] read(SampleSource source, HistoryRollup rollup, NodeId aggregateType, DateTime startTime,
+			DateTime endTime, double resampleInterval) throws StatusException {
+		Type type = Type.forNodeId(aggregateType);
+		if (type == null)
+			throw new StatusException(StatusCodes.Bad_AggregateNotSupported);
+		boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
+		boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
+		if (!startTimeDefined || !endTimeDefined || startTime.equals(endTime) || resampleInterval < 0)
+			throw new StatusException(StatusCodes.Bad_InvalidArgument);
+
+		long t0 = startTime.getValue();
+		long t1 = endTime.getValue();
+		final Aggregator a = new Aggregator(type, Math.min(t0, t1), Math.max(t0, t1),
+				Math.round(resampleInterval * 10000));
+		if (rollup == null || !rollup.aggregate(a))
+			if (type.isSummary())
+				source.scan(a.start, a.end, false, a);
+			else {
+				// the bounding sample before the time range, then up to the one
+				// after it
+				source.scan(Long.MIN_VALUE, a.start, true, (time, value, status) -> {
+					if (!isGood(value, status))
+						return true;
+					a.visit(time, value, status);
+					return false;
+				});
+				source.scan(a.start, Long.MAX_VALUE, false, a);
+			}
+		a.finish();
+
+		List<DataValue> values = a.results;
+		if (t1 < t0)
+			Collections.reverse(values);
+		return values.toArray(new DataValue[values.size()]);
+	}
+
+	/**
+	 * @return true if the sample has a value and its status is not bad
+	 */
+	static boolean isGood(double value, int status) {
+		return !Double.isNaN(value) && (status & 0x80000000) == 0;
+	}
+
+	long getEnd() {
+		return end;
+	}
+
+	long getStart() {
+		return start;
+	}
+
+	long getStep() {
+		return step;
+	}
+
+	Type getType() {
+		return type;
+	}
+
+	/**
+	 * Add the summary of a bucket. The buckets must be passed in time order
+	 * and must not span intervals.
+	 */
+	void addSummary(long bucketStart, int count, double sum, double min, double max, long firstTime,
+			double firstValue, long lastTime, double lastValue) {
+		while (!done && bucketStart >= intervalEnd)
+			next();
+		if (done || count == 0)
+			return;
+		if (this.count == 0) {
+			this.min = min;
+			this.max = max;
+			this.firstTime = firstTime;
+			this.firstValue = firstValue;
+		} else {
+			this.min = Math.min(this.min, min);
+			this.max = Math.max(this.max, max);
+		}
+		this.count += count;
+		this.sum += sum;
+		this.lastTime = lastTime;
+		this.lastValue = lastValue;
+	}
+
+	@Override
+	public boolean visit(long time, double value, int status) {
+		if (done)
+			return false;
+		if (!isGood(value, status))
+			return true;
+		if (hasPrevious && time < previousTime)
+			time = previousTime;
+		if (time >= start) {
+			// the line from the previous sample to this one, across the
+			// intervals it spans
+			bound(time, value);
+			while (time >= intervalEnd) {
+				if (hasPrevious)
+					integrate(Math.max(previousTime, intervalStart), intervalEnd, time, value);
+				next();
+				if (done)
+					return false;
+				bound(time, value);
+			}
+			if (hasPrevious)
+				integrate(Math.max(previousTime, intervalStart), time, time, value);
+			add(time, value);
+		}
+		hasPrevious = true;
+		previousTime = time;
+		previousValue = value;
+		return true;
+	}
+
+	/**
+	 * Finish the remaining intervals after the last sample.
+	 */
+	void finish() {
+		while (!done) {
+			if (hasPrevious && !type.isSummary()) {
+				// hold the last value
+				long from = Math.max(previousTime, intervalStart);
+				if (from < intervalEnd) {
+					area += (intervalEnd - from) * previousValue;
+					covered += intervalEnd - from;
+					extrapolated = true;
+				}
+				if (!bounded && previousTime < intervalStart) {
+					bound = previousValue;
+					bounded = true;
+					boundExtrapolated = true;
+				}
+			}
+			next();
+		}
+	}
+
+	private void add(long time, double value) {
+		if (count == 0) {
+			min = value;
+			max = value;
+			firstTime = time;
+			firstValue = value;
+		} else {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		count++;
+		sum += value;
+		lastTime = time;
+		lastValue = value;
+	}
+
+	private void begin(int i) {
+		interval = i;
+		intervalStart = start + i * step;
+		intervalEnd = Math.min(intervalStart + step, end);
+		count = 0;
+		sum = 0;
+		area = 0;
+		covered = 0;
+		extrapolated = false;
+		bounded = false;
+		boundExtrapolated = false;
+	}
+
+	/**
+	 * Set the value at the start of the interval, if the sample is at the
+	 * start or the line to it from the previous sample crosses it.
+	 */
+	private void bound(long time, double value) {
+		if (bounded || time < intervalStart)
+			return;
+		if (time == intervalStart) {
+			bound = value;
+			bounded = true;
+		} else if (hasPrevious && previousTime < intervalStart) {
+			bound = valueAt(intervalStart, time, value);
+			bounded = true;
+		}
+	}
+
+	/**
+	 * Add the integral of the line from the previous sample to the given one,
+	 * between from and to.
+	 */
+	private void integrate(long from, long to, long time, double value) {
+		if (to <= from)
+			return;
+		area += (to - from) * (valueAt(from, time, value) + valueAt(to, time, value)) / 2;
+		covered += to - from;
+	}
+
+	private void next() {
+		results.add(result());
+		if (interval + 1 < intervals)
+			begin(interval + 1);
+		else
+			done = true;
+	}
+
+	private DataValue result() {
+		long time = intervalStart;
+		Object value = null;
+		UnsignedInteger status = null;
+		switch (type) {
+		case AVERAGE:
+			if (count > 0)
+				value = sum / count;
+			break;
+		case MINIMUM:
+			if (count > 0)
+				value = min;
+			break;
+		case MAXIMUM:
+			if (count > 0)
+				value = max;
+			break;
+		case COUNT:
+			value = count;
+			break;
+		case TIME_AVERAGE:
+			if (covered > 0) {
+				value = area / covered;
+				if (extrapolated || covered < intervalEnd - intervalStart)
+					status = StatusCodes.Uncertain_DataSubNormal;
+			}
+			break;
+		case INTERPOLATIVE:
+			if (bounded) {
+				value = bound;
+				if (boundExtrapolated)
+					status = StatusCodes.Uncertain_DataSubNormal;
+			}
+			break;
+		case START:
+			if (count > 0) {
+				value = firstValue;
+				time = firstTime;
+			}
+			break;
+		case END:
+			if (count > 0) {
+				value = lastValue;
+				time = lastTime;
+			}
+			break;
+		}
+		if (value == null)
+			status = StatusCodes.Bad_NoData;
+		return new DataValue(new Variant(value), status == null ? StatusCode.GOOD : new StatusCode(status),
+				new DateTime(time), UnsignedShort.ZERO, null, null);
+	}
+
+	/**
+	 * @return the value at the given time on the line from the previous sample
+	 *         to the given one
+	 */
+	private double valueAt(long at, long time, double value) {
+		if (time == previousTime)
+			return value;
+		return previousValue + (value - previousValue) * (at - previousTime) / (time - previousTime);
+	}
+}
@@ -6,31 +6,87 @@
  */
 package de.i2ar.ctrlbox.ws.opcua;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.opcfoundation.ua.builtintypes.DateTime;
 import org.opcfoundation.ua.builtintypes.DiagnosticInfo;
+import org.opcfoundation.ua.builtintypes.ExtensionObject;
+import org.opcfoundation.ua.builtintypes.NodeId;
 import org.opcfoundation.ua.builtintypes.QualifiedName;
 import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.ContentFilter;
+import org.opcfoundation.ua.core.ContentFilterElement;
+import org.opcfoundation.ua.core.ElementOperand;
 import org.opcfoundation.ua.core.EventFilter;
 import org.opcfoundation.ua.core.EventFilterResult;
 import org.opcfoundation.ua.core.HistoryEventFieldList;
+import org.opcfoundation.ua.core.LiteralOperand;
+import org.opcfoundation.ua.core.SimpleAttributeOperand;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.opcfoundation.ua.encoding.EncoderContext;
 
 import com.prosysopc.ua.EventData;
 import com.prosysopc.ua.EventListener;
 import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.nodes.UaType;
 import com.prosysopc.ua.server.ContentFilterDefinition;
+import com.prosysopc.ua.server.NodeManagerRoot;
 import com.prosysopc.ua.server.nodes.UaObjectNode;
 
 /**
- *
+ * A sample class for keeping the event history of an object node.
+ * <p>
+ * The events are kept in a time ordered circular log. Every event gets an ever
+ * increasing sequence number, which is also used as the continuation point. The
+ * log is indexed by event id (for deletes) and by event type and source node:
+ * if the where clause of a filter requires an event type (OfType or Equals on
+ * EventType) or a source node (Equals on SourceNode), only the events in the
+ * matching index lists are evaluated.
+ * <p>
+ * Parsed filters are cached, by the identity of the EventFilter object and by
+ * its content, so paging through a large result or repeating a query does not
+ * parse the filter again.
  */
 public class EventHistory {
+	private static final QualifiedName EVENT_TYPE = new QualifiedName("EventType");
+	private static final QualifiedName SOURCE_NODE = new QualifiedName("SourceNode");
+	private static final List<List<QualifiedName>> INDEX_FIELDS = Arrays.asList(Arrays.asList(EVENT_TYPE),
+			Arrays.asList(SOURCE_NODE));
+	private static final int FILTER_CACHE_SIZE = 32;
+
 	private final int capacity = 10000;
-	private final List<EventData> events = new CopyOnWriteArrayList<EventData>();
+	// event number seq is kept in slot seq % capacity, valid tail <= seq < head
+	private final EventData[] events = new EventData[capacity];
+	// search key: the event time, but never smaller than the predecessor's
+	private final long[] keys = new long[capacity];
+	private final NodeId[] types = new NodeId[capacity];
+	private final NodeId[] sources = new NodeId[capacity];
+	private long head;
+	private long tail;
+	private final Map<ByteBuffer, Long> byId = new HashMap<ByteBuffer, Long>();
+	private final Map<NodeId, Postings> byType = new HashMap<NodeId, Postings>();
+	private final Map<NodeId, Postings> bySource = new HashMap<NodeId, Postings>();
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final Map<Object, CompiledFilter> filters = new LinkedHashMap<Object, CompiledFilter>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, CompiledFilter> eldest) {
+			return size() > FILTER_CACHE_SIZE;
+		}
+	};
+
 	private final EventListener listener = new EventListener() {
 
 		@Override
@@ -40,9 +96,7 @@ public class EventHistory {
 
 		@Override
 		public void onEvent(UaNode node, EventData eventData) {
-			events.add(eventData);
-			while (events.size() > capacity)
-				events.remove(0);
+			append(eventData);
 		}
 	};
 	private final UaObjectNode node;
@@ -62,14 +116,19 @@ public class EventHistory {
 	 * @param operationDiagnostics
 	 */
 	public void deleteEvents(byte[][] eventIds, StatusCode[] operationResults, DiagnosticInfo[] operationDiagnostics) {
-		for (int i = events.size() - 1; i >= 0; i--) {
-			EventData event = events.get(i);
-			byte[] id1 = event.getEventId();
-			for (byte[] eventId : eventIds)
-				if (Arrays.equals(eventId, id1)) {
-					events.remove(i);
-					break;
-				}
+		lock.writeLock().lock();
+		try {
+			for (int i = 0; i < eventIds.length; i++) {
+				Long seq = eventIds[i] == null ? null : byId.remove(ByteBuffer.wrap(eventIds[i]));
+				if (seq != null) {
+					// the index lists skip the empty slot
+					events[slot(seq)] = null;
+					operationResults[i] = StatusCode.GOOD;
+				} else
+					operationResults[i] = new StatusCode(StatusCodes.Bad_EventIdUnknown);
+			}
+		} finally {
+			lock.writeLock().unlock();
 		}
 	}
 
@@ -82,64 +141,400 @@ public class EventHistory {
 	 *            maximum number of values to return
 	 * @param eventFilter
 	 *            the event filter that defines the fields and events to return
-	 * @param firstIndex
-	 *            the index of the first entry in the history data to return
-	 *            (i.e. the continuationPoint returned for the previous request)
 	 * @param history
 	 *            the list of values to fill in
-	 * @return the first index that was not added to the history, in case there
-	 *         are more than maxValues entries to return (i.e. the
+	 * @param continuationPoint
+	 *            the sequence number of the first event to look at (i.e. the
+	 *            continuationPoint returned for the previous request), or null
+	 *            for a new request
+	 * @return the sequence number of the first event that was not looked at,
+	 *         in case there are more than maxValues entries to return (i.e. the
 	 *         continuationPoint to return)
 	 */
-	public Integer readEvents(DateTime startTime, DateTime endTime, int maxValues, EventFilter eventFilter,
-			List<HistoryEventFieldList> history, int firstIndex) {
-		int i = 0;
+	public Long readEvents(DateTime startTime, DateTime endTime, int maxValues, EventFilter eventFilter,
+			List<HistoryEventFieldList> history, Long continuationPoint) {
 		boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
 		boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
-		List<List<QualifiedName>> fieldPaths = new ArrayList<List<QualifiedName>>();
-		ContentFilterDefinition filterDefinition = new ContentFilterDefinition();
-		EventFilterResult eventFilterResult = new EventFilterResult();
-		ContentFilterDefinition.parseEventFilter(node.getNodeManager().getNodeManagerTable().getNodeManagerRoot(),
-				eventFilter, fieldPaths, filterDefinition, eventFilterResult);
-		if (startTimeDefined || !endTimeDefined)
-			for (int j = 0; j < events.size(); j++) {
-				EventData event = events.get(j);
-				DateTime t = event.getTime();
-				final int compareToEnd = endTimeDefined ? t.compareTo(endTime) : -1;
-				if (compareToEnd > 0)
+		// !startTimeDefined && endTimeDefined: newest first
+		boolean backward = !startTimeDefined && endTimeDefined;
+		CompiledFilter filter = compile(eventFilter);
+
+		lock.readLock().lock();
+		try {
+			long from = startTimeDefined ? lowerBound(startTime.getValue()) : tail;
+			long to = endTimeDefined ? upperBound(endTime.getValue()) : head;
+			if (continuationPoint != null)
+				if (backward)
+					to = Math.min(to, continuationPoint + 1);
+				else
+					from = Math.max(from, continuationPoint);
+
+			long[] candidates = candidates(filter, from, to);
+			int n = candidates == null ? (int) Math.max(0, to - from) : candidates.length;
+			for (int k = 0; k < n; k++) {
+				int i = backward ? n - 1 - k : k;
+				long seq = candidates == null ? from + i : candidates[i];
+				if ((maxValues > 0) && (history.size() == maxValues))
+					return seq;
+				EventData event = events[slot(seq)];
+				if ((event != null) && filter.definition.evaluate(event, true))
+					history.add(new HistoryEventFieldList(event.getFieldValues(filter.fieldPaths)));
+			}
+			return null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Add an event to the log, dropping the oldest one if it is full.
+	 */
+	private void append(EventData event) {
+		Variant[] indexed = event.getFieldValues(INDEX_FIELDS);
+		NodeId type = nodeId(indexed, 0);
+		NodeId source = nodeId(indexed, 1);
+		lock.writeLock().lock();
+		try {
+			if (head - tail == capacity)
+				evict();
+			long seq = head;
+			int i = slot(seq);
+			long t = event.getTime() == null ? DateTime.currentTime().getValue() : event.getTime().getValue();
+			// a late event is sorted in at the time of its predecessor
+			keys[i] = (seq > tail && keys[slot(seq - 1)] > t) ? keys[slot(seq - 1)] : t;
+			events[i] = event;
+			types[i] = type;
+			sources[i] = source;
+			if (event.getEventId() != null)
+				byId.put(ByteBuffer.wrap(event.getEventId()), seq);
+			if (type != null)
+				postings(byType, type).add(seq);
+			if (source != null)
+				postings(bySource, source).add(seq);
+			head = seq + 1;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the sequence numbers of the events in from..to that can pass the
+	 *         filter according to the indexes, in order, or null if all must be
+	 *         looked at
+	 */
+	private long[] candidates(CompiledFilter filter, long from, long to) {
+		if (filter.sourceNode != null) {
+			Postings p = bySource.get(filter.sourceNode);
+			return p == null ? new long[0] : p.range(from, to);
+		}
+		if (filter.eventType == null && filter.ofTypes.isEmpty())
+			return null;
+		long[] result = new long[0];
+		int matched = 0;
+		for (Map.Entry<NodeId, Postings> e : byType.entrySet())
+			if (filter.acceptsType(e.getKey(), this)) {
+				long[] r = e.getValue().range(from, to);
+				int n = result.length;
+				result = Arrays.copyOf(result, n + r.length);
+				System.arraycopy(r, 0, result, n, r.length);
+				matched++;
+			}
+		if (matched > 1)
+			Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Get the parsed filter from the cache or parse it.
+	 */
+	private CompiledFilter compile(EventFilter eventFilter) {
+		IdentityKey identity = new IdentityKey(eventFilter);
+		synchronized (filters) {
+			CompiledFilter compiled = filters.get(identity);
+			if (compiled != null)
+				return compiled;
+		}
+		String content = String.valueOf(eventFilter);
+		CompiledFilter compiled;
+		synchronized (filters) {
+			compiled = filters.get(content);
+		}
+		if (compiled == null)
+			compiled = new CompiledFilter(getNodeManagerRoot(), eventFilter);
+		synchronized (filters) {
+			filters.put(identity, compiled);
+			filters.put(content, compiled);
+		}
+		return compiled;
+	}
+
+	/**
+	 * Drop the oldest event.
+	 */
+	private void evict() {
+		long seq = tail++;
+		int i = slot(seq);
+		EventData event = events[i];
+		if ((event != null) && (event.getEventId() != null))
+			byId.remove(ByteBuffer.wrap(event.getEventId()), seq);
+		trim(byType, types[i]);
+		trim(bySource, sources[i]);
+		events[i] = null;
+		types[i] = null;
+		sources[i] = null;
+	}
+
+	private NodeManagerRoot getNodeManagerRoot() {
+		return node.getNodeManager().getNodeManagerTable().getNodeManagerRoot();
+	}
+
+	/**
+	 * @return true if the type is the super type or one of its subtypes
+	 */
+	private boolean isOfType(NodeId type, NodeId superType) {
+		if (type.equals(superType))
+			return true;
+		try {
+			for (UaType t = getNodeManagerRoot().getType(type); t != null; t = t.getSuperType())
+				if (superType.equals(t.getNodeId()))
+					return true;
+		} catch (Exception e) {
+			// unknown type
+		}
+		return false;
+	}
+
+	/**
+	 * @return the first sequence number with key &gt;= t (head if none)
+	 */
+	private long lowerBound(long t) {
+		long lo = tail, hi = head;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			if (keys[slot(mid)] < t)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private int slot(long seq) {
+		return (int) (seq % capacity);
+	}
+
+	private void trim(Map<NodeId, Postings> index, NodeId key) {
+		if (key == null)
+			return;
+		Postings p = index.get(key);
+		if (p != null && p.trim(tail))
+			index.remove(key);
+	}
+
+	/**
+	 * @return the first sequence number with key &gt; t (head if none)
+	 */
+	private long upperBound(long t) {
+		long lo = tail, hi = head;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			if (keys[slot(mid)] <= t)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private static NodeId nodeId(Variant[] values, int i) {
+		Object o = (values == null || values[i] == null) ? null : values[i].getValue();
+		return o instanceof NodeId ? (NodeId) o : null;
+	}
+
+	private static Postings postings(Map<NodeId, Postings> index, NodeId key) {
+		Postings p = index.get(key);
+		if (p == null) {
+			p = new Postings();
+			index.put(key, p);
+		}
+		return p;
+	}
+
+	/**
+	 * A parsed event filter, with the event type and source node conditions of
+	 * the where clause that can be answered from the indexes.
+	 */
+	private static final class CompiledFilter {
+		final List<List<QualifiedName>> fieldPaths = new ArrayList<List<QualifiedName>>();
+		final ContentFilterDefinition definition = new ContentFilterDefinition();
+		// all of these must hold (the where clause is an And of them and others)
+		final List<NodeId> ofTypes = new ArrayList<NodeId>();
+		NodeId eventType;
+		NodeId sourceNode;
+		// whether the event types in the log satisfy ofTypes
+		final Map<NodeId, Boolean> typeMatches = new ConcurrentHashMap<NodeId, Boolean>();
+
+		CompiledFilter(NodeManagerRoot root, EventFilter eventFilter) {
+			ContentFilterDefinition.parseEventFilter(root, eventFilter, fieldPaths, definition,
+					new EventFilterResult());
+			ContentFilter where = eventFilter == null ? null : eventFilter.getWhereClause();
+			ContentFilterElement[] elements = where == null ? null : where.getElements();
+			if (elements != null && elements.length > 0)
+				collect(elements, 0, elements.length);
+		}
+
+		boolean acceptsType(NodeId type, EventHistory history) {
+			if (eventType != null && !eventType.equals(type))
+				return false;
+			Boolean match = typeMatches.get(type);
+			if (match == null) {
+				match = true;
+				for (NodeId superType : ofTypes)
+					match &= history.isOfType(type, superType);
+				typeMatches.put(type, match);
+			}
+			return match;
+		}
+
+		/**
+		 * Collect the conditions that are required by element i, following
+		 * the And elements.
+		 */
+		private void collect(ContentFilterElement[] elements, int i, int depth) {
+			if (i < 0 || i >= elements.length || depth == 0)
+				return;
+			ContentFilterElement element = elements[i];
+			ExtensionObject[] operands = element.getFilterOperands();
+			if (element.getFilterOperator() == null || operands == null)
+				return;
+			switch (element.getFilterOperator()) {
+			case And:
+				for (ExtensionObject operand : operands) {
+					Object o = decode(operand);
+					if (o instanceof ElementOperand)
+						collect(elements, ((ElementOperand) o).getIndex().intValue(), depth - 1);
+				}
+				break;
+			case OfType:
+				NodeId type = operands.length == 1 ? literalNodeId(decode(operands[0])) : null;
+				if (type != null)
+					ofTypes.add(type);
+				break;
+			case Equals:
+				if (operands.length != 2)
 					break;
-				else {
-					final int compareToStart = t.compareTo(startTime);
-					if (compareToStart >= 0) {
-						if ((i >= firstIndex) && filterDefinition.evaluate(event, true))
-							history.add(new HistoryEventFieldList(event.getFieldValues(fieldPaths)));
-						i++;
-						if (history.size() == maxValues)
-							// Return continuation point if no more events exist
-							// and both timestamps were defined
-							return endTimeDefined && (j < events.size()) ? i : null;
-					}
+				Object a = decode(operands[0]);
+				Object b = decode(operands[1]);
+				if (!(a instanceof SimpleAttributeOperand)) {
+					Object o = a;
+					a = b;
+					b = o;
 				}
+				NodeId value = literalNodeId(b);
+				if (!(a instanceof SimpleAttributeOperand) || value == null)
+					break;
+				QualifiedName[] path = ((SimpleAttributeOperand) a).getBrowsePath();
+				if (path == null || path.length != 1)
+					break;
+				if (EVENT_TYPE.equals(path[0]))
+					eventType = value;
+				else if (SOURCE_NODE.equals(path[0]))
+					sourceNode = value;
+				break;
+			default:
+				break;
 			}
-		else
-			// !startTimeDefined && endTimeDefined
-			for (int j = events.size() - 1; j >= 0; j--) {
-				EventData event = events.get(j);
-				DateTime t = event.getTime();
-				final int compareToEnd = t.compareTo(endTime);
-				if (compareToEnd > 0)
-					continue;
-				else {
-					if (i >= firstIndex)
-						history.add(new HistoryEventFieldList(event.getFieldValues(fieldPaths)));
-					i++;
-					if (history.size() == maxValues)
-						// Return continuation point if no more events exist and
-						// both timestamps were defined
-						return startTimeDefined && (j > 0) ? i : null;
-				}
+		}
+
+		private static Object decode(ExtensionObject operand) {
+			try {
+				return operand == null ? null : operand.decode(EncoderContext.getDefaultInstance());
+			} catch (Exception e) {
+				return null;
 			}
-		return null;
+		}
+
+		private static NodeId literalNodeId(Object operand) {
+			if (!(operand instanceof LiteralOperand))
+				return null;
+			Variant v = ((LiteralOperand) operand).getValue();
+			Object o = v == null ? null : v.getValue();
+			return o instanceof NodeId ? (NodeId) o : null;
+		}
+	}
+
+	/**
+	 * Compares the filter objects by identity.
+	 */
+	private static final class IdentityKey {
+		final Object o;
+
+		IdentityKey(Object o) {
+			this.o = o;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof IdentityKey && ((IdentityKey) obj).o == o;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(o);
+		}
 	}
 
+	/**
+	 * The ascending sequence numbers of the events with one event type or
+	 * source node.
+	 */
+	static final class Postings {
+		long[] seqs = new long[16];
+		int start;
+		int end;
+
+		void add(long seq) {
+			if (end == seqs.length) {
+				if (start > seqs.length / 2) {
+					System.arraycopy(seqs, start, seqs, 0, end - start);
+					end -= start;
+					start = 0;
+				} else
+					seqs = Arrays.copyOf(seqs, 2 * seqs.length);
+			}
+			seqs[end++] = seq;
+		}
+
+		/**
+		 * @return the sequence numbers in from..to (exclusive)
+		 */
+		long[] range(long from, long to) {
+			if (from >= to)
+				return new long[0];
+			return Arrays.copyOfRange(seqs, lowerBound(from), lowerBound(to));
+		}
+
+		/**
+		 * Drop the sequence numbers before tail.
+		 *
+		 * @return true if the list is empty
+		 */
+		boolean trim(long tail) {
+			while (start < end && seqs[start] < tail)
+				start++;
+			return start == end;
+		}
+
+		private int lowerBound(long seq) {
+			int lo = start, hi = end;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (seqs[mid] < seq)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+	}
 }
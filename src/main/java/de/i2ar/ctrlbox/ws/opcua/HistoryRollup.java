@@ -0,0 +1,138 @@
+package de.i2ar.ctrlbox.ws.opcua;
+
+import java.util.Arrays;
+
+/**
+ * Precomputed summaries of a variable history at 1 s, 1 min and 1 h.
+ * <p>
+ * Each tier is a ring of buckets with the count, sum, minimum, maximum, first
+ * and last good value of the samples in the bucket. The rollup follows its
+ * {@link SampleSource}: it is filled from the existing samples once and then
+ * updated with every new sample. Processed reads of Average, Minimum, Maximum,
+ * Count, Start and End whose intervals are aligned to a tier are answered from
+ * the buckets instead of the raw samples, see {@link #aggregate(Aggregator)}.
+ */
+final class HistoryRollup implements SampleVisitor {
+	static final long SECOND = 10000000L;
+	static final long MINUTE = 60 * SECOND;
+	static final long HOUR = 60 * MINUTE;
+
+	// coarsest first
+	private final Tier[] tiers = { new Tier(HOUR, 24 * 31), new Tier(MINUTE, 24 * 60), new Tier(SECOND, 60 * 60) };
+	private long lastTime = Long.MIN_VALUE;
+
+	/**
+	 * Start following the source, filling the tiers with the samples that
+	 * are still in the range of the tiers. This scans up to 31 days of
+	 * samples, so it should not be called on a request thread.
+	 *
+	 * @param now
+	 *            the current time in DateTime ticks
+	 */
+	void follow(SampleSource source, long now) {
+		long from = now - tiers[0].width * tiers[0].size;
+		source.follow(from, this);
+		// not used before the existing samples are in
+		synchronized (this) {
+			for (Tier tier : tiers)
+				tier.since = Math.floorDiv(from + tier.width - 1, tier.width);
+		}
+	}
+
+	@Override
+	public synchronized boolean visit(long time, double value, int status) {
+		// in time order, like the sources
+		if (time < lastTime)
+			time = lastTime;
+		lastTime = time;
+		if (Aggregator.isGood(value, status))
+			for (Tier tier : tiers)
+				tier.add(time, value);
+		return true;
+	}
+
+	/**
+	 * Pass the buckets of the coarsest tier that fits the intervals of the
+	 * aggregator to it.
+	 *
+	 * @return false if no tier fits, the raw samples must be read then
+	 */
+	synchronized boolean aggregate(Aggregator aggregator) {
+		if (!aggregator.getType().isSummary())
+			return false;
+		long start = aggregator.getStart();
+		long end = aggregator.getEnd();
+		long step = aggregator.getStep();
+		for (Tier tier : tiers) {
+			long w = tier.width;
+			if (start % w != 0 || end % w != 0 || step % w != 0)
+				continue;
+			long from = start / w;
+			long to = end / w;
+			if (from < tier.since || from <= tier.latest - tier.size)
+				continue;
+			for (long idx = from; idx < to; idx++) {
+				int s = (int) (idx % tier.size);
+				if (tier.index[s] == idx)
+					aggregator.addSummary(idx * w, tier.count[s], tier.sum[s], tier.min[s], tier.max[s],
+							tier.firstTime[s], tier.firstValue[s], tier.lastTime[s], tier.lastValue[s]);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private static final class Tier {
+		final long width;
+		final int size;
+		// the bucket number (time / width) in each slot
+		final long[] index;
+		final int[] count;
+		final double[] sum;
+		final double[] min;
+		final double[] max;
+		final long[] firstTime;
+		final double[] firstValue;
+		final long[] lastTime;
+		final double[] lastValue;
+		// the first bucket that has seen all of its samples
+		long since = Long.MAX_VALUE;
+		long latest = Long.MIN_VALUE;
+
+		Tier(long width, int size) {
+			this.width = width;
+			this.size = size;
+			index = new long[size];
+			Arrays.fill(index, -1);
+			count = new int[size];
+			sum = new double[size];
+			min = new double[size];
+			max = new double[size];
+			firstTime = new long[size];
+			firstValue = new double[size];
+			lastTime = new long[size];
+			lastValue = new double[size];
+		}
+
+		void add(long time, double value) {
+			long idx = time / width;
+			int s = (int) (idx % size);
+			if (index[s] != idx) {
+				index[s] = idx;
+				count[s] = 0;
+				sum[s] = 0;
+				min[s] = value;
+				max[s] = value;
+				firstTime[s] = time;
+				firstValue[s] = value;
+			}
+			count[s]++;
+			sum[s] += value;
+			min[s] = Math.min(min[s], value);
+			max[s] = Math.max(max[s], value);
+			lastTime[s] = time;
+			lastValue[s] = value;
+			latest = Math.max(latest, idx);
+		}
+	}
+}
@@ -0,0 +1,529 @@
+package de.i2ar.ctrlbox.ws.opcua;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+/**
+ * One file of a {@link HistorySeries}: the samples of one time window, appended
+ * to a memory-mapped file.
+ * <p>
+ * The file consists of a header, the records and, once the segment is sealed,
+ * the sparse time index. Every {@link #KEY_INTERVAL}-th record is a key record
+ * with the absolute timestamp and value bits. The other records store the
+ * timestamp delta as a varint and the XOR of the value bits with the previous
+ * value, leaving out the leading and trailing zero bytes. The index holds the
+ * time and offset of each key record, so a read can start decoding at the key
+ * record just before the requested time.
+ * <p>
+ * The committed length in the header is updated after a record has been
+ * written. When a segment that was not sealed is opened again (after a crash),
+ * the records up to the committed length are validated and the index is
+ * rebuilt from them, see {@link #recover()}.
+ * <p>
+ * There is a single writer. Readers do not lock, they read the committed
+ * length (volatile) first and only decode records below it.
+ */
+final class HistorySegment {
+	static final int KEY_INTERVAL = 64;
+
+	// value types, kept in the low bits of the record header
+	static final int DOUBLE = 0;
+	static final int FLOAT = 1;
+	static final int INT = 2;
+	static final int LONG = 3;
+	static final int SHORT = 4;
+	static final int BYTE = 5;
+	static final int BOOLEAN = 6;
+	static final int EMPTY = 7;
+
+	private static final int MAGIC = 0x48495354; // "HIST"
+	private static final int VERSION = 1;
+
+	// header fields
+	private static final int H_MAGIC = 0;
+	private static final int H_VERSION = 4;
+	private static final int H_START = 8;
+	private static final int H_END = 16;
+	private static final int H_LENGTH = 24;
+	private static final int H_COUNT = 28;
+	private static final int H_SEALED = 32;
+	private static final int DATA = 48;
+
+	// record header bits
+	private static final int TYPE_MASK = 0x07;
+	private static final int KEY = 0x08;
+	private static final int STATUS = 0x10;
+	private static final int SAME = 0x20;
+	private static final int RESERVED = 0xC0;
+
+	// header + time + value + status
+	private static final int MAX_RECORD = 1 + 10 + 9 + 5;
+
+	final File file;
+	final long start;
+	final long end;
+
+	private FileChannel channel;
+	private volatile ByteBuffer buffer;
+	private volatile boolean sealed;
+
+	// sparse index: time and position of the key records
+	private long[] keyTimes = new long[16];
+	private int[] keyPositions = new int[16];
+	private volatile int keyCount;
+
+	// end of the committed records
+	private volatile int limit = DATA;
+	private int count;
+
+	// writer state
+	private long lastTime;
+	private long lastBits;
+
+	private HistorySegment(File file, long start, long end) {
+		this.file = file;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Create a new, empty segment file.
+	 *
+	 * @param start
+	 *            the timestamp of the first sample, in DateTime ticks
+	 * @param end
+	 *            the end of the time window (exclusive)
+	 * @param capacity
+	 *            the size of the file in bytes
+	 */
+	static HistorySegment create(File file, long start, long end, int capacity) throws IOException {
+		HistorySegment s = new HistorySegment(file, start, end);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(capacity);
+		s.channel = raf.getChannel();
+		MappedByteBuffer b = s.channel.map(MapMode.READ_WRITE, 0, capacity);
+		b.putInt(H_MAGIC, MAGIC);
+		b.putInt(H_VERSION, VERSION);
+		b.putLong(H_START, start);
+		b.putLong(H_END, end);
+		b.putInt(H_LENGTH, 0);
+		b.putInt(H_COUNT, 0);
+		b.putInt(H_SEALED, 0);
+		b.force();
+		s.buffer = b;
+		return s;
+	}
+
+	/**
+	 * Open an existing segment file. A sealed segment is mapped read-only and
+	 * its index is read from the file, otherwise the segment is recovered and
+	 * can be appended to.
+	 */
+	static HistorySegment open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		try {
+			ByteBuffer header = ByteBuffer.allocate(DATA);
+			channel.read(header, 0);
+			if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION)
+				throw new IOException("Not a history segment: " + file);
+
+			HistorySegment s = new HistorySegment(file, header.getLong(H_START), header.getLong(H_END));
+			s.count = header.getInt(H_COUNT);
+			int length = header.getInt(H_LENGTH);
+
+			if (header.getInt(H_SEALED) != 0) {
+				s.buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+				s.readIndex(DATA + length);
+				s.sealed = true;
+				channel.close();
+			} else {
+				s.channel = channel;
+				s.buffer = channel.map(MapMode.READ_WRITE, 0, channel.size());
+				s.recover(length);
+			}
+			return s;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Append a sample. The time must not be smaller than the time of the
+	 * previous sample and must be before {@link #end}.
+	 *
+	 * @return false if the segment is full
+	 */
+	boolean append(long time, int type, long bits, int status) {
+		ByteBuffer b = buffer;
+		int p = limit;
+		if (sealed || p + MAX_RECORD > b.capacity())
+			return false;
+
+		boolean key = count % KEY_INTERVAL == 0;
+		if (type == EMPTY)
+			bits = lastBits;
+		long xor = bits ^ lastBits;
+
+		int h = type;
+		if (key)
+			h |= KEY;
+		else if (xor == 0)
+			h |= SAME;
+		if (status != 0)
+			h |= STATUS;
+
+		int pos = p;
+		b.put(p++, (byte) h);
+		if (key) {
+			b.putLong(p, time);
+			b.putLong(p + 8, bits);
+			p += 16;
+		} else {
+			p = putVarLong(b, p, time - lastTime);
+			if (xor != 0) {
+				int lead = Long.numberOfLeadingZeros(xor) >>> 3;
+				int trail = Long.numberOfTrailingZeros(xor) >>> 3;
+				b.put(p++, (byte) ((lead << 4) | trail));
+				for (int i = 7 - lead; i >= trail; i--)
+					b.put(p++, (byte) (xor >>> (i * 8)));
+			}
+		}
+		if (status != 0)
+			p = putVarLong(b, p, status & 0xFFFFFFFFL);
+
+		if (key)
+			addKey(time, pos);
+		lastTime = time;
+		lastBits = bits;
+		count++;
+
+		// commit: the length is written after the record
+		b.putInt(H_COUNT, count);
+		b.putInt(H_LENGTH, p - DATA);
+		limit = p;
+		return true;
+	}
+
+	/**
+	 * @return the index of the last block starting before the time (0 if there
+	 *         is none), -1 if the segment is empty
+	 */
+	int findBlock(long time) {
+		int n = keyCount;
+		long[] times = keyTimes;
+		int lo = 0, hi = n - 1;
+		if (n == 0)
+			return -1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (times[mid] < time)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	int getBlockCount() {
+		return keyCount;
+	}
+
+	/**
+	 * Decode one block: the key record k and the records up to the next key
+	 * record.
+	 *
+	 * @return the number of samples in the block
+	 */
+	int readBlock(int k, Block out) {
+		ByteBuffer b = buffer;
+		int end = limit;
+		int n = keyCount;
+		if (k >= n)
+			return 0;
+		int p = keyPositions[k];
+		if (k + 1 < n)
+			end = Math.min(end, keyPositions[k + 1]);
+
+		long time = 0, bits = 0;
+		int i = 0;
+		long[] pos = new long[1];
+		while (p < end && i < KEY_INTERVAL) {
+			int h = b.get(p++) & 0xFF;
+			if ((h & KEY) != 0) {
+				time = b.getLong(p);
+				bits = b.getLong(p + 8);
+				p += 16;
+			} else {
+				pos[0] = p;
+				time += getVarLong(b, pos);
+				p = (int) pos[0];
+				if ((h & SAME) == 0 && (h & TYPE_MASK) != EMPTY) {
+					int ctrl = b.get(p++) & 0xFF;
+					int lead = ctrl >>> 4, trail = ctrl & 0x0F;
+					long xor = 0;
+					for (int j = 7 - lead; j >= trail; j--)
+						xor |= (b.get(p++) & 0xFFL) << (j * 8);
+					bits ^= xor;
+				}
+			}
+			int status = 0;
+			if ((h & STATUS) != 0) {
+				pos[0] = p;
+				status = (int) getVarLong(b, pos);
+				p = (int) pos[0];
+			}
+			out.times[i] = time;
+			out.bits[i] = bits;
+			out.types[i] = (byte) (h & TYPE_MASK);
+			out.status[i] = status;
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return the number of bytes used by the segment
+	 */
+	long size() {
+		return sealed ? file.length() : limit;
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	boolean isSealed() {
+		return sealed;
+	}
+
+	/**
+	 * Write the changes to disk.
+	 */
+	void force() {
+		ByteBuffer b = buffer;
+		if (!sealed && b instanceof MappedByteBuffer)
+			((MappedByteBuffer) b).force();
+	}
+
+	/**
+	 * Close the segment for writing: write the index behind the records,
+	 * truncate the file and map it read-only.
+	 */
+	void seal() throws IOException {
+		if (sealed)
+			return;
+		int n = keyCount;
+		ByteBuffer index = ByteBuffer.allocate(4 + n * 12);
+		index.putInt(n);
+		for (int i = 0; i < n; i++)
+			index.putLong(keyTimes[i]).putInt(keyPositions[i]);
+		index.flip();
+
+		MappedByteBuffer b = (MappedByteBuffer) buffer;
+		b.force();
+		channel.write(index, limit);
+		channel.truncate(limit + 4 + n * 12);
+		channel.force(true);
+		b.putInt(H_SEALED, 1);
+		b.force();
+
+		buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		sealed = true;
+		channel.close();
+		channel = null;
+	}
+
+	void close() throws IOException {
+		force();
+		if (channel != null)
+			channel.close();
+		channel = null;
+	}
+
+	void delete() throws IOException {
+		close();
+		if (!file.delete())
+			throw new IOException("Cannot delete " + file);
+	}
+
+	private void addKey(long time, int position) {
+		int n = keyCount;
+		if (n == keyTimes.length) {
+			keyTimes = Arrays.copyOf(keyTimes, 2 * n);
+			keyPositions = Arrays.copyOf(keyPositions, 2 * n);
+		}
+		keyTimes[n] = time;
+		keyPositions[n] = position;
+		// publish
+		keyCount = n + 1;
+	}
+
+	private void readIndex(int position) {
+		ByteBuffer b = buffer;
+		int n = b.getInt(position);
+		keyTimes = new long[Math.max(1, n)];
+		keyPositions = new int[Math.max(1, n)];
+		for (int i = 0; i < n; i++) {
+			keyTimes[i] = b.getLong(position + 4 + i * 12);
+			keyPositions[i] = b.getInt(position + 12 + i * 12);
+		}
+		limit = position;
+		keyCount = n;
+	}
+
+	/**
+	 * Rebuild the index and the writer state from the records. Stops at the
+	 * committed length or at the first record that is not valid, and cuts the
+	 * segment there.
+	 */
+	private void recover(int length) {
+		ByteBuffer b = buffer;
+		int end = Math.min(DATA + length, b.capacity());
+		int p = DATA;
+		int n = 0;
+		long time = 0, bits = 0;
+		long[] pos = new long[1];
+		try {
+			while (p < end) {
+				int q = p;
+				int h = b.get(q++) & 0xFF;
+				if ((h & RESERVED) != 0 || (n % KEY_INTERVAL == 0) != ((h & KEY) != 0))
+					break;
+				long t;
+				long v = bits;
+				if ((h & KEY) != 0) {
+					t = b.getLong(q);
+					v = b.getLong(q + 8);
+					q += 16;
+				} else {
+					pos[0] = q;
+					long dt = getVarLong(b, pos);
+					q = (int) pos[0];
+					t = time + dt;
+					if (dt < 0)
+						break;
+					if ((h & SAME) == 0 && (h & TYPE_MASK) != EMPTY) {
+						int ctrl = b.get(q++) & 0xFF;
+						int lead = ctrl >>> 4, trail = ctrl & 0x0F;
+						if (lead + trail > 7)
+							break;
+						long xor = 0;
+						for (int j = 7 - lead; j >= trail; j--)
+							xor |= (b.get(q++) & 0xFFL) << (j * 8);
+						// an unchanged value is written as SAME, also rejects zeroed space
+						if (xor == 0)
+							break;
+						v ^= xor;
+					}
+				}
+				if ((h & STATUS) != 0) {
+					pos[0] = q;
+					getVarLong(b, pos);
+					q = (int) pos[0];
+				}
+				if (q > end || t < start || t >= this.end || (n > 0 && t < time))
+					break;
+				if ((h & KEY) != 0)
+					addKey(t, p);
+				time = t;
+				bits = v;
+				n++;
+				p = q;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			// record cut off at the end of the file
+		}
+		count = n;
+		lastTime = time;
+		lastBits = bits;
+		limit = p;
+		b.putInt(H_COUNT, n);
+		b.putInt(H_LENGTH, p - DATA);
+	}
+
+	/**
+	 * @return the value as a double (booleans as 0/1, NaN if there is none)
+	 */
+	static double toDouble(int type, long bits) {
+		switch (type) {
+		case DOUBLE:
+		case FLOAT:
+			return Double.longBitsToDouble(bits);
+		case EMPTY:
+			return Double.NaN;
+		default:
+			return bits;
+		}
+	}
+
+	private static int putVarLong(ByteBuffer b, int p, long v) {
+		while ((v & ~0x7FL) != 0) {
+			b.put(p++, (byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		b.put(p++, (byte) v);
+		return p;
+	}
+
+	private static long getVarLong(ByteBuffer b, long[] pos) {
+		int p = (int) pos[0];
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int x = b.get(p++);
+			v |= (long) (x & 0x7F) << shift;
+			if ((x & 0x80) == 0)
+				break;
+		}
+		pos[0] = p;
+		return v;
+	}
+
+	/**
+	 * The decoded samples of one block.
+	 */
+	static final class Block {
+		final long[] times = new long[KEY_INTERVAL];
+		final long[] bits = new long[KEY_INTERVAL];
+		final byte[] types = new byte[KEY_INTERVAL];
+		final int[] status = new int[KEY_INTERVAL];
+
+		/**
+		 * @return the value of sample i as a double (NaN if it has none)
+		 */
+		double value(int i) {
+			return toDouble(types[i], bits[i]);
+		}
+
+		/**
+		 * @return the value of sample i in its original type
+		 */
+		Object object(int i) {
+			switch (types[i]) {
+			case DOUBLE:
+				return Double.longBitsToDouble(bits[i]);
+			case FLOAT:
+				return (float) Double.longBitsToDouble(bits[i]);
+			case INT:
+				return (int) bits[i];
+			case LONG:
+				return bits[i];
+			case SHORT:
+				return (short) bits[i];
+			case BYTE:
+				return (byte) bits[i];
+			case BOOLEAN:
+				return bits[i] != 0;
+			default:
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,417 @@
+package de.i2ar.ctrlbox.ws.opcua;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
+import org.opcfoundation.ua.builtintypes.UnsignedShort;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.StatusCodes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The persistent history of one variable: a directory of
+ * {@link HistorySegment}s, one per time window, in time order.
+ * <p>
+ * Only scalar numeric and boolean values (and empty values) are stored, other
+ * samples are skipped. The server timestamp is not stored. Like in
+ * {@link ValueHistory}, the timestamps never go backwards: a late sample is
+ * stored at the time of its predecessor.
+ * <p>
+ * The segment list is copied on write, so readers work on a snapshot without
+ * locking. Retention only drops whole segments, the active segment is kept.
+ */
+final class HistorySeries implements SampleSource {
+	private static Logger logger = LoggerFactory.getLogger(HistorySeries.class);
+
+	private final File dir;
+	private final HistoryStore store;
+	private volatile HistorySegment[] segments;
+	// the segment appended to (the last one), null if a new one must be started
+	private HistorySegment active;
+	private long lastTime = Long.MIN_VALUE;
+	private int nextNumber;
+	private boolean closed;
+	private boolean skipped;
+	private SampleVisitor follower;
+
+	/**
+	 * Open the series, creating the directory if necessary. Segments that were
+	 * not sealed are recovered.
+	 */
+	HistorySeries(File dir, HistoryStore store) throws IOException {
+		this.dir = dir;
+		this.store = store;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".seg"));
+		Arrays.sort(files);
+		HistorySegment[] segs = new HistorySegment[files.length];
+		int n = 0;
+		for (File file : files) {
+			try {
+				HistorySegment seg = HistorySegment.open(file);
+				if (seg.isEmpty())
+					seg.delete();
+				else
+					segs[n++] = seg;
+			} catch (IOException e) {
+				logger.error("Skipping history segment " + file, e);
+			}
+			nextNumber = Math.max(nextNumber, number(file) + 1);
+		}
+		segs = Arrays.copyOf(segs, n);
+
+		// only the last segment is continued, others were left open by a crash
+		for (int i = 0; i < n - 1; i++)
+			segs[i].seal();
+		if (n > 0) {
+			HistorySegment last = segs[n - 1];
+			if (!last.isSealed())
+				active = last;
+			HistorySegment.Block block = new HistorySegment.Block();
+			int m = last.readBlock(last.getBlockCount() - 1, block);
+			lastTime = block.times[m - 1];
+		}
+		segments = segs;
+	}
+
+	/**
+	 * Add a sample, called by the data change listener of the variable.
+	 */
+	synchronized void append(DataValue value) {
+		if (closed)
+			return;
+		DateTime source = value.getSourceTimestamp();
+		DateTime server = value.getServerTimestamp();
+		long t = source != null ? source.getValue()
+				: server != null ? server.getValue() : DateTime.currentTime().getValue();
+		if (t < lastTime)
+			t = lastTime;
+
+		Variant v = value.getValue();
+		Object o = v == null ? null : v.getValue();
+		int type;
+		long bits;
+		if (o == null) {
+			type = HistorySegment.EMPTY;
+			bits = 0;
+		} else if (o instanceof Double) {
+			type = HistorySegment.DOUBLE;
+			bits = Double.doubleToRawLongBits((Double) o);
+		} else if (o instanceof Float) {
+			type = HistorySegment.FLOAT;
+			bits = Double.doubleToRawLongBits((Float) o);
+		} else if (o instanceof Integer) {
+			type = HistorySegment.INT;
+			bits = (Integer) o;
+		} else if (o instanceof Long) {
+			type = HistorySegment.LONG;
+			bits = (Long) o;
+		} else if (o instanceof Short) {
+			type = HistorySegment.SHORT;
+			bits = (Short) o;
+		} else if (o instanceof Byte) {
+			type = HistorySegment.BYTE;
+			bits = (Byte) o;
+		} else if (o instanceof Boolean) {
+			type = HistorySegment.BOOLEAN;
+			bits = ((Boolean) o) ? 1 : 0;
+		} else if (o instanceof Number) {
+			// unsigned types
+			type = HistorySegment.DOUBLE;
+			bits = Double.doubleToRawLongBits(((Number) o).doubleValue());
+		} else {
+			if (!skipped)
+				logger.warn("Values of type {} are not stored in {}", o.getClass().getSimpleName(), dir);
+			skipped = true;
+			return;
+		}
+		StatusCode status = value.getStatusCode();
+		int statusBits = status == null ? 0 : status.getValueAsIntBits();
+
+		try {
+			if (active == null || t >= active.end || !active.append(t, type, bits, statusBits)) {
+				roll(t);
+				active.append(t, type, bits, statusBits);
+			}
+			lastTime = t;
+			if (follower != null)
+				follower.visit(t, HistorySegment.toDouble(type, bits), statusBits);
+		} catch (IOException e) {
+			logger.error("Cannot write history to " + dir, e);
+			active = null;
+		}
+	}
+
+	/**
+	 * Get the samples with from &lt;= time &lt; to.
+	 *
+	 * @param backward
+	 *            return the newest samples first
+	 * @param maxValues
+	 *            maximum number of values to return, 0 for no limit
+	 * @param continuationPoint
+	 *            the position returned for the previous request, or null for a
+	 *            new request
+	 * @param history
+	 *            the list of values to fill in
+	 * @return the position of the first sample that was not added to the
+	 *         history, in case there are more than maxValues samples
+	 */
+	Position readRaw(long from, long to, boolean backward, int maxValues, Position continuationPoint,
+			List<DataValue> history) {
+		if (continuationPoint != null) {
+			if (backward)
+				to = Math.min(to, continuationPoint.time + 1);
+			else
+				from = Math.max(from, continuationPoint.time);
+		}
+		RawReader reader = new RawReader(maxValues, continuationPoint, history);
+		forEach(from, to, backward, reader);
+		return reader.next;
+	}
+
+	/**
+	 * @return the last sample with a smaller or equal timestamp than each of
+	 *         the requested times
+	 */
+	DataValue[] readAtTimes(DateTime[] reqTimes) {
+		if (reqTimes == null)
+			return null;
+		DataValue[] values = new DataValue[reqTimes.length];
+		for (int i = 0; i < reqTimes.length; i++) {
+			DateTime t = reqTimes[i];
+			DataValue[] found = new DataValue[1];
+			forEach(Long.MIN_VALUE, t.getValue() + 1, true, (block, j) -> {
+				found[0] = toDataValue(block, j);
+				return false;
+			});
+			DataValue v = found[0];
+			values[i] = new DataValue(v == null ? null : v.getValue(),
+					v == null ? new StatusCode(StatusCodes.Bad_NoData) : v.getStatusCode(), t, UnsignedShort.ZERO, null,
+					null);
+		}
+		return values;
+	}
+
+	@Override
+	public void scan(long from, long to, boolean backward, SampleVisitor visitor) {
+		forEach(from, to, backward, (block, i) -> visitor.visit(block.times[i], block.value(i), block.status[i]));
+	}
+
+	@Override
+	public synchronized void follow(long from, SampleVisitor visitor) {
+		// append is synchronized as well, so no sample is lost or visited twice
+		if (visitor != null)
+			scan(from, Long.MAX_VALUE, false, visitor);
+		follower = visitor;
+	}
+
+	/**
+	 * Drop the oldest segments, which end before minTime or which exceed
+	 * maxBytes in total.
+	 *
+	 * @param maxBytes
+	 *            0 for no limit
+	 */
+	synchronized void applyRetention(long minTime, long maxBytes) {
+		HistorySegment[] segs = segments;
+		long total = 0;
+		for (HistorySegment seg : segs)
+			total += seg.size();
+		int drop = 0;
+		while (drop < segs.length - 1 && (segs[drop].end <= minTime || (maxBytes > 0 && total > maxBytes))) {
+			total -= segs[drop].size();
+			drop++;
+		}
+		if (drop == 0)
+			return;
+		segments = Arrays.copyOfRange(segs, drop, segs.length);
+		for (int i = 0; i < drop; i++)
+			try {
+				segs[i].delete();
+			} catch (IOException e) {
+				logger.warn("Cannot delete history segment {}", segs[i].file);
+			}
+	}
+
+	/**
+	 * Write the active segment to disk.
+	 */
+	synchronized void sync() {
+		if (active != null)
+			active.force();
+	}
+
+	synchronized void close() {
+		closed = true;
+		active = null;
+		for (HistorySegment seg : segments)
+			try {
+				seg.close();
+			} catch (IOException e) {
+				logger.warn("Cannot close history segment {}", seg.file);
+			}
+	}
+
+	/**
+	 * Seal the active segment and start a new one with the sample at time t.
+	 */
+	private void roll(long t) throws IOException {
+		if (active != null)
+			active.seal();
+		long window = store.getWindowTicks();
+		long end = (t / window + 1) * window;
+		File file = new File(dir, String.format("%08d.seg", nextNumber++));
+		active = HistorySegment.create(file, t, end, store.getSegmentBytes());
+		HistorySegment[] segs = segments;
+		segs = Arrays.copyOf(segs, segs.length + 1);
+		segs[segs.length - 1] = active;
+		segments = segs;
+	}
+
+	/**
+	 * Call the visitor for the samples with from &lt;= time &lt; to until it
+	 * returns false.
+	 */
+	private void forEach(long from, long to, boolean backward, RecordVisitor visitor) {
+		if (from >= to)
+			return;
+		HistorySegment[] segs = segments;
+		HistorySegment.Block block = new HistorySegment.Block();
+		if (!backward) {
+			for (int s = Math.max(0, floor(segs, from)); s < segs.length; s++) {
+				HistorySegment seg = segs[s];
+				if (seg.start >= to)
+					return;
+				int blocks = seg.getBlockCount();
+				for (int k = Math.max(0, seg.findBlock(from)); k < blocks; k++) {
+					int n = seg.readBlock(k, block);
+					for (int i = 0; i < n; i++) {
+						long t = block.times[i];
+						if (t < from)
+							continue;
+						if (t >= to || !visitor.visit(block, i))
+							return;
+					}
+				}
+			}
+		} else {
+			for (int s = floor(segs, to); s >= 0; s--) {
+				HistorySegment seg = segs[s];
+				for (int k = seg.findBlock(to); k >= 0; k--) {
+					int n = seg.readBlock(k, block);
+					for (int i = n - 1; i >= 0; i--) {
+						long t = block.times[i];
+						if (t >= to)
+							continue;
+						if (t < from || !visitor.visit(block, i))
+							return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the index of the last segment starting before t, -1 if there is
+	 *         none (samples with the same time can span segments)
+	 */
+	private static int floor(HistorySegment[] segs, long t) {
+		int lo = 0, hi = segs.length - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (segs[mid].start < t) {
+				found = mid;
+				lo = mid + 1;
+			} else
+				hi = mid - 1;
+		}
+		return found;
+	}
+
+	private static int number(File file) {
+		String name = file.getName();
+		try {
+			return Integer.parseInt(name.substring(0, name.length() - 4));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static DataValue toDataValue(HistorySegment.Block block, int i) {
+		int bits = block.status[i];
+		StatusCode statusCode = bits == 0 ? StatusCode.GOOD : new StatusCode(UnsignedInteger.getFromBits(bits));
+		return new DataValue(new Variant(block.object(i)), statusCode, new DateTime(block.times[i]),
+				UnsignedShort.ZERO, null, UnsignedShort.ZERO);
+	}
+
+	/**
+	 * The continuation point of a raw read: the time of the next sample and
+	 * the number of samples with that time that were already returned. It
+	 * stays valid when segments are added, dropped or the server is restarted.
+	 */
+	static final class Position {
+		final long time;
+		final int skip;
+
+		Position(long time, int skip) {
+			this.time = time;
+			this.skip = skip;
+		}
+	}
+
+	private interface RecordVisitor {
+		boolean visit(HistorySegment.Block block, int i);
+	}
+
+	private static final class RawReader implements RecordVisitor {
+		final int maxValues;
+		final List<DataValue> history;
+		int skip;
+		// the last returned time and how many samples with it were returned
+		long time;
+		int count;
+		Position next;
+
+		RawReader(int maxValues, Position continuationPoint, List<DataValue> history) {
+			this.maxValues = maxValues;
+			this.history = history;
+			if (continuationPoint != null) {
+				skip = continuationPoint.skip;
+				time = continuationPoint.time;
+				count = continuationPoint.skip;
+			}
+		}
+
+		@Override
+		public boolean visit(HistorySegment.Block block, int i) {
+			long t = block.times[i];
+			if (skip > 0 && t == time) {
+				skip--;
+				return true;
+			}
+			skip = 0;
+			if (maxValues > 0 && history.size() == maxValues) {
+				next = new Position(t, t == time ? count : 0);
+				return false;
+			}
+			history.add(toDataValue(block, i));
+			if (t == time)
+				count++;
+			else {
+				time = t;
+				count = 1;
+			}
+			return true;
+		}
+	}
+}
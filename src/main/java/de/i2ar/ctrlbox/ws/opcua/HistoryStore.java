@@ -0,0 +1,141 @@
+package de.i2ar.ctrlbox.ws.opcua;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.NodeId;
+
+/**
+ * A persistent store for the variable histories of {@link MyHistorian}.
+ * <p>
+ * Each variable gets a {@link HistorySeries} in a directory below the root,
+ * named after its NodeId. The samples are appended to memory-mapped segment
+ * files, one per time window (an hour by default). A background thread writes
+ * the active segments to disk every second and drops old segments according to
+ * the retention settings.
+ */
+public class HistoryStore {
+	private static final long TICKS_PER_MILLI = 10000;
+
+	private final File root;
+	private final Map<NodeId, HistorySeries> series = new HashMap<NodeId, HistorySeries>();
+	private final ScheduledExecutorService syncer;
+	private volatile long windowTicks = 3600000 * TICKS_PER_MILLI;
+	private volatile int segmentBytes = 4 << 20;
+	private volatile long maxAge;
+	private volatile long maxBytes;
+
+	/**
+	 * @param root
+	 *            the directory of the store, created if it does not exist
+	 */
+	public HistoryStore(File root) throws IOException {
+		this.root = root;
+		if (!root.isDirectory() && !root.mkdirs())
+			throw new IOException("Cannot create " + root);
+		syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "HistoryStore");
+			t.setDaemon(true);
+			return t;
+		});
+		syncer.scheduleWithFixedDelay(this::sync, 1, 1, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Close all series. The store cannot be used afterwards.
+	 */
+	public synchronized void close() {
+		syncer.shutdown();
+		for (HistorySeries s : series.values())
+			s.close();
+		series.clear();
+	}
+
+	/**
+	 * @return the root directory
+	 */
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Set the retention. Segments are dropped as a whole, once they are older
+	 * than maxAge or when the series is larger than maxBytes. The active
+	 * segment of a series is always kept.
+	 *
+	 * @param maxAge
+	 *            the maximum age in milliseconds, 0 to keep the samples
+	 * @param maxBytes
+	 *            the maximum size of one series in bytes, 0 for no limit
+	 */
+	public void setRetention(long maxAge, long maxBytes) {
+		this.maxAge = maxAge;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param segmentBytes
+	 *            the size of new segment files; a segment is also finished
+	 *            when it is full
+	 */
+	public void setSegmentBytes(int segmentBytes) {
+		if (segmentBytes < 4096)
+			throw new IllegalArgumentException("segmentBytes must be at least 4096");
+		this.segmentBytes = segmentBytes;
+	}
+
+	/**
+	 * @param window
+	 *            the time window of a segment in milliseconds
+	 */
+	public void setSegmentWindow(long window) {
+		if (window <= 0)
+			throw new IllegalArgumentException("window must be a positive value");
+		this.windowTicks = window * TICKS_PER_MILLI;
+	}
+
+	int getSegmentBytes() {
+		return segmentBytes;
+	}
+
+	long getWindowTicks() {
+		return windowTicks;
+	}
+
+	/**
+	 * Open the series of a variable, recovering it from disk if it exists.
+	 */
+	synchronized HistorySeries open(NodeId nodeId) throws IOException {
+		HistorySeries s = series.get(nodeId);
+		if (s == null) {
+			s = new HistorySeries(new File(root, fileName(nodeId)), this);
+			series.put(nodeId, s);
+		}
+		return s;
+	}
+
+	private synchronized void sync() {
+		long age = maxAge;
+		long minTime = age > 0 ? DateTime.currentTime().getValue() - age * TICKS_PER_MILLI : Long.MIN_VALUE;
+		for (HistorySeries s : series.values()) {
+			s.sync();
+			s.applyRetention(minTime, maxBytes);
+		}
+	}
+
+	private static String fileName(NodeId nodeId) {
+		try {
+			return URLEncoder.encode(nodeId.toString(), "UTF-8").replace("*", "%2A");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -6,12 +6,10 @@
  */
 package de.i2ar.ctrlbox.ws.opcua;
 
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Locale;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.opcfoundation.ua.builtintypes.DataValue;
 import org.opcfoundation.ua.builtintypes.DateTime;
@@ -51,30 +49,33 @@ import com.prosysopc.ua.server.UaServer;
 /**
  * A sample implementation of a NodeManager which does not use UaNode objects,
  * but connects to an underlying system for the data.
+ * <p>
+ * The data items are numbered: item i has the numeric NodeId i (the old string
+ * NodeIds, which equal the browse names, are resolved as well) and its value,
+ * status and timestamp are kept in arrays at index i, so a lookup is an array
+ * access. Changes are collected and sent to the monitored items once per
+ * update (see {@link #notifyChanges()}), with one DataValue per node shared by
+ * all items monitoring it.
  */
 public class MyBigNodeManager extends NodeManager {
 
 	public class DataItem {
-		private NodeId dataType = Identifiers.Double;
-		private final String name;
-		private StatusCode status = new StatusCode(StatusCodes.Bad_WaitingForInitialData);
-		private DateTime timestamp;
-		private double value;
+		private final int index;
 
 		/**
-		 * @param name
-		 * @param value
+		 * @param index
 		 */
-		public DataItem(String name) {
+		private DataItem(int index) {
 			super();
-			this.name = name;
+			this.index = index;
 		}
 
 		/**
 		 * @return the dataType
 		 */
 		public NodeId getDataType() {
-			return dataType;
+			NodeId[] types = dataTypes;
+			return (types == null) || (types[index] == null) ? Identifiers.Double : types[index];
 		}
 
 		/**
@@ -84,21 +85,36 @@ public class MyBigNodeManager extends NodeManager {
 			dataValue.setValue(new Variant(getValue()));
 			dataValue.setStatusCode(getStatus());
 			dataValue.setServerTimestamp(DateTime.currentTime());
-			dataValue.setSourceTimestamp(timestamp);
+			dataValue.setSourceTimestamp(getTimestamp());
+		}
+
+		/**
+		 * @return the index of the item, which is also the identifier of its
+		 *         NodeId
+		 */
+		public int getIndex() {
+			return index;
 		}
 
 		/**
 		 * @return the name
 		 */
 		public String getName() {
-			return name;
+			return names[index];
+		}
+
+		/**
+		 * @return the NodeId
+		 */
+		public NodeId getNodeId() {
+			return new NodeId(getNamespaceIndex(), UnsignedInteger.valueOf(index));
 		}
 
 		/**
 		 * @return the status
 		 */
 		public StatusCode getStatus() {
-			return status;
+			return statuses[index];
 		}
 
 		/**
@@ -107,14 +123,15 @@ public class MyBigNodeManager extends NodeManager {
 		 * @return the timestamp
 		 */
 		public DateTime getTimestamp() {
-			return timestamp;
+			long time = timestamps[index];
+			return time == 0 ? null : new DateTime(time);
 		}
 
 		/**
 		 * @return the value
 		 */
 		public double getValue() {
-			return value;
+			return values[index];
 		}
 
 		/**
@@ -122,7 +139,11 @@ public class MyBigNodeManager extends NodeManager {
 		 *            the dataType to set
 		 */
 		public void setDataType(NodeId dataType) {
-			this.dataType = dataType;
+			synchronized (names) {
+				if (dataTypes == null)
+					dataTypes = new NodeId[names.length];
+				dataTypes[index] = dataType;
+			}
 		}
 
 		/**
@@ -134,19 +155,16 @@ public class MyBigNodeManager extends NodeManager {
 		}
 
 		/**
+		 * The monitored items are notified with the next
+		 * {@link MyBigNodeManager#notifyChanges()}.
+		 *
 		 * @param value
 		 *            the value to set
 		 * @param status
 		 *            the status to set
 		 */
 		public void setValue(double value, StatusCode status) {
-			if (status == null)
-				status = StatusCode.BAD;
-			if ((this.value != value) || !this.status.equals(status)) {
-				this.value = value;
-				this.status = status;
-				this.timestamp = DateTime.currentTime();
-			}
+			MyBigNodeManager.this.setValue(index, value, status, DateTime.currentTime().getValue());
 		}
 	}
 
@@ -413,11 +431,28 @@ public class MyBigNodeManager extends NodeManager {
 
 	private static final Logger logger = LoggerFactory.getLogger(MyBigNodeManager.class);
 
-	private final ExpandedNodeId DataItemFolder;
+	private static final String DataItemPrefix = "DataItem_";
 
-	private final Map<String, DataItem> dataItems;
+	private final ExpandedNodeId DataItemFolder;
 
-	private final Map<String, Collection<MonitoredDataItem>> monitoredItems = new ConcurrentHashMap<String, Collection<MonitoredDataItem>>();
+	// the data items by index
+	private final String[] names;
+	private final DataItem[] dataItems;
+	private final double[] values;
+	// DateTime ticks, 0 until the first value is set
+	private final long[] timestamps;
+	private final StatusCode[] statuses;
+	// created when the first data type is set, null entries are Double
+	private volatile NodeId[] dataTypes;
+
+	// the items monitoring each data item, copied on write
+	private final AtomicReferenceArray<MonitoredDataItem[]> monitoredItems;
+
+	// the monitored data items changed since the last notifyChanges, each once
+	private final BitSet changed = new BitSet();
+	private int[] changedItems = new int[16];
+	private int changedCount;
+	private int[] notifiedItems = new int[16];
 
 	@SuppressWarnings("unused")
 	private final MyBigIoManager myBigIoManager;
@@ -444,9 +479,18 @@ public class MyBigNodeManager extends NodeManager {
 		} catch (ServiceResultException e) {
 			throw new RuntimeException(e);
 		}
-		dataItems = new TreeMap<String, MyBigNodeManager.DataItem>();
-		for (int i = 0; i < nofItems; i++)
-			addDataItem(String.format("DataItem_%04d", i));
+		names = new String[nofItems];
+		dataItems = new DataItem[nofItems];
+		values = new double[nofItems];
+		timestamps = new long[nofItems];
+		statuses = new StatusCode[nofItems];
+		monitoredItems = new AtomicReferenceArray<MonitoredDataItem[]>(nofItems);
+		final StatusCode initial = new StatusCode(StatusCodes.Bad_WaitingForInitialData);
+		for (int i = 0; i < nofItems; i++) {
+			names[i] = String.format(DataItemPrefix + "%04d", i);
+			dataItems[i] = new DataItem(i);
+			statuses[i] = initial;
+		}
 
 		myBigIoManager = new MyBigIoManager(this);
 	}
@@ -493,36 +537,106 @@ public class MyBigNodeManager extends NodeManager {
 	}
 
 	/**
-	 * @param name
+	 * Send the changes since the previous call to the monitored items. Called
+	 * after each simulation step; call it also after setting values from
+	 * another update loop.
 	 */
-	private void addDataItem(String name) {
-		dataItems.put(name, new DataItem(name));
+	public void notifyChanges() {
+		int[] items;
+		int n;
+		synchronized (changed) {
+			n = changedCount;
+			if (n == 0)
+				return;
+			// swap the lists, the next changes go to the other one
+			items = changedItems;
+			changedItems = notifiedItems;
+			notifiedItems = items;
+			changedCount = 0;
+			changed.clear();
+		}
+		DateTime serverTime = DateTime.currentTime();
+		for (int k = 0; k < n; k++) {
+			int i = items[k];
+			MonitoredDataItem[] c = monitoredItems.get(i);
+			if (c == null)
+				continue;
+			// one snapshot for all items monitoring the node
+			DataValue dataValue = new DataValue();
+			dataValue.setValue(new Variant(values[i]));
+			dataValue.setStatusCode(statuses[i]);
+			dataValue.setServerTimestamp(serverTime);
+			dataValue.setSourceTimestamp(dataItems[i].getTimestamp());
+			for (MonitoredDataItem item : c)
+				item.notifyDataChange(dataValue);
+		}
 	}
 
 	/**
 	 * Finds the DataItem corresponding to the NodeId
 	 *
 	 * @param nodeId
-	 *            ID of the node - the Value part corresponds to the name of the
-	 *            item
+	 *            ID of the node - the Value part is the index of the item (or
+	 *            its name)
 	 * @return the DataItem object
 	 */
 	private DataItem getDataItem(ExpandedNodeId nodeId) {
-		String name = (String) nodeId.getValue();
-		return dataItems.get(name);
+		int i = indexOf(nodeId.getValue());
+		return i < 0 ? null : dataItems[i];
 	}
 
 	/**
 	 * Finds the DataItem corresponding to the NodeId
 	 *
 	 * @param nodeId
-	 *            ID of the node - the Value part corresponds to the name of the
-	 *            item
+	 *            ID of the node - the Value part is the index of the item (or
+	 *            its name)
 	 * @return the DataItem object
 	 */
 	private DataItem getDataItem(NodeId nodeId) {
-		String name = (String) nodeId.getValue();
-		return dataItems.get(name);
+		int i = indexOf(nodeId.getValue());
+		return i < 0 ? null : dataItems[i];
+	}
+
+	/**
+	 * @param value
+	 *            the Value part of a NodeId
+	 * @return the index of the data item, -1 if there is none
+	 */
+	private int indexOf(Object value) {
+		int i = -1;
+		if (value instanceof UnsignedInteger)
+			i = ((UnsignedInteger) value).intValue();
+		else if ((value instanceof String) && ((String) value).startsWith(DataItemPrefix))
+			try {
+				i = Integer.parseInt(((String) value).substring(DataItemPrefix.length()));
+				if ((i >= 0) && (i < names.length) && !names[i].equals(value))
+					i = -1;
+			} catch (NumberFormatException e) {
+				i = -1;
+			}
+		return (i >= 0) && (i < names.length) ? i : -1;
+	}
+
+	private void setValue(int i, double value, StatusCode status, long time) {
+		if (status == null)
+			status = StatusCode.BAD;
+		if ((values[i] != value) || !statuses[i].equals(status)) {
+			values[i] = value;
+			statuses[i] = status;
+			timestamps[i] = time;
+			if (monitoredItems.get(i) != null)
+				synchronized (changed) {
+					if (!changed.get(i)) {
+						changed.set(i);
+						if (changedCount == changedItems.length) {
+							changedItems = Arrays.copyOf(changedItems, 2 * changedCount);
+							notifiedItems = Arrays.copyOf(notifiedItems, 2 * changedCount);
+						}
+						changedItems[changedCount++] = i;
+					}
+				}
+		}
 	}
 
 	/**
@@ -545,23 +659,6 @@ public class MyBigNodeManager extends NodeManager {
 		return name;
 	}
 
-	/**
-	 * Send a data change notification for all monitored data items that are
-	 * monitoring the dataItme
-	 *
-	 * @param dataItem
-	 */
-	private void notifyMonitoredDataItems(DataItem dataItem) {
-		// Get the list of items watching dataItem
-		Collection<MonitoredDataItem> c = monitoredItems.get(dataItem.getName());
-		if (c != null)
-			for (MonitoredDataItem item : c) {
-				DataValue dataValue = new DataValue();
-				dataItem.getDataValue(dataValue);
-				item.notifyDataChange(dataValue);
-			}
-	}
-
 	/*
 	 * (non-Javadoc)
 	 *
@@ -573,15 +670,18 @@ public class MyBigNodeManager extends NodeManager {
 	@Override
 	protected void afterCreateMonitoredDataItem(ServiceContext serviceContext, Subscription subscription,
 			MonitoredDataItem item) {
-		// Add all items that monitor the same node to the same collection
-		final Object dataItemName = item.getNodeId().getValue();
-		Collection<MonitoredDataItem> c = monitoredItems.get(dataItemName);
-		if (c == null) {
-			c = new CopyOnWriteArrayList<MonitoredDataItem>();
-			monitoredItems.put((String) dataItemName, c);
-		}
-		c.add(item);
-		logger.debug("afterCreateMonitoredDataItem: nodeId={} c.size()={}", item.getNodeId(), c.size());
+		// Add all items that monitor the same node to the same array
+		int i = indexOf(item.getNodeId().getValue());
+		if (i < 0)
+			return;
+		MonitoredDataItem[] c;
+		synchronized (monitoredItems) {
+			c = monitoredItems.get(i);
+			c = (c == null) ? new MonitoredDataItem[] { item } : Arrays.copyOf(c, c.length + 1);
+			c[c.length - 1] = item;
+			monitoredItems.set(i, c);
+		}
+		logger.debug("afterCreateMonitoredDataItem: nodeId={} c.length={}", item.getNodeId(), c.length);
 	}
 
 	/*
@@ -595,17 +695,22 @@ public class MyBigNodeManager extends NodeManager {
 	@Override
 	protected void deleteMonitoredItem(ServiceContext serviceContext, Subscription subscription, MonitoredItem item)
 			throws StatusException {
-		// Find the collection in which the monitoredItem is
-		// and remove the item from the collection
-		Object dataItemName = item.getNodeId().getValue();
-		Collection<MonitoredDataItem> c = monitoredItems.get(dataItemName);
-		if (c != null) {
-			logger.debug("deleteMonitoredItem: collection size={}", c.size());
-			c.remove(item);
-			if (c.isEmpty()) {
-				monitoredItems.remove(dataItemName);
-				logger.debug("deleteMonitoredItem: monitoredItems size={}", monitoredItems.size());
-			}
+		// Find the array in which the monitoredItem is
+		// and remove the item from the array
+		int i = indexOf(item.getNodeId().getValue());
+		if (i < 0)
+			return;
+		synchronized (monitoredItems) {
+			MonitoredDataItem[] c = monitoredItems.get(i);
+			if (c == null)
+				return;
+			logger.debug("deleteMonitoredItem: array length={}", c.length);
+			MonitoredDataItem[] rest = new MonitoredDataItem[c.length];
+			int n = 0;
+			for (MonitoredDataItem m : c)
+				if (m != item)
+					rest[n++] = m;
+			monitoredItems.set(i, n == 0 ? null : Arrays.copyOf(rest, n));
 		}
 	}
 
@@ -669,7 +774,7 @@ public class MyBigNodeManager extends NodeManager {
 						DataItemType, Identifiers.HasSubtype) };
 			// Define reference from and to our Folder for the DataItems
 			if (nodeId.equals(getNamespaceTable().toNodeId(DataItemFolder))) {
-				UaReference[] folderItems = new UaReference[dataItems.size() + 2];
+				UaReference[] folderItems = new UaReference[dataItems.length + 2];
 				// Inverse reference to the ObjectsFolder
 				folderItems[0] = new MyReference(new ExpandedNodeId(Identifiers.ObjectsFolder), DataItemFolder,
 						Identifiers.Organizes);
@@ -679,9 +784,9 @@ public class MyBigNodeManager extends NodeManager {
 						Identifiers.HasTypeDefinition);
 				int i = 2;
 				// Reference to all items in the folder
-				for (DataItem d : dataItems.values()) {
+				for (DataItem d : dataItems) {
 					folderItems[i] = new MyReference(DataItemFolder,
-							new ExpandedNodeId(null, getNamespaceIndex(), d.getName()), Identifiers.HasComponent);
+							getNamespaceTable().toExpandedNodeId(d.getNodeId()), Identifiers.HasComponent);
 					i++;
 				}
 				return folderItems;
@@ -694,7 +799,7 @@ public class MyBigNodeManager extends NodeManager {
 		DataItem dataItem = getDataItem(nodeId);
 		if (dataItem == null)
 			return null;
-		final ExpandedNodeId dataItemId = new ExpandedNodeId(null, getNamespaceIndex(), dataItem.getName());
+		final ExpandedNodeId dataItemId = getNamespaceTable().toExpandedNodeId(dataItem.getNodeId());
 		return new UaReference[] {
 				// Inverse reference to the folder
 				new MyReference(DataItemFolder, dataItemId, Identifiers.HasComponent),
@@ -723,10 +828,10 @@ public class MyBigNodeManager extends NodeManager {
 	void simulate() {
 		t = t + (Math.PI / 180);
 		double value = 100 * Math.sin(t);
-		for (DataItem d : dataItems.values()) {
-			d.setValue(value);
-			notifyMonitoredDataItems(d);
-		}
+		long now = DateTime.currentTime().getValue();
+		for (int i = 0; i < dataItems.length; i++)
+			setValue(i, value, StatusCode.GOOD, now);
+		notifyChanges();
 	}
 
 }
@@ -6,12 +6,15 @@
  */
 package de.i2ar.ctrlbox.ws.opcua;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.opcfoundation.ua.builtintypes.DataValue;
 import org.opcfoundation.ua.builtintypes.DateTime;
@@ -54,12 +57,38 @@ import com.prosysopc.ua.server.nodes.UaVariableNode;
  * <p>
  * It is implemented as a HistoryManagerListener. It could as well be a
  * HistoryManager, instead.
+ * <p>
+ * The variable histories are kept in memory, unless a {@link HistoryStore} is
+ * set, in which case they are written to disk and survive a restart. The event
+ * histories are always kept in memory.
+ * <p>
+ * Processed reads are computed in a single pass over the history by an
+ * {@link Aggregator}. Variables that are read processed repeatedly get a
+ * {@link HistoryRollup}, so that reads aligned to seconds, minutes or hours are
+ * answered from the precomputed summaries. The rollups are filled from the
+ * existing samples by a background thread, the reads use the raw samples until
+ * then.
  */
 public class MyHistorian implements HistoryManagerListener {
+	// processed reads after which a variable gets rollups
+	private static final int HOT_READS = 3;
 	private static Logger logger = LoggerFactory.getLogger(MyHistorian.class);
 	private final Map<UaObjectNode, EventHistory> eventHistories = new HashMap<UaObjectNode, EventHistory>();
 	// The variable histories
 	private final Map<UaVariableNode, ValueHistory> variableHistories = new HashMap<UaVariableNode, ValueHistory>();
+	// The persistent variable histories
+	private final Map<UaVariableNode, HistorySeries> storedHistories = new HashMap<UaVariableNode, HistorySeries>();
+	private HistoryStore store;
+	// The number of processed reads per variable and the rollups of the hot ones
+	private final Map<UaNode, Integer> processedReads = new HashMap<UaNode, Integer>();
+	private final Map<UaNode, HistoryRollup> rollups = new HashMap<UaNode, HistoryRollup>();
+	// Attaches and detaches the rollups in the order they were created and
+	// removed, so the back-fill does not run on the request thread
+	private final ExecutorService rollupExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "HistoryRollup");
+		t.setDaemon(true);
+		return t;
+	});
 
 	public MyHistorian() {
 		super();
@@ -94,15 +123,43 @@ public class MyHistorian implements HistoryManagerListener {
 	 *            the variable to initialize
 	 */
 	public void addVariableHistory(UaVariableNode variable) {
-		ValueHistory history = new ValueHistory(variable);
+		HistorySeries series = null;
+		if (store != null)
+			try {
+				series = store.open(variable.getNodeId());
+			} catch (IOException e) {
+				logger.error("Cannot open the history of " + variable.getNodeId() + ", keeping it in memory", e);
+			}
+		if (series != null) {
+			final HistorySeries s = series;
+			variable.addDataChangeListener((node, prevValue, value) -> s.append(value));
+			storedHistories.put(variable, series);
+		} else
+			variableHistories.put(variable, new ValueHistory(variable));
 		// History is being collected
 		variable.setHistorizing(true);
 		// History can be read
 		final EnumSet<AccessLevel> READ_WRITE_HISTORYREAD = EnumSet.of(AccessLevel.CurrentRead,
 				AccessLevel.CurrentWrite, AccessLevel.HistoryRead);
 		variable.setAccessLevel(READ_WRITE_HISTORYREAD);
+	}
 
-		variableHistories.put(variable, history);
+	/**
+	 * @return the store of the variable histories, or null if they are kept in
+	 *         memory
+	 */
+	public HistoryStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Keep the histories of the variables added after this call in the store.
+	 *
+	 * @param store
+	 *            the store, or null to keep them in memory
+	 */
+	public void setStore(HistoryStore store) {
+		this.store = store;
 	}
 
 	@Override
@@ -123,8 +180,12 @@ public class MyHistorian implements HistoryManagerListener {
 			DateTime[] reqTimes, StatusCode[] operationResults, DiagnosticInfo[] operationDiagnostics)
 					throws StatusException {
 		ValueHistory history = variableHistories.get(node);
-		if (history != null)
+		if (history != null) {
 			history.deleteAtTimes(reqTimes, operationResults, operationDiagnostics);
+			removeRollup(node, history);
+		}
+		else if (storedHistories.containsKey(node))
+			throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
 		else
 			throw new StatusException(StatusCodes.Bad_NoData);
 	}
@@ -150,8 +211,12 @@ public class MyHistorian implements HistoryManagerListener {
 	public void onDeleteRaw(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
 			DateTime startTime, DateTime endTime) throws StatusException {
 		ValueHistory history = variableHistories.get(node);
-		if (history != null)
+		if (history != null) {
 			history.deleteRaw(startTime, endTime);
+			removeRollup(node, history);
+		}
+		else if (storedHistories.containsKey(node))
+			throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
 		else
 			throw new StatusException(StatusCodes.Bad_NoData);
 	}
@@ -176,8 +241,11 @@ public class MyHistorian implements HistoryManagerListener {
 			logger.debug("onReadAtTimes: reqTimes=[" + reqTimes.length + "] "
 					+ ((reqTimes.length < 20) ? Arrays.toString(reqTimes) : ""));
 		ValueHistory history = variableHistories.get(node);
+		HistorySeries series = storedHistories.get(node);
 		if (history != null)
 			historyData.setDataValues(history.readAtTimes(reqTimes));
+		else if (series != null)
+			historyData.setDataValues(series.readAtTimes(reqTimes));
 		else
 			throw new StatusException(StatusCodes.Bad_NoData);
 		return null;
@@ -190,9 +258,8 @@ public class MyHistorian implements HistoryManagerListener {
 		EventHistory history = eventHistories.get(node);
 		if (history != null) {
 			List<HistoryEventFieldList> events = new ArrayList<HistoryEventFieldList>();
-			int firstIndex = continuationPoint == null ? 0 : (Integer) continuationPoint;
-			Integer newContinuationPoint = history.readEvents(startTime, endTime, numValuesPerNode.intValue(), filter,
-					events, firstIndex);
+			Long newContinuationPoint = history.readEvents(startTime, endTime, numValuesPerNode.intValue(), filter,
+					events, (Long) continuationPoint);
 			historyEvent.setEvents(events.toArray(new HistoryEventFieldList[events.size()]));
 			return newContinuationPoint;
 		} else
@@ -213,7 +280,16 @@ public class MyHistorian implements HistoryManagerListener {
 			DateTime startTime, DateTime endTime, Double resampleInterval, NodeId aggregateType,
 			AggregateConfiguration aggregateConfiguration, NumericRange indexRange, HistoryData historyData)
 					throws StatusException {
-		throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+		logger.debug("onReadProcessed: startTime={} endTime={} resampleInterval={} aggregateType={}", startTime,
+				endTime, resampleInterval, aggregateType);
+		SampleSource source = variableHistories.get(node);
+		if (source == null)
+			source = storedHistories.get(node);
+		if (source == null)
+			throw new StatusException(StatusCodes.Bad_NoData);
+		historyData.setDataValues(Aggregator.read(source, getRollup(node, source), aggregateType, startTime, endTime,
+				resampleInterval == null ? 0 : resampleInterval));
+		return null;
 	}
 
 	@Override
@@ -225,15 +301,74 @@ public class MyHistorian implements HistoryManagerListener {
 		ValueHistory history = variableHistories.get(node);
 		if (history != null) {
 			List<DataValue> values = new ArrayList<DataValue>();
-			int firstIndex = continuationPoint == null ? 0 : (Integer) continuationPoint;
-			Integer newContinuationPoint = history.readRaw(startTime, endTime, numValuesPerNode.intValue(),
-					returnBounds, firstIndex, values);
+			Long newContinuationPoint = history.readRaw(startTime, endTime, numValuesPerNode.intValue(),
+					returnBounds, (Long) continuationPoint, values);
+			historyData.setDataValues(values.toArray(new DataValue[values.size()]));
+			return newContinuationPoint;
+		}
+		HistorySeries series = storedHistories.get(node);
+		if (series != null) {
+			boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
+			boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
+			// !startTimeDefined && endTimeDefined: newest first
+			boolean backward = !startTimeDefined && endTimeDefined;
+			long from = !startTimeDefined ? Long.MIN_VALUE
+					: returnBounds ? startTime.getValue() : startTime.getValue() + 1;
+			long to = !endTimeDefined ? Long.MAX_VALUE : returnBounds ? endTime.getValue() + 1 : endTime.getValue();
+			List<DataValue> values = new ArrayList<DataValue>();
+			HistorySeries.Position newContinuationPoint = series.readRaw(from, to, backward,
+					numValuesPerNode.intValue(), (HistorySeries.Position) continuationPoint, values);
 			historyData.setDataValues(values.toArray(new DataValue[values.size()]));
 			return newContinuationPoint;
 		}
 		return null;
 	}
 
+	/**
+	 * Count the processed read and create the rollups once the variable is
+	 * hot.
+	 *
+	 * @return the rollups of the variable, or null if it has none
+	 */
+	private HistoryRollup getRollup(UaNode node, SampleSource source) {
+		synchronized (rollups) {
+			HistoryRollup rollup = rollups.get(node);
+			if (rollup != null)
+				return rollup;
+			Integer reads = processedReads.get(node);
+			reads = reads == null ? 1 : reads + 1;
+			processedReads.put(node, reads);
+			if (reads < HOT_READS)
+				return null;
+			final HistoryRollup created = new HistoryRollup();
+			rollups.put(node, created);
+			// submitted under the lock, so it runs before the detach of a later
+			// removeRollup
+			rollupExecutor.execute(() -> {
+				synchronized (rollups) {
+					if (rollups.get(node) != created)
+						return;
+				}
+				logger.debug("Creating rollups for {}", node.getNodeId());
+				created.follow(source, DateTime.currentTime().getValue());
+			});
+			// answers no reads until it is filled
+			return created;
+		}
+	}
+
+	/**
+	 * Drop the rollups after samples were deleted; they are rebuilt on the
+	 * next processed reads.
+	 */
+	private void removeRollup(UaNode node, SampleSource source) {
+		synchronized (rollups) {
+			if (rollups.remove(node) != null)
+				rollupExecutor.execute(() -> source.follow(0, null));
+			processedReads.remove(node);
+		}
+	}
+
 	@Override
 	public void onUpdateData(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
 			DataValue[] updateValues, PerformUpdateType performInsertReplace, StatusCode[] operationResults,
@@ -189,6 +189,12 @@ public class SampleConsoleServer implements WS {
 
 	protected static String discoveryServerUrl = "opc.tcp://localhost:4840";
 
+	/**
+	 * Directory of the persistent variable history, null to keep the history
+	 * in memory. This can be modified from the command line.
+	 */
+	protected static String historyDir;
+
 	protected static boolean diagnosticsEnabled;
 	/**
 	 * @param args
@@ -271,6 +277,7 @@ public class SampleConsoleServer implements WS {
 	@Override
 	public void stop() {
 		server.shutdown(5, new LocalizedText("Herunterfahren", Locale.GERMAN));
+		closeHistory();
 	}
 
 	/**
@@ -335,6 +342,7 @@ public class SampleConsoleServer implements WS {
 	 * <LI>-d connect to a discovery server instead of a normal server
 	 * <LI>-t show stack trace with exceptions
 	 * <LI>-n do not prompt for the server URI, if it is not specified
+	 * <LI>-h dir keep the variable history in the directory
 	 * </UL>
 	 *
 	 * Also expects to get the serverUri - if not, it is prompted (unless -n
@@ -357,6 +365,8 @@ public class SampleConsoleServer implements WS {
 				discoveryServerUrl = args[++i];
 			else if (args[i].equals("-d-"))
 				discoveryServerUrl = "";
+			else if (args[i].equals("-h"))
+				historyDir = args[++i];
 			else if (args[i].equals("-?"))
 				return false;
 			else
@@ -375,6 +385,7 @@ public class SampleConsoleServer implements WS {
 		println("   -k keySize Define the size of the public key of the application certificate (default 1024; other valid values 2048, 4096)");
 		println("   -d url     Define the DiscoveryServerUrl to register the application to");
 		println("   -d-        Define that the application should not be registered to a DiscoveryServer");
+		println("   -h dir     Keep the variable history in the directory dir (default: in memory)");
 		println("   -t         Output stack trace for errors");
 		println("   -?         Show this help text");
 		println("");
@@ -531,6 +542,12 @@ public class SampleConsoleServer implements WS {
 	 *
 	 */
 	protected void initHistory() {
+		if (historyDir != null)
+			try {
+				myHistorian.setStore(new HistoryStore(new File(historyDir)));
+			} catch (IOException e) {
+				printException(e);
+			}
 		for (UaVariableNode v : myNodeManager.getHistorizableVariables())
 			myHistorian.addVariableHistory(v);
 		for (UaObjectNode o : myNodeManager.getHistorizableEvents())
@@ -764,9 +781,20 @@ public class SampleConsoleServer implements WS {
 		// Notify the clients about a shutdown, with a 5 second delay
 		println("Shutting down...");
 		server.shutdown(5, new LocalizedText("Closed by user", Locale.ENGLISH));
+		closeHistory();
 		println("Closed.");
 	}
 
+	/**
+	 * Writes the persistent history to disk and closes it.
+	 */
+	protected void closeHistory() {
+		HistoryStore store = myHistorian.getStore();
+		if (store != null)
+			store.close();
+		myHistorian.setStore(null);
+	}
+
 	/**
 	 *
 	 */
@@ -0,0 +1,27 @@
+package de.i2ar.ctrlbox.ws.opcua;
+
+/**
+ * A variable history that can be read sample by sample, without creating a
+ * DataValue per sample. Implemented by the in-memory {@link ValueHistory} and
+ * the persistent {@link HistorySeries}.
+ */
+interface SampleSource {
+
+	/**
+	 * Visit the samples with from &lt;= time &lt; to, until the visitor returns
+	 * false.
+	 *
+	 * @param backward
+	 *            visit the newest samples first
+	 */
+	void scan(long from, long to, boolean backward, SampleVisitor visitor);
+
+	/**
+	 * Visit the samples from the given time on and then every new sample, as
+	 * it is added. There is only one follower, a new one replaces the old.
+	 *
+	 * @param visitor
+	 *            the follower, or null to stop following
+	 */
+	void follow(long from, SampleVisitor visitor);
+}
@@ -0,0 +1,20 @@
+package de.i2ar.ctrlbox.ws.opcua;
+
+/**
+ * Receives history samples one by one, without creating a DataValue per
+ * sample.
+ */
+interface SampleVisitor {
+
+	/**
+	 * @param time
+	 *            the source timestamp, in DateTime ticks (100 ns since 1601)
+	 * @param value
+	 *            the value as a double (booleans as 0/1, NaN if the sample has
+	 *            no value)
+	 * @param status
+	 *            the status code bits
+	 * @return false to stop the scan
+	 */
+	boolean visit(long time, double value, int status);
+}
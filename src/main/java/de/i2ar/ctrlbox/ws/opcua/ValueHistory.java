@@ -7,13 +7,15 @@
 package de.i2ar.ctrlbox.ws.opcua;
 
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
 
 import org.opcfoundation.ua.builtintypes.DataValue;
 import org.opcfoundation.ua.builtintypes.DateTime;
 import org.opcfoundation.ua.builtintypes.DiagnosticInfo;
 import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedInteger;
 import org.opcfoundation.ua.builtintypes.UnsignedShort;
+import org.opcfoundation.ua.builtintypes.Variant;
 import org.opcfoundation.ua.core.StatusCodes;
 
 import com.prosysopc.ua.StatusException;
@@ -24,19 +26,41 @@ import com.prosysopc.ua.server.nodes.UaVariableNode;
 
 /**
  * A sample class for keeping a history of a variable node.
+ * <p>
+ * The samples are kept in a circular buffer of parallel primitive arrays
+ * (timestamps, values, status codes), so adding a sample does not copy or
+ * allocate anything and the oldest sample is simply overwritten once the
+ * buffer is full. Every sample gets an ever increasing sequence number, which
+ * is also used as the continuation point, so continuation points stay valid
+ * when the buffer wraps around.
+ * <p>
+ * There is a single writer (the data change listener); readers do not lock.
+ * The writer holds the write lock of a StampedLock while it fills a slot and
+ * publishes the sample by advancing the volatile head. Readers read a slot (and
+ * do their binary searches) as optimistic reads, which are retried if the
+ * writer was active meanwhile, and skip samples that have dropped out of the
+ * buffer. Time based reads use binary search on the timestamps. Deletes only
+ * mark samples as deleted, so sequence numbers never move.
  */
-class ValueHistory {
-	private int capacity = 10000;
+class ValueHistory implements SampleSource {
+	private static final int DEFAULT_CAPACITY = 10000;
+
+	// marks a sample whose value is stored in the double array
+	private static final Object DOUBLE = new Object();
+	// no server timestamp
+	private static final long NONE = Long.MIN_VALUE;
+
 	private final DataChangeListener listener = new DataChangeListener() {
 
 		@Override
 		public void onDataChange(UaNode uaNode, DataValue prevValue, DataValue value) {
-			values.add(value);
-			while (values.size() > capacity)
-				values.remove(0);
+			append(value);
 		}
 	};
-	private final List<DataValue> values = new CopyOnWriteArrayList<DataValue>();
+	private volatile Ring ring = new Ring(DEFAULT_CAPACITY, 0);
+	// incremented after samples are marked deleted, for visibility to the readers
+	private volatile int deletions;
+	private SampleVisitor follower;
 	private final UaVariable variable;
 
 	public ValueHistory(UaVariableNode variable) {
@@ -63,33 +87,35 @@ class ValueHistory {
 	}
 
 	/**
+	 * Delete the samples with startTime &lt;= timestamp &lt; endTime.
+	 *
 	 * @param startTime
 	 * @param endTime
 	 * @throws StatusException
 	 */
-	public void deleteRaw(DateTime startTime, DateTime endTime) throws StatusException {
-		int i = 0;
-		// boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) >
-		// 0;
+	public synchronized void deleteRaw(DateTime startTime, DateTime endTime) throws StatusException {
 		boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
 		if (!endTimeDefined)
 			throw new StatusException(StatusCodes.Bad_InvalidArgument);
-		while (true) {
-			DataValue value = values.get(i);
-			DateTime t = value.getSourceTimestamp();
-			if (t == null)
-				t = value.getServerTimestamp();
-			if (t.compareTo(startTime) >= 0)
-				values.remove(i);
-			else if (t.compareTo(endTime) >= 0)
-				break;
-			else
-				i++;
-		}
+		Ring r = ring;
+		long head = r.head;
+		long from = r.lowerBound(startTime.getValue(), head);
+		long to = r.lowerBound(endTime.getValue(), head);
+		for (long seq = from; seq < to; seq++)
+			r.deleted[r.slot(seq)] = true;
+		deletions++;
+	}
+
+	@Override
+	public synchronized void follow(long from, SampleVisitor visitor) {
+		// append is synchronized as well, so no sample is lost or visited twice
+		if (visitor != null)
+			scan(from, Long.MAX_VALUE, false, visitor);
+		follower = visitor;
 	}
 
 	public int getCapacity() {
-		return capacity;
+		return ring.capacity;
 	}
 
 	/**
@@ -131,68 +157,136 @@ class ValueHistory {
 	 * @param returnBounds
 	 *            whether values at the ends of the interval should be returned
 	 *            as well
-	 * @param firstIndex
-	 *            the index of the first entry in the history data to return
-	 *            (i.e. the continuationPoint returned for the previous request)
+	 * @param continuationPoint
+	 *            the sequence number of the first entry in the history data to
+	 *            return (i.e. the continuationPoint returned for the previous
+	 *            request), or null for a new request
 	 * @param history
 	 *            the list of values to fill in
-	 * @return the first index that was not added to the history, in case there
-	 *         are more than maxValues entries to return (i.e. the
-	 *         continuationPoint to return)
+	 * @return the sequence number of the first entry that was not added to the
+	 *         history, in case there are more than maxValues entries to return
+	 *         (i.e. the continuationPoint to return)
 	 */
-	public Integer readRaw(DateTime startTime, DateTime endTime, int maxValues, boolean returnBounds, int firstIndex,
-			List<DataValue> history) {
-		int i = 0;
+	public Long readRaw(DateTime startTime, DateTime endTime, int maxValues, boolean returnBounds,
+			Long continuationPoint, List<DataValue> history) {
 		boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
 		boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
-		if (startTimeDefined || !endTimeDefined)
-			for (DataValue value : values) {
-				DateTime t = value.getSourceTimestamp();
-				if (t == null)
-					t = value.getServerTimestamp();
-				final int compareToEnd = endTimeDefined ? t.compareTo(endTime) : -1;
-				if ((compareToEnd > 0) || (!returnBounds && (compareToEnd == 0)))
-					break;
-				else {
-					final int compareToStart = t.compareTo(startTime);
-					if ((compareToStart > 0) || (returnBounds && (compareToStart == 0))) {
-						if (i >= firstIndex)
-							history.add(value);
-						i++;
-						if (history.size() == maxValues)
-							return i;
-					}
-				}
+		int d = deletions;
+		Ring r = ring;
+		long head = r.head;
+		long tail = r.tail(head);
+		long end = !endTimeDefined ? head
+				: returnBounds ? r.upperBound(endTime.getValue(), head) : r.lowerBound(endTime.getValue(), head);
+		if (startTimeDefined || !endTimeDefined) {
+			long seq = returnBounds ? r.lowerBound(startTime.getValue(), head) : r.upperBound(startTime.getValue(), head);
+			if (continuationPoint != null)
+				seq = Math.max(seq, continuationPoint);
+			for (; seq < end; seq++) {
+				DataValue value = r.get(seq, d);
+				if (value == null)
+					continue;
+				history.add(value);
+				if (history.size() == maxValues)
+					return seq + 1 < end ? seq + 1 : null;
 			}
-		else
-			// !startTimeDefined && endTimeDefined
-			for (int j = values.size() - 1; j >= 0; j--) {
-				DataValue value = values.get(j);
-				DateTime t = value.getSourceTimestamp();
-				if (t == null)
-					t = value.getServerTimestamp();
-				final int compareToEnd = t.compareTo(endTime);
-				if ((compareToEnd > 0) || (!returnBounds && (compareToEnd == 0)))
+		} else {
+			// !startTimeDefined && endTimeDefined: newest first
+			long seq = end - 1;
+			if (continuationPoint != null)
+				seq = Math.min(seq, continuationPoint);
+			for (; seq >= tail; seq--) {
+				DataValue value = r.get(seq, d);
+				if (value == null)
 					continue;
-				else {
-					if (i >= firstIndex)
-						history.add(value);
-					i++;
-					if (history.size() == maxValues)
-						return i;
-				}
+				history.add(value);
+				if (history.size() == maxValues)
+					return seq - 1 >= r.tail(r.head) ? seq - 1 : null;
 			}
+		}
 		return null;
 	}
 
 	/**
+	 * Visit the samples by their search key, i.e. a late sample is visited at
+	 * the time of its predecessor.
+	 */
+	@Override
+	public void scan(long from, long to, boolean backward, SampleVisitor visitor) {
+		int d = deletions;
+		Ring r = ring;
+		long head = r.head;
+		long lo = r.lowerBound(from, head);
+		long hi = r.lowerBound(to, head);
+		if (!backward) {
+			for (long seq = lo; seq < hi; seq++)
+				if (!r.visit(seq, d, visitor))
+					return;
+		} else
+			for (long seq = hi - 1; seq >= lo; seq--)
+				if (!r.visit(seq, d, visitor))
+					return;
+	}
+
+	/**
+	 * Change the number of samples kept. The newest samples are retained.
+	 *
 	 * @param capacity
 	 *            the capacity to set
 	 */
-	public void setCapacity(int capacity) {
+	public synchronized void setCapacity(int capacity) {
 		if (capacity < 0)
 			throw new IllegalArgumentException("capacity must be a positive value");
-		this.capacity = capacity;
+		Ring old = ring;
+		long head = old.head;
+		Ring r = new Ring(capacity, head);
+		for (long seq = Math.max(old.tail(head), head - capacity); seq < head; seq++)
+			r.copy(old, seq);
+		r.first = Math.max(old.tail(head), head - capacity);
+		ring = r;
+	}
+
+	/**
+	 * Add a sample, called by the single writer (the data change listener).
+	 */
+	private synchronized void append(DataValue value) {
+		Ring r = ring;
+		if (r.capacity == 0)
+			return;
+		long seq = r.head;
+		int i = r.slot(seq);
+
+		DateTime source = value.getSourceTimestamp();
+		DateTime server = value.getServerTimestamp();
+		long t = source != null ? source.getValue()
+				: server != null ? server.getValue() : DateTime.currentTime().getValue();
+		Variant v = value.getValue();
+		Object o = v == null ? null : v.getValue();
+		StatusCode status = value.getStatusCode();
+
+		// the slot still holds the oldest sample, readers must not see it half written
+		long stamp = r.lock.writeLock();
+		try {
+			r.times[i] = t;
+			// the search key must not go backwards, a late sample is sorted in at
+			// the time of its predecessor
+			r.keys[i] = (seq > r.tail(seq) && r.keys[r.slot(seq - 1)] > t) ? r.keys[r.slot(seq - 1)] : t;
+			r.serverTimes[i] = server != null ? server.getValue() : NONE;
+			if (o instanceof Double) {
+				r.numbers[i] = (Double) o;
+				r.objects[i] = DOUBLE;
+			} else
+				r.objects[i] = o;
+			r.status[i] = status == null ? 0 : status.getValueAsIntBits();
+			r.deleted[i] = false;
+
+			// publish
+			r.head = seq + 1;
+		} finally {
+			r.lock.unlockWrite(stamp);
+		}
+
+		if (follower != null)
+			follower.visit(r.keys[i], toDouble(o), r.status[i]);
 	}
 
 	/**
@@ -203,21 +297,38 @@ class ValueHistory {
 	 * @throws StatusException
 	 *             if no sample with the given timestamp is found
 	 */
-	private void deleteAtTime(DateTime timestamp) throws StatusException {
+	private synchronized void deleteAtTime(DateTime timestamp) throws StatusException {
 		boolean found = false;
-		for (int i = values.size() - 1; i >= 0; i--) {
-			int compareTo = timestamp.compareTo(values.get(i).getSourceTimestamp());
-			if (compareTo == 0) {
-				values.remove(i);
-				found = true;
-			} else if (compareTo < 0)
+		Ring r = ring;
+		long head = r.head;
+		long t = timestamp.getValue();
+		for (long seq = r.lowerBound(t, head); seq < head; seq++) {
+			int i = r.slot(seq);
+			if (r.keys[i] != t)
 				break;
+			if (!r.deleted[i] && r.times[i] == t) {
+				r.deleted[i] = true;
+				found = true;
+			}
 		}
+		deletions++;
 		if (!found)
 			throw new StatusException(StatusCodes.Bad_NoData);
 
 	}
 
+	/**
+	 * @return the value as a double (booleans as 0/1, NaN if it is not a
+	 *         number)
+	 */
+	private static double toDouble(Object o) {
+		if (o instanceof Number)
+			return ((Number) o).doubleValue();
+		if (o instanceof Boolean)
+			return ((Boolean) o) ? 1 : 0;
+		return Double.NaN;
+	}
+
 	/**
 	 * Find the value at the given time from the history.
 	 *
@@ -227,10 +338,166 @@ class ValueHistory {
 	 *         requestedTime
 	 */
 	private DataValue getValue(DateTime requestedTime) {
-		// a "brute" find starting from the end
-		int i = values.size() - 1;
-		while ((i >= 0) && (values.get(i).getSourceTimestamp().compareTo(requestedTime) > 0))
-			i--;
-		return i < 0 ? null : values.get(i);
+		int d = deletions;
+		Ring r = ring;
+		long head = r.head;
+		long tail = r.tail(head);
+		for (long seq = r.upperBound(requestedTime.getValue(), head) - 1; seq >= tail; seq--) {
+			DataValue value = r.get(seq, d);
+			if (value != null)
+				return value;
+		}
+		return null;
+	}
+
+	/**
+	 * The circular buffer. Sample number seq is kept in slot seq % capacity,
+	 * the valid samples are tail(head) &lt;= seq &lt; head.
+	 */
+	private static final class Ring {
+		final int capacity;
+		// search key: the timestamp, but never smaller than the predecessor's
+		final long[] keys;
+		// source timestamp (server timestamp if there is none)
+		final long[] times;
+		final long[] serverTimes;
+		final double[] numbers;
+		final Object[] objects;
+		final int[] status;
+		final boolean[] deleted;
+		// the first sample kept in this ring (samples before were dropped on resize)
+		long first;
+		volatile long head;
+		// held by the writer while it fills a slot, readers validate against it
+		final StampedLock lock = new StampedLock();
+
+		Ring(int capacity, long head) {
+			this.capacity = capacity;
+			this.keys = new long[capacity];
+			this.times = new long[capacity];
+			this.serverTimes = new long[capacity];
+			this.numbers = new double[capacity];
+			this.objects = new Object[capacity];
+			this.status = new int[capacity];
+			this.deleted = new boolean[capacity];
+			this.first = head;
+			this.head = head;
+		}
+
+		int slot(long seq) {
+			return (int) (seq % capacity);
+		}
+
+		long tail(long head) {
+			return Math.max(first, head - capacity);
+		}
+
+		/**
+		 * @return the first sequence number with key &gt;= t (head if none)
+		 */
+		long lowerBound(long t, long head) {
+			return search(t, head, false);
+		}
+
+		/**
+		 * @return the first sequence number with key &gt; t (head if none)
+		 */
+		long upperBound(long t, long head) {
+			return search(t, head, true);
+		}
+
+		/**
+		 * Binary search among the samples before head which are still in the
+		 * buffer. Repeated if the writer has overwritten a slot meanwhile, as
+		 * the key of a newer sample in the oldest slot would mislead it.
+		 */
+		private long search(long t, long head, boolean upper) {
+			while (true) {
+				long stamp = lock.tryOptimisticRead();
+				long lo = tail(Math.max(head, this.head)), hi = head;
+				if (lo >= hi)
+					return hi;
+				while (lo < hi) {
+					long mid = (lo + hi) >>> 1;
+					long key = keys[slot(mid)];
+					if (upper ? key <= t : key < t)
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+				if (lock.validate(stamp))
+					return lo;
+			}
+		}
+
+		/**
+		 * Read a sample. Returns null if it is deleted or was overwritten by the
+		 * writer while it was read.
+		 *
+		 * @param deletions
+		 *            read before, so that the deleted marks are visible
+		 */
+		DataValue get(long seq, int deletions) {
+			int i = slot(seq);
+			long t, server;
+			Object o;
+			double number;
+			int bits;
+			while (true) {
+				long stamp = lock.tryOptimisticRead();
+				// overwritten?
+				if (seq < head - capacity || deleted[i])
+					return null;
+				t = times[i];
+				server = serverTimes[i];
+				o = objects[i];
+				number = numbers[i];
+				bits = status[i];
+				if (lock.validate(stamp))
+					break;
+			}
+
+			Variant value = o == DOUBLE ? new Variant(number) : new Variant(o);
+			StatusCode statusCode = bits == 0 ? StatusCode.GOOD : new StatusCode(UnsignedInteger.getFromBits(bits));
+			return new DataValue(value, statusCode, new DateTime(t), UnsignedShort.ZERO,
+					server == NONE ? null : new DateTime(server), UnsignedShort.ZERO);
+		}
+
+		/**
+		 * Pass a sample to the visitor, skipping it if it is deleted or was
+		 * overwritten while it was read.
+		 *
+		 * @return false if the visitor stopped the scan
+		 */
+		boolean visit(long seq, int deletions, SampleVisitor visitor) {
+			int i = slot(seq);
+			long key;
+			Object o;
+			double number;
+			int bits;
+			while (true) {
+				long stamp = lock.tryOptimisticRead();
+				if (seq < head - capacity || deleted[i])
+					return true;
+				key = keys[i];
+				o = objects[i];
+				number = numbers[i];
+				bits = status[i];
+				if (lock.validate(stamp))
+					break;
+			}
+			return visitor.visit(key, o == DOUBLE ? number : toDouble(o), bits);
+		}
+
+		void copy(Ring from, long seq) {
+			int i = slot(seq), j = from.slot(seq);
+			keys[i] = from.keys[j];
+			times[i] = from.times[j];
+			serverTimes[i] = from.serverTimes[j];
+			numbers[i] = from.numbers[j];
+			objects[i] = from.objects[j];
+			status[i] = from.status[j];
+			deleted[i] = from.deleted[j];
+		}
 	}
-}
\ No newline at end of file
+}
@@ -34,8 +34,8 @@ import org.ws4d.java.communication.connection.udp.DatagramSocketTimer;
 import org.ws4d.java.communication.filter.AddressFilter;
 import org.ws4d.java.communication.listener.IncomingMessageListener;
 import org.ws4d.java.communication.protocol.http.HTTPBinding;
-import org.ws4d.java.communication.protocol.http.HTTPClient;
 import org.ws4d.java.communication.protocol.http.HTTPClientDestination;
+import org.ws4d.java.communication.protocol.http.HTTPClientPool;
 import org.ws4d.java.communication.protocol.http.HTTPRequest;
 import org.ws4d.java.communication.protocol.http.HTTPRequestUtil;
 import org.ws4d.java.communication.protocol.http.server.DefaultHTTPResourceHandler;
@@ -372,7 +372,7 @@ public class DPWSCommunicationManager implements CommunicationManagerInternal {
 			} catch (NoSuchElementException e) {}
 		} while (retry);
 
-		HTTPClient.killAllClients();
+		HTTPClientPool.getInstance().killAll();
 
 		do {
 			retry = false;
@@ -426,7 +426,7 @@ public class DPWSCommunicationManager implements CommunicationManagerInternal {
 			closeDatagramSockets();
 		}
 
-		HTTPClient.closeAllClients();
+		HTTPClientPool.getInstance().closeAll();
 		IPNetworkDetection.getInstance().stopRefreshNetworkInterfacesThread();
 
 		stopped = true;
@@ -1274,7 +1274,7 @@ public class DPWSCommunicationManager implements CommunicationManagerInternal {
 	private void sendTCP(Message message, ResponseCallback callback, XAddressInfo targetAddress, CredentialInfo credentialInfo, AttributedURI optionalMessageId) {
 		MessageReceiver receiver = (callback == null) ? GENERIC_RECEIVER : new SOAPResponseReceiver(message, callback, optionalMessageId);
 		HTTPRequest request = new SOAPRequest(message, receiver, targetAddress, optionalMessageId, credentialInfo);
-		HTTPClient.exchange(new HTTPClientDestination(targetAddress, DPWSProperties.getInstance().getHTTPClientKeepAlive(), credentialInfo), request);
+		HTTPClientPool.getInstance().exchange(new HTTPClientDestination(targetAddress, DPWSProperties.getInstance().getHTTPClientKeepAlive(), credentialInfo), request);
 	}
 
 	/**
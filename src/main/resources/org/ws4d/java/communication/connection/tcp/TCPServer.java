@@ -13,6 +13,7 @@ import java.io.IOException;
 
 import org.ws4d.java.communication.connection.ip.IPAddress;
 import org.ws4d.java.communication.protocol.http.HTTPBinding;
+import org.ws4d.java.configuration.HTTPProperties;
 import org.ws4d.java.structures.HashMap;
 
 /**
@@ -50,7 +51,7 @@ public class TCPServer {
 		String key;
 		TCPListener listener;
 		if (port == 0) {
-			listener = new TCPListener(binding, handler);
+			listener = createListener(binding, handler);
 			key = ipAddress.getAddress() + ":" + listener.getPort();
 		} else {
 			key = ipAddress.getAddress() + ":" + port;
@@ -58,13 +59,25 @@ public class TCPServer {
 			if (listener != null) {
 				throw new IOException("Cannot create TCP listener for " + ipAddress + " and port " + port + ". This address is already in use.");
 			}
-			listener = new TCPListener(binding, handler);
+			listener = createListener(binding, handler);
 		}
 		listeners.put(key, listener);
 		listener.start();
 		return listener;
 	}
 
+	/**
+	 * Creates the listener configured by {@link HTTPProperties#getServerMode()}.
+	 * Secure bindings always use the blocking {@link TCPListener}.
+	 */
+	private static TCPListener createListener(HTTPBinding binding, TCPConnectionHandler handler) throws IOException {
+		HTTPProperties properties = HTTPProperties.getInstance();
+		if (HTTPProperties.SERVER_MODE_SELECTOR.equals(properties.getServerMode()) && !binding.isSecure()) {
+			return new SelectorTCPListener(binding, handler, properties.getServerEventLoops(), properties.getServerMaxBufferedRequest(), properties.getServerIdleTimeout());
+		}
+		return new TCPListener(binding, handler);
+	}
+
 	/**
 	 * Closes the created TCP connection listener by address and port.
 	 * 
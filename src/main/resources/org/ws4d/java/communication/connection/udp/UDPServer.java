@@ -14,7 +14,8 @@ import java.io.IOException;
 import org.ws4d.java.communication.connection.ip.IPAddress;
 import org.ws4d.java.communication.connection.ip.NetworkInterface;
 import org.ws4d.java.communication.filter.AddressFilter;
-import org.ws4d.java.concurrency.LockSupport;
+import org.ws4d.java.concurrency.LockFactory;
+import org.ws4d.java.concurrency.Lockable;
 import org.ws4d.java.structures.HashMap;
 import org.ws4d.java.structures.Iterator;
 import org.ws4d.java.util.Log;
@@ -26,7 +27,7 @@ public class UDPServer {
 
 	private static final HashMap		listeners	= new HashMap();
 
-	private static final LockSupport	lookSupport	= new LockSupport();
+	private static final Lockable	lookSupport	= LockFactory.newDeferredLock();
 
 	/**
 	 * Opens a datagram socket for a given address and port.
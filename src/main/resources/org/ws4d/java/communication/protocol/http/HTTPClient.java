@@ -11,6 +11,8 @@ package org.ws4d.java.communication.protocol.http;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.ws4d.java.JMEDSFramework;
 import org.ws4d.java.communication.ConnectionInfo;
@@ -25,11 +27,9 @@ import org.ws4d.java.communication.protocol.mime.MIMEUtil;
 import org.ws4d.java.configuration.HTTPProperties;
 import org.ws4d.java.constants.HTTPConstants;
 import org.ws4d.java.message.Message;
-import org.ws4d.java.structures.ConcurrentChangeException;
+import org.ws4d.java.structures.ArrayList;
 import org.ws4d.java.structures.HashMap;
 import org.ws4d.java.structures.Iterator;
-import org.ws4d.java.structures.LinkedList;
-import org.ws4d.java.structures.Queue;
 import org.ws4d.java.types.ContentType;
 import org.ws4d.java.util.Log;
 import org.ws4d.java.util.StringUtil;
@@ -40,7 +40,22 @@ import org.ws4d.java.util.WatchDog;
 /**
  * Client for asynchronous HTTP communication.
  * <p>
- * This client allows the asynchronous communication over HTTP.
+ * This client allows the asynchronous communication over HTTP. Each client
+ * owns one connection to a destination. Clients are created and reused by the
+ * {@link HTTPClientPool}, requests are passed to the pool.
+ * </p>
+ * <p>
+ * If {@link HTTPProperties#getClientPipelineDepth()} is greater than one,
+ * further requests are sent before the response of the previous one has been
+ * read (HTTP/1.1 pipelining), as soon as the server has answered with a
+ * persistent HTTP/1.1 response. All requests are pipelined, so bursts of
+ * event notifications or invocations to one destination do not wait for a
+ * round trip each. The responses are matched to the requests in the order the
+ * requests have been sent. If the server closes the connection or answers with
+ * <code>Connection: close</code>, {@link HTTPRequest#isIdempotent() idempotent}
+ * pipelined requests which have not been answered are sent again on another
+ * connection. Other requests without response fail and are never sent again,
+ * as the server may already have processed them.
  * </p>
  * <h3>Example</h3>
  * <p>
@@ -56,207 +71,118 @@ import org.ws4d.java.util.WatchDog;
  * </p>
  * 
  * @see HTTPRequest
+ * @see HTTPClientPool
  */
 public class HTTPClient extends TimedEntry {
 
-	public static int			MAX_CLIENT_CONNECTIONS	= HTTPProperties.getInstance().getMaxConnections();
+	public static int				MAX_CLIENT_CONNECTIONS	= HTTPProperties.getInstance().getMaxConnections();
 
 	/**
 	 * Indicates whether this client is closed or not.
 	 */
-	private boolean				closed					= false;
+	private boolean					closed					= false;
 
 	/**
 	 * The underlying simple HTTP client which allows the HTTP communication.
 	 */
-	private SimpleHTTPClient	simpleHTTPClient		= null;
+	private SimpleHTTPClient		simpleHTTPClient		= null;
 
 	/**
 	 * Thread which handles queued requests.
 	 */
-	private AsyncRequestWriter	requester				= null;
+	private AsyncRequestWriter		requester				= null;
 
 	/**
 	 * Thread which handles incoming responses.
 	 */
-	private AsyncResponseReader	responder				= null;
+	private AsyncResponseReader		responder				= null;
 
 	/**
 	 * Map of registered handlers which handles the incoming response.
 	 */
-	private HashMap				handlers				= new HashMap();
+	private HashMap					handlers				= new HashMap();
 
 	/**
 	 * Keep-alive mode (get first mode from framework).
 	 */
-	private boolean				keepalive				= true;
+	private volatile boolean		keepalive				= true;
 
 	/**
-	 * Flag for the asynchronous writer. Indicates that the writer is done.
+	 * Indicates that the writer thread has stopped.
 	 */
-	private boolean				writerReady				= false;
+	private boolean					writerStopped			= false;
 
 	/**
-	 * Flag for the asynchronous reader. Indicates that the reader is done.
+	 * Indicates that the reader thread has stopped.
 	 */
-	private boolean				readerReady				= false;
-
-	private Queue				pendingRequests			= null;
+	private boolean					readerStopped			= false;
 
 	/**
-	 * Timeout limit for the watch dog.
+	 * Indicates whether the writer is sending a request.
 	 */
-	private static long			REQUEST_TIMEOUT			= 5000;
+	private boolean					writing					= false;
 
 	/**
-	 * 
+	 * Number of requests passed to the writer whose response has not been read
+	 * yet.
 	 */
-	private static boolean		multipleCons			= true;
+	private int						inFlight				= 0;
 
 	/**
-	 * Table of HTTP clients.
+	 * Set as soon as the server has answered with a persistent HTTP/1.1
+	 * response. Requests are pipelined only afterwards.
 	 */
-	private static HashMap		allClients				= new HashMap();
+	private boolean					pipelineConfirmed		= false;
 
 	/**
-	 * Table of HTTP clients which can be reused for requests.
+	 * Set as soon as the response of a pipelined request has been received.
 	 */
-	private static HashMap		freeClients				= new HashMap();
+	private volatile boolean		pipelinedResponseReceived	= false;
 
 	/**
-	 * Kill all existing and provided HTTP clients with the {@link #kill()} method.
+	 * Requests which have been sent (or are being sent) and whose response
+	 * header has not been read yet, in the order they have been sent.
 	 */
-	public static void killAllClients() {
-		boolean retry;
-		do {
-			retry = false;
-			try {
-				killAllClientsInternal();
-			} catch (ConcurrentChangeException e) {
-				retry = true;
-			}
-		} while (retry);
-	}
-
-	private static void killAllClientsInternal() {
-		Iterator it = allClients.values().iterator();
-		while (it.hasNext()) {
-			LinkedList l = (LinkedList) it.next();
-			if (l != null) {
-				Iterator jt = l.iterator();
-				while (jt.hasNext()) {
-					HTTPClient hc = (HTTPClient) jt.next();
-					hc.kill(false);
-					jt.remove();
-				}
-			}
-			it.remove();
-		}
-	}
+	private final ConcurrentLinkedQueue<SentRequest>	sentRequests		= new ConcurrentLinkedQueue<SentRequest>();
 
 	/**
-	 * Close all existing and provided HTTP clients with the {@link #close()} method.
+	 * Requests assigned to this client which have not been sent yet.
 	 */
-	public synchronized static void closeAllClients() {
-		Iterator it = allClients.values().iterator();
-		while (it.hasNext()) {
-			LinkedList l = (LinkedList) it.next();
-			if (l != null) {
-				Iterator jt = l.iterator();
-				while (jt.hasNext()) {
-					HTTPClient hc = (HTTPClient) jt.next();
-					hc.close(false);
-					jt.remove();
-				}
-			}
-			it.remove();
-		}
-	}
+	private ConcurrentLinkedQueue<HTTPRequest>	pendingRequests			= new ConcurrentLinkedQueue<HTTPRequest>();
 
 	/**
-	 * Adds a HTTP client to the list of existing and provided clients.
-	 * 
-	 * @param client the client to add.
-	 * @return the client which was added.
+	 * Number of requests assigned to this client which are not done yet (sent
+	 * or pending), or -1 if the client has been retired from its pool.
 	 */
-	private synchronized static HTTPClient addClient(HTTPClient client) {
-		LinkedList c = (LinkedList) allClients.get(client.simpleHTTPClient.getDestination());
-		if (c == null) {
-			c = new LinkedList();
-			allClients.put(client.simpleHTTPClient.getDestination(), c);
-		}
-		c.add(client);
-		return client;
-	}
+	final AtomicInteger				outstanding				= new AtomicInteger(0);
 
 	/**
-	 * Removes a HTTP client from the list of existing and provided clients.
-	 * 
-	 * @param client to remove.
+	 * The pool this client belongs to.
 	 */
-	private synchronized static void removeClient(HTTPClient client) {
-		LinkedList c = (LinkedList) allClients.get(client.simpleHTTPClient.getDestination());
-		c.remove(client);
-		if (c.size() == 0) {
-			allClients.remove(client.simpleHTTPClient.getDestination());
-		}
-	}
+	private final HTTPDestinationPool	pool;
 
 	/**
-	 * Adds a HTTP client to the list of free clients.
-	 * 
-	 * @param client the client to add.
+	 * Kill all existing and provided HTTP clients with the {@link #kill()} method.
 	 */
-	private synchronized static void addFreeClient(HTTPClient client) {
-		HTTPRequest request = client.getPendingRequest();
-		if (request != null) {
-			client.requester.setRequest(request);
-			return;
-		}
-		synchronized (freeClients) {
-			LinkedList frees = (LinkedList) freeClients.get(client.simpleHTTPClient.getDestination());
-			if (frees == null) {
-				frees = new LinkedList();
-				frees.addFirst(client);
-				freeClients.put(client.simpleHTTPClient.getDestination(), frees);
-			} else {
-				frees.addFirst(client);
-			}
-			WatchDog.getInstance().register(client, REQUEST_TIMEOUT);
-		}
+	public static void killAllClients() {
+		HTTPClientPool.getInstance().killAll();
 	}
 
 	/**
-	 * Removes a HTTP client from the list of free clients.
-	 * 
-	 * @param client the client to remove.
+	 * Close all existing and provided HTTP clients with the {@link #close()} method.
 	 */
-	private synchronized static boolean removeFreeClient(HTTPClient client) {
-		synchronized (freeClients) {
-			return removeFreeClientInternalNotSynchronized(client);
-		}
-	}
-
-	private static boolean removeFreeClientInternalNotSynchronized(HTTPClient client) {
-		boolean result = false;
-		WatchDog.getInstance().unregister(client);
-		LinkedList frees = (LinkedList) freeClients.get(client.simpleHTTPClient.getDestination());
-		if (frees != null) {
-			result = frees.remove(client);
-			if (frees.size() == 0) {
-				freeClients.remove(client.simpleHTTPClient.getDestination());
-			}
-		}
-		return result;
+	public static void closeAllClients() {
+		HTTPClientPool.getInstance().closeAll();
 	}
 
 	/**
-	 * Creates HTTP client based on host and port.
+	 * Creates HTTP client for the given destination.
 	 * 
-	 * @param host the host address to connect to.
-	 * @param port the port on the host.
+	 * @param dest the destination to connect to.
+	 * @param pool the pool the client belongs to.
 	 */
-	private HTTPClient(HTTPClientDestination dest) {
+	HTTPClient(HTTPClientDestination dest, HTTPDestinationPool pool) {
+		this.pool = pool;
 		simpleHTTPClient = new SimpleHTTPClient(dest);
 		keepalive = dest.isKeepAlive();
 		responder = new AsyncResponseReader(this);
@@ -284,7 +210,7 @@ public class HTTPClient extends TimedEntry {
 	 * The request is not actually sent instantaneously to the host. It is put into a request queue and will be started as soon as possible. The speed depends on the thread scheduler and the Object.notifiy() method.
 	 * </p>
 	 */
-	public synchronized static void exchange(HTTPClientDestination dest, boolean secure) {
+	public static void exchange(HTTPClientDestination dest, boolean secure) {
 		exchange(dest, "/", secure);
 	}
 
@@ -297,7 +223,7 @@ public class HTTPClient extends TimedEntry {
 	 * 
 	 * @param request the HTTP request path.
 	 */
-	public synchronized static void exchange(HTTPClientDestination dest, String request, boolean secure) {
+	public static void exchange(HTTPClientDestination dest, String request, boolean secure) {
 		exchange(dest, new DefaultHTTPGetRequest(request, secure, dest.getXAddressInfo()));
 	}
 
@@ -309,9 +235,10 @@ public class HTTPClient extends TimedEntry {
 	 * </p>
 	 * 
 	 * @param request the HTTP request.
+	 * @see HTTPClientPool#exchange(HTTPClientDestination, HTTPRequest)
 	 */
-	public synchronized static void exchange(HTTPClientDestination dest, HTTPRequest request) {
-		addRequest(dest, request);
+	public static void exchange(HTTPClientDestination dest, HTTPRequest request) {
+		HTTPClientPool.getInstance().exchange(dest, request);
 	}
 
 	/**
@@ -335,6 +262,17 @@ public class HTTPClient extends TimedEntry {
 		return null;
 	}
 
+	/**
+	 * Returns the number of requests assigned to this client which are not
+	 * done yet.
+	 * 
+	 * @return the number of outstanding requests, <code>-1</code> if the
+	 *         client does not accept requests anymore.
+	 */
+	public int getOutstandingRequests() {
+		return outstanding.get();
+	}
+
 	/**
 	 * Closes the connection with the server.
 	 * <p>
@@ -345,15 +283,12 @@ public class HTTPClient extends TimedEntry {
 	 * </p>
 	 */
 	public synchronized void close() {
-		close(true);
-	}
-
-	private void close(boolean remove) {
 		if (closed) {
 			return;
 		}
-		removeFreeClient(this);
+		retire();
 		closed = true;
+		WatchDog.getInstance().unregister(this);
 		requester.stop();
 		responder.stop();
 		try {
@@ -361,9 +296,6 @@ public class HTTPClient extends TimedEntry {
 		} catch (IOException e) {
 			Log.error("Cannot close client connection. " + e.getMessage());
 		}
-		if (remove) {
-			removeClient(this);
-		}
 	}
 
 	/**
@@ -376,12 +308,9 @@ public class HTTPClient extends TimedEntry {
 	 * </p>
 	 */
 	public synchronized void kill() {
-		kill(true);
-	}
-
-	private void kill(boolean remove) {
-		removeFreeClientInternalNotSynchronized(this);
+		retire();
 		closed = true;
+		WatchDog.getInstance().unregister(this);
 		/*
 		 * Close the internal client before killing threads. This will close all
 		 * connections.
@@ -393,9 +322,6 @@ public class HTTPClient extends TimedEntry {
 		}
 		requester.stop();
 		responder.kill();
-		if (remove) {
-			removeClient(this);
-		}
 	}
 
 	/**
@@ -414,6 +340,14 @@ public class HTTPClient extends TimedEntry {
 	 * @see org.ws4d.java.management.TimedEntry#timedOut()
 	 */
 	protected void timedOut() {
+		/*
+		 * Only an idle client is evicted. If a request has been assigned in
+		 * the meantime, the client stays.
+		 */
+		if (!outstanding.compareAndSet(0, -1)) {
+			return;
+		}
+
 		if (Log.isDebug()) {
 			TCPConnection connection = getTCPConnection();
 			if (connection != null) {
@@ -423,123 +357,206 @@ public class HTTPClient extends TimedEntry {
 			}
 		}
 
-		if (!removeFreeClient(this)) {
-			return;
-		}
-
+		pool.clientEvicted(this);
 		close();
 	}
 
-	private synchronized void writerReady(MonitoringContext context) {
-		if (readerReady) {
+	/**
+	 * Assigns a request to this client. The caller has already counted the
+	 * request in {@link #outstanding}.
+	 * 
+	 * @param request the request.
+	 */
+	void assign(HTTPRequest request) {
+		pendingRequests.add(request);
+		if (outstanding.get() < 0 && pendingRequests.remove(request)) {
+			/*
+			 * The client has been retired concurrently and did not see this
+			 * request, give it back to the pool.
+			 */
+			pool.exchange(request);
+			return;
+		}
+		sendNextRequest();
+	}
 
-			if (keepalive && requester.running && responder.running) {
-				readerReady = false;
-				addFreeClient(this);
-			} else {
-				closeAndProcessPendingRequest(context);
+	/**
+	 * Starts the next pending request if the writer is free and the number of
+	 * requests waiting for their response is below the pipeline depth of the
+	 * pool.
+	 */
+	private void sendNextRequest() {
+		HTTPRequest request;
+		boolean pipelined;
+		synchronized (this) {
+			if (writing || closed || !keepalive || !requester.running) {
+				return;
 			}
-		} else {
-			writerReady = true;
+			if (inFlight > 0 && (!pipelineConfirmed || inFlight >= pool.getPipelineDepth())) {
+				return;
+			}
+			request = pendingRequests.poll();
+			if (request == null) {
+				return;
+			}
+			pipelined = inFlight > 0;
+			writing = true;
+			inFlight++;
 		}
+		WatchDog.getInstance().unregister(this);
+		if (pipelined) {
+			pool.requestPipelined();
+		}
+		requester.setRequest(new SentRequest(request, pipelined));
 	}
 
-	private synchronized void readerReady(MonitoringContext context) {
-		if (writerReady) {
-			if (keepalive && requester.running && responder.running) {
-				writerReady = false;
-				addFreeClient(this);
-			} else {
-				closeAndProcessPendingRequest(context);
-			}
-		} else {
-			readerReady = true;
+	/**
+	 * Called by the writer when a request has been sent.
+	 */
+	private void requestWritten() {
+		synchronized (this) {
+			writing = false;
 		}
+		sendNextRequest();
 	}
 
-	private synchronized static void addRequest(HTTPClientDestination dest, HTTPRequest request) {
-		if (JMEDSFramework.isKillRunning()) {
-			Exception e = new RuntimeException("Add request is not possible because framework is shutting down.");
-			request.responseReceiveFailed(e, null, null);
-			return;
+	/**
+	 * Called by the reader when the response of a request has been read and
+	 * the connection is kept alive.
+	 */
+	private void responseRead() {
+		synchronized (this) {
+			inFlight--;
+			pipelineConfirmed = true;
 		}
-		/*
-		 * Check for HTTP client.
-		 */
-		HTTPClient hc = null;
-		synchronized (freeClients) {
-			LinkedList frees = (LinkedList) freeClients.get(dest);
-			if (frees == null) {
-				LinkedList c = (LinkedList) allClients.get(dest);
-				int cons = (c == null ? 0 : c.size());
-				if (!multipleCons) {
-					if (c != null) {
-						hc = (HTTPClient) c.getFirst();
-						hc.queueRequest(request);
-						return;
-					}
-				} else if (cons >= dest.getMaxConnections()) {
-					if (c != null) {
-						hc = (HTTPClient) c.getFirst();
-						hc.queueRequest(request);
-						return;
-					}
-				}
-				hc = new HTTPClient(dest);
-				addClient(hc);
-			} else {
-				hc = (HTTPClient) frees.removeFirst();
-				WatchDog.getInstance().unregister(hc);
-				if (frees.size() == 0) {
-					freeClients.remove(dest);
-				}
-			}
+		if (outstanding.decrementAndGet() == 0) {
+			/*
+			 * Idle now, close the connection if it is not used again within
+			 * the idle timeout.
+			 */
+			WatchDog.getInstance().register(this, pool.getIdleTimeout());
 		}
+		sendNextRequest();
+	}
 
-		/*
-		 * Do not queue any requests if the client is already closed.
-		 */
-		if (hc.isClosed()) {
-			throw new RuntimeException("Cannot send request. HTTP client closed.");
-		}
-		hc.requester.setRequest(request);
+	/**
+	 * Removes this client from its pool, so no further requests are assigned
+	 * to it.
+	 */
+	private void retire() {
+		outstanding.set(-1);
+		pool.remove(this);
 	}
 
-	private void queueRequest(HTTPRequest request) {
-		if (pendingRequests == null) {
-			pendingRequests = new Queue();
+	/**
+	 * Called when the writer has stopped. The client is closed as soon as the
+	 * reader has stopped too, or at once if the writer has failed.
+	 */
+	private void writerStopped(MonitoringContext context, boolean failed) {
+		boolean readerDone;
+		synchronized (this) {
+			writing = false;
+			writerStopped = true;
+			readerDone = readerStopped;
+		}
+		if (readerDone || failed) {
+			closeAndProcessPendingRequest(context);
+		} else {
+			responder.stop();
 		}
-		pendingRequests.enqueue(request);
 	}
 
-	private HTTPRequest getPendingRequest() {
-		if (pendingRequests == null) {
-			return null;
+	/**
+	 * Called when the reader has stopped. The client is closed as soon as the
+	 * writer has stopped too.
+	 */
+	private void readerStopped(MonitoringContext context) {
+		boolean writerDone;
+		synchronized (this) {
+			readerStopped = true;
+			writerDone = writerStopped;
+		}
+		if (writerDone) {
+			closeAndProcessPendingRequest(context);
+		} else {
+			requester.stop();
 		}
-		return (HTTPRequest) pendingRequests.get();
 	}
 
+	/**
+	 * Closes this client. Requests which have been assigned to it, but have not
+	 * been sent yet, are passed back to the pool. Idempotent requests which
+	 * have been sent, but not answered before the connection was closed, are
+	 * passed back too if requests have been pipelined on the connection. All
+	 * other unanswered requests fail, as the server may have processed them.
+	 */
 	private void closeAndProcessPendingRequest(MonitoringContext context) {
 		close();
 
-		if (JMEDSFramework.isStopRunning()) {
-			if (pendingRequests != null) {
-				Iterator it = pendingRequests.iterator();
-				while (it.hasNext()) {
-					TCPConnection con = simpleHTTPClient.getConnection();
-					((HTTPRequest) it.next()).requestSendFailed(new RuntimeException("Request is not possible because framework is shutting down."), con != null ? con.getConnectionInfo() : new IPConnectionInfo(null, ConnectionInfo.DIRECTION_OUT, null, 0, true, null, null), context);
-				}
+		TCPConnection con = simpleHTTPClient.getConnection();
+		ConnectionInfo connectionInfo = (con != null) ? con.getConnectionInfo() : new IPConnectionInfo(null, ConnectionInfo.DIRECTION_OUT, null, 0, true, null, null);
+
+		/*
+		 * Sent requests which have not been answered are sent again if they
+		 * are idempotent and requests have been pipelined on this connection.
+		 */
+		ArrayList unanswered = new ArrayList();
+		boolean retry = false;
+		SentRequest sent;
+		while ((sent = sentRequests.poll()) != null) {
+			unanswered.add(sent);
+			retry |= sent.pipelined;
+		}
+		ArrayList requests = new ArrayList();
+		for (Iterator it = unanswered.iterator(); it.hasNext();) {
+			sent = (SentRequest) it.next();
+			if (retry && sent.request.isIdempotent()) {
+				requests.add(sent.request);
+			} else {
+				ExceptionNotification eNotification = new ExceptionNotification(connectionInfo, sent.request, new IOException("Connection closed before the response was received."), true, context);
+				eNotification.start();
 			}
+		}
+		if (retry) {
+			pool.pipelineRetried(requests.size(), !pipelinedResponseReceived);
+		}
+		sent = requester.takeRequest();
+		if (sent != null) {
+			requests.add(sent.request);
+		}
+		HTTPRequest request;
+		while ((request = pendingRequests.poll()) != null) {
+			requests.add(request);
+		}
 
+		if (JMEDSFramework.isStopRunning()) {
+			for (Iterator it = requests.iterator(); it.hasNext();) {
+				request = (HTTPRequest) it.next();
+				request.requestSendFailed(new RuntimeException("Request is not possible because framework is shutting down."), connectionInfo, context);
+			}
 			return;
 		}
-		HTTPRequest request = getPendingRequest();
-		if (request != null) {
-			HTTPClientDestination dest = simpleHTTPClient.getDestination();
-			HTTPClient hc = new HTTPClient(dest);
-			addClient(hc);
-			hc.pendingRequests = pendingRequests;
-			hc.requester.setRequest(request);
+		for (Iterator it = requests.iterator(); it.hasNext();) {
+			pool.exchange((HTTPRequest) it.next());
+		}
+	}
+
+	/**
+	 * A request passed to the writer.
+	 */
+	private static class SentRequest {
+
+		final HTTPRequest	request;
+
+		/**
+		 * <code>true</code> if the request has been sent while the response
+		 * of a previous request was outstanding.
+		 */
+		final boolean		pipelined;
+
+		SentRequest(HTTPRequest request, boolean pipelined) {
+			this.request = request;
+			this.pipelined = pipelined;
 		}
 	}
 
@@ -554,13 +571,6 @@ public class HTTPClient extends TimedEntry {
 		 */
 		private volatile boolean		running			= true;
 
-		/**
-		 * This entry will be set by the {@link AsyncRequestWriter} which allows
-		 * this reader to know every thing about the request.
-		 * <p>
-		 */
-		private volatile HTTPRequest	request			= null;
-
 		/**
 		 * This object is used to wait until a request is made.
 		 */
@@ -582,7 +592,7 @@ public class HTTPClient extends TimedEntry {
 		 */
 		AsyncResponseReader(HTTPClient client) {
 			this.client = client;
-			JMEDSFramework.getThreadPool().execute(this);
+			JMEDSFramework.getThreadPool().executeBlocking(this);
 		}
 
 		/**
@@ -590,17 +600,16 @@ public class HTTPClient extends TimedEntry {
 		 * of a request.
 		 * <p>
 		 * This will put this thread into a blocking read on the input stream.
+		 * The responses are read in the order the requests have been notified.
 		 * </p>
 		 * 
-		 * @param entry This entry contains every interesting information about
-		 *            the request made.
+		 * @param sent the request which is sent.
 		 */
-		public void notifyAboutRequest(HTTPRequest request) {
+		public void notifyAboutRequest(SentRequest sent) {
 			synchronized (waitForRequest) {
-				this.request = request;
+				sentRequests.add(sent);
 				waitForRequest.notifyAll();
 			}
-
 		}
 
 		public void justNotify() {
@@ -628,23 +637,22 @@ public class HTTPClient extends TimedEntry {
 					/*
 					 * Wait until the request sender notifies us.
 					 */
+					SentRequest sent;
 					synchronized (waitForRequest) {
-						while (request == null) {
+						while ((sent = sentRequests.peek()) == null) {
 							waitForRequest.wait(500);
 							/*
 							 * Check for "stop". Maybe we should not continue
 							 * sending. Check for keep alive too...
 							 */
 							if (!running) {
-								if (request != null) {
-									throw new RuntimeException("HTTP response was not handled. HTTP reader not running.");
-								}
-
 								break RUNNING;
 							}
 						}
 
 					}
+					HTTPRequest request = sent.request;
+					boolean responseStarted = false;
 
 					/*
 					 * Try to read the response. This will block on the input
@@ -666,6 +674,17 @@ public class HTTPClient extends TimedEntry {
 							// TODO HELP, I get here an HTTP/1.1 100 Continue
 
 							HTTPResponseHeader response = simpleHTTPClient.getResponseHeader();
+							if (!sentRequests.remove(sent)) {
+								/*
+								 * The client has been closed in the meantime
+								 * and the request has been passed on.
+								 */
+								break RUNNING;
+							}
+							responseStarted = true;
+							if (sent.pipelined) {
+								pipelinedResponseReceived = true;
+							}
 
 							in = simpleHTTPClient.getResponseBody(streamLock);
 
@@ -729,7 +748,7 @@ public class HTTPClient extends TimedEntry {
 								 */
 								streamLock.reset();
 								synchronized (streamLock) {
-									JMEDSFramework.getThreadPool().execute(consumer);
+									JMEDSFramework.getThreadPool().executeBlocking(consumer);
 									while (!streamLock.isNotified()) {
 										try {
 											streamLock.wait();
@@ -750,13 +769,21 @@ public class HTTPClient extends TimedEntry {
 								 * "null" to the handler.
 								 */
 								StreamConsumerThread consumer = new StreamConsumerThread(handler, response, null, request, context);
-								JMEDSFramework.getThreadPool().execute(consumer);
+								JMEDSFramework.getThreadPool().executeBlocking(consumer);
 
 							}
 
 						} catch (IOException e) {
 							keepalive = false;
-							if (!closed) {
+							/*
+							 * An idempotent request without any response stays
+							 * queued and is sent again on another connection if
+							 * it has been pipelined or further requests have
+							 * been pipelined behind it, as the server may have
+							 * closed the connection because of pipelining.
+							 */
+							boolean retry = request.isIdempotent() && (sent.pipelined || sentRequests.size() > 1);
+							if (!closed && (responseStarted || (!retry && sentRequests.remove(sent)))) {
 								/*
 								 * We cannot handle response?
 								 */
@@ -765,9 +792,6 @@ public class HTTPClient extends TimedEntry {
 								eNotification.start();
 							}
 						}
-
-						request = null;
-
 					}
 
 					if (!keepalive || in.isStreamClosed()) {
@@ -777,7 +801,7 @@ public class HTTPClient extends TimedEntry {
 					if (monFac != null) {
 						monFac.resetMonitoringContextIn(connectionInfo.getConnectionId());
 					}
-					client.readerReady(context);
+					client.responseRead();
 				}
 			} catch (InterruptedException e) {
 				e.printStackTrace();
@@ -786,7 +810,7 @@ public class HTTPClient extends TimedEntry {
 			if (monFac != null && connectionInfo != null) {
 				monFac.resetMonitoringContextIn(connectionInfo.getConnectionId());
 			}
-			client.readerReady(context);
+			client.readerStopped(context);
 		}
 
 		/**
@@ -830,7 +854,7 @@ public class HTTPClient extends TimedEntry {
 		/**
 		 * The request which should be send.
 		 */
-		private volatile HTTPRequest	request		= null;
+		private volatile SentRequest	current		= null;
 
 		/**
 		 * Indicates whether this thread should work or not.
@@ -853,7 +877,7 @@ public class HTTPClient extends TimedEntry {
 		 */
 		AsyncRequestWriter(HTTPClient client) {
 			this.client = client;
-			JMEDSFramework.getThreadPool().execute(this);
+			JMEDSFramework.getThreadPool().executeBlocking(this);
 		}
 
 		/**
@@ -861,13 +885,26 @@ public class HTTPClient extends TimedEntry {
 		 * 
 		 * @param request the HTTP request.
 		 */
-		public synchronized void setRequest(HTTPRequest request) {
+		public synchronized void setRequest(SentRequest request) {
 			synchronized (lockRequest) {
-				this.request = request;
+				this.current = request;
 				lockRequest.notifyAll();
 			}
 		}
 
+		/**
+		 * Removes the request which has been set, but not sent yet.
+		 * 
+		 * @return the request or <code>null</code>.
+		 */
+		SentRequest takeRequest() {
+			synchronized (lockRequest) {
+				SentRequest request = current;
+				current = null;
+				return request;
+			}
+		}
+
 		public void notifyKeepAliveDisabled() {
 			running = false;
 		}
@@ -878,6 +915,7 @@ public class HTTPClient extends TimedEntry {
 		 */
 		public void run() {
 			MonitoringContext context = null;
+			boolean failed = false;
 			try {
 				RUNNING: while (running) {
 					/*
@@ -892,7 +930,7 @@ public class HTTPClient extends TimedEntry {
 					OutputStream requestBody = null;
 					synchronized (lockRequest) {
 
-						while (request == null) {
+						while (current == null) {
 							lockRequest.wait(500);
 							/*
 							 * Check for "stop". Maybe we should not continue
@@ -900,16 +938,15 @@ public class HTTPClient extends TimedEntry {
 							 */
 							if (!running) {
 								/*
-								 * Unregister watch dog if leaving here.
+								 * A request set in the meantime is passed back
+								 * to the pool when the client is closed.
 								 */
-								if (request != null) {
-									throw new RuntimeException("HTTP request was not send. HTTP writer was not running.");
-								}
-
 								break RUNNING;
 							}
 						}
 
+						HTTPRequest request = current.request;
+						boolean announced = false;
 						try {
 							/*
 							 * Open the connection if necessary. Notify the
@@ -917,7 +954,8 @@ public class HTTPClient extends TimedEntry {
 							 */
 							simpleHTTPClient.explicitConnect();
 
-							responder.notifyAboutRequest(request);
+							responder.notifyAboutRequest(current);
+							announced = true;
 
 							TCPConnection con = simpleHTTPClient.getConnection();
 							connectionInfo = con.getConnectionInfo();
@@ -985,12 +1023,10 @@ public class HTTPClient extends TimedEntry {
 
 							/*
 							 * the reader may not receive any response for the
-							 * current request; in consequence, it will not call
-							 * readerReady() itself and this HTTPClient will not
-							 * be cleaned-up by watch dog. that's why we do this
-							 * from here
+							 * current request; that's why the client is closed
+							 * without waiting for the reader.
 							 */
-							readerReady(context);
+							failed = true;
 
 							if (!closed) {
 								if (connectionInfo == null) {
@@ -998,19 +1034,25 @@ public class HTTPClient extends TimedEntry {
 								}
 								Log.error("Cannot send HTTP request. " + e.getMessage() + ". Resetting TCP connection (" + connectionInfo.toString() + ").");
 								simpleHTTPClient.resetConnection();
-								ExceptionNotification eNotification = new ExceptionNotification(connectionInfo, request, e, false, context);
-								eNotification.start();
+								/*
+								 * A pipelined request stays queued and is sent
+								 * again on another connection.
+								 */
+								if (!current.pipelined && (!announced || sentRequests.remove(current))) {
+									ExceptionNotification eNotification = new ExceptionNotification(connectionInfo, request, e, false, context);
+									eNotification.start();
+								}
 							}
 						}
 
-						request = null;
+						current = null;
 					}
 
 					if (!keepalive || ((SupportsIsStreamClosed) requestBody).isStreamClosed()) {
 						break;
 					}
 
-					client.writerReady(context);
+					client.requestWritten();
 				}
 
 			} catch (InterruptedException e) {
@@ -1018,7 +1060,7 @@ public class HTTPClient extends TimedEntry {
 			}
 			running = false;
 
-			client.writerReady(context);
+			client.writerStopped(context, failed);
 		}
 
 		/**
@@ -1028,15 +1070,15 @@ public class HTTPClient extends TimedEntry {
 		 * </p>
 		 */
 		public void stop() {
-			if (running == false) {
-				return;
-			}
+			/*
+			 * Notify even if the writer has been stopped already by the
+			 * reader, it may still wait for a request.
+			 */
 			running = false;
 			synchronized (lockRequest) {
 				/*
 				 * wait until request is done
 				 */
-				request = null;
 				lockRequest.notifyAll();
 			}
 
@@ -11,6 +11,7 @@ package org.ws4d.java.communication.protocol.http;
 
 import org.ws4d.java.communication.ClientDestination;
 import org.ws4d.java.communication.connection.ip.IPAddress;
+import org.ws4d.java.configuration.HTTPProperties;
 import org.ws4d.java.constants.HTTPConstants;
 import org.ws4d.java.security.CredentialInfo;
 import org.ws4d.java.types.URI;
@@ -26,7 +27,7 @@ public class HTTPClientDestination implements ClientDestination {
 
 	private CredentialInfo	credentialInfo	= CredentialInfo.EMPTY_CREDENTIAL_INFO;
 
-	private int				maxCon			= HTTPClient.MAX_CLIENT_CONNECTIONS;
+	private int				maxCon			= HTTPProperties.getInstance().getMaxConnections();
 
 	private boolean			keepAlive;
 
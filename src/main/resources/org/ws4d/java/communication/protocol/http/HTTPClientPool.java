@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+package org.ws4d.java.communication.protocol.http;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ws4d.java.JMEDSFramework;
+import org.ws4d.java.configuration.HTTPProperties;
+import org.ws4d.java.structures.ArrayList;
+import org.ws4d.java.structures.DataStructure;
+
+/**
+ * Pool of outgoing HTTP connections.
+ * <p>
+ * Requests are passed to the {@link HTTPDestinationPool} of their destination,
+ * which selects the connection to use. Looking up the destination pool does
+ * not lock, so requests to different destinations do not contend with each
+ * other.
+ * </p>
+ */
+public class HTTPClientPool {
+
+	private static final HTTPClientPool	INSTANCE	= new HTTPClientPool();
+
+	/** HTTPClientDestination -> HTTPDestinationPool */
+	private final ConcurrentHashMap<HTTPClientDestination, HTTPDestinationPool>	pools	= new ConcurrentHashMap<HTTPClientDestination, HTTPDestinationPool>();
+
+	/** time in ms of the next check for idle pools */
+	private volatile long	nextIdleCheck	= 0;
+
+	private HTTPClientPool() {
+		super();
+	}
+
+	/**
+	 * @return the pool used by the framework.
+	 */
+	public static HTTPClientPool getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Sends a HTTP request to the given destination.
+	 * <p>
+	 * The request is not sent instantaneously. It is assigned to a connection
+	 * of the destination and sent as soon as this connection is free.
+	 * </p>
+	 * 
+	 * @param destination the destination.
+	 * @param request the HTTP request.
+	 */
+	public void exchange(HTTPClientDestination destination, HTTPRequest request) {
+		if (JMEDSFramework.isKillRunning()) {
+			Exception e = new RuntimeException("Add request is not possible because framework is shutting down.");
+			request.responseReceiveFailed(e, null, null);
+			return;
+		}
+		getDestinationPool(destination, true).exchange(request);
+	}
+
+	/**
+	 * Returns the pool for the given destination.
+	 * 
+	 * @param destination the destination.
+	 * @return the pool or <code>null</code> if no request has been sent to the
+	 *         destination yet.
+	 */
+	public HTTPDestinationPool getDestinationPool(HTTPClientDestination destination) {
+		return getDestinationPool(destination, false);
+	}
+
+	/**
+	 * Returns the pools of all destinations, e.g. to read their metrics.
+	 * 
+	 * @return a data structure containing {@link HTTPDestinationPool}
+	 *         instances.
+	 */
+	public DataStructure getDestinationPools() {
+		ArrayList result = new ArrayList(pools.size());
+		java.util.Iterator<HTTPDestinationPool> it = pools.values().iterator();
+		while (it.hasNext()) {
+			result.add(it.next());
+		}
+		return result;
+	}
+
+	/**
+	 * Closes all connections. Requests which are processed at the moment are
+	 * completed.
+	 */
+	public void closeAll() {
+		closeAll(false);
+	}
+
+	/**
+	 * Closes all connections immediately.
+	 */
+	public void killAll() {
+		closeAll(true);
+	}
+
+	private void closeAll(boolean kill) {
+		java.util.Iterator<HTTPDestinationPool> it = pools.values().iterator();
+		while (it.hasNext()) {
+			HTTPDestinationPool pool = it.next();
+			it.remove();
+			pool.closeAll(kill);
+		}
+	}
+
+	private HTTPDestinationPool getDestinationPool(HTTPClientDestination destination, boolean create) {
+		if (create) {
+			removeIdlePools();
+		}
+		HTTPDestinationPool pool = pools.get(destination);
+		if (pool == null && create) {
+			pool = new HTTPDestinationPool(destination, HTTPProperties.getInstance().getClientIdleTimeout(), HTTPProperties.getInstance().getClientPipelineDepth());
+			HTTPDestinationPool existing = pools.putIfAbsent(destination, pool);
+			if (existing != null) {
+				pool = existing;
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Drops the pools of destinations which have had no connection for longer
+	 * than the idle timeout, so destinations which are gone do not keep their
+	 * pools. Checked at most once per idle timeout.
+	 */
+	private void removeIdlePools() {
+		long now = System.currentTimeMillis();
+		if (now < nextIdleCheck) {
+			return;
+		}
+		nextIdleCheck = now + HTTPProperties.getInstance().getClientIdleTimeout();
+		java.util.Iterator<HTTPDestinationPool> it = pools.values().iterator();
+		while (it.hasNext()) {
+			HTTPDestinationPool pool = it.next();
+			if (pool.retireIfIdle(now)) {
+				pools.remove(pool.getDestination(), pool);
+			}
+		}
+	}
+
+}
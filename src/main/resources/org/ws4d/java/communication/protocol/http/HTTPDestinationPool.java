@@ -0,0 +1,392 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+package org.ws4d.java.communication.protocol.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ws4d.java.util.Log;
+import org.ws4d.java.util.SimpleStringBuilder;
+import org.ws4d.java.util.Toolkit;
+
+/**
+ * The {@link HTTPClient HTTP clients} (connections) to one
+ * {@link HTTPClientDestination}.
+ * <p>
+ * A request is assigned to an idle connection if there is one, otherwise a
+ * new connection is opened as long as
+ * {@link HTTPClientDestination#getMaxConnections()} is not reached. If all
+ * connections are in use, the request is queued on the connection with the
+ * least outstanding requests. Assigning a request to an existing connection
+ * does not lock, the connections are kept in a copy-on-write array and each
+ * connection counts its outstanding requests in an atomic integer. Idle
+ * connections are closed by the {@link org.ws4d.java.util.WatchDog} after
+ * {@link #getIdleTimeout()}.
+ * </p>
+ * <p>
+ * Requests queued on a connection are pipelined up to
+ * {@link #getPipelineDepth()}. If a connection is closed before any of its
+ * pipelined requests has been answered, pipelining is disabled for the
+ * destination.
+ * </p>
+ * <p>
+ * A pool without connections for longer than the idle timeout is retired and
+ * dropped by the {@link HTTPClientPool}, a new pool is created for the next
+ * request to the destination.
+ * </p>
+ */
+public class HTTPDestinationPool {
+
+	private static final HTTPClient[]	EMPTY				= new HTTPClient[0];
+
+	private final HTTPClientDestination	destination;
+
+	private final long					idleTimeout;
+
+	/** maximum number of unanswered requests per connection, 1 disables pipelining */
+	private volatile int				pipelineDepth;
+
+	/** copy-on-write array of the connections, modified under clientsLock */
+	private volatile HTTPClient[]		clients				= EMPTY;
+
+	private final Object				clientsLock			= new Object();
+
+	/** no connections are opened by a retired pool, set under clientsLock */
+	private volatile boolean			retired				= false;
+
+	/** time in ms since which the pool has no connections, set under clientsLock */
+	private long						emptySince			= System.currentTimeMillis();
+
+	private final AtomicLong			requests			= new AtomicLong();
+
+	private final AtomicLong			reused				= new AtomicLong();
+
+	private final AtomicLong			queued				= new AtomicLong();
+
+	private final AtomicLong			opened				= new AtomicLong();
+
+	private final AtomicLong			closed				= new AtomicLong();
+
+	private final AtomicLong			evicted				= new AtomicLong();
+
+	private final AtomicLong			pipelined			= new AtomicLong();
+
+	private final AtomicLong			pipelineRetries		= new AtomicLong();
+
+	HTTPDestinationPool(HTTPClientDestination destination, long idleTimeout, int pipelineDepth) {
+		this.destination = destination;
+		this.idleTimeout = idleTimeout;
+		this.pipelineDepth = Math.max(1, pipelineDepth);
+	}
+
+	/**
+	 * Assigns the request to a connection.
+	 * 
+	 * @param request the request.
+	 */
+	void exchange(HTTPRequest request) {
+		if (retired) {
+			HTTPClientPool.getInstance().exchange(destination, request);
+			return;
+		}
+		requests.incrementAndGet();
+		while (true) {
+			HTTPClient[] current = clients;
+			HTTPClient best = null;
+			int bestLoad = Integer.MAX_VALUE;
+			for (int i = 0; i < current.length; i++) {
+				int load = current[i].outstanding.get();
+				if (load >= 0 && load < bestLoad) {
+					best = current[i];
+					bestLoad = load;
+					if (load == 0) {
+						break;
+					}
+				}
+			}
+
+			if (bestLoad == 0) {
+				if (best.outstanding.compareAndSet(0, 1)) {
+					reused.incrementAndGet();
+					best.assign(request);
+					return;
+				}
+				continue;
+			}
+
+			if (current.length < destination.getMaxConnections() || best == null) {
+				HTTPClient client = openClient(current);
+				if (client != null) {
+					client.assign(request);
+					return;
+				}
+				if (retired) {
+					HTTPClientPool.getInstance().exchange(destination, request);
+					return;
+				}
+				continue;
+			}
+
+			if (best.outstanding.compareAndSet(bestLoad, bestLoad + 1)) {
+				queued.incrementAndGet();
+				best.assign(request);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Opens a new connection with one outstanding request, if no other thread
+	 * has changed the connections since <code>expected</code> has been read.
+	 */
+	private HTTPClient openClient(HTTPClient[] expected) {
+		synchronized (clientsLock) {
+			if (clients != expected || retired) {
+				return null;
+			}
+			HTTPClient client = new HTTPClient(destination, this);
+			client.outstanding.set(1);
+			HTTPClient[] extended = new HTTPClient[expected.length + 1];
+			System.arraycopy(expected, 0, extended, 0, expected.length);
+			extended[expected.length] = client;
+			clients = extended;
+			opened.incrementAndGet();
+			if (Log.isDebug()) {
+				Log.debug("HTTP client pool for " + destination.getXAddressInfo() + ": opened connection " + extended.length + ".", Log.DEBUG_LAYER_COMMUNICATION);
+			}
+			return client;
+		}
+	}
+
+	/**
+	 * Removes a connection from this pool.
+	 * 
+	 * @param client the connection.
+	 */
+	void remove(HTTPClient client) {
+		synchronized (clientsLock) {
+			HTTPClient[] current = clients;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i] == client) {
+					HTTPClient[] reduced;
+					if (current.length == 1) {
+						reduced = EMPTY;
+						emptySince = System.currentTimeMillis();
+					} else {
+						reduced = new HTTPClient[current.length - 1];
+						System.arraycopy(current, 0, reduced, 0, i);
+						System.arraycopy(current, i + 1, reduced, i, current.length - i - 1);
+					}
+					clients = reduced;
+					closed.incrementAndGet();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Retires this pool if it has had no connections for longer than the idle
+	 * timeout.
+	 * 
+	 * @param now the current time in ms.
+	 * @return <code>true</code> if the pool is retired.
+	 */
+	boolean retireIfIdle(long now) {
+		synchronized (clientsLock) {
+			if (clients.length == 0 && now - emptySince > idleTimeout) {
+				retired = true;
+			}
+			return retired;
+		}
+	}
+
+	void clientEvicted(HTTPClient client) {
+		evicted.incrementAndGet();
+	}
+
+	void requestPipelined() {
+		pipelined.incrementAndGet();
+	}
+
+	/**
+	 * Called when pipelined requests have to be sent again because their
+	 * connection has been closed.
+	 * 
+	 * @param count the number of requests sent again.
+	 * @param unsupported <code>true</code> if the connection has not answered
+	 *            any pipelined request, pipelining is disabled then.
+	 */
+	void pipelineRetried(int count, boolean unsupported) {
+		pipelineRetries.addAndGet(count);
+		if (unsupported && pipelineDepth > 1) {
+			pipelineDepth = 1;
+			if (Log.isWarn()) {
+				Log.warn("HTTP pipelining disabled for " + destination.getXAddressInfo() + ". Connection has been closed before a pipelined request was answered.");
+			}
+		}
+	}
+
+	/**
+	 * Closes all connections of this pool.
+	 * 
+	 * @param kill <code>true</code> to kill the connections immediately.
+	 */
+	void closeAll(boolean kill) {
+		HTTPClient[] current = clients;
+		for (int i = 0; i < current.length; i++) {
+			if (kill) {
+				current[i].kill();
+			} else {
+				current[i].close();
+			}
+		}
+	}
+
+	/**
+	 * @return the destination of this pool.
+	 */
+	public HTTPClientDestination getDestination() {
+		return destination;
+	}
+
+	/**
+	 * @return time in ms after which an idle connection is closed.
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @return maximum number of requests sent on one connection without
+	 *         waiting for their responses, 1 if pipelining is disabled.
+	 */
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	/**
+	 * @return the number of open connections.
+	 */
+	public int getConnectionCount() {
+		return clients.length;
+	}
+
+	/**
+	 * @return the number of connections without outstanding requests.
+	 */
+	public int getIdleConnectionCount() {
+		HTTPClient[] current = clients;
+		int count = 0;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i].outstanding.get() == 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of requests which are sent or waiting to be sent.
+	 */
+	public int getOutstandingRequests() {
+		HTTPClient[] current = clients;
+		int count = 0;
+		for (int i = 0; i < current.length; i++) {
+			int load = current[i].outstanding.get();
+			if (load > 0) {
+				count += load;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of requests passed to this pool, including requests
+	 *         passed again after their connection has been closed.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of requests assigned to an idle connection.
+	 */
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	/**
+	 * @return the number of requests which had to wait for a busy connection.
+	 */
+	public long getQueuedCount() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of connections opened.
+	 */
+	public long getOpenedCount() {
+		return opened.get();
+	}
+
+	/**
+	 * @return the number of connections closed, including evicted ones.
+	 */
+	public long getClosedCount() {
+		return closed.get();
+	}
+
+	/**
+	 * @return the number of connections closed because they were idle.
+	 */
+	public long getEvictedCount() {
+		return evicted.get();
+	}
+
+	/**
+	 * @return the number of requests sent before the response of the previous
+	 *         request had been read.
+	 */
+	public long getPipelinedCount() {
+		return pipelined.get();
+	}
+
+	/**
+	 * @return the number of pipelined requests sent again because their
+	 *         connection has been closed before they were answered.
+	 */
+	public long getPipelineRetryCount() {
+		return pipelineRetries.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		SimpleStringBuilder sb = Toolkit.getInstance().createSimpleStringBuilder();
+		sb.append("HTTPDestinationPool [ destination=").append(destination.getXAddressInfo());
+		sb.append(", connections=").append(getConnectionCount());
+		sb.append(", idle=").append(getIdleConnectionCount());
+		sb.append(", outstanding=").append(getOutstandingRequests());
+		sb.append(", requests=").append(getRequestCount());
+		sb.append(", reused=").append(getReusedCount());
+		sb.append(", queued=").append(getQueuedCount());
+		sb.append(", opened=").append(getOpenedCount());
+		sb.append(", closed=").append(getClosedCount());
+		sb.append(", evicted=").append(getEvictedCount());
+		sb.append(", pipelineDepth=").append(pipelineDepth);
+		sb.append(", pipelined=").append(getPipelinedCount());
+		sb.append(", pipelineRetries=").append(getPipelineRetryCount());
+		sb.append(" ]");
+		return sb.toString();
+	}
+
+}
@@ -42,7 +42,8 @@ import org.ws4d.java.communication.protocol.http.header.HTTPRequestHeader;
 import org.ws4d.java.communication.protocol.http.header.HTTPResponseHeader;
 import org.ws4d.java.communication.protocol.http.server.responses.DefaultErrorResponse;
 import org.ws4d.java.communication.protocol.mime.MIMEUtil;
-import org.ws4d.java.concurrency.LockSupport;
+import org.ws4d.java.concurrency.LockFactory;
+import org.ws4d.java.concurrency.Lockable;
 import org.ws4d.java.constants.HTTPConstants;
 import org.ws4d.java.message.Message;
 import org.ws4d.java.security.CredentialInfo;
@@ -108,7 +109,7 @@ public class HTTPServer {
 	 */
 	private final List				timeouts			= new LinkedList();
 
-	private final LockSupport		timeOutsLock		= new LockSupport();
+	private final Lockable		timeOutsLock		= LockFactory.newLock();
 
 	/**
 	 * Indicates whether this server should keep the connection or not.
@@ -443,4 +443,22 @@ public class SOAPRequest implements HTTPRequest {
 		return true;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * org.ws4d.java.communication.protocol.http.HTTPRequest#isIdempotent()
+	 */
+	public boolean isIdempotent() {
+		switch (request.getType()) {
+			case MessageConstants.GET_MESSAGE:
+			case MessageConstants.GET_METADATA_MESSAGE:
+			case MessageConstants.GET_STATUS_MESSAGE:
+			case MessageConstants.PROBE_MESSAGE:
+			case MessageConstants.RESOLVE_MESSAGE:
+				return true;
+			default:
+				return false;
+		}
+	}
+
 }
@@ -0,0 +1,421 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+
+package org.ws4d.java.concurrency;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.StampedLock;
+
+import org.ws4d.java.util.SimpleStringBuilder;
+import org.ws4d.java.util.Toolkit;
+import org.ws4d.java.util.WS4DIllegalStateException;
+
+/**
+ * Multiple-readers/single-writer lock based on a {@link StampedLock}.
+ * <p>
+ * This is a drop-in replacement for {@link LockSupport} with the same
+ * semantics:
+ * <ul>
+ * <li>shared and exclusive locks are reentrant,</li>
+ * <li>the holder of an exclusive lock may acquire shared locks, they remain
+ * held after the exclusive lock is released (downgrade),</li>
+ * <li>the holder of a shared lock may acquire an exclusive lock (upgrade). If
+ * two threads try to upgrade at the same time, a {@link DeadlockException} is
+ * thrown to the second one.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Uncontended locking does not allocate memory and does not synchronize on a
+ * monitor. The hold count of the first thread holding a shared lock is kept
+ * in a field; only if several threads hold shared locks at the same time, the
+ * counts of the others are kept in a thread local.
+ * </p>
+ * <p>
+ * In addition to {@link Lockable}, this class offers optimistic reads, which
+ * do not block writers at all:
+ * </p>
+ * 
+ * <pre>
+ * long stamp = lock.tryOptimisticRead();
+ * int x = this.x;
+ * if (!lock.validate(stamp)) {
+ * 	lock.sharedLock();
+ * 	try {
+ * 		x = this.x;
+ * 	} finally {
+ * 		lock.releaseSharedLock();
+ * 	}
+ * }
+ * </pre>
+ */
+public class StampedLockSupport implements Lockable {
+
+	private static final AtomicReferenceFieldUpdater<StampedLockSupport, Thread>	FIRST_READER	= AtomicReferenceFieldUpdater.newUpdater(StampedLockSupport.class, Thread.class, "firstReader");
+
+	private static final AtomicReferenceFieldUpdater<StampedLockSupport, Thread>	UPGRADER		= AtomicReferenceFieldUpdater.newUpdater(StampedLockSupport.class, Thread.class, "upgrader");
+
+	/** time between checks of a waiting upgrade in milliseconds */
+	private static final long							UPGRADE_POLL	= 10;
+
+	private final StampedLock							lock			= new StampedLock();
+
+	/** thread holding the exclusive lock */
+	private volatile Thread								owner			= null;
+
+	/** stamp of the exclusive lock, only accessed by the owner */
+	private long										writeStamp;
+
+	/** number of exclusive locks of the owner */
+	private int											ownerExclusiveCount;
+
+	/** number of shared locks of the owner */
+	private int											ownerSharedCount;
+
+	/** first thread with a shared lock */
+	private volatile Thread								firstReader		= null;
+
+	/** number of shared locks of the first reader, only accessed by it */
+	private int											firstReaderHoldCount;
+
+	/** shared lock counts of all other readers, created on demand */
+	private volatile ThreadLocal<HoldCounter>			readHolds		= null;
+
+	/** a valid read stamp while the shared lock is held, used for upgrades */
+	private volatile long								readStamp;
+
+	/** thread holding a shared lock and waiting for the exclusive lock */
+	private volatile Thread								upgrader		= null;
+
+	/**
+	 * Constructs a new StampedLockSupport.
+	 */
+	public StampedLockSupport() {
+		super();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		SimpleStringBuilder sb = Toolkit.getInstance().createSimpleStringBuilder(100);
+		sb.append("StampedLockSupport (").append(hashCode()).append("): [");
+		sb.append(" ASL=").append(lock.getReadLockCount());
+		sb.append(", AEL=").append(lock.isWriteLocked());
+		sb.append(", owner=").append(owner);
+		sb.append(", upgrader=").append(upgrader);
+		sb.append(" ]");
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a stamp for an optimistic read or zero if the lock is held
+	 * exclusively.
+	 * 
+	 * @return the stamp, must be checked with {@link #validate(long)} after
+	 *         reading.
+	 */
+	public long tryOptimisticRead() {
+		return lock.tryOptimisticRead();
+	}
+
+	/**
+	 * Checks whether no exclusive lock was acquired since the given stamp has
+	 * been issued.
+	 * 
+	 * @param stamp a stamp returned by {@link #tryOptimisticRead()}.
+	 * @return <code>true</code> if the values read since the stamp was issued
+	 *         are consistent, <code>false</code> otherwise.
+	 */
+	public boolean validate(long stamp) {
+		return stamp != 0 && lock.validate(stamp);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.concurrency.Lockable#sharedLock()
+	 */
+	public void sharedLock() {
+		Thread current = Thread.currentThread();
+		if (tryReenterShared(current)) {
+			return;
+		}
+		// give a pending upgrade priority over new readers
+		while (upgrader != null) {
+			synchronized (this) {
+				if (upgrader != null) {
+					try {
+						wait(UPGRADE_POLL);
+					} catch (InterruptedException e) {
+						// time to check whether we can resume
+					}
+				}
+			}
+		}
+		long stamp = lock.readLock();
+		readStamp = stamp;
+		addReadHolds(current, 1);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.concurrency.Lockable#exclusiveLock()
+	 */
+	public void exclusiveLock() {
+		Thread current = Thread.currentThread();
+		if (owner == current) {
+			ownerExclusiveCount++;
+			return;
+		}
+
+		int held = getReadHoldCount(current);
+		if (held == 0) {
+			long stamp = lock.writeLock();
+			becomeOwner(current, stamp, 0);
+			return;
+		}
+
+		if (!UPGRADER.compareAndSet(this, null, current)) {
+			throw new DeadlockException("Deadlock because two threads try to upgrade. Implement exception handling for this case.");
+		}
+		try {
+			while (true) {
+				long stamp = lock.tryConvertToWriteLock(readStamp);
+				if (stamp != 0) {
+					removeReadHolds(current);
+					becomeOwner(current, stamp, held);
+					return;
+				}
+				if (lock.getReadLockCount() == 1) {
+					// we are the only reader, refresh a possibly outdated stamp
+					long refresh = lock.tryReadLock();
+					if (refresh != 0) {
+						readStamp = refresh;
+						lock.unlockRead(refresh);
+					}
+					continue;
+				}
+				synchronized (this) {
+					try {
+						wait(UPGRADE_POLL);
+					} catch (InterruptedException e) {
+						// time to check whether we can resume
+					}
+				}
+			}
+		} finally {
+			upgrader = null;
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.concurrency.Lockable#trySharedLock()
+	 */
+	public boolean trySharedLock() {
+		Thread current = Thread.currentThread();
+		if (tryReenterShared(current)) {
+			return true;
+		}
+		if (upgrader != null) {
+			return false;
+		}
+		long stamp = lock.tryReadLock();
+		if (stamp == 0) {
+			return false;
+		}
+		readStamp = stamp;
+		addReadHolds(current, 1);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.concurrency.Lockable#tryExclusiveLock()
+	 */
+	public boolean tryExclusiveLock() {
+		Thread current = Thread.currentThread();
+		if (owner == current) {
+			ownerExclusiveCount++;
+			return true;
+		}
+
+		int held = getReadHoldCount(current);
+		if (held == 0) {
+			long stamp = lock.tryWriteLock();
+			if (stamp == 0) {
+				return false;
+			}
+			becomeOwner(current, stamp, 0);
+			return true;
+		}
+
+		if (upgrader != null) {
+			throw new DeadlockException("Deadlock because two threads try to upgrade. Implement exception handling for this case.");
+		}
+		long stamp = lock.tryConvertToWriteLock(readStamp);
+		if (stamp == 0) {
+			return false;
+		}
+		removeReadHolds(current);
+		becomeOwner(current, stamp, held);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.concurrency.Lockable#releaseSharedLock()
+	 */
+	public void releaseSharedLock() {
+		Thread current = Thread.currentThread();
+		if (owner == current && ownerSharedCount > 0) {
+			ownerSharedCount--;
+			return;
+		}
+
+		if (firstReader == current) {
+			if (--firstReaderHoldCount == 0) {
+				firstReader = null;
+				unlockRead();
+			}
+			return;
+		}
+
+		HoldCounter counter = getHoldCounter();
+		if (counter == null || counter.count == 0) {
+			throw new WS4DIllegalStateException("Current thread has no allocated shared lock!");
+		}
+		if (--counter.count == 0) {
+			unlockRead();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.concurrency.Lockable#releaseExclusiveLock()
+	 */
+	public boolean releaseExclusiveLock() {
+		Thread current = Thread.currentThread();
+		if (owner != current) {
+			throw new WS4DIllegalStateException("Current thread has no allocated exclusive lock!");
+		}
+		if (--ownerExclusiveCount > 0) {
+			return false;
+		}
+
+		int shared = ownerSharedCount;
+		long stamp = writeStamp;
+		ownerSharedCount = 0;
+		writeStamp = 0;
+		owner = null;
+		if (shared > 0) {
+			// keep the shared locks of this thread
+			readStamp = lock.tryConvertToReadLock(stamp);
+			addReadHolds(current, shared);
+		} else {
+			lock.unlockWrite(stamp);
+		}
+		return true;
+	}
+
+	private boolean tryReenterShared(Thread current) {
+		if (owner == current) {
+			ownerSharedCount++;
+			return true;
+		}
+		if (firstReader == current) {
+			firstReaderHoldCount++;
+			return true;
+		}
+		HoldCounter counter = getHoldCounter();
+		if (counter != null && counter.count > 0) {
+			counter.count++;
+			return true;
+		}
+		return false;
+	}
+
+	private void becomeOwner(Thread current, long stamp, int sharedCount) {
+		owner = current;
+		writeStamp = stamp;
+		ownerExclusiveCount = 1;
+		ownerSharedCount = sharedCount;
+	}
+
+	private void unlockRead() {
+		lock.tryUnlockRead();
+		if (upgrader != null) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	private int getReadHoldCount(Thread current) {
+		if (firstReader == current) {
+			return firstReaderHoldCount;
+		}
+		HoldCounter counter = getHoldCounter();
+		return counter == null ? 0 : counter.count;
+	}
+
+	private void addReadHolds(Thread current, int count) {
+		if (FIRST_READER.compareAndSet(this, null, current)) {
+			firstReaderHoldCount = count;
+			return;
+		}
+		ThreadLocal<HoldCounter> holds = readHolds;
+		if (holds == null) {
+			synchronized (this) {
+				holds = readHolds;
+				if (holds == null) {
+					holds = new ThreadLocal<HoldCounter>();
+					readHolds = holds;
+				}
+			}
+		}
+		HoldCounter counter = holds.get();
+		if (counter == null) {
+			counter = new HoldCounter();
+			holds.set(counter);
+		}
+		counter.count = count;
+	}
+
+	private void removeReadHolds(Thread current) {
+		if (firstReader == current) {
+			firstReaderHoldCount = 0;
+			firstReader = null;
+			return;
+		}
+		HoldCounter counter = getHoldCounter();
+		if (counter != null) {
+			counter.count = 0;
+		}
+	}
+
+	private HoldCounter getHoldCounter() {
+		ThreadLocal<HoldCounter> holds = readHolds;
+		return holds == null ? null : holds.get();
+	}
+
+	/**
+	 * Number of shared locks of a thread. Kept in the thread local after the
+	 * count drops to zero, so it can be reused without allocation.
+	 */
+	private static final class HoldCounter {
+
+		int	count	= 0;
+	}
+
+}
@@ -16,16 +16,40 @@ import org.ws4d.java.structures.Iterator;
 
 public class EventingProperties implements PropertiesHandler {
 
-	public static final String	PROP_CONFIGURATION_ID	= Properties.PROP_CONFIGURATION_ID;
+	public static final String	PROP_CONFIGURATION_ID			= Properties.PROP_CONFIGURATION_ID;
 
-	public static final String	PROP_BINDING			= Properties.PROP_BINDING;
+	public static final String	PROP_BINDING					= Properties.PROP_BINDING;
 
-	private Integer				tmpConfigurationId		= null;
+	/**
+	 * Property id to specify how many notifications may be queued or in
+	 * transit to one subscription. The default of 0 means no limit.
+	 */
+	public static final String	PROP_MAX_PENDING_NOTIFICATIONS	= "MaxPendingNotifications";
+
+	/**
+	 * Property id to specify what happens to a notification for a subscriber
+	 * which has reached the pending limit, see
+	 * {@link #NOTIFICATION_OVERFLOW_COALESCE} and
+	 * {@link #NOTIFICATION_OVERFLOW_DROP}.
+	 */
+	public static final String	PROP_NOTIFICATION_OVERFLOW		= "NotificationOverflow";
+
+	/** the notification replaces the newest one not sent yet */
+	public static final String	NOTIFICATION_OVERFLOW_COALESCE	= "Coalesce";
 
-	private DataStructure		tmpBindings				= new ArrayList(1);
+	/** the notification is dropped */
+	public static final String	NOTIFICATION_OVERFLOW_DROP		= "Drop";
+
+	private Integer				tmpConfigurationId				= null;
+
+	private DataStructure		tmpBindings						= new ArrayList(1);
 
 	/** map: ConfigurationId<Integer> => Bindings<List of Integer> */
-	private static HashMap		map_CID_2_Bindings		= new HashMap();
+	private static HashMap		map_CID_2_Bindings				= new HashMap();
+
+	private int					maxPendingNotifications			= 0;
+
+	private String				notificationOverflow			= NOTIFICATION_OVERFLOW_COALESCE;
 
 	/**
 	 * Constructor.
@@ -61,6 +85,11 @@ public class EventingProperties implements PropertiesHandler {
 	public void setProperties(PropertyHeader header, Property property) {
 		if (Properties.HEADER_SECTION_EVENTING.equals(header)) {
 			// Properties of "Devices" Section, default for devices
+			if (PROP_MAX_PENDING_NOTIFICATIONS.equals(property.key)) {
+				setMaxPendingNotifications(Integer.parseInt(property.value.trim()));
+			} else if (PROP_NOTIFICATION_OVERFLOW.equals(property.key)) {
+				setNotificationOverflow(property.value.trim());
+			}
 		}
 
 		else if (Properties.HEADER_SUBSECTION_EVENT_SINK.equals(header)) {
@@ -91,4 +120,34 @@ public class EventingProperties implements PropertiesHandler {
 		return bindings;
 	}
 
+	/**
+	 * @return maximum number of notifications queued or in transit to one
+	 *         subscription, 0 if there is no limit.
+	 */
+	public int getMaxPendingNotifications() {
+		return maxPendingNotifications;
+	}
+
+	public void setMaxPendingNotifications(int maxPendingNotifications) {
+		this.maxPendingNotifications = maxPendingNotifications;
+	}
+
+	/**
+	 * @return {@link #NOTIFICATION_OVERFLOW_COALESCE} or
+	 *         {@link #NOTIFICATION_OVERFLOW_DROP}.
+	 */
+	public String getNotificationOverflow() {
+		return notificationOverflow;
+	}
+
+	public void setNotificationOverflow(String notificationOverflow) {
+		if (NOTIFICATION_OVERFLOW_COALESCE.equalsIgnoreCase(notificationOverflow)) {
+			this.notificationOverflow = NOTIFICATION_OVERFLOW_COALESCE;
+		} else if (NOTIFICATION_OVERFLOW_DROP.equalsIgnoreCase(notificationOverflow)) {
+			this.notificationOverflow = NOTIFICATION_OVERFLOW_DROP;
+		} else {
+			throw new IllegalArgumentException("Unknown notification overflow policy: " + notificationOverflow);
+		}
+	}
+
 }
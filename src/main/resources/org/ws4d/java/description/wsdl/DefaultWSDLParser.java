@@ -594,12 +594,16 @@ public class DefaultWSDLParser implements DescriptionParser {
 	}
 
 	private WSDL parse0(WSDL wsdl, InputStream in, URI fromUri, CredentialInfo credentialInfo, String targetNamespace, boolean loadReferencedFiles, String comManId) throws XmlPullParserException, IOException {
-		XmlPullParser parser = XmlParserSerializerFactory.createParser();
-		parser.setInput(in, null);
+		XmlPullParser parser = XmlParserSerializerFactory.acquireParser();
+		try {
+			parser.setInput(in, null);
 
-		parser.nextTag(); // go to WSDL definitions
+			parser.nextTag(); // go to WSDL definitions
 
-		return parse0(wsdl, parser, fromUri, credentialInfo, targetNamespace, loadReferencedFiles, comManId);
+			return parse0(wsdl, parser, fromUri, credentialInfo, targetNamespace, loadReferencedFiles, comManId);
+		} finally {
+			XmlParserSerializerFactory.releaseParser(parser);
+		}
 	}
 
 	private WSDL parse0(WSDL wsdl, XmlPullParser parser, URI fromUri, CredentialInfo credentialInfo, String targetNamespace, boolean loadReferencedFiles, String comManId) throws XmlPullParserException, IOException {
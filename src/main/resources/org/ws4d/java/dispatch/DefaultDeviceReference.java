@@ -23,7 +23,7 @@ import org.ws4d.java.communication.ProtocolInfo;
 import org.ws4d.java.communication.ProtocolVersion;
 import org.ws4d.java.communication.callback.DefaultResponseCallback;
 import org.ws4d.java.communication.structures.OutgoingDiscoveryInfo;
-import org.ws4d.java.concurrency.LockSupport;
+import org.ws4d.java.concurrency.LockFactory;
 import org.ws4d.java.concurrency.Lockable;
 import org.ws4d.java.configuration.DispatchingProperties;
 import org.ws4d.java.constants.MessageConstants;
@@ -151,7 +151,7 @@ public class DefaultDeviceReference extends TimedEntry implements DeviceReferenc
 
 	private DefaultServiceCommunicationStructureListener	communicationStructureListener		= new DefaultServiceCommunicationStructureListener();
 
-	private final Lockable									odisLock							= new LockSupport();
+	private final Lockable									odisLock							= LockFactory.newLock();
 
 	private String											comManId							= null;
 
@@ -18,7 +18,7 @@ import org.ws4d.java.communication.ConnectionInfo;
 import org.ws4d.java.communication.callback.DefaultResponseCallback;
 import org.ws4d.java.communication.callback.ResponseCallback;
 import org.ws4d.java.communication.structures.OutgoingDiscoveryInfo;
-import org.ws4d.java.concurrency.LockSupport;
+import org.ws4d.java.concurrency.LockFactory;
 import org.ws4d.java.concurrency.Lockable;
 import org.ws4d.java.constants.MessageConstants;
 import org.ws4d.java.description.wsdl.WSDL;
@@ -111,7 +111,7 @@ public class DefaultServiceReference implements ServiceReferenceInternal {
 
 	private DefaultServiceCommunicationStructureListener	communicationStructureListener	= new DefaultServiceCommunicationStructureListener();
 
-	private final Lockable									odisLock						= new LockSupport();
+	private final Lockable									odisLock						= LockFactory.newLock();
 
 	String													comManId						= null;
 
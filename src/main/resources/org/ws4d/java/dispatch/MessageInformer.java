@@ -11,7 +11,8 @@ package org.ws4d.java.dispatch;
 
 import org.ws4d.java.JMEDSFramework;
 import org.ws4d.java.communication.ConnectionInfo;
-import org.ws4d.java.concurrency.LockSupport;
+import org.ws4d.java.concurrency.LockFactory;
+import org.ws4d.java.concurrency.Lockable;
 import org.ws4d.java.dispatch.listener.MessageListener;
 import org.ws4d.java.message.Message;
 import org.ws4d.java.structures.ArrayList;
@@ -39,12 +40,12 @@ public class MessageInformer {
 	private final HashMap			listeners			= new HashMap();
 
 	// SYNC: this lock support instance protects the listeners map
-	private final LockSupport		listenersLock		= new LockSupport();
+	private final Lockable		listenersLock		= LockFactory.newLock();
 
 	private final List				queuedMessages		= new ArrayList();
 
 	// SYNC: this lock support instance protects the messages queue
-	private final LockSupport		queuedMessagesLock	= new LockSupport();
+	private final Lockable		queuedMessagesLock	= LockFactory.newLock();
 
 	/*
 	 * this object is used for notifications of the delivery thread after new
@@ -1,7 +1,10 @@
 package org.ws4d.java.io.xml;
 
 import java.io.IOException;
+import java.io.InputStream;
 
+import org.ws4d.java.constants.XMLConstants;
+import org.ws4d.java.util.StringUtil;
 import org.ws4d.java.xmlpull.mxp1.MXParser;
 import org.ws4d.java.xmlpull.v1.XmlPullParserException;
 
@@ -9,11 +12,40 @@ public class DefaultWs4dXmlPullParser extends MXParser implements Ws4dXmlPullPar
 
 	private Ws4dXmlPullParserListener	listener;
 
+	/** kept across messages, see {@link #setInput(InputStream, String)} */
+	private ReusableUTF8Reader			utf8Reader	= null;
+
 	protected void reset() {
 		listener = null;
+		if (utf8Reader != null) {
+			utf8Reader.reset(null);
+		}
 		super.reset();
 	}
 
+	/**
+	 * Sets the input stream to parse. UTF-8 input, which is the default
+	 * encoding, is decoded by a reader which is reused for the next input
+	 * instead of creating a new {@link java.io.InputStreamReader} each time.
+	 */
+	public void setInput(InputStream inputStream, String inputEncoding) throws XmlPullParserException {
+		if (inputEncoding != null && !StringUtil.equalsIgnoreCase(XMLConstants.ENCODING, inputEncoding)) {
+			super.setInput(inputStream, inputEncoding);
+			return;
+		}
+		if (inputStream == null) {
+			throw new IllegalArgumentException("input stream can not be null");
+		}
+		if (utf8Reader == null) {
+			utf8Reader = new ReusableUTF8Reader(READ_CHUNK_SIZE);
+		}
+		// setInput() resets the parser and therefore the reader
+		setInput(utf8Reader);
+		utf8Reader.reset(inputStream);
+		this.inputStream = inputStream;
+		this.inputEncoding = inputEncoding;
+	}
+
 	public void setListener(Ws4dXmlPullParserListener listener) {
 		if (listener == null) {
 			return;
@@ -48,6 +48,9 @@ public class DefaultWs4dXmlSerializer extends MXSerializer implements Ws4dXmlSer
 
 	private int							localGenericQNamePrefixCounter	= 0;
 
+	/** kept across messages, see {@link #setOutput(OutputStream, String)} */
+	private ReusableUTF8Writer			utf8Writer						= null;
+
 	public void setStartPosition(String id) {
 		signaturePositions.add(new int[] { wosw.currentIndex, -1 });
 		ids.add(currentPos, id);
@@ -147,8 +150,40 @@ public class DefaultWs4dXmlSerializer extends MXSerializer implements Ws4dXmlSer
 			this.ids = new ArrayList(10);
 			this.signMessage = true;
 		} else {
+			setOutput(os, encoding);
+		}
+	}
+
+	/**
+	 * Sets the output stream. UTF-8 output is encoded by a writer which is
+	 * reused for the next output instead of creating a new
+	 * {@link OutputStreamWriter} each time.
+	 */
+	public void setOutput(OutputStream os, String encoding) throws IOException {
+		if (encoding == null || !StringUtil.equalsIgnoreCase(XMLConstants.ENCODING, encoding)) {
 			super.setOutput(os, encoding);
+			return;
+		}
+		if (os == null) {
+			throw new IllegalArgumentException("output stream can not be null");
+		}
+		if (utf8Writer == null) {
+			utf8Writer = new ReusableUTF8Writer(buf.length);
+		}
+		// setOutput() resets the serializer and therefore the writer
+		super.setOutput(utf8Writer);
+		utf8Writer.reset(os);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.xmlpull.mxp1_serializer.MXSerializer#reset()
+	 */
+	protected void reset() {
+		if (utf8Writer != null) {
+			utf8Writer.reset(null);
 		}
+		super.reset();
 	}
 
 	public OutputStream getOutput() {
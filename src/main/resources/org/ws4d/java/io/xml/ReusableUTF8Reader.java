@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+package org.ws4d.java.io.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * UTF-8 decoding reader which can be reset to another input stream.
+ * <p>
+ * In contrast to an {@link java.io.InputStreamReader} the byte buffer is kept
+ * when the reader is reset, so a pooled parser does not need a new reader and
+ * decoder for each message. Malformed input is replaced by U+FFFD, like the
+ * decoder of the platform does.
+ * </p>
+ */
+class ReusableUTF8Reader extends Reader {
+
+	private static final char	REPLACEMENT	= '\uFFFD';
+
+	private final byte[]		buf;
+
+	private InputStream			in			= null;
+
+	private int					pos			= 0;
+
+	private int					end			= 0;
+
+	/** low surrogate which did not fit into the last read, -1 if none */
+	private int					pendingLow	= -1;
+
+	ReusableUTF8Reader(int bufferSize) {
+		buf = new byte[bufferSize];
+	}
+
+	/**
+	 * Resets this reader to read from the given stream.
+	 * 
+	 * @param in the stream to decode, <code>null</code> to release the
+	 *            previous stream.
+	 */
+	void reset(InputStream in) {
+		this.in = in;
+		pos = 0;
+		end = 0;
+		pendingLow = -1;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Reader#read(char[], int, int)
+	 */
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (in == null) {
+			throw new IOException("Stream closed");
+		}
+		if (len == 0) {
+			return 0;
+		}
+		int n = 0;
+		if (pendingLow != -1) {
+			cbuf[off + n++] = (char) pendingLow;
+			pendingLow = -1;
+		}
+		while (n < len) {
+			if (pos == end) {
+				// do not block if some characters can be returned
+				if (n > 0 && in.available() <= 0) {
+					break;
+				}
+				if (!fill(1)) {
+					break;
+				}
+			}
+			int b = buf[pos] & 0xFF;
+			if (b < 0x80) {
+				pos++;
+				cbuf[off + n++] = (char) b;
+				continue;
+			}
+
+			int trailing;
+			int cp;
+			int min;
+			int max;
+			if (b >= 0xC2 && b <= 0xDF) {
+				trailing = 1;
+				cp = b & 0x1F;
+				min = 0x80;
+				max = 0xBF;
+			} else if (b >= 0xE0 && b <= 0xEF) {
+				trailing = 2;
+				cp = b & 0x0F;
+				// no overlong forms
+				min = b == 0xE0 ? 0xA0 : 0x80;
+				max = 0xBF;
+			} else if (b >= 0xF0 && b <= 0xF4) {
+				trailing = 3;
+				cp = b & 0x07;
+				// no overlong forms and nothing above U+10FFFF
+				min = b == 0xF0 ? 0x90 : 0x80;
+				max = b == 0xF4 ? 0x8F : 0xBF;
+			} else {
+				pos++;
+				cbuf[off + n++] = REPLACEMENT;
+				continue;
+			}
+
+			if (end - pos <= trailing) {
+				fill(trailing + 1);
+			}
+			int i = 1;
+			for (; i <= trailing && pos + i < end; i++) {
+				int c = buf[pos + i] & 0xFF;
+				if (c < min || c > max) {
+					break;
+				}
+				cp = (cp << 6) | (c & 0x3F);
+				min = 0x80;
+				max = 0xBF;
+			}
+			if (i <= trailing) {
+				// malformed or truncated sequence, skip the valid prefix
+				pos += i;
+				cbuf[off + n++] = REPLACEMENT;
+				continue;
+			}
+			pos += i;
+
+			if (cp >= 0xD800 && cp <= 0xDFFF) {
+				// encoded surrogate
+				cbuf[off + n++] = REPLACEMENT;
+			} else if (cp < 0x10000) {
+				cbuf[off + n++] = (char) cp;
+			} else {
+				cp -= 0x10000;
+				cbuf[off + n++] = (char) (0xD800 | (cp >> 10));
+				char low = (char) (0xDC00 | (cp & 0x3FF));
+				if (n < len) {
+					cbuf[off + n++] = low;
+				} else {
+					pendingLow = low;
+				}
+			}
+		}
+		return n == 0 ? -1 : n;
+	}
+
+	/**
+	 * Reads from the stream until at least <code>count</code> bytes are
+	 * buffered or the end of the stream is reached.
+	 * 
+	 * @return <code>false</code> if no byte is buffered.
+	 */
+	private boolean fill(int count) throws IOException {
+		if (pos > 0) {
+			int remaining = end - pos;
+			if (remaining > 0) {
+				System.arraycopy(buf, pos, buf, 0, remaining);
+			}
+			pos = 0;
+			end = remaining;
+		}
+		while (end < count) {
+			int r = in.read(buf, end, buf.length - end);
+			if (r == -1) {
+				break;
+			}
+			end += r;
+		}
+		return end > 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Reader#ready()
+	 */
+	public boolean ready() throws IOException {
+		return in != null && (pendingLow != -1 || pos < end || in.available() > 0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Reader#close()
+	 */
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+		}
+	}
+
+}
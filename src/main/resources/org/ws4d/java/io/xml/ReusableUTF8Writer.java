@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+package org.ws4d.java.io.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * UTF-8 encoding writer which can be reset to another output stream.
+ * <p>
+ * In contrast to an {@link java.io.OutputStreamWriter} the byte buffer is kept
+ * when the writer is reset, so a pooled serializer does not need a new writer
+ * and encoder for each message. Unpaired surrogates are replaced by '?', like
+ * the encoder of the platform does.
+ * </p>
+ */
+class ReusableUTF8Writer extends Writer {
+
+	private final byte[]	buf;
+
+	private int				count		= 0;
+
+	private OutputStream	out			= null;
+
+	/** high surrogate written last, -1 if none */
+	private int				pendingHigh	= -1;
+
+	ReusableUTF8Writer(int bufferSize) {
+		// room for at least one four byte sequence
+		buf = new byte[Math.max(bufferSize, 4)];
+	}
+
+	/**
+	 * Resets this writer to write to the given stream. Buffered bytes which
+	 * have not been flushed are discarded.
+	 * 
+	 * @param out the stream to write to, <code>null</code> to release the
+	 *            previous stream.
+	 */
+	void reset(OutputStream out) {
+		this.out = out;
+		count = 0;
+		pendingHigh = -1;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Writer#write(int)
+	 */
+	public void write(int c) throws IOException {
+		writeChar((char) c);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Writer#write(char[], int, int)
+	 */
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		for (int i = off, e = off + len; i < e; i++) {
+			char c = cbuf[i];
+			if (c < 0x80 && pendingHigh == -1) {
+				if (count == buf.length) {
+					flushBuffer();
+				}
+				buf[count++] = (byte) c;
+			} else {
+				writeChar(c);
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Writer#write(java.lang.String, int, int)
+	 */
+	public void write(String str, int off, int len) throws IOException {
+		for (int i = off, e = off + len; i < e; i++) {
+			char c = str.charAt(i);
+			if (c < 0x80 && pendingHigh == -1) {
+				if (count == buf.length) {
+					flushBuffer();
+				}
+				buf[count++] = (byte) c;
+			} else {
+				writeChar(c);
+			}
+		}
+	}
+
+	private void writeChar(char c) throws IOException {
+		if (buf.length - count < 4) {
+			flushBuffer();
+		}
+		if (pendingHigh != -1) {
+			int high = pendingHigh;
+			pendingHigh = -1;
+			if (c >= 0xDC00 && c <= 0xDFFF) {
+				int cp = 0x10000 + ((high - 0xD800) << 10) + (c - 0xDC00);
+				buf[count++] = (byte) (0xF0 | (cp >> 18));
+				buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buf[count++] = (byte) (0x80 | (cp & 0x3F));
+				return;
+			}
+			buf[count++] = (byte) '?';
+			if (buf.length - count < 4) {
+				flushBuffer();
+			}
+		}
+		if (c < 0x80) {
+			buf[count++] = (byte) c;
+		} else if (c < 0x800) {
+			buf[count++] = (byte) (0xC0 | (c >> 6));
+			buf[count++] = (byte) (0x80 | (c & 0x3F));
+		} else if (c >= 0xD800 && c <= 0xDBFF) {
+			pendingHigh = c;
+		} else if (c >= 0xDC00 && c <= 0xDFFF) {
+			buf[count++] = (byte) '?';
+		} else {
+			buf[count++] = (byte) (0xE0 | (c >> 12));
+			buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buf[count++] = (byte) (0x80 | (c & 0x3F));
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Writer#flush()
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.io.Writer#close()
+	 */
+	public void close() throws IOException {
+		if (out != null) {
+			if (pendingHigh != -1) {
+				pendingHigh = -1;
+				if (count == buf.length) {
+					flushBuffer();
+				}
+				buf[count++] = (byte) '?';
+			}
+			flush();
+			out.close();
+		}
+	}
+
+}
@@ -22,6 +22,7 @@ import org.ws4d.java.constants.SchemaConstants;
 import org.ws4d.java.constants.XMLConstants;
 import org.ws4d.java.description.DescriptionRepository;
 import org.ws4d.java.io.xml.ElementParser;
+import org.ws4d.java.io.xml.Ws4dXmlSerializer;
 import org.ws4d.java.io.xml.XmlParserSerializerFactory;
 import org.ws4d.java.security.CredentialInfo;
 import org.ws4d.java.structures.ArrayList;
@@ -150,27 +151,31 @@ public class Schema extends Annotation implements Resource {
 	}
 
 	public static Schema parse(InputStream in, URI fromUri, CredentialInfo credentialInfo, boolean loadReferencedFiles, String comManId) throws XmlPullParserException, IOException, SchemaException {
-		XmlPullParser parser = XmlParserSerializerFactory.createParser();
-		parser.setInput(in, null);
-		parser.nextTag();
-		String namespace = parser.getNamespace();
-		String name = parser.getName();
-		if (!XMLSCHEMA_NAMESPACE.equals(namespace) || !StringUtil.equalsIgnoreCase(SCHEMA_SCHEMA, name)) {
-			throw new IOException("This is not an XML schema.");
-		}
-		String tns = parser.getAttributeValue(null, SCHEMA_TARGETNAMESPACE);
+		XmlPullParser parser = XmlParserSerializerFactory.acquireParser();
+		try {
+			parser.setInput(in, null);
+			parser.nextTag();
+			String namespace = parser.getNamespace();
+			String name = parser.getName();
+			if (!XMLSCHEMA_NAMESPACE.equals(namespace) || !StringUtil.equalsIgnoreCase(SCHEMA_SCHEMA, name)) {
+				throw new IOException("This is not an XML schema.");
+			}
+			String tns = parser.getAttributeValue(null, SCHEMA_TARGETNAMESPACE);
 
-		Schema schema;
-		synchronized (SCHEMA_CACHE) {
-			schema = (Schema) SCHEMA_CACHE.get(tns);
-		}
-		if (schema == null) {
-			schema = new Schema(tns);
-			schema.handleSchema(new ElementParser(parser), fromUri, credentialInfo, loadReferencedFiles, comManId);
-			schema.resolveSchema();
+			Schema schema;
+			synchronized (SCHEMA_CACHE) {
+				schema = (Schema) SCHEMA_CACHE.get(tns);
+			}
+			if (schema == null) {
+				schema = new Schema(tns);
+				schema.handleSchema(new ElementParser(parser), fromUri, credentialInfo, loadReferencedFiles, comManId);
+				schema.resolveSchema();
+			}
+			// we don't care about in at this point - it may be left unread ...
+			return schema;
+		} finally {
+			XmlParserSerializerFactory.releaseParser(parser);
 		}
-		// we don't care about in at this point - it may be left unread ...
-		return schema;
 	}
 
 	Schema() {
@@ -791,13 +796,17 @@ public class Schema extends Annotation implements Resource {
 	}
 
 	private void serialize0(OutputStream out) throws IOException {
-		XmlSerializer serializer = XmlParserSerializerFactory.createSerializer();
-		// serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-		// true);
-		serializer.setOutput(out, XMLConstants.ENCODING);
-		serializer.startDocument(XMLConstants.ENCODING, null);
-		serialize0(serializer);
-		serializer.endDocument();
+		Ws4dXmlSerializer serializer = XmlParserSerializerFactory.acquireSerializer();
+		try {
+			// serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
+			// true);
+			serializer.setOutput(out, XMLConstants.ENCODING);
+			serializer.startDocument(XMLConstants.ENCODING, null);
+			serialize0(serializer);
+			serializer.endDocument();
+		} finally {
+			XmlParserSerializerFactory.releaseSerializer(serializer);
+		}
 	}
 
 	private void serialize0(XmlSerializer serializer) throws IOException {
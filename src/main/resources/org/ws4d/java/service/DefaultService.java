@@ -220,6 +220,9 @@ public class DefaultService extends ServiceCommons implements LocalService, Outg
 
 	private boolean											changed										= false;
 
+	/** relationship metadata of GetMetadata responses, null if not built */
+	private volatile RelationshipMData						getMetadataRelationship						= null;
+
 	// key = CommunicationBinding, value = HashSet of URIs
 	protected final HashMap									wsdlURIs									= new HashMap();
 
@@ -858,6 +861,7 @@ public class DefaultService extends ServiceCommons implements LocalService, Outg
 			return;
 		}
 		if (changed) {
+			invalidateGetMetadataCache();
 			parentDevice.setServiceChanged();
 			changed = false;
 		}
@@ -1346,6 +1350,16 @@ public class DefaultService extends ServiceCommons implements LocalService, Outg
 	 */
 	public void setParentDevice(LocalDevice device) {
 		parentDevice = device;
+		invalidateGetMetadataCache();
+	}
+
+	/**
+	 * Discards the relationship metadata kept for GetMetadata responses.
+	 * Called whenever the metadata of this service or of its parent device may
+	 * have changed.
+	 */
+	protected void invalidateGetMetadataCache() {
+		getMetadataRelationship = null;
 	}
 
 	public LocalDevice getParentDevice() {
@@ -2612,47 +2626,7 @@ public class DefaultService extends ServiceCommons implements LocalService, Outg
 			sharedLock();
 			try {
 				if (parentDevice != null) {
-					RelationshipMData relationship = new RelationshipMData();
-
-					// the host part
-					HostMData host = new HostMData();
-					host.setEndpointReference(parentDevice.getEndpointReference());
-					QNameSet types = new QNameSet();
-					for (Iterator it = parentDevice.getPortTypes(); it.hasNext();) {
-						QName type = (QName) it.next();
-						types.add(type);
-					}
-					host.setTypes(types);
-					relationship.setHost(host);
-
-					// HostedMData hosted = new HostedMData();
-					/*
-					 * Filter endpoint references which are not transport
-					 * addresses. DPWS specification 2.5 R0042
-					 */
-					Iterator eprsCurrent = getEprInfos();
-					EprInfoSet eprsFiltered = new EprInfoSet();
-					while (eprsCurrent.hasNext()) {
-						EprInfo epr = (EprInfo) eprsCurrent.next();
-						if (epr.getXAddress() != null) {
-							eprsFiltered.add(epr);
-						}
-					}
-					hosted.setEprInfoSet(eprsFiltered);
-					Iterator typesCurrent = getPortTypes();
-					QNameSet typesFilled = new QNameSet();
-					while (typesCurrent.hasNext()) {
-						QName name = (QName) typesCurrent.next();
-						typesFilled.add(name);
-					}
-					hosted.setTypes(typesFilled);
-
-					// if (hosted.getServiceId() == null) {
-					// hosted.setServiceId(new URI(sid));
-					// }
-
-					relationship.addHosted(hosted);
-					response.addRelationship(relationship);
+					response.addRelationship(getRelationship());
 
 					response.setCustomMData(customMData);
 				}
@@ -2672,6 +2646,63 @@ public class DefaultService extends ServiceCommons implements LocalService, Outg
 			return response;
 		}
 
+		/**
+		 * Returns the relationship metadata for a GetMetadata response. It is
+		 * built once and kept until the metadata of this service or of its
+		 * parent device changes. Must be called while holding the shared lock.
+		 * 
+		 * @return the relationship metadata, which must not be modified.
+		 */
+		private RelationshipMData getRelationship() {
+			RelationshipMData relationship = getMetadataRelationship;
+			if (relationship != null) {
+				return relationship;
+			}
+
+			relationship = new RelationshipMData();
+
+			// the host part
+			HostMData host = new HostMData();
+			host.setEndpointReference(parentDevice.getEndpointReference());
+			QNameSet types = new QNameSet();
+			for (Iterator it = parentDevice.getPortTypes(); it.hasNext();) {
+				QName type = (QName) it.next();
+				types.add(type);
+			}
+			host.setTypes(types);
+			relationship.setHost(host);
+
+			// HostedMData hosted = new HostedMData();
+			/*
+			 * Filter endpoint references which are not transport
+			 * addresses. DPWS specification 2.5 R0042
+			 */
+			Iterator eprsCurrent = getEprInfos();
+			EprInfoSet eprsFiltered = new EprInfoSet();
+			while (eprsCurrent.hasNext()) {
+				EprInfo epr = (EprInfo) eprsCurrent.next();
+				if (epr.getXAddress() != null) {
+					eprsFiltered.add(epr);
+				}
+			}
+			hosted.setEprInfoSet(eprsFiltered);
+			Iterator typesCurrent = getPortTypes();
+			QNameSet typesFilled = new QNameSet();
+			while (typesCurrent.hasNext()) {
+				QName name = (QName) typesCurrent.next();
+				typesFilled.add(name);
+			}
+			hosted.setTypes(typesFilled);
+
+			// if (hosted.getServiceId() == null) {
+			// hosted.setServiceId(new URI(sid));
+			// }
+
+			relationship.addHosted(hosted);
+			getMetadataRelationship = relationship;
+			return relationship;
+		}
+
 		/*
 		 * (non-Javadoc)
 		 * @see
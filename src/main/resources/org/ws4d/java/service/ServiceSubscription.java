@@ -79,6 +79,9 @@ public class ServiceSubscription {
 
 	final ConnectionInfo		connectionInfo;
 
+	/** notifications queued or in transit to the notify-to address */
+	private int					pendingNotifications					= 0;
+
 	public ServiceSubscription(ConnectionInfo connectionInfo, EprInfoSet notifyToSet, EprInfoSet endToSet, OutgoingDiscoveryInfosProvider provider, String comManId) {
 		this.connectionInfo = connectionInfo;
 		communicationManagerId = comManId;
@@ -166,6 +169,41 @@ public class ServiceSubscription {
 		}
 	}
 
+	/**
+	 * Returns the EprInfo to which notifications are sent if it is already
+	 * known, i.e. without resolving the notify-to endpoint reference.
+	 * 
+	 * @return the <code>EprInfo</code> to which to send notifications or
+	 *         <code>null</code>.
+	 */
+	EprInfo getKnownNotifyTo() {
+		return notifyToHandler.getKnownPreferredXAddressInfo();
+	}
+
+	/**
+	 * Counts a notification as pending unless <code>maxPending</code> pending
+	 * notifications are reached.
+	 * 
+	 * @param maxPending the limit, 0 for no limit.
+	 * @return <code>false</code> if the limit is reached.
+	 */
+	synchronized boolean addPendingNotification(int maxPending) {
+		if (maxPending > 0 && pendingNotifications >= maxPending) {
+			return false;
+		}
+		pendingNotifications++;
+		return true;
+	}
+
+	/**
+	 * Called when a pending notification is delivered, failed or dropped.
+	 */
+	synchronized void removePendingNotification() {
+		if (pendingNotifications > 0) {
+			pendingNotifications--;
+		}
+	}
+
 	/**
 	 * Returns the (optional) EprInfo to which a server-side cancellation of the
 	 * subscription should be announced.
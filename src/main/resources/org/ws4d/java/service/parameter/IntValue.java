@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+package org.ws4d.java.service.parameter;
+
+/**
+ * Value of an <code>xs:int</code> parameter.
+ * <p>
+ * The value can be set as <code>int</code> with {@link #set(int)}, the text
+ * is built only when the value is serialized or read as string. A value set as
+ * string, e.g. by the parser, is kept as it is and parsed by {@link #getInt()}.
+ * </p>
+ */
+public class IntValue extends StringValue {
+
+	private int		number		= 0;
+
+	/** true if number is the current value, value is then built on demand */
+	private boolean	hasNumber	= false;
+
+	public IntValue() {
+		super(null);
+	}
+
+	public IntValue(int value) {
+		super(null);
+		number = value;
+		hasNumber = true;
+	}
+
+	/**
+	 * Returns the value of this parameter value.
+	 * 
+	 * @return the value.
+	 * @throws NumberFormatException if the value has been set as string and is
+	 *             not an int.
+	 */
+	public int getInt() {
+		pvLock.sharedLock();
+		try {
+			if (hasNumber) {
+				return number;
+			}
+			if (value == null) {
+				throw new NumberFormatException("No value.");
+			}
+			return Integer.parseInt(value.trim());
+		} finally {
+			pvLock.releaseSharedLock();
+		}
+	}
+
+	/**
+	 * Sets the value of this parameter value.
+	 * 
+	 * @param value the value to set.
+	 */
+	public void set(int value) {
+		pvLock.exclusiveLock();
+		number = value;
+		hasNumber = true;
+		this.value = null;
+		pvLock.releaseExclusiveLock();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.service.parameter.StringValue#set(java.lang.String)
+	 */
+	public void set(String value) {
+		pvLock.exclusiveLock();
+		hasNumber = false;
+		this.value = value;
+		pvLock.releaseExclusiveLock();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.service.parameter.StringValue#get()
+	 */
+	public String get() {
+		String text = value;
+		if (text == null && hasNumber) {
+			/*
+			 * Concurrent readers may both build the text, they build the same
+			 * one.
+			 */
+			value = text = Integer.toString(number);
+		}
+		return text;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		pvLock.sharedLock();
+		try {
+			String text = get();
+			return text == null ? "" : text;
+		} finally {
+			pvLock.releaseSharedLock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see
+	 * org.ws4d.java.service.parameter.ParameterDefinition#getValueAsString()
+	 */
+	public String getValueAsString() {
+		return get();
+	}
+}
@@ -11,6 +11,7 @@ package org.ws4d.java.service.parameter;
 
 import org.ws4d.java.attachment.AttachmentException;
 import org.ws4d.java.attachment.AttachmentStore;
+import org.ws4d.java.concurrency.LockFactory;
 import org.ws4d.java.concurrency.LockSupport;
 import org.ws4d.java.concurrency.Lockable;
 import org.ws4d.java.constants.SchemaConstants;
@@ -211,7 +212,7 @@ public class ParameterValue implements Lockable {
 
 	protected HashMap			attributes						= EmptyStructures.EMPTY_MAP;
 
-	protected LockSupport		pvLock							= new LockSupport();
+	protected Lockable		pvLock							= LockFactory.newLock();
 
 	protected String			uniqueIdForAttachmentDisposal	= null;
 
@@ -526,7 +527,28 @@ public class ParameterValue implements Lockable {
 		return type;
 	}
 
+	/**
+	 * Returns the lock of this parameter value.
+	 * 
+	 * @return the lock.
+	 * @deprecated use {@link #getLock()}, this method only works with the
+	 *             default lock implementation (see {@link LockFactory}).
+	 * @throws UnsupportedOperationException if an other lock implementation
+	 *             is used.
+	 */
 	public LockSupport getLockObject() {
+		if (pvLock instanceof LockSupport) {
+			return (LockSupport) pvLock;
+		}
+		throw new UnsupportedOperationException("The lock is no LockSupport, use getLock().");
+	}
+
+	/**
+	 * Returns the lock of this parameter value.
+	 * 
+	 * @return the lock.
+	 */
+	public Lockable getLock() {
 		return pvLock;
 	}
 
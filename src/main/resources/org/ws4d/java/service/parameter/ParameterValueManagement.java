@@ -64,6 +64,10 @@ public class ParameterValueManagement {
 
 	public static final String		TYPE_QNAME_CLASS		= "org.ws4d.java.service.parameter.QNameValue";
 
+	public static final String		TYPE_INT_CLASS			= "org.ws4d.java.service.parameter.IntValue";
+
+	public static final String		TYPE_BOOLEAN_CLASS		= "org.ws4d.java.service.parameter.BooleanValue";
+
 	/**
 	 * This map contains mappings from XML Schema datatypes to the classes which
 	 * will be loaded at runtime. <Type, String>
@@ -74,6 +78,8 @@ public class ParameterValueManagement {
 		registeredValues.put(SchemaUtil.TYPE_STRING, TYPE_STRING_CLASS);
 		registeredValues.put(SchemaUtil.TYPE_BASE64_BINARY, TYPE_ATTACHMENT_CLASS);
 		registeredValues.put(SchemaUtil.TYPE_QNAME, TYPE_QNAME_CLASS);
+		registeredValues.put(SchemaUtil.TYPE_INT, TYPE_INT_CLASS);
+		registeredValues.put(SchemaUtil.TYPE_BOOLEAN, TYPE_BOOLEAN_CLASS);
 	}
 
 	/**
@@ -229,6 +235,43 @@ public class ParameterValueManagement {
 		}
 	}
 
+	/**
+	 * Sets the value for an {@link IntValue} based parameter without building
+	 * its text.
+	 * 
+	 * @param rootParameterValue the parameter from type {@link IntValue}, or
+	 *            the parent of it.
+	 * @param path the path which allows to address a child of the given
+	 *            parameter.
+	 * @param value the value.
+	 */
+	public static void setInt(ParameterValue rootParameterValue, String path, int value) {
+		ParameterValue pv = rootParameterValue.get(path);
+		if (pv instanceof IntValue) {
+			((IntValue) pv).set(value);
+		} else {
+			throw new RuntimeException("Cannot set int value. Parameter is not an int.");
+		}
+	}
+
+	/**
+	 * Sets the value for a {@link BooleanValue} based parameter.
+	 * 
+	 * @param rootParameterValue the parameter from type {@link BooleanValue},
+	 *            or the parent of it.
+	 * @param path the path which allows to address a child of the given
+	 *            parameter.
+	 * @param value the value.
+	 */
+	public static void setBoolean(ParameterValue rootParameterValue, String path, boolean value) {
+		ParameterValue pv = rootParameterValue.get(path);
+		if (pv instanceof BooleanValue) {
+			((BooleanValue) pv).set(value);
+		} else {
+			throw new RuntimeException("Cannot set boolean value. Parameter is not a boolean.");
+		}
+	}
+
 	/**
 	 * Returns the value for a {@link StringValue} based parameter.
 	 * 
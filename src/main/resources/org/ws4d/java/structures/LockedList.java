@@ -10,7 +10,7 @@
 
 package org.ws4d.java.structures;
 
-import org.ws4d.java.concurrency.LockSupport;
+import org.ws4d.java.concurrency.LockFactory;
 import org.ws4d.java.concurrency.Lockable;
 
 /**
@@ -37,7 +37,7 @@ public class LockedList extends List implements Lockable {
 	 * @param list List, which should be synchronized
 	 */
 	public LockedList(List list) {
-		this(list, new LockSupport());
+		this(list, LockFactory.newLock());
 	}
 
 	/**
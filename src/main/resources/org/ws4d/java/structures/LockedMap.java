@@ -10,7 +10,7 @@
 
 package org.ws4d.java.structures;
 
-import org.ws4d.java.concurrency.LockSupport;
+import org.ws4d.java.concurrency.LockFactory;
 import org.ws4d.java.concurrency.Lockable;
 
 /**
@@ -20,7 +20,7 @@ public class LockedMap extends HashMap implements Lockable {
 
 	private HashMap		mapToSynchronize;
 
-	private LockSupport	lock;
+	private Lockable	lock;
 
 	private Object		entrySetLock	= new Object();
 
@@ -41,8 +41,18 @@ public class LockedMap extends HashMap implements Lockable {
 	 * @param map Map, which should be synchronized
 	 */
 	public LockedMap(HashMap map) {
+		this(map, LockFactory.newLock());
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param map Map, which should be synchronized
+	 * @param lock the lock to use
+	 */
+	public LockedMap(HashMap map, Lockable lock) {
 		this.mapToSynchronize = map;
-		this.lock = new LockSupport();
+		this.lock = lock;
 	}
 
 	// ======================= LOCKABLE ================================
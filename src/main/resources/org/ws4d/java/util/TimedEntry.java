@@ -16,12 +16,23 @@ package org.ws4d.java.util;
  */
 public abstract class TimedEntry {
 
-	long	timeToRemove;
+	long		timeToRemove;
 
-	boolean	disabled	= false;
+	boolean		disabled	= false;
 
 	// used for timed entries which are unregistered and reregistered
-	boolean	registered	= false;
+	boolean		registered	= false;
+
+	// position within the timing wheel of the WatchDog
+	long		deadlineTick;
+
+	TimedEntry	wheelPrev;
+
+	TimedEntry	wheelNext;
+
+	int			wheelLevel	= -1;
+
+	int			wheelSlot;
 
 	/**
 	 * Sets timer, when this timed entry should be timed out and removed.
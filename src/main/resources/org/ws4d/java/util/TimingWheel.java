@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+
+package org.ws4d.java.util;
+
+import org.ws4d.java.structures.List;
+
+/**
+ * Hierarchical hashed timing wheel for {@link TimedEntry} objects.
+ * <p>
+ * The wheel consists of four levels. Level 0 has 256 slots of one tick each,
+ * the upper levels have 64 slots each covering a whole revolution of the
+ * level below. Entries are linked directly into the slots via the
+ * <code>wheelPrev</code>/<code>wheelNext</code> fields of {@link TimedEntry},
+ * so scheduling and cancelling are O(1) and do not allocate. Entries of an
+ * upper level are moved down (cascaded) when the level below wraps around.
+ * Entries which are further in the future than the range of the wheel (about
+ * 2^26 ticks) are parked in the last slot of the top level and rescheduled
+ * whenever that slot is cascaded.
+ * </p>
+ * <p>
+ * This class is not thread safe, the caller must synchronize all accesses.
+ * </p>
+ */
+final class TimingWheel {
+
+	private static final int		LEVEL0_BITS	= 8;
+
+	private static final int		LEVEL_BITS	= 6;
+
+	private static final int		LEVELS		= 4;
+
+	private static final int		LEVEL0_SIZE	= 1 << LEVEL0_BITS;
+
+	private static final int		LEVEL0_MASK	= LEVEL0_SIZE - 1;
+
+	private static final int		LEVEL_SIZE	= 1 << LEVEL_BITS;
+
+	private static final int		LEVEL_MASK	= LEVEL_SIZE - 1;
+
+	/**
+	 * maximal number of ticks an entry can be scheduled ahead without being
+	 * parked
+	 */
+	private static final long		MAX_DELTA	= 1L << (LEVEL0_BITS + (LEVELS - 1) * LEVEL_BITS);
+
+	/** slot heads, one array per level */
+	private final TimedEntry[][]	slots		= new TimedEntry[LEVELS][];
+
+	/** last processed tick */
+	private long					currentTick;
+
+	/** number of scheduled entries */
+	private int						size		= 0;
+
+	/** number of entries on level 0 */
+	private int						level0Size	= 0;
+
+	/**
+	 * Creates a timing wheel.
+	 * 
+	 * @param startTick the tick the wheel starts at.
+	 */
+	TimingWheel(long startTick) {
+		slots[0] = new TimedEntry[LEVEL0_SIZE];
+		for (int i = 1; i < LEVELS; i++) {
+			slots[i] = new TimedEntry[LEVEL_SIZE];
+		}
+		currentTick = startTick;
+	}
+
+	/**
+	 * Schedules the entry for the given tick. Ticks which are not in the future
+	 * are moved to the next tick.
+	 * 
+	 * @param entry the entry, must not be scheduled already.
+	 * @param deadlineTick the tick in which the entry expires.
+	 */
+	void schedule(TimedEntry entry, long deadlineTick) {
+		if (deadlineTick <= currentTick) {
+			deadlineTick = currentTick + 1;
+		}
+		entry.deadlineTick = deadlineTick;
+		place(entry);
+		size++;
+	}
+
+	/**
+	 * Removes the entry from the wheel.
+	 * 
+	 * @param entry the entry.
+	 * @return <code>true</code> if the entry was scheduled.
+	 */
+	boolean cancel(TimedEntry entry) {
+		if (entry.wheelLevel < 0) {
+			return false;
+		}
+		unlink(entry);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Advances the wheel up to and including the given tick and adds all
+	 * expired entries to the list.
+	 * 
+	 * @param tick the current tick.
+	 * @param expired list the expired entries are added to.
+	 */
+	void advance(long tick, List expired) {
+		if (size == 0) {
+			if (tick > currentTick) {
+				currentTick = tick;
+			}
+			return;
+		}
+		while (currentTick < tick) {
+			currentTick++;
+			int index = (int) (currentTick & LEVEL0_MASK);
+			if (index == 0) {
+				cascade(1);
+			}
+			TimedEntry entry = slots[0][index];
+			while (entry != null) {
+				TimedEntry next = entry.wheelNext;
+				unlink(entry);
+				size--;
+				expired.add(entry);
+				entry = next;
+			}
+			if (size == 0) {
+				currentTick = tick;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries from the wheel.
+	 * 
+	 * @param removed list the removed entries are added to.
+	 */
+	void clear(List removed) {
+		for (int level = 0; level < LEVELS; level++) {
+			TimedEntry[] levelSlots = slots[level];
+			for (int i = 0; i < levelSlots.length; i++) {
+				TimedEntry entry = levelSlots[i];
+				while (entry != null) {
+					TimedEntry next = entry.wheelNext;
+					unlink(entry);
+					removed.add(entry);
+					entry = next;
+				}
+			}
+		}
+		size = 0;
+	}
+
+	/**
+	 * Returns the next tick at which {@link #advance(long, List)} has work to
+	 * do, either because an entry expires or because an upper level must be
+	 * cascaded.
+	 * 
+	 * @return the next tick or {@link Long#MAX_VALUE} if the wheel is empty.
+	 */
+	long nextTick() {
+		if (size == 0) {
+			return Long.MAX_VALUE;
+		}
+		long wrap = (currentTick | LEVEL0_MASK) + 1;
+		if (level0Size > 0) {
+			for (long tick = currentTick + 1; tick < wrap; tick++) {
+				if (slots[0][(int) (tick & LEVEL0_MASK)] != null) {
+					return tick;
+				}
+			}
+		}
+		return wrap;
+	}
+
+	/**
+	 * @return the number of scheduled entries.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the last processed tick.
+	 */
+	long getCurrentTick() {
+		return currentTick;
+	}
+
+	/**
+	 * Moves all entries of the current slot of the given level one level down
+	 * and continues with the next level if this level wraps around, too.
+	 */
+	private void cascade(int level) {
+		int shift = LEVEL0_BITS + (level - 1) * LEVEL_BITS;
+		int index = (int) ((currentTick >>> shift) & LEVEL_MASK);
+		if (index == 0 && level + 1 < LEVELS) {
+			cascade(level + 1);
+		}
+		TimedEntry entry = slots[level][index];
+		slots[level][index] = null;
+		while (entry != null) {
+			TimedEntry next = entry.wheelNext;
+			entry.wheelPrev = null;
+			entry.wheelNext = null;
+			entry.wheelLevel = -1;
+			place(entry);
+			entry = next;
+		}
+	}
+
+	private void place(TimedEntry entry) {
+		long deadline = entry.deadlineTick;
+		long delta = deadline - currentTick;
+		int level;
+		int index;
+		if (delta < LEVEL0_SIZE) {
+			level = 0;
+			index = (int) (deadline & LEVEL0_MASK);
+			level0Size++;
+		} else {
+			if (delta >= MAX_DELTA) {
+				// park in the farthest slot, will be rescheduled on cascade
+				deadline = currentTick + MAX_DELTA - 1;
+			}
+			level = 1;
+			long limit = ((long) LEVEL0_SIZE) << LEVEL_BITS;
+			while (delta >= limit && level < LEVELS - 1) {
+				level++;
+				limit <<= LEVEL_BITS;
+			}
+			index = (int) ((deadline >>> (LEVEL0_BITS + (level - 1) * LEVEL_BITS)) & LEVEL_MASK);
+		}
+		TimedEntry head = slots[level][index];
+		entry.wheelPrev = null;
+		entry.wheelNext = head;
+		if (head != null) {
+			head.wheelPrev = entry;
+		}
+		slots[level][index] = entry;
+		entry.wheelLevel = level;
+		entry.wheelSlot = index;
+	}
+
+	private void unlink(TimedEntry entry) {
+		TimedEntry prev = entry.wheelPrev;
+		TimedEntry next = entry.wheelNext;
+		if (prev == null) {
+			slots[entry.wheelLevel][entry.wheelSlot] = next;
+		} else {
+			prev.wheelNext = next;
+		}
+		if (next != null) {
+			next.wheelPrev = prev;
+		}
+		if (entry.wheelLevel == 0) {
+			level0Size--;
+		}
+		entry.wheelPrev = null;
+		entry.wheelNext = null;
+		entry.wheelLevel = -1;
+	}
+
+}
@@ -10,31 +10,55 @@
 
 package org.ws4d.java.util;
 
-import org.ws4d.java.JMEDSFramework;
-import org.ws4d.java.concurrency.LockSupport;
 import org.ws4d.java.concurrency.ThreadPool;
+import org.ws4d.java.concurrency.WorkStealingThreadPool;
 import org.ws4d.java.structures.ArrayList;
 import org.ws4d.java.structures.Iterator;
-import org.ws4d.java.structures.LinkedList;
 import org.ws4d.java.structures.List;
-import org.ws4d.java.structures.ListIterator;
 
+/**
+ * Observes {@link TimedEntry timed entries} and calls their
+ * {@link TimedEntry#timedOut()} method once their time is up.
+ * <p>
+ * The entries are kept in a {@link TimingWheel} with a resolution of
+ * {@link #TICK_DURATION} milliseconds, so registering, updating and
+ * unregistering an entry are constant time operations. Timeout callbacks are
+ * executed by a small thread pool owned by the watchdog.
+ * </p>
+ */
 public class WatchDog implements Runnable {
 
-	/** extra time buffer for removing callbacks */
-	final static int			ADDITIONAL_TIME_BEFORE_CALLBACK_REMOVAL	= 50;					// milliseconds
+	/** resolution of the timing wheel */
+	final static int					TICK_DURATION				= 10;						// milliseconds
 
-	/** list<TimedEntry> */
-	protected final LinkedList	listEntries								= new LinkedList();
+	/** maximal number of threads running timeout callbacks */
+	private final static int			CALLBACK_POOL_SIZE			= 32;
+
+	/** time to live of idle callback threads */
+	private final static long			CALLBACK_POOL_TIMEOUT		= 10000;
+
+	private final static long			TICK_DURATION_NANOS			= TICK_DURATION * 1000000L;
+
+	/** start of the tick count */
+	private final long					baseNanos					= System.nanoTime();
+
+	/** timing wheel, guarded by <code>lock</code> */
+	private final TimingWheel			wheel						= new TimingWheel(0);
+
+	/** lock protects the wheel */
+	private final Object				lock						= new Object();
+
+	/** tick the watchdog thread will wake up at, guarded by lock */
+	private long						wakeUpTick					= Long.MAX_VALUE;
 
 	/** <code>true</code> if class was started */
-	private boolean				running									= false;
+	private volatile boolean			running						= false;
 
-	/** lock protects list */
-	protected LockSupport		lock									= new LockSupport();
+	/** pool running the timeout callbacks */
+	private volatile ThreadPool			callbackPool				= null;
 
 	/** this */
-	private static WatchDog		instance								= null;
+	private static WatchDog				instance					= null;
 
 	/**
 	 * Private constructor.
@@ -49,66 +73,45 @@ public class WatchDog implements Runnable {
 	}
 
 	/**
-	 * Registers timed object to observe.
+	 * Registers timed object to observe. If the object is already registered,
+	 * its timeout is updated.
 	 * 
 	 * @param timedEntry
 	 * @param timeUntilTimeout
 	 */
 	public void register(TimedEntry timedEntry, long timeUntilTimeout) {
-
-		lock.exclusiveLock();
-		try {
+		synchronized (lock) {
 			if (timedEntry.registered) {
-				update(timedEntry, timeUntilTimeout);
-				return;
+				wheel.cancel(timedEntry);
 			}
 
 			timedEntry.setTimer(timeUntilTimeout);
+			// the current tick has already partly elapsed, hence one extra tick
+			long deadlineTick = currentTick() + toTicks(timeUntilTimeout) + 1;
+			wheel.schedule(timedEntry, deadlineTick);
 
-			if (listEntries.size() == 0) {
-				listEntries.add(timedEntry);
-			} else {
-				boolean added = false;
-				ListIterator it = listEntries.listIterator(listEntries.size());
-				while (it.hasPrevious()) {
-					TimedEntry temp = (TimedEntry) it.previous();
-					if (temp.compareTo(timedEntry) < 0) {
-						if (it.hasNext()) {
-							it.next();
-						}
-						it.add(timedEntry);
-						added = true;
-						break;
-					}
-				}
-				if (!added) {
-					it.add(timedEntry);
-				}
-			}
 			timedEntry.registered = true;
-		} finally {
-			lock.releaseExclusiveLock();
-		}
-		synchronized (this) {
-			this.notify();
+			timedEntry.disabled = false;
+
+			if (timedEntry.deadlineTick < wakeUpTick) {
+				lock.notify();
+			}
 		}
 	}
 
 	/**
-	 * Disables timed entry from managed objects of watchdog. Removing will
-	 * occur later.
+	 * Removes timed entry from managed objects of watchdog. The entry will not
+	 * receive a timeout until it is registered again.
 	 * 
 	 * @param timedEntry
 	 */
 	public void unregister(TimedEntry timedEntry) {
-		lock.sharedLock();
-		try {
-			// XXX: Will be faster, if we can use entries of linked list.
-			// listEntries.remove(timedEntry);
-			// entry will be removed at timeout
+		synchronized (lock) {
+			if (timedEntry.registered) {
+				wheel.cancel(timedEntry);
+				timedEntry.registered = false;
+			}
 			timedEntry.disabled = true;
-		} finally {
-			lock.releaseSharedLock();
 		}
 	}
 
@@ -120,69 +123,7 @@ public class WatchDog implements Runnable {
 	 * @param timeUntilTimeout
 	 */
 	public void update(TimedEntry timedEntry, long timeUntilTimeout) {
-		List timeoutObjects = new ArrayList(3);
-
-		lock.exclusiveLock();
-		try {
-			if (!timedEntry.registered) {
-				register(timedEntry, timeUntilTimeout);
-				return;
-			}
-
-			timedEntry.setTimer(timeUntilTimeout);
-			long currentTime = System.currentTimeMillis();
-
-			if (listEntries.size() > 1) {
-				boolean added = false;
-				ListIterator it = listEntries.listIterator();
-				while (it.hasNext()) {
-					TimedEntry entry = (TimedEntry) it.next();
-
-					if (entry.equals(timedEntry)) {
-						it.remove();
-						entry.registered = false;
-					} else if (entry.timeToRemove <= currentTime) {
-						it.remove();
-						if (!entry.disabled) {
-							// previous unregistered entries won't receive
-							// timeout
-							timeoutObjects.add(entry);
-						}
-						entry.registered = false;
-						entry.disabled = false;
-					} else if (entry.compareTo(timedEntry) > 0 && !added) {
-						it.previous();
-						it.add(timedEntry);
-						added = true;
-						if (!entry.registered) {
-							// we only break, if entry removed from old position
-							break;
-						}
-					} else if (!entry.registered) {
-						// we only break, if entry removed from old position
-						break;
-					}
-
-				}
-				if (!added) {
-					it.add(timedEntry);
-				}
-			}
-
-			timedEntry.registered = true;
-			timedEntry.disabled = false;
-		} finally {
-			lock.releaseExclusiveLock();
-		}
-
-		/*
-		 * timeout for all removed objects
-		 */
-		callTimeouts(timeoutObjects);
-
-		synchronized (this) {
-			this.notify();
-		}
+		register(timedEntry, timeUntilTimeout);
 	}
 
 	// ------------------------ RUNNABLE ------------------------------
@@ -192,33 +133,41 @@ public class WatchDog implements Runnable {
 	 */
 	public void run() {
 		running = true;
+		callbackPool = new WorkStealingThreadPool(1, CALLBACK_POOL_SIZE, Integer.MAX_VALUE, WorkStealingThreadPool.REJECTION_POLICY_CALLER_RUNS, CALLBACK_POOL_TIMEOUT);
 
+		List timeoutObjects = new ArrayList();
 		while (running) {
 			try {
-				lock.sharedLock();
-				// (INGO) potentially DANGEROUS because the variable size in
-				// class LinkedList is not volatile
-				if (listEntries.size() == 0) {
-					synchronized (this) {
-						lock.releaseSharedLock();
-						wait();
-					}
-				} else {
-					TimedEntry e = (TimedEntry) listEntries.getFirst();
-					long millis2Sleep = e.timeToRemove - System.currentTimeMillis();
-
-					if (millis2Sleep > 0) {
-						// some extra millis;
-						millis2Sleep += ADDITIONAL_TIME_BEFORE_CALLBACK_REMOVAL;
-						synchronized (this) {
-							lock.releaseSharedLock();
-							this.wait(millis2Sleep);
+				synchronized (lock) {
+					while (running) {
+						long now = currentTick();
+						wheel.advance(now, timeoutObjects);
+						if (timeoutObjects.size() > 0) {
+							break;
 						}
-					} else {
-						lock.releaseSharedLock();
+						wakeUpTick = wheel.nextTick();
+						if (wakeUpTick == Long.MAX_VALUE) {
+							lock.wait();
+						} else {
+							long waitNanos = baseNanos + wakeUpTick * TICK_DURATION_NANOS - System.nanoTime();
+							if (waitNanos <= 0) {
+								/*
+								 * already due (we were scheduled late), wait(0)
+								 * would block until the next notify
+								 */
+								wakeUpTick = Long.MAX_VALUE;
+								continue;
+							}
+							lock.wait(java.lang.Math.max(1L, (waitNanos + 999999L) / 1000000L));
+						}
+						wakeUpTick = Long.MAX_VALUE;
+					}
+					for (Iterator it = timeoutObjects.iterator(); it.hasNext();) {
+						((TimedEntry) it.next()).registered = false;
 					}
-					checkEntries();
 				}
+				callTimeouts(timeoutObjects);
+				timeoutObjects.clear();
 			} catch (InterruptedException e1) {
 				// e1.printStackTrace();
 			}
@@ -230,68 +179,50 @@ public class WatchDog implements Runnable {
 	 */
 	public void stop() {
 		running = false;
-		synchronized (this) {
-			notifyAll();
+		synchronized (lock) {
+			lock.notifyAll();
 		}
 		clearEntries();
+
+		ThreadPool pool = callbackPool;
+		callbackPool = null;
+		if (pool != null) {
+			pool.shutdown();
+		}
 	}
 
 	// ---------------------------- PRIVATE ----------------------------
 
 	private void clearEntries() {
-		List timeoutObjects = new ArrayList(listEntries.size());
+		List timeoutObjects = new ArrayList();
 
-		lock.exclusiveLock();
-		try {
-			for (Iterator it = listEntries.iterator(); it.hasNext();) {
-				final TimedEntry entry = (TimedEntry) it.next();
-				it.remove();
+		synchronized (lock) {
+			wheel.clear(timeoutObjects);
+			for (Iterator it = timeoutObjects.iterator(); it.hasNext();) {
+				TimedEntry entry = (TimedEntry) it.next();
 				entry.registered = false;
-				if (!entry.disabled) {
-					timeoutObjects.add(entry);
-					entry.disabled = false;
-				}
 			}
-		} finally {
-			lock.releaseExclusiveLock();
 		}
 
 		callTimeouts(timeoutObjects);
 	}
 
+	private long currentTick() {
+		return (System.nanoTime() - baseNanos) / TICK_DURATION_NANOS;
+	}
+
 	/**
-	 * Removes all entries with expired lifetime. Sends timeout to all removed
-	 * callbacks.
+	 * Converts milliseconds to ticks, rounding up so that an entry never times
+	 * out early.
 	 */
-	private void checkEntries() {
-		long currentTime = System.currentTimeMillis();
-		List timeoutObjects = new ArrayList(5);
-
-		lock.exclusiveLock();
-		try {
-			for (Iterator it = listEntries.iterator(); it.hasNext();) {
-				TimedEntry entry = (TimedEntry) it.next();
-				if (entry.timeToRemove <= currentTime) {
-					it.remove();
-					if (!entry.disabled) {
-						// previous unregistered entries won't receive
-						// timeout
-						timeoutObjects.add(entry);
-					}
-					entry.registered = false;
-					entry.disabled = false;
-				} else {
-					break;
-				}
-			}
-		} finally {
-			lock.releaseExclusiveLock();
+	private static long toTicks(long millis) {
+		if (millis <= 0) {
+			return 0;
 		}
-
-		/*
-		 * timeout for all removed objects
-		 */
-		callTimeouts(timeoutObjects);
+		if (millis >= Long.MAX_VALUE / 4) {
+			return Long.MAX_VALUE / (4 * TICK_DURATION);
+		}
+		return (millis + TICK_DURATION - 1) / TICK_DURATION;
 	}
 
 	/**
@@ -300,13 +231,16 @@ public class WatchDog implements Runnable {
 	 * @param timeoutObjects
 	 */
 	private void callTimeouts(List timeoutObjects) {
-		ThreadPool pool = JMEDSFramework.getThreadPool();
+		ThreadPool pool = callbackPool;
 		if (pool == null) {
 			return;
 		}
 
 		for (Iterator it = timeoutObjects.iterator(); it.hasNext();) {
 			final TimedEntry entry = (TimedEntry) it.next();
+			if (entry.disabled) {
+				continue;
+			}
 			pool.execute(new Runnable() {
 
 				public void run() {
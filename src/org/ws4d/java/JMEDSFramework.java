@@ -21,6 +21,7 @@ import org.ws4d.java.communication.ConnectionInfo;
 import org.ws4d.java.communication.ResourceLoader;
 import org.ws4d.java.communication.monitor.MonitorStreamFactory;
 import org.ws4d.java.concurrency.ThreadPool;
+import org.ws4d.java.concurrency.WorkStealingThreadPool;
 import org.ws4d.java.configuration.FrameworkProperties;
 import org.ws4d.java.configuration.Properties;
 import org.ws4d.java.constants.FrameworkConstants;
@@ -202,7 +203,10 @@ public final class JMEDSFramework {
 			}
 
 			// thread pool
-			threadpool = new ThreadPool(FrameworkProperties.getInstance().getThreadPoolSize());
+			threadpool = createThreadPool(FrameworkProperties.getInstance());
+			if (FrameworkProperties.getInstance().isUseVirtualThreads()) {
+				threadpool.setUseVirtualThreads(true);
+			}
 
 			// start watchdog
 			boolean watchdog = getThreadPool().executeOrAbort(WatchDog.getInstance());
@@ -229,6 +233,25 @@ public final class JMEDSFramework {
 		}
 	}
 
+	/**
+	 * Creates the thread pool implementation selected by the
+	 * {@link FrameworkProperties#PROP_THREADPOOL_TYPE} property.
+	 * 
+	 * @param props the framework properties.
+	 * @return the new thread pool.
+	 */
+	private static ThreadPool createThreadPool(FrameworkProperties props) {
+		if (FrameworkProperties.THREADPOOL_TYPE_WORK_STEALING.equalsIgnoreCase(props.getThreadPoolType())) {
+			int maxSize = props.getThreadPoolSize();
+			int coreSize = Math.min(props.getThreadPoolCoreSize(), maxSize);
+			if (Log.isDebug()) {
+				Log.debug("Using work-stealing thread pool (core: " + coreSize + ", max: " + maxSize + ").", Log.DEBUG_LAYER_FRAMEWORK);
+			}
+			return new WorkStealingThreadPool(coreSize, maxSize, props.getThreadPoolQueueSize(), props.getThreadPoolRejectionPolicy(), WorkStealingThreadPool.DEFAULT_TIMEOUT);
+		}
+		return new ThreadPool(props.getThreadPoolSize());
+	}
+
 	/**
 	 * Stops the framework as soon as possible.
 	 * <p>
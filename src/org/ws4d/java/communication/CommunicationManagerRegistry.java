@@ -12,7 +12,7 @@ package org.ws4d.java.communication;
 import java.io.IOException;
 
 import org.ws4d.java.JMEDSFramework;
-import org.ws4d.java.concurrency.LockSupport;
+import org.ws4d.java.concurrency.LockFactory;
 import org.ws4d.java.concurrency.Lockable;
 import org.ws4d.java.constants.FrameworkConstants;
 import org.ws4d.java.structures.ArrayList;
@@ -49,7 +49,7 @@ public abstract class CommunicationManagerRegistry {
 
 	private static final HashMap	COM_MANAGERS		= new HashMap(5);
 
-	private static final Lockable	lockSupport			= new LockSupport();
+	private static final Lockable	lockSupport			= LockFactory.newDeferredLock();
 
 	private static final ArrayList	comManListener		= new ArrayList();
 
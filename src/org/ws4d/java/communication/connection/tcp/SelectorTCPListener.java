@@ -0,0 +1,1105 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+package org.ws4d.java.communication.connection.tcp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.ws4d.java.JMEDSFramework;
+import org.ws4d.java.communication.ConnectionInfo;
+import org.ws4d.java.communication.connection.ip.IPAddress;
+import org.ws4d.java.communication.connection.ip.IPConnectionInfo;
+import org.ws4d.java.communication.monitor.MonitoredInputStream;
+import org.ws4d.java.communication.monitor.MonitoredOutputStream;
+import org.ws4d.java.communication.protocol.http.HTTPBinding;
+import org.ws4d.java.security.CredentialInfo;
+import org.ws4d.java.structures.ArrayList;
+import org.ws4d.java.structures.HashSet;
+import org.ws4d.java.structures.Iterator;
+import org.ws4d.java.structures.List;
+import org.ws4d.java.types.XAddressInfo;
+import org.ws4d.java.util.Log;
+import org.ws4d.java.util.Toolkit;
+
+/**
+ * TCP listener based on a {@link Selector}.
+ * <p>
+ * Connections are served by a small number of event loops. An event loop
+ * reads from its connections without blocking until a complete HTTP request
+ * (header and body) is buffered and only then passes the connection to the
+ * {@link TCPConnectionHandler} in a thread of the framework's thread pool.
+ * While the handler is running, the channel is in blocking mode, so the
+ * handler reads the request and writes the response exactly as with the
+ * {@link TCPListener}. When the handler asks for the next request, it gets the
+ * end of the stream and the connection is handed back to its event loop. An
+ * idle keep-alive connection therefore does not occupy a thread.
+ * </p>
+ * <p>
+ * Requests which do not fit into the request buffer (see
+ * {@link #DEFAULT_MAX_BUFFERED_REQUEST}) are passed to the handler as soon as
+ * their header is complete or the buffer is full. The handler then reads the
+ * rest from the channel and the connection is closed after the handler has
+ * finished, as a connection of the {@link TCPListener} would be.
+ * </p>
+ * <p>
+ * Secure bindings are not supported.
+ * </p>
+ */
+public class SelectorTCPListener extends TCPListener {
+
+	/** default number of event loops */
+	public static final int					DEFAULT_EVENT_LOOPS				= 2;
+
+	/** default size in bytes up to which requests are buffered completely */
+	public static final int					DEFAULT_MAX_BUFFERED_REQUEST	= 64 * 1024;
+
+	/** default time in ms after which idle connections are closed */
+	public static final long				DEFAULT_IDLE_TIMEOUT			= 20000;
+
+	private static final int				INITIAL_BUFFER_SIZE				= 4096;
+
+	/** time in ms between checks for idle connections */
+	private static final long				SELECT_TIMEOUT					= 1000;
+
+	/** the request is not complete yet */
+	private static final int				REQUEST_INCOMPLETE				= -1;
+
+	/** the request does not fit into the buffer */
+	private static final int				REQUEST_STREAMING				= -2;
+
+	private static final byte				CR								= 13;
+
+	private static final byte				LF								= 10;
+
+	private static final byte[]				CONTENT_LENGTH					= "content-length".getBytes();
+
+	private static final byte[]				TRANSFER_ENCODING				= "transfer-encoding".getBytes();
+
+	private static final byte[]				CHUNKED							= "chunked".getBytes();
+
+	private static final byte[]				EXPECT							= "expect".getBytes();
+
+	private static final byte[]				CONTINUE						= "100-continue".getBytes();
+
+	private static final byte[]				CONTINUE_RESPONSE				= "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+
+	private final HTTPBinding				binding;
+
+	private final TCPConnectionHandler		handler;
+
+	private final String					comManId;
+
+	private final int						maxBufferedRequest;
+
+	private final long						idleTimeout;
+
+	private final EventLoop[]				loops;
+
+	private final ServerSocketChannel		serverChannel;
+
+	/** all open connections, necessary for {@link #kill()} */
+	private final HashSet					connections						= new HashSet();
+
+	private int								nextLoop						= 0;
+
+	private volatile boolean				running							= false;
+
+	/**
+	 * Creates a selector based TCP listener for the given binding.
+	 * 
+	 * @param binding the binding with address and port to listen to.
+	 * @param handler the handler which will handle the TCP connections.
+	 * @param eventLoops number of event loops.
+	 * @param maxBufferedRequest size in bytes up to which requests are
+	 *            buffered before they are handled.
+	 * @param idleTimeout time in ms after which idle connections are closed.
+	 * @throws IOException
+	 */
+	SelectorTCPListener(HTTPBinding binding, TCPConnectionHandler handler, int eventLoops, int maxBufferedRequest, long idleTimeout) throws IOException {
+		super(binding, handler, false);
+		if (binding.isSecure()) {
+			throw new IOException("Cannot create selector based TCP listener for secure binding.");
+		}
+		this.binding = binding;
+		this.handler = handler;
+		this.comManId = binding.getCommunicationManagerId();
+		this.maxBufferedRequest = maxBufferedRequest > INITIAL_BUFFER_SIZE ? maxBufferedRequest : INITIAL_BUFFER_SIZE;
+		this.idleTimeout = idleTimeout;
+
+		serverChannel = ServerSocketChannel.open();
+		try {
+			InetAddress adr = InetAddress.getByName(binding.getHostIPAddress().getAddress());
+			serverChannel.socket().bind(new InetSocketAddress(adr, binding.getPort()));
+			serverChannel.configureBlocking(false);
+			if (binding.getPort() == 0) {
+				binding.setPort(serverChannel.socket().getLocalPort());
+			}
+
+			loops = new EventLoop[eventLoops > 0 ? eventLoops : 1];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop(i);
+			}
+		} catch (IOException e) {
+			serverChannel.close();
+			throw new IOException(e.getMessage() + " for " + binding);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.communication.connection.tcp.TCPListener#run()
+	 */
+	public void run() {
+		// the event loops do the work
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.communication.connection.tcp.TCPListener#isRunning()
+	 */
+	public synchronized boolean isRunning() {
+		return running;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.communication.connection.tcp.TCPListener#start()
+	 */
+	public synchronized boolean start() {
+		if (running) {
+			return true;
+		}
+		try {
+			serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			Log.error("Cannot listen for incoming connections on " + binding.getHostIPAddress() + " and port " + binding.getPort() + ". " + e.getMessage());
+			return false;
+		}
+		for (int i = 0; i < loops.length; i++) {
+			if (!JMEDSFramework.getThreadPool().executeOrAbort(loops[i])) {
+				Log.error("Cannot start TCP event loop for " + binding.getHostIPAddress() + " and port " + binding.getPort() + ".");
+				for (int j = 0; j < i; j++) {
+					loops[j].shutdown();
+				}
+				return false;
+			}
+		}
+		running = true;
+		if (Log.isDebug()) {
+			Log.debug("TCP listener with " + loops.length + " event loop(s) up for " + binding.getHostIPAddress() + " and port " + binding.getPort() + ".", Log.DEBUG_LAYER_COMMUNICATION);
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the TCP listener.
+	 * <p>
+	 * Existing TCP connection will remain active! To stop the TCP server and close all established connections.
+	 * </p>
+	 */
+	public synchronized void stop() throws IOException {
+		if (!running) {
+			return;
+		}
+		running = false;
+		serverChannel.close();
+		loops[0].selector.wakeup();
+		if (Log.isDebug()) {
+			Log.debug("TCP listener shutdown for " + binding.getHostIPAddress() + " and port " + binding.getPort() + ".", Log.DEBUG_LAYER_COMMUNICATION);
+		}
+	}
+
+	/**
+	 * Stops the TCP listener and kills all established connection.
+	 * <p>
+	 * This will also close all established connections and stop the event
+	 * loops.
+	 * </p>
+	 */
+	public synchronized void kill() throws IOException {
+		stop();
+		for (int i = 0; i < loops.length; i++) {
+			loops[i].shutdown();
+		}
+		ChannelConnection[] array;
+		synchronized (connections) {
+			array = (ChannelConnection[]) connections.toArray(new ChannelConnection[connections.size()]);
+		}
+		for (int i = 0; i < array.length; i++) {
+			array[i].closeChannel();
+		}
+	}
+
+	/**
+	 * Returns the number of open connections, including those which are
+	 * currently handled.
+	 * 
+	 * @return the number of open connections.
+	 */
+	public int getConnectionCount() {
+		synchronized (connections) {
+			return connections.size();
+		}
+	}
+
+	/**
+	 * Returns the number of event loops of this listener.
+	 * 
+	 * @return the number of event loops.
+	 */
+	public int getEventLoopCount() {
+		return loops.length;
+	}
+
+	private void accept(EventLoop loop) {
+		SocketChannel channel;
+		while (true) {
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				if (isRunning()) {
+					Log.warn("Cannot accept incoming TCP connection on port " + binding.getPort() + ". " + e.getMessage());
+				}
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+
+			java.net.Socket socket = channel.socket();
+			String remoteAddress = socket.getInetAddress().getHostAddress();
+			if (binding.getAddressFilter() != null) {
+				boolean allowed;
+				try {
+					allowed = binding.getAddressFilter().isAllowedByFilter(IPAddress.getKeyForIPAddress(remoteAddress));
+				} catch (IOException e) {
+					allowed = false;
+				}
+				if (!allowed) {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						// ignore
+					}
+					continue;
+				}
+			}
+
+			IPAddress remoteIPAddress = IPAddress.createRemoteIPAddress(remoteAddress);
+			IPConnectionInfo connectionInfo = new IPConnectionInfo(null, ConnectionInfo.DIRECTION_IN, binding.getHostIPAddress(), socket.getLocalPort(), true, new XAddressInfo(remoteIPAddress, remoteIPAddress.getAddressWithoutNicId(), socket.getPort(), null), comManId);
+			connectionInfo.setLocalCredentialInfo(binding.getCredentialInfo());
+
+			EventLoop target;
+			synchronized (this) {
+				target = loops[nextLoop];
+				nextLoop = (nextLoop + 1) % loops.length;
+			}
+			ChannelConnection connection = new ChannelConnection(channel, connectionInfo, target);
+			synchronized (connections) {
+				connections.add(connection);
+			}
+
+			if (Log.isDebug()) {
+				Log.debug("<I-TCP> From " + remoteAddress + "@" + socket.getPort() + " to " + binding.getHostIPAddress() + "@" + socket.getLocalPort() + ", event loop " + target.index, Log.DEBUG_LAYER_COMMUNICATION);
+			}
+
+			if (target == loop) {
+				loop.register(connection);
+			} else {
+				target.enqueue(connection);
+			}
+		}
+	}
+
+	/**
+	 * Searches for the end of the next request within the given bytes.
+	 * 
+	 * @return the index after the last byte of the request,
+	 *         {@link #REQUEST_INCOMPLETE} or {@link #REQUEST_STREAMING}.
+	 */
+	private int findRequestEnd(ChannelConnection c) {
+		byte[] b = c.buffer;
+		int start = c.start;
+		int end = c.end;
+
+		if (c.headerEnd < 0) {
+			int i = c.scanned > start + 3 ? c.scanned - 3 : start;
+			for (; i + 3 < end; i++) {
+				if (b[i] == CR && b[i + 1] == LF && b[i + 2] == CR && b[i + 3] == LF) {
+					c.headerEnd = i + 4;
+					break;
+				}
+			}
+			if (c.headerEnd < 0) {
+				c.scanned = end;
+				return end - start >= maxBufferedRequest ? REQUEST_STREAMING : REQUEST_INCOMPLETE;
+			}
+		}
+
+		int headerEnd = c.headerEnd;
+		String transferEncoding = getHeaderValue(b, start, headerEnd, TRANSFER_ENCODING);
+		if (transferEncoding != null && indexOfIgnoreCase(transferEncoding.getBytes(), CHUNKED) >= 0) {
+			int requestEnd = findChunkedEnd(b, headerEnd, end);
+			if (requestEnd < 0) {
+				return end - start >= maxBufferedRequest ? REQUEST_STREAMING : REQUEST_INCOMPLETE;
+			}
+			return requestEnd;
+		}
+
+		String contentLength = getHeaderValue(b, start, headerEnd, CONTENT_LENGTH);
+		if (contentLength == null) {
+			return headerEnd;
+		}
+		long length;
+		try {
+			length = Long.parseLong(contentLength.trim());
+		} catch (NumberFormatException e) {
+			// let the HTTP layer complain about it
+			return REQUEST_STREAMING;
+		}
+		if (length < 0 || headerEnd - start + length > maxBufferedRequest) {
+			return REQUEST_STREAMING;
+		}
+		int requestEnd = headerEnd + (int) length;
+		return end >= requestEnd ? requestEnd : REQUEST_INCOMPLETE;
+	}
+
+	/**
+	 * Searches for the end of a chunked body (RFC2616 3.6.1).
+	 * 
+	 * @return the index after the body or -1 if the body is not complete.
+	 */
+	private static int findChunkedEnd(byte[] b, int from, int to) {
+		int i = from;
+		while (true) {
+			// chunk size line, extensions are ignored
+			int lineEnd = indexOfLineEnd(b, i, to);
+			if (lineEnd < 0) {
+				return -1;
+			}
+			int size = 0;
+			for (int j = i; j < lineEnd; j++) {
+				int digit = Character.digit((char) b[j], 16);
+				if (digit < 0) {
+					break;
+				}
+				if (size > (Integer.MAX_VALUE >> 4)) {
+					return -1;
+				}
+				size = (size << 4) + digit;
+			}
+			i = lineEnd + 2;
+			if (size == 0) {
+				// trailer up to an empty line
+				while (true) {
+					lineEnd = indexOfLineEnd(b, i, to);
+					if (lineEnd < 0) {
+						return -1;
+					}
+					if (lineEnd == i) {
+						return i + 2;
+					}
+					i = lineEnd + 2;
+				}
+			}
+			if (to - i < size + 2) {
+				return -1;
+			}
+			i += size + 2;
+		}
+	}
+
+	private static int indexOfLineEnd(byte[] b, int from, int to) {
+		for (int i = from; i + 1 < to; i++) {
+			if (b[i] == CR && b[i + 1] == LF) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the value of the header field with the given lower case name or
+	 * <code>null</code>.
+	 */
+	private static String getHeaderValue(byte[] b, int from, int to, byte[] name) {
+		int i = from;
+		while (i < to) {
+			int lineEnd = indexOfLineEnd(b, i, to);
+			if (lineEnd < 0) {
+				lineEnd = to;
+			}
+			if (lineEnd - i > name.length && b[i + name.length] == ':' && regionMatchesIgnoreCase(b, i, name)) {
+				return new String(b, i + name.length + 1, lineEnd - i - name.length - 1).trim();
+			}
+			i = lineEnd + 2;
+		}
+		return null;
+	}
+
+	private static boolean expectsContinue(ChannelConnection c) {
+		String expect = getHeaderValue(c.buffer, c.start, c.headerEnd, EXPECT);
+		return expect != null && indexOfIgnoreCase(expect.getBytes(), CONTINUE) >= 0;
+	}
+
+	private static int indexOfIgnoreCase(byte[] b, byte[] lowerCase) {
+		for (int i = 0; i + lowerCase.length <= b.length; i++) {
+			if (regionMatchesIgnoreCase(b, i, lowerCase)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean regionMatchesIgnoreCase(byte[] b, int offset, byte[] lowerCase) {
+		for (int j = 0; j < lowerCase.length; j++) {
+			byte c = b[offset + j];
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			if (c != lowerCase[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * An event loop owns a selector and a set of connections. All state of an
+	 * idle connection is only accessed by its event loop.
+	 */
+	private class EventLoop implements Runnable {
+
+		private final int						index;
+
+		private final Selector					selector;
+
+		/** connections to register with the selector */
+		private final ConcurrentLinkedQueue<ChannelConnection>	pending	= new ConcurrentLinkedQueue<ChannelConnection>();
+
+		/** connections with a complete request, only used by the loop */
+		private final List						ready		= new ArrayList();
+
+		private volatile boolean				closed		= false;
+
+		/** there are already selected keys which have not been handled */
+		private boolean							keysPending	= false;
+
+		private long							nextSweep	= 0;
+
+		EventLoop(int index) throws IOException {
+			this.index = index;
+			this.selector = Selector.open();
+		}
+
+		public void run() {
+			while (!closed) {
+				try {
+					if (keysPending) {
+						selector.selectNow();
+					} else {
+						selector.select(SELECT_TIMEOUT);
+					}
+					keysPending = false;
+
+					ChannelConnection c;
+					while ((c = pending.poll()) != null) {
+						register(c);
+					}
+
+					java.util.Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept(this);
+						} else if (key.isReadable()) {
+							read((ChannelConnection) key.attachment());
+						}
+					}
+
+					dispatchReady();
+
+					long now = System.currentTimeMillis();
+					if (now >= nextSweep) {
+						closeIdleConnections(now);
+						nextSweep = now + SELECT_TIMEOUT;
+					}
+				} catch (IOException e) {
+					if (!closed) {
+						Log.warn("TCP event loop " + index + " for port " + binding.getPort() + ": " + e.getMessage());
+					}
+				}
+			}
+
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			if (Log.isDebug()) {
+				Log.debug("TCP event loop " + index + " for port " + binding.getPort() + " stopped.", Log.DEBUG_LAYER_COMMUNICATION);
+			}
+		}
+
+		void shutdown() {
+			closed = true;
+			selector.wakeup();
+		}
+
+		/**
+		 * Hands a connection to this loop, may be called by any thread.
+		 */
+		void enqueue(ChannelConnection c) {
+			pending.add(c);
+			selector.wakeup();
+		}
+
+		/**
+		 * Registers a connection with the selector and checks whether a
+		 * further request has already been buffered. Only called by the loop.
+		 */
+		void register(ChannelConnection c) {
+			if (!c.channel.isOpen()) {
+				return;
+			}
+			try {
+				c.channel.configureBlocking(false);
+				c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+			} catch (IOException e) {
+				c.closeChannel();
+				return;
+			}
+			c.lastActivity = System.currentTimeMillis();
+			if (c.end > c.start) {
+				checkRequest(c);
+			}
+		}
+
+		private void read(ChannelConnection c) {
+			if (c.end == c.buffer.length) {
+				c.makeRoom(maxBufferedRequest);
+			}
+			int n;
+			try {
+				ByteBuffer buf = c.readBuffer;
+				buf.limit(buf.capacity());
+				buf.position(c.end);
+				n = c.channel.read(buf);
+			} catch (IOException e) {
+				n = -1;
+			}
+			if (n < 0) {
+				if (Log.isDebug()) {
+					Log.debug("<I-TCP> Connection closed by remote host, " + c, Log.DEBUG_LAYER_COMMUNICATION);
+				}
+				c.closeChannel();
+				return;
+			}
+			if (n > 0) {
+				c.end += n;
+				c.lastActivity = System.currentTimeMillis();
+				checkRequest(c);
+			}
+		}
+
+		private void checkRequest(ChannelConnection c) {
+			c.skipEmptyLines();
+			if (c.end == c.start) {
+				return;
+			}
+			int requestEnd = findRequestEnd(c);
+			if (requestEnd < 0 && c.headerEnd == c.end && !c.continueSent && expectsContinue(c)) {
+				/*
+				 * the client waits for the interim response before it sends
+				 * the body (RFC2616 8.2.3)
+				 */
+				if (!c.sendContinue()) {
+					requestEnd = REQUEST_STREAMING;
+				} else if (!c.channel.isOpen()) {
+					return;
+				}
+			}
+			if (requestEnd == REQUEST_INCOMPLETE) {
+				return;
+			}
+			c.requestEnd = requestEnd;
+			c.key.cancel();
+			c.key = null;
+			ready.add(c);
+		}
+
+		private void dispatchReady() throws IOException {
+			if (ready.isEmpty()) {
+				return;
+			}
+			// deregister the cancelled keys before switching to blocking mode
+			selector.selectNow();
+			keysPending = !selector.selectedKeys().isEmpty();
+
+			for (Iterator it = ready.iterator(); it.hasNext();) {
+				ChannelConnection c = (ChannelConnection) it.next();
+				try {
+					c.channel.configureBlocking(true);
+				} catch (IOException e) {
+					c.closeChannel();
+					continue;
+				}
+				JMEDSFramework.getThreadPool().execute(new ConnectionTask(c));
+			}
+			ready.clear();
+		}
+
+		private void closeIdleConnections(long now) {
+			java.util.Iterator<SelectionKey> it = selector.keys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				ChannelConnection c = (ChannelConnection) key.attachment();
+				if (c != null && key.isValid() && now - c.lastActivity > idleTimeout) {
+					if (Log.isDebug()) {
+						Log.debug("<I> Incoming TCP connection (" + c.connectionInfo.getConnectionId() + ") idle timeout after " + idleTimeout + "ms.", Log.DEBUG_LAYER_COMMUNICATION);
+					}
+					c.closeChannel();
+				}
+			}
+		}
+	}
+
+	/**
+	 * State of an accepted connection.
+	 */
+	private class ChannelConnection implements Socket, ConnectionCloseListener {
+
+		final SocketChannel			channel;
+
+		final IPConnectionInfo		connectionInfo;
+
+		final EventLoop				loop;
+
+		/** received bytes are in [start, end) */
+		byte[]						buffer		= new byte[INITIAL_BUFFER_SIZE];
+
+		ByteBuffer					readBuffer	= ByteBuffer.wrap(buffer);
+
+		int							start		= 0;
+
+		int							end			= 0;
+
+		/** end of the header of the next request or -1 if not found yet */
+		int							headerEnd	= -1;
+
+		/** bytes up to this index have been searched for the header end */
+		int							scanned		= 0;
+
+		/** end of the request passed to the handler or REQUEST_STREAMING */
+		int							requestEnd	= 0;
+
+		/** 100 Continue has been sent for the current request */
+		boolean						continueSent	= false;
+
+		SelectionKey				key			= null;
+
+		long						lastActivity;
+
+		private OutputStream		out			= null;
+
+		private RequestInputStream	in			= null;
+
+		private boolean				closed		= false;
+
+		ChannelConnection(SocketChannel channel, IPConnectionInfo connectionInfo, EventLoop loop) {
+			this.channel = channel;
+			this.connectionInfo = connectionInfo;
+			this.loop = loop;
+			try {
+				channel.socket().setTcpNoDelay(true);
+			} catch (IOException e) {
+				if (Log.isWarn()) {
+					Log.warn(e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Ignores empty lines in front of a request (RFC2616 4.1).
+		 */
+		void skipEmptyLines() {
+			while (start < end && (buffer[start] == CR || buffer[start] == LF)) {
+				start++;
+			}
+			if (start == end) {
+				start = 0;
+				end = 0;
+				scanned = 0;
+			}
+		}
+
+		/**
+		 * Sends the interim 100 Continue response without blocking.
+		 * 
+		 * @return <code>false</code> if nothing could be written, the request
+		 *         has to be streamed then. If only a part could be written,
+		 *         the connection is closed.
+		 */
+		boolean sendContinue() {
+			continueSent = true;
+			ByteBuffer response = ByteBuffer.wrap(CONTINUE_RESPONSE);
+			try {
+				channel.write(response);
+			} catch (IOException e) {
+				closeChannel();
+				return true;
+			}
+			if (response.position() == 0) {
+				return false;
+			}
+			if (response.hasRemaining()) {
+				closeChannel();
+			}
+			return true;
+		}
+
+		/**
+		 * Makes room for further bytes, either by moving the pending bytes to
+		 * the front or by growing the buffer.
+		 */
+		void makeRoom(int maxSize) {
+			int length = end - start;
+			byte[] target = buffer;
+			if (start == 0) {
+				int size = buffer.length * 2;
+				target = new byte[size < maxSize ? size : maxSize];
+			}
+			System.arraycopy(buffer, start, target, 0, length);
+			if (headerEnd >= 0) {
+				headerEnd -= start;
+			}
+			scanned = scanned > start ? scanned - start : 0;
+			start = 0;
+			end = length;
+			if (target != buffer) {
+				buffer = target;
+				readBuffer = ByteBuffer.wrap(buffer);
+			}
+		}
+
+		/**
+		 * Creates the {@link TCPConnection} for the handler.
+		 */
+		TCPConnection lease() throws IOException {
+			if (out == null) {
+				out = new BufferedOutputStream(new NonClosingOutputStream(channel.socket().getOutputStream()));
+			}
+			if (requestEnd == REQUEST_STREAMING) {
+				in = new RequestInputStream(this, end, Toolkit.getInstance().buffer(channel.socket().getInputStream()));
+			} else {
+				in = new RequestInputStream(this, requestEnd, null);
+			}
+
+			InputStream leaseIn = in;
+			OutputStream leaseOut = out;
+			if (JMEDSFramework.getMonitorStreamFactory() != null) {
+				leaseIn = new MonitoredInputStream(leaseIn, connectionInfo.getConnectionId());
+				leaseOut = new MonitoredOutputStream(leaseOut, connectionInfo.getConnectionId());
+			}
+			return new TCPConnection(leaseIn, leaseOut, this, connectionInfo, this);
+		}
+
+		/**
+		 * Ends the handling of the current request. If the handler has read
+		 * the whole request and asked for the next one, the connection goes
+		 * back to its event loop. Otherwise the handler has finished the
+		 * connection (or a request has been streamed) and it is closed.
+		 */
+		void release() {
+			RequestInputStream leaseIn;
+			synchronized (this) {
+				if (closed || in == null) {
+					return;
+				}
+				leaseIn = in;
+				in = null;
+			}
+			if (!leaseIn.exhausted || requestEnd == REQUEST_STREAMING || !isRunning()) {
+				closeChannel();
+				return;
+			}
+			start = requestEnd;
+			headerEnd = -1;
+			continueSent = false;
+			scanned = start;
+			if (start == end) {
+				start = 0;
+				end = 0;
+				scanned = 0;
+			}
+			loop.enqueue(this);
+		}
+
+		/**
+		 * Closes the channel.
+		 */
+		void closeChannel() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Log.error("Cannot close TCP connection (" + connectionInfo.getConnectionId() + "). " + e.getMessage());
+			}
+			synchronized (connections) {
+				connections.remove(this);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.ws4d.java.communication.connection.tcp.Socket#close()
+		 */
+		public void close() throws IOException {
+			release();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.ws4d.java.communication.connection.tcp.Socket#getInputStream()
+		 */
+		public InputStream getInputStream() throws IOException {
+			return in;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.ws4d.java.communication.connection.tcp.Socket#getOutputStream()
+		 */
+		public OutputStream getOutputStream() throws IOException {
+			return out;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.ws4d.java.communication.connection.tcp.Socket#getRemoteAddress()
+		 */
+		public String getRemoteAddress() {
+			InetAddress i = channel.socket().getInetAddress();
+			return i == null ? null : i.getHostAddress();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.ws4d.java.communication.connection.tcp.Socket#getRemotePort()
+		 */
+		public int getRemotePort() {
+			return channel.socket().getPort();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see
+		 * org.ws4d.java.communication.connection.tcp.Socket#getRemoteCredentialInfo
+		 * ()
+		 */
+		public CredentialInfo getRemoteCredentialInfo() {
+			return null;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.ws4d.java.communication.connection.tcp.Socket#getLocalAddress()
+		 */
+		public IPAddress getLocalAddress() {
+			return binding.getHostIPAddress();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.ws4d.java.communication.connection.tcp.Socket#getLocalPort()
+		 */
+		public int getLocalPort() {
+			return channel.socket().getLocalPort();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see
+		 * org.ws4d.java.communication.connection.tcp.ConnectionCloseListener
+		 * #connectionClosed
+		 * (org.ws4d.java.communication.connection.tcp.TCPConnection)
+		 */
+		public void connectionClosed(TCPConnection connection) {
+			// the connection itself is released by Socket.close()
+		}
+
+		public String toString() {
+			return "TCP Connection [ id = " + connectionInfo.getConnectionId() + " ]";
+		}
+	}
+
+	/**
+	 * Runs the handler for a connection with a complete request.
+	 */
+	private class ConnectionTask implements Runnable {
+
+		private final ChannelConnection	channelConnection;
+
+		ConnectionTask(ChannelConnection channelConnection) {
+			this.channelConnection = channelConnection;
+		}
+
+		public void run() {
+			TCPConnection connection = null;
+			try {
+				connection = channelConnection.lease();
+				handler.handle(connection);
+				if (Log.isDebug()) {
+					Log.debug("<I> Incoming TCP connection (" + connection.getIdentifier() + ") handling done.", Log.DEBUG_LAYER_COMMUNICATION);
+				}
+				connection.close();
+			} catch (IOException e) {
+				if (connection != null && !connection.isClosed()) {
+					Log.printStackTrace(e);
+					Log.warn("<I> Incoming TCP connection (" + connection.getConnectionInfo() + "). " + e.getMessage() + ".");
+				}
+				channelConnection.closeChannel();
+			} catch (RuntimeException e) {
+				channelConnection.closeChannel();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Input stream for the handler. Returns the buffered request and then the
+	 * end of the stream, or in case of a streamed request continues with the
+	 * channel.
+	 */
+	private static class RequestInputStream extends InputStream {
+
+		private final ChannelConnection	connection;
+
+		private final int				limit;
+
+		private final InputStream		channelIn;
+
+		/** the handler has read up to the end of the request */
+		volatile boolean				exhausted	= false;
+
+		RequestInputStream(ChannelConnection connection, int limit, InputStream channelIn) {
+			this.connection = connection;
+			this.limit = limit;
+			this.channelIn = channelIn;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.InputStream#read()
+		 */
+		public int read() throws IOException {
+			ChannelConnection c = connection;
+			if (c.start < limit) {
+				return c.buffer[c.start++] & 0xFF;
+			}
+			if (channelIn != null) {
+				return channelIn.read();
+			}
+			exhausted = true;
+			return -1;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			ChannelConnection c = connection;
+			int available = limit - c.start;
+			if (available > 0) {
+				int n = len < available ? len : available;
+				System.arraycopy(c.buffer, c.start, b, off, n);
+				c.start += n;
+				return n;
+			}
+			if (channelIn != null) {
+				return channelIn.read(b, off, len);
+			}
+			exhausted = true;
+			return -1;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.InputStream#available()
+		 */
+		public int available() throws IOException {
+			int available = limit - connection.start;
+			if (available > 0) {
+				return available;
+			}
+			return channelIn != null ? channelIn.available() : 0;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.io.InputStream#close()
+		 */
+		public void close() throws IOException {
+			// the channel is closed or reused by the listener
+		}
+	}
+
+	/**
+	 * Keeps the channel open when the handler closes the output stream.
+	 */
+	private static class NonClosingOutputStream extends OutputStream {
+
+		private final OutputStream	out;
+
+		NonClosingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		public void close() throws IOException {
+			out.flush();
+		}
+	}
+
+}
@@ -69,6 +69,20 @@ public class TCPListener implements Runnable, ConnectionCloseListener {
 	 */
 
 	TCPListener(HTTPBinding binding, TCPConnectionHandler handler) throws IOException {
+		this(binding, handler, true);
+	}
+
+	/**
+	 * Checks the binding and the handler and opens the server socket if
+	 * requested. Subclasses which accept connections on their own pass
+	 * <code>false</code>.
+	 * 
+	 * @param binding the binding with address and port.
+	 * @param handler the handler which will handle the TCP connection.
+	 * @param openServerSocket whether to open the server socket.
+	 * @throws IOException
+	 */
+	TCPListener(HTTPBinding binding, TCPConnectionHandler handler, boolean openServerSocket) throws IOException {
 		if (binding == null) {
 			throw new IOException("Cannot create TCPListener without any binding!");
 		}
@@ -93,7 +107,9 @@ public class TCPListener implements Runnable, ConnectionCloseListener {
 
 		this.handler = handler;
 		this.comManId = binding.getCommunicationManagerId();
-		this.serverSocket = fac.createServerSocket(binding);
+		if (openServerSocket) {
+			this.serverSocket = fac.createServerSocket(binding);
+		}
 	}
 
 	/*
@@ -198,7 +214,7 @@ public class TCPListener implements Runnable, ConnectionCloseListener {
 				/*
 				 * Handle incoming TCP connection in an own thread.
 				 */
-				JMEDSFramework.getThreadPool().execute(new TCPConnectionThread(connection, handler));
+				JMEDSFramework.getThreadPool().executeBlocking(new TCPConnectionThread(connection, handler));
 			} catch (IOException e) {
 				if (isRunning()) {
 					Log.printStackTrace(e);
@@ -87,4 +87,16 @@ public interface HTTPRequest {
 
 	public boolean needsBody();
 
+	/**
+	 * Returns whether sending this request more than once has the same effect
+	 * as sending it once.
+	 * <p>
+	 * Only idempotent requests are sent again after their connection has been
+	 * closed before the response was received, all others fail then.
+	 * </p>
+	 * 
+	 * @return <code>true</code> if the request may be sent again.
+	 */
+	public boolean isIdempotent();
+
 }
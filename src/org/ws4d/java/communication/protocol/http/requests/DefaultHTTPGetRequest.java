@@ -95,4 +95,8 @@ public class DefaultHTTPGetRequest implements HTTPRequest {
 		return true;
 	}
 
+	public boolean isIdempotent() {
+		return true;
+	}
+
 }
@@ -62,8 +62,8 @@ public class DefaultParameterValueSerializer {
 	 */
 	public static void serialize(ParameterValue pv, OutputStream out) throws IOException {
 		pv.sharedLock();
+		Ws4dXmlSerializer serializer = XmlParserSerializerFactory.acquireSerializer();
 		try {
-			Ws4dXmlSerializer serializer = XmlParserSerializerFactory.createSerializer();
 			serializer.setOutput(out, XMLConstants.ENCODING);
 			// serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
 			// true);
@@ -83,6 +83,7 @@ public class DefaultParameterValueSerializer {
 			}
 			serializer.endDocument();
 		} finally {
+			XmlParserSerializerFactory.releaseSerializer(serializer);
 			pv.releaseSharedLock();
 		}
 	}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+
+package org.ws4d.java.concurrency;
+
+/**
+ * Compares the throughput of {@link LockSupport} and
+ * {@link StampedLockSupport} under contention.
+ * <p>
+ * Every thread repeatedly either reads or writes a small shared state guarded
+ * by the lock under test. The optimistic variant reads with
+ * {@link StampedLockSupport#tryOptimisticRead()} and falls back to a shared
+ * lock if the stamp is no longer valid.
+ * </p>
+ * <p>
+ * Usage: <code>LockContentionBenchmark [threads] [writePercent] [seconds]</code>
+ * </p>
+ */
+public class LockContentionBenchmark {
+
+	private static final int	DEFAULT_THREADS			= 8;
+
+	private static final int	DEFAULT_WRITE_PERCENT	= 10;
+
+	private static final int	DEFAULT_SECONDS			= 3;
+
+	private static final int	WARMUP_SECONDS			= 1;
+
+	private static final int	MODE_LOCKED				= 0;
+
+	private static final int	MODE_OPTIMISTIC			= 1;
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+		int writePercent = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_WRITE_PERCENT;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SECONDS;
+
+		System.out.println("Lock contention benchmark: " + threads + " threads, " + writePercent + "% writes, " + seconds + "s per run");
+		System.out.println("implementation                    ops/s        reads/s      writes/s");
+
+		for (int t = 1; t <= threads; t = (t < threads && t * 2 > threads) ? threads : t * 2) {
+			System.out.println("--- " + t + " thread(s)");
+			report("LockSupport", run(new LockSupport(), MODE_LOCKED, t, writePercent, seconds));
+			report("StampedLockSupport", run(new StampedLockSupport(), MODE_LOCKED, t, writePercent, seconds));
+			report("StampedLockSupport (optimistic)", run(new StampedLockSupport(), MODE_OPTIMISTIC, t, writePercent, seconds));
+		}
+	}
+
+	private static void report(String name, long[] result) {
+		StringBuffer sb = new StringBuffer(name);
+		while (sb.length() < 32) {
+			sb.append(' ');
+		}
+		sb.append(pad(result[0] + result[1])).append(pad(result[0])).append(pad(result[1]));
+		System.out.println(sb.toString());
+	}
+
+	private static String pad(long value) {
+		String s = Long.toString(value);
+		StringBuffer sb = new StringBuffer();
+		for (int i = s.length(); i < 13; i++) {
+			sb.append(' ');
+		}
+		return sb.append(s).toString();
+	}
+
+	/**
+	 * Runs one configuration and returns reads and writes per second.
+	 */
+	private static long[] run(final Lockable lock, final int mode, int threads, final int writePercent, int seconds) throws InterruptedException {
+		final SharedState state = new SharedState();
+		final Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(lock, state, mode, writePercent, i + 1);
+		}
+		for (int i = 0; i < threads; i++) {
+			workers[i].start();
+		}
+
+		Thread.sleep(WARMUP_SECONDS * 1000L);
+		for (int i = 0; i < threads; i++) {
+			workers[i].reset();
+		}
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		long reads = 0;
+		long writes = 0;
+		for (int i = 0; i < threads; i++) {
+			reads += workers[i].reads;
+			writes += workers[i].writes;
+		}
+		long elapsed = System.nanoTime() - start;
+
+		for (int i = 0; i < threads; i++) {
+			workers[i].running = false;
+		}
+		for (int i = 0; i < threads; i++) {
+			workers[i].join();
+		}
+		if (state.a != state.b) {
+			throw new IllegalStateException("Inconsistent state detected, the lock is broken.");
+		}
+		return new long[] { reads * 1000000000L / elapsed, writes * 1000000000L / elapsed };
+	}
+
+	private static class SharedState {
+
+		long	a;
+
+		long	b;
+	}
+
+	private static class Worker extends Thread {
+
+		private final Lockable		lock;
+
+		private final SharedState	state;
+
+		private final int			mode;
+
+		private final int			writePercent;
+
+		private int					seed;
+
+		volatile boolean			running	= true;
+
+		volatile long				reads;
+
+		volatile long				writes;
+
+		/** prevents the JIT from removing the reads */
+		long						sink;
+
+		Worker(Lockable lock, SharedState state, int mode, int writePercent, int seed) {
+			this.lock = lock;
+			this.state = state;
+			this.mode = mode;
+			this.writePercent = writePercent;
+			this.seed = seed * 0x9E3779B9;
+			setDaemon(true);
+		}
+
+		void reset() {
+			reads = 0;
+			writes = 0;
+		}
+
+		public void run() {
+			while (running) {
+				seed ^= seed << 13;
+				seed ^= seed >>> 17;
+				seed ^= seed << 5;
+				if ((seed & Integer.MAX_VALUE) % 100 < writePercent) {
+					lock.exclusiveLock();
+					try {
+						state.a++;
+						state.b++;
+					} finally {
+						lock.releaseExclusiveLock();
+					}
+					writes++;
+				} else {
+					sink += read();
+					reads++;
+				}
+			}
+		}
+
+		private long read() {
+			if (mode == MODE_OPTIMISTIC) {
+				StampedLockSupport stamped = (StampedLockSupport) lock;
+				long stamp = stamped.tryOptimisticRead();
+				long a = state.a;
+				long b = state.b;
+				if (stamped.validate(stamp)) {
+					return a - b;
+				}
+			}
+			lock.sharedLock();
+			try {
+				return state.a - state.b;
+			} finally {
+				lock.releaseSharedLock();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+
+package org.ws4d.java.concurrency;
+
+/**
+ * Creates the {@link Lockable} instances used by the framework.
+ * <p>
+ * The implementation can be chosen with
+ * {@link #setImplementation(int)} or the <code>LockImplementation</code>
+ * framework property. Locks which have already been created are not affected
+ * by a change, so the implementation should be chosen before the framework
+ * is started. Locks which are created in static initializers, before the
+ * properties have been read, must be created with {@link #newDeferredLock()}.
+ * </p>
+ */
+public final class LockFactory {
+
+	/**
+	 * Monitor based {@link LockSupport}.
+	 */
+	public static final int		IMPLEMENTATION_DEFAULT	= 0;
+
+	/**
+	 * {@link StampedLockSupport} with optimistic reads.
+	 */
+	public static final int		IMPLEMENTATION_STAMPED	= 1;
+
+	private static volatile int	implementation			= IMPLEMENTATION_DEFAULT;
+
+	/**
+	 * Hidden default constructor.
+	 */
+	private LockFactory() {}
+
+	/**
+	 * Creates a new multiple-readers/single-writer lock of the selected
+	 * implementation.
+	 * 
+	 * @return the new lock.
+	 */
+	public static Lockable newLock() {
+		if (implementation == IMPLEMENTATION_STAMPED) {
+			return new StampedLockSupport();
+		}
+		return new LockSupport();
+	}
+
+	/**
+	 * Creates a new multiple-readers/single-writer lock, whose implementation
+	 * is selected on its first use instead of now. Used for locks in static
+	 * fields, which are created before the framework properties are read.
+	 * 
+	 * @return the new lock.
+	 */
+	public static Lockable newDeferredLock() {
+		return new DeferredLock();
+	}
+
+	/**
+	 * Selects the implementation of new locks.
+	 * 
+	 * @param impl {@link #IMPLEMENTATION_DEFAULT} or
+	 *            {@link #IMPLEMENTATION_STAMPED}
+	 */
+	public static void setImplementation(int impl) {
+		if (impl != IMPLEMENTATION_DEFAULT && impl != IMPLEMENTATION_STAMPED) {
+			throw new IllegalArgumentException("Unknown lock implementation: " + impl);
+		}
+		implementation = impl;
+	}
+
+	/**
+	 * Returns the implementation of new locks.
+	 * 
+	 * @return {@link #IMPLEMENTATION_DEFAULT} or
+	 *         {@link #IMPLEMENTATION_STAMPED}
+	 */
+	public static int getImplementation() {
+		return implementation;
+	}
+
+	/**
+	 * Lock which creates the actual lock on its first use.
+	 */
+	private static final class DeferredLock implements Lockable {
+
+		private volatile Lockable	lock	= null;
+
+		private Lockable getLock() {
+			Lockable l = lock;
+			if (l == null) {
+				synchronized (this) {
+					l = lock;
+					if (l == null) {
+						l = newLock();
+						lock = l;
+					}
+				}
+			}
+			return l;
+		}
+
+		public void sharedLock() {
+			getLock().sharedLock();
+		}
+
+		public void exclusiveLock() {
+			getLock().exclusiveLock();
+		}
+
+		public boolean trySharedLock() {
+			return getLock().trySharedLock();
+		}
+
+		public boolean tryExclusiveLock() {
+			return getLock().tryExclusiveLock();
+		}
+
+		public void releaseSharedLock() {
+			getLock().releaseSharedLock();
+		}
+
+		public boolean releaseExclusiveLock() {
+			return getLock().releaseExclusiveLock();
+		}
+
+		public String toString() {
+			Lockable l = lock;
+			return l == null ? "DeferredLock (" + hashCode() + "): [ unused ]" : l.toString();
+		}
+	}
+
+}
@@ -9,6 +9,8 @@
  ******************************************************************************/
 package org.ws4d.java.concurrency;
 
+import java.lang.reflect.Method;
+
 import org.ws4d.java.structures.Iterator;
 import org.ws4d.java.structures.LinkedList;
 import org.ws4d.java.structures.List;
@@ -73,6 +75,19 @@ public class ThreadPool {
 	 */
 	private final Object	lock			= new Object();
 
+	/**
+	 * <code>Thread.startVirtualThread(Runnable)</code> if the JVM supports
+	 * virtual threads, <code>null</code> otherwise
+	 */
+	private static Method	startVirtualThread;
+
+	private static boolean	virtualThreadsChecked;
+
+	/**
+	 * whether blocking tasks should run on virtual threads
+	 */
+	private volatile boolean	useVirtualThreads	= false;
+
 	/**
 	 * The constructor of the ThreadPool class, creating a thread pool with
 	 * default size and default timeout.
@@ -151,6 +166,88 @@ public class ThreadPool {
 		return executeOrAbort(task, Thread.NORM_PRIORITY);
 	}
 
+	/**
+	 * Assigns tasks to the thread pool which block for a long time, e.g. tasks
+	 * handling a whole connection. If virtual threads are
+	 * {@link #setUseVirtualThreads(boolean) enabled} and supported by the JVM,
+	 * the task runs on a new virtual thread and does not occupy a worker of
+	 * this pool. Otherwise this method behaves like {@link #execute(Runnable)}.
+	 * 
+	 * @param task runnable which is assigned to the thread pool
+	 */
+	public void executeBlocking(Runnable task) {
+		if (useVirtualThreads && startVirtualThread(task)) {
+			return;
+		}
+		execute(task);
+	}
+
+	/**
+	 * Enables or disables the execution of
+	 * {@link #executeBlocking(Runnable) blocking tasks} on virtual threads.
+	 * Enabling has no effect if the JVM does not support virtual threads.
+	 * 
+	 * @param useVirtualThreads <code>true</code> to run blocking tasks on
+	 *            virtual threads
+	 */
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		if (useVirtualThreads && !isVirtualThreadSupported()) {
+			Log.warn("Virtual threads are not supported by this JVM. Blocking tasks are executed by the thread pool.");
+			useVirtualThreads = false;
+		}
+		this.useVirtualThreads = useVirtualThreads;
+	}
+
+	/**
+	 * Returns whether blocking tasks run on virtual threads.
+	 * 
+	 * @return <code>true</code> if blocking tasks run on virtual threads
+	 */
+	public boolean isUseVirtualThreads() {
+		return useVirtualThreads;
+	}
+
+	/**
+	 * Returns whether the JVM supports virtual threads.
+	 * 
+	 * @return <code>true</code> if virtual threads can be started
+	 */
+	public static synchronized boolean isVirtualThreadSupported() {
+		if (!virtualThreadsChecked) {
+			virtualThreadsChecked = true;
+			try {
+				startVirtualThread = Thread.class.getMethod("startVirtualThread", new Class<?>[] { Runnable.class });
+			} catch (Exception e) {
+				// JVM older than Java 21
+				startVirtualThread = null;
+			}
+		}
+		return startVirtualThread != null;
+	}
+
+	private static boolean startVirtualThread(final Runnable task) {
+		if (!isVirtualThreadSupported()) {
+			return false;
+		}
+		try {
+			startVirtualThread.invoke(null, new Object[] { new Runnable() {
+
+				public void run() {
+					try {
+						task.run();
+					} catch (Exception e) {
+						Log.error("Exception occurred while running virtual thread. " + e.getMessage());
+						Log.printStackTrace(e);
+					}
+				}
+			} });
+			return true;
+		} catch (Exception e) {
+			Log.printStackTrace(e);
+			return false;
+		}
+	}
+
 	/**
 	 * Assigns tasks to the thread pool for execution. Use this method for
 	 * essential tasks, which have to be immediately started or else aborted.
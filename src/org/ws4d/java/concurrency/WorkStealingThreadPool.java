@@ -0,0 +1,581 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+package org.ws4d.java.concurrency;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.ws4d.java.util.Log;
+
+/**
+ * Thread pool implementation with per-worker task deques and work stealing.
+ * <p>
+ * In contrast to {@link ThreadPool}, task submission does not synchronize on a
+ * global monitor. Tasks submitted by a worker thread of this pool are pushed
+ * to the worker's own deque, all other tasks are placed on a shared
+ * submission queue. Idle workers first drain their own deque, then the shared
+ * queue and finally steal from the deques of the other workers.
+ * </p>
+ * <p>
+ * The pool keeps at least <code>coreSize</code> worker threads alive once
+ * they have been started and grows up to <code>maxSize</code> threads if no
+ * idle worker is available for a submitted task. Because many framework tasks
+ * block for a long time (e.g. connection handlers), the pool always prefers
+ * starting a new worker over queuing a task. Tasks are only queued once the
+ * maximum number of workers is reached; if more than <code>queueSize</code>
+ * tasks are waiting, the configured rejection policy applies.
+ * </p>
+ * <p>
+ * Usage example:
+ * </p>
+ * <code>
+ * <p>ThreadPool myThreadPool = new WorkStealingThreadPool(4, 100, 1000, WorkStealingThreadPool.REJECTION_POLICY_CALLER_RUNS, 5000);<br />
+ * myThreadPool.execute(runnable1);<br />
+ * myThreadPool.shutdown();</p>
+ * </code>
+ */
+public class WorkStealingThreadPool extends ThreadPool {
+
+	/**
+	 * Rejected tasks are executed by the submitting thread. This slows down
+	 * producers as long as the pool is saturated.
+	 */
+	public static final int							REJECTION_POLICY_CALLER_RUNS	= 0;
+
+	/**
+	 * Rejected tasks are discarded.
+	 */
+	public static final int							REJECTION_POLICY_DISCARD		= 1;
+
+	/**
+	 * The oldest task waiting in the shared submission queue is discarded and
+	 * the rejected task is queued instead.
+	 */
+	public static final int							REJECTION_POLICY_DISCARD_OLDEST	= 2;
+
+	/**
+	 * Rejected tasks cause a {@link WorkStealingThreadPool.RejectedTaskException}
+	 * to be thrown to the submitting thread.
+	 */
+	public static final int							REJECTION_POLICY_ABORT			= 3;
+
+	/**
+	 * default number of core worker threads
+	 */
+	private static final int						DEFAULT_CORE_SIZE				= 4;
+
+	/**
+	 * default time to live for idle non-core workers
+	 */
+	public static final long						DEFAULT_TIMEOUT					= 10000;
+
+	/**
+	 * number of workers which are not disposed of after the timeout
+	 */
+	private final int								coreSize;
+
+	/**
+	 * maximal number of threads in the pool
+	 */
+	private final int								maxSize;
+
+	/**
+	 * maximal number of tasks waiting for a worker
+	 */
+	private final int								queueSize;
+
+	private final int								rejectionPolicy;
+
+	/**
+	 * life duration of idle non-core workers in milliseconds
+	 */
+	private final long								timeout;
+
+	/**
+	 * queue for tasks submitted by threads which do not belong to this pool
+	 */
+	private final ConcurrentLinkedQueue<Runnable>	submissions						= new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * stack of parked workers, the most recently parked worker is woken up
+	 * first
+	 */
+	private final ConcurrentLinkedDeque<Worker>		idleWorkers						= new ConcurrentLinkedDeque<Worker>();
+
+	/**
+	 * current number of worker threads (including starting ones)
+	 */
+	private final AtomicInteger						workerCount						= new AtomicInteger();
+
+	/**
+	 * number of tasks waiting in the submission queue or in one of the
+	 * worker deques
+	 */
+	private final AtomicInteger						pendingCount					= new AtomicInteger();
+
+	/**
+	 * number of workers which are awake and looking for tasks; submitters do
+	 * not need to wake up another worker as long as this is greater than zero
+	 */
+	private final AtomicInteger						searchingCount					= new AtomicInteger();
+
+	/**
+	 * snapshot of all live workers used as stealing victims; only replaced
+	 * when a worker is started or terminates
+	 */
+	private volatile Worker[]						workers							= new Worker[0];
+
+	private final Object							workersLock						= new Object();
+
+	private volatile boolean						shutdown						= false;
+
+	/**
+	 * Creates a work-stealing thread pool with default core size, unbounded
+	 * queue and default timeout.
+	 *
+	 * @param maxSize maximal number of threads in the pool
+	 */
+	public WorkStealingThreadPool(int maxSize) {
+		this(Math.min(DEFAULT_CORE_SIZE, maxSize), maxSize, Integer.MAX_VALUE, REJECTION_POLICY_CALLER_RUNS, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Creates a work-stealing thread pool.
+	 *
+	 * @param coreSize number of workers kept alive while idle
+	 * @param maxSize maximal number of threads in the pool
+	 * @param queueSize maximal number of waiting tasks before the rejection
+	 *            policy applies
+	 * @param rejectionPolicy one of the <code>REJECTION_POLICY_*</code>
+	 *            constants
+	 * @param timeout life duration of idle non-core workers in milliseconds
+	 */
+	public WorkStealingThreadPool(int coreSize, int maxSize, int queueSize, int rejectionPolicy, long timeout) {
+		super(maxSize, timeout);
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Maximal pool size must be at least 1.");
+		}
+		if (coreSize < 0 || coreSize > maxSize) {
+			throw new IllegalArgumentException("Core pool size must be between 0 and " + maxSize + ".");
+		}
+		if (queueSize < 0) {
+			throw new IllegalArgumentException("Queue size must not be negative.");
+		}
+		if (rejectionPolicy < REJECTION_POLICY_CALLER_RUNS || rejectionPolicy > REJECTION_POLICY_ABORT) {
+			throw new IllegalArgumentException("Unknown rejection policy: " + rejectionPolicy);
+		}
+		this.coreSize = coreSize;
+		this.maxSize = maxSize;
+		this.queueSize = queueSize;
+		this.rejectionPolicy = rejectionPolicy;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Converts the name of a rejection policy, as used in the properties file,
+	 * into the matching <code>REJECTION_POLICY_*</code> constant.
+	 *
+	 * @param name one of <code>CallerRuns</code>, <code>Discard</code>,
+	 *            <code>DiscardOldest</code> or <code>Abort</code>
+	 * @return the policy constant
+	 */
+	public static int parseRejectionPolicy(String name) {
+		if ("CallerRuns".equalsIgnoreCase(name)) {
+			return REJECTION_POLICY_CALLER_RUNS;
+		} else if ("Discard".equalsIgnoreCase(name)) {
+			return REJECTION_POLICY_DISCARD;
+		} else if ("DiscardOldest".equalsIgnoreCase(name)) {
+			return REJECTION_POLICY_DISCARD_OLDEST;
+		} else if ("Abort".equalsIgnoreCase(name)) {
+			return REJECTION_POLICY_ABORT;
+		}
+		throw new IllegalArgumentException("Unknown rejection policy: " + name);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.concurrency.ThreadPool#execute(java.lang.Runnable)
+	 */
+	public void execute(Runnable task) {
+		if (shutdown) {
+			return;
+		}
+
+		Thread current = Thread.currentThread();
+		if (current instanceof Worker && ((Worker) current).getPool() == this) {
+			pendingCount.incrementAndGet();
+			((Worker) current).deque.addLast(task);
+			signalWork();
+			return;
+		}
+
+		if (pendingCount.incrementAndGet() > queueSize && workerCount.get() >= maxSize) {
+			pendingCount.decrementAndGet();
+			reject(task);
+			return;
+		}
+		submissions.add(task);
+		signalWork();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.concurrency.ThreadPool#executeOrAbort(java.lang.Runnable,
+	 * int)
+	 */
+	public boolean executeOrAbort(Runnable task, int prio) {
+		if (shutdown) {
+			return false;
+		}
+
+		Worker w;
+		while ((w = idleWorkers.pollFirst()) != null) {
+			if (w.handOff(task, prio)) {
+				return true;
+			}
+		}
+		return tryAddWorker(task, prio);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.ws4d.java.concurrency.ThreadPool#shutdown()
+	 */
+	public void shutdown() {
+		shutdown = true;
+
+		Worker[] all = workers;
+		for (int i = 0; i < all.length; i++) {
+			java.util.concurrent.locks.LockSupport.unpark(all[i]);
+		}
+
+		Thread thisThread = Thread.currentThread();
+		for (int i = 0; i < all.length; i++) {
+			if (all[i] != thisThread) {
+				try {
+					all[i].join();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of worker threads currently alive.
+	 *
+	 * @return the number of worker threads.
+	 */
+	public int getPoolSize() {
+		return workerCount.get();
+	}
+
+	/**
+	 * Returns the number of parked worker threads.
+	 *
+	 * @return the number of idle worker threads.
+	 */
+	public int getIdleCount() {
+		return idleWorkers.size();
+	}
+
+	/**
+	 * Returns the number of tasks waiting for execution.
+	 *
+	 * @return the number of waiting tasks.
+	 */
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * Wakes up an idle worker or starts a new one if no worker is idle and the
+	 * maximal pool size is not reached yet. Nothing happens if some worker is
+	 * already searching for tasks.
+	 */
+	private void signalWork() {
+		if (searchingCount.get() > 0) {
+			// a searching worker will find the task or signal again
+			return;
+		}
+		Worker w = idleWorkers.pollFirst();
+		if (w != null) {
+			java.util.concurrent.locks.LockSupport.unpark(w);
+			return;
+		}
+		tryAddWorker(null, Thread.NORM_PRIORITY);
+	}
+
+	private boolean tryAddWorker(Runnable firstTask, int prio) {
+		while (true) {
+			int count = workerCount.get();
+			if (count >= maxSize) {
+				return false;
+			}
+			if (workerCount.compareAndSet(count, count + 1)) {
+				break;
+			}
+		}
+		if (firstTask == null) {
+			searchingCount.incrementAndGet();
+		}
+		Worker w = new Worker(firstTask, prio);
+		synchronized (workersLock) {
+			Worker[] old = workers;
+			Worker[] tmp = new Worker[old.length + 1];
+			System.arraycopy(old, 0, tmp, 0, old.length);
+			tmp[old.length] = w;
+			workers = tmp;
+		}
+		w.start();
+		return true;
+	}
+
+	private void removeWorker(Worker w) {
+		synchronized (workersLock) {
+			Worker[] old = workers;
+			for (int i = 0; i < old.length; i++) {
+				if (old[i] == w) {
+					Worker[] tmp = new Worker[old.length - 1];
+					System.arraycopy(old, 0, tmp, 0, i);
+					System.arraycopy(old, i + 1, tmp, i, old.length - i - 1);
+					workers = tmp;
+					break;
+				}
+			}
+		}
+	}
+
+	private void reject(Runnable task) {
+		switch (rejectionPolicy) {
+			case REJECTION_POLICY_CALLER_RUNS:
+				runTask(task);
+				break;
+			case REJECTION_POLICY_DISCARD:
+				if (Log.isWarn()) {
+					Log.warn("Thread pool saturated, discarding task " + task);
+				}
+				break;
+			case REJECTION_POLICY_DISCARD_OLDEST:
+				Runnable oldest = submissions.poll();
+				if (oldest != null) {
+					if (Log.isWarn()) {
+						Log.warn("Thread pool saturated, discarding task " + oldest);
+					}
+					submissions.add(task);
+					signalWork();
+				} else {
+					runTask(task);
+				}
+				break;
+			default:
+				throw new RejectedTaskException("Thread pool saturated, task rejected: " + task);
+		}
+	}
+
+	/**
+	 * Finds the next task for the given worker: own deque (LIFO), shared
+	 * submission queue (FIFO) and finally the oldest task of another worker.
+	 */
+	private Runnable nextTask(Worker self) {
+		Runnable task = self.deque.pollLast();
+		if (task == null) {
+			task = submissions.poll();
+		}
+		if (task == null) {
+			Worker[] victims = workers;
+			int n = victims.length;
+			if (n > 1) {
+				int start = self.nextVictim(n);
+				for (int i = 0; i < n && task == null; i++) {
+					Worker victim = victims[(start + i) % n];
+					if (victim != self) {
+						task = victim.deque.pollFirst();
+					}
+				}
+			}
+		}
+		if (task != null) {
+			pendingCount.decrementAndGet();
+		}
+		return task;
+	}
+
+	private static void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (Exception e) {
+			Log.error("Exception occurred while running thread. " + e.getMessage());
+			Log.printStackTrace(e);
+		}
+	}
+
+	/**
+	 * Thrown by {@link WorkStealingThreadPool#execute(Runnable)} if the pool is
+	 * saturated and the rejection policy is
+	 * {@link WorkStealingThreadPool#REJECTION_POLICY_ABORT}.
+	 */
+	public static class RejectedTaskException extends RuntimeException {
+
+		private static final long	serialVersionUID	= -4360815402815425127L;
+
+		public RejectedTaskException(String message) {
+			super(message);
+		}
+
+	}
+
+	/**
+	 * Worker thread owning a task deque.
+	 */
+	private class Worker extends Thread {
+
+		final ConcurrentLinkedDeque<Runnable>	deque		= new ConcurrentLinkedDeque<Runnable>();
+
+		/**
+		 * task handed over directly by executeOrAbort
+		 */
+		private final AtomicReference<Runnable>	handOffTask	= new AtomicReference<Runnable>();
+
+		private volatile int					handOffPrio	= Thread.NORM_PRIORITY;
+
+		private Runnable						firstTask;
+
+		private int								victimSeed;
+
+		private boolean							retired		= false;
+
+		Worker(Runnable firstTask, int prio) {
+			this.firstTask = firstTask;
+			this.victimSeed = System.identityHashCode(this);
+			setPriority(prio);
+		}
+
+		WorkStealingThreadPool getPool() {
+			return WorkStealingThreadPool.this;
+		}
+
+		boolean handOff(Runnable task, int prio) {
+			handOffPrio = prio;
+			if (handOffTask.compareAndSet(null, task)) {
+				java.util.concurrent.locks.LockSupport.unpark(this);
+				return true;
+			}
+			return false;
+		}
+
+		int nextVictim(int n) {
+			// xorshift, avoids all thieves hitting the same victim
+			int x = victimSeed;
+			x ^= x << 13;
+			x ^= x >>> 17;
+			x ^= x << 5;
+			victimSeed = x;
+			return (x & Integer.MAX_VALUE) % n;
+		}
+
+		public void run() {
+			try {
+				if (firstTask != null) {
+					Runnable task = firstTask;
+					firstTask = null;
+					runTask(task);
+					setPriority(Thread.NORM_PRIORITY);
+					searchingCount.incrementAndGet();
+				}
+
+				while (true) {
+					// this worker is counted as searching here
+					boolean handedOff = false;
+					Runnable task = handOffTask.getAndSet(null);
+					if (task != null) {
+						handedOff = true;
+					} else {
+						task = nextTask(this);
+					}
+					if (task != null) {
+						searchingCount.decrementAndGet();
+						if (pendingCount.get() > 0) {
+							// let another worker pick up the remaining tasks
+							signalWork();
+						}
+						if (handedOff) {
+							setPriority(handOffPrio);
+						}
+						runTask(task);
+						if (handedOff) {
+							setPriority(Thread.NORM_PRIORITY);
+						}
+						searchingCount.incrementAndGet();
+						continue;
+					}
+
+					if (shutdown) {
+						return;
+					}
+
+					/*
+					 * Announce idleness first and check for work again
+					 * afterwards, so a task submitted in between is not lost.
+					 */
+					idleWorkers.addFirst(this);
+					searchingCount.decrementAndGet();
+					if (handOffTask.get() != null || pendingCount.get() > 0 || shutdown) {
+						if (idleWorkers.remove(this)) {
+							searchingCount.incrementAndGet();
+							continue;
+						}
+					}
+
+					long start = System.currentTimeMillis();
+					java.util.concurrent.locks.LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeout));
+
+					if (idleWorkers.remove(this)) {
+						// still registered as idle, nobody has claimed us
+						if (shutdown) {
+							return;
+						}
+						if (System.currentTimeMillis() - start >= timeout && handOffTask.get() == null && pendingCount.get() == 0 && retire()) {
+							return;
+						}
+					}
+					searchingCount.incrementAndGet();
+				}
+			} finally {
+				if (!retired) {
+					workerCount.decrementAndGet();
+				}
+				removeWorker(this);
+			}
+		}
+
+		/**
+		 * Decrements the worker count if this worker is not one of the core
+		 * workers.
+		 */
+		private boolean retire() {
+			while (true) {
+				int count = workerCount.get();
+				if (count <= coreSize) {
+					return false;
+				}
+				if (workerCount.compareAndSet(count, count - 1)) {
+					retired = true;
+					return true;
+				}
+			}
+		}
+
+	}
+
+}
@@ -9,6 +9,8 @@
  ******************************************************************************/
 package org.ws4d.java.configuration;
 
+import org.ws4d.java.concurrency.LockFactory;
+import org.ws4d.java.concurrency.WorkStealingThreadPool;
 import org.ws4d.java.constants.FrameworkConstants;
 import org.ws4d.java.util.Log;
 
@@ -42,8 +44,65 @@ public class FrameworkProperties implements PropertiesHandler {
 	 */
 	public static final String	PROP_THREADPOOL_SIZE			= "ThreadPoolSize";
 
+	/**
+	 * Property id to specify the implementation of the common ThreadPool.
+	 * <BR>
+	 * Type: String, one of {@link #THREADPOOL_TYPE_DEFAULT} or
+	 * {@link #THREADPOOL_TYPE_WORK_STEALING} <BR>
+	 * Default: {@link #THREADPOOL_TYPE_DEFAULT}
+	 */
+	public static final String	PROP_THREADPOOL_TYPE			= "ThreadPoolType";
+
+	/**
+	 * Property id to specify the number of core worker threads of the
+	 * work-stealing ThreadPool.
+	 */
+	public static final String	PROP_THREADPOOL_CORE_SIZE		= "ThreadPoolCoreSize";
+
+	/**
+	 * Property id to specify the maximal number of waiting tasks of the
+	 * work-stealing ThreadPool.
+	 */
+	public static final String	PROP_THREADPOOL_QUEUE_SIZE		= "ThreadPoolQueueSize";
+
+	/**
+	 * Property id to specify what the work-stealing ThreadPool does with tasks
+	 * exceeding the queue size. <BR>
+	 * Type: String, one of <code>CallerRuns</code>, <code>Discard</code>,
+	 * <code>DiscardOldest</code> or <code>Abort</code> <BR>
+	 * Default: <code>CallerRuns</code>
+	 */
+	public static final String	PROP_THREADPOOL_REJECTION_POLICY	= "ThreadPoolRejectionPolicy";
+
+	/**
+	 * Property id to run blocking per-connection tasks (incoming TCP
+	 * connections, HTTP client readers and writers) on virtual threads if the
+	 * JVM supports them. <BR>
+	 * Type: boolean <BR>
+	 * Default: false
+	 */
+	public static final String	PROP_USE_VIRTUAL_THREADS		= "UseVirtualThreads";
+
+	/**
+	 * Property id to select the implementation of the framework's
+	 * reader/writer locks. Only locks created after the property has been
+	 * read are affected. <BR>
+	 * Type: String, one of {@link #LOCK_IMPLEMENTATION_DEFAULT} or
+	 * {@link #LOCK_IMPLEMENTATION_STAMPED} <BR>
+	 * Default: {@link #LOCK_IMPLEMENTATION_DEFAULT}
+	 */
+	public static final String	PROP_LOCK_IMPLEMENTATION		= "LockImplementation";
+
 	public static final String	PROP_BYPASS_WSDL_REPOSITORY		= "BypassWSDLRepository";
 
+	public static final String	THREADPOOL_TYPE_DEFAULT			= "Default";
+
+	public static final String	THREADPOOL_TYPE_WORK_STEALING	= "WorkStealing";
+
+	public static final String	LOCK_IMPLEMENTATION_DEFAULT		= "Default";
+
+	public static final String	LOCK_IMPLEMENTATION_STAMPED		= "Stamped";
+
 	public static boolean		REFERENCE_PARAM_MODE			= true;
 
 	// -----------------------------------------------------
@@ -56,6 +115,16 @@ public class FrameworkProperties implements PropertiesHandler {
 
 	private int					threadPoolSize					= 10000;
 
+	private String				threadPoolType					= THREADPOOL_TYPE_DEFAULT;
+
+	private int					threadPoolCoreSize				= 4;
+
+	private int					threadPoolQueueSize				= Integer.MAX_VALUE;
+
+	private int					threadPoolRejectionPolicy		= WorkStealingThreadPool.REJECTION_POLICY_CALLER_RUNS;
+
+	private boolean				useVirtualThreads				= false;
+
 	private boolean				bypassWsdlRepository			= false;
 
 	public FrameworkProperties() {
@@ -84,10 +153,23 @@ public class FrameworkProperties implements PropertiesHandler {
 					setKillOnShutdownHook("true".equals(property.value));
 				} else if (PROP_THREADPOOL_SIZE.equals(property.key)) {
 					setThreadPoolSize(Integer.valueOf(property.value).intValue());
+				} else if (PROP_THREADPOOL_TYPE.equals(property.key)) {
+					setThreadPoolType(property.value);
+				} else if (PROP_THREADPOOL_CORE_SIZE.equals(property.key)) {
+					setThreadPoolCoreSize(Integer.valueOf(property.value).intValue());
+				} else if (PROP_THREADPOOL_QUEUE_SIZE.equals(property.key)) {
+					setThreadPoolQueueSize(Integer.valueOf(property.value).intValue());
+				} else if (PROP_THREADPOOL_REJECTION_POLICY.equals(property.key)) {
+					setThreadPoolRejectionPolicy(WorkStealingThreadPool.parseRejectionPolicy(property.value));
+				} else if (PROP_USE_VIRTUAL_THREADS.equals(property.key)) {
+					setUseVirtualThreads("true".equals(property.value));
+				} else if (PROP_LOCK_IMPLEMENTATION.equals(property.key)) {
+					setLockImplementation(property.value);
 				} else if (PROP_BYPASS_WSDL_REPOSITORY.equals(property.key)) {
 					setBypassWsdlRepository("true".equals(property.value));
 				}
-			} catch (NumberFormatException e) {
+			} catch (IllegalArgumentException e) {
+				// includes NumberFormatException
 				Log.printStackTrace(e);
 			}
 		}
@@ -124,6 +206,62 @@ public class FrameworkProperties implements PropertiesHandler {
 		return threadPoolSize;
 	}
 
+	/**
+	 * Get the implementation type of the common thread pool.
+	 * 
+	 * @return {@link #THREADPOOL_TYPE_DEFAULT} or
+	 *         {@link #THREADPOOL_TYPE_WORK_STEALING}.
+	 */
+	public String getThreadPoolType() {
+		return threadPoolType;
+	}
+
+	/**
+	 * Get the number of core worker threads of the work-stealing thread pool.
+	 * 
+	 * @return number of core worker threads.
+	 */
+	public int getThreadPoolCoreSize() {
+		return threadPoolCoreSize;
+	}
+
+	/**
+	 * Get the maximal number of waiting tasks of the work-stealing thread pool.
+	 * 
+	 * @return maximal number of waiting tasks.
+	 */
+	public int getThreadPoolQueueSize() {
+		return threadPoolQueueSize;
+	}
+
+	/**
+	 * Get the rejection policy of the work-stealing thread pool.
+	 * 
+	 * @return one of the <code>WorkStealingThreadPool.REJECTION_POLICY_*</code>
+	 *         constants.
+	 */
+	public int getThreadPoolRejectionPolicy() {
+		return threadPoolRejectionPolicy;
+	}
+
+	/**
+	 * @return whether blocking per-connection tasks should run on virtual
+	 *         threads
+	 */
+	public boolean isUseVirtualThreads() {
+		return useVirtualThreads;
+	}
+
+	/**
+	 * Get the implementation of new reader/writer locks.
+	 * 
+	 * @return {@link #LOCK_IMPLEMENTATION_DEFAULT} or
+	 *         {@link #LOCK_IMPLEMENTATION_STAMPED}.
+	 */
+	public String getLockImplementation() {
+		return LockFactory.getImplementation() == LockFactory.IMPLEMENTATION_STAMPED ? LOCK_IMPLEMENTATION_STAMPED : LOCK_IMPLEMENTATION_DEFAULT;
+	}
+
 	/**
 	 * @return whether the WSDL repository should be bypassed during proxy
 	 *         service creation
@@ -156,4 +294,34 @@ public class FrameworkProperties implements PropertiesHandler {
 		this.threadPoolSize = size;
 	}
 
+	public void setLockImplementation(String impl) {
+		if (LOCK_IMPLEMENTATION_STAMPED.equalsIgnoreCase(impl)) {
+			LockFactory.setImplementation(LockFactory.IMPLEMENTATION_STAMPED);
+		} else if (LOCK_IMPLEMENTATION_DEFAULT.equalsIgnoreCase(impl)) {
+			LockFactory.setImplementation(LockFactory.IMPLEMENTATION_DEFAULT);
+		} else {
+			throw new IllegalArgumentException("Unknown lock implementation: " + impl);
+		}
+	}
+
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		this.useVirtualThreads = useVirtualThreads;
+	}
+
+	public void setThreadPoolType(String type) {
+		this.threadPoolType = type;
+	}
+
+	public void setThreadPoolCoreSize(int size) {
+		this.threadPoolCoreSize = size;
+	}
+
+	public void setThreadPoolQueueSize(int size) {
+		this.threadPoolQueueSize = size;
+	}
+
+	public void setThreadPoolRejectionPolicy(int policy) {
+		this.threadPoolRejectionPolicy = policy;
+	}
+
 }
@@ -9,6 +9,7 @@
  ******************************************************************************/
 package org.ws4d.java.configuration;
 
+import org.ws4d.java.communication.connection.tcp.SelectorTCPListener;
 import org.ws4d.java.structures.HashMap;
 import org.ws4d.java.util.Log;
 import org.ws4d.java.util.StringUtil;
@@ -25,6 +26,54 @@ public class HTTPProperties implements PropertiesHandler {
 
 	public static final String			PROP_USER_AGENT							= "UserAgent";
 
+	/**
+	 * Property id to specify how the HTTP server accepts and reads
+	 * connections.
+	 * <p>
+	 * Type: String, one of {@link #SERVER_MODE_BLOCKING} or
+	 * {@link #SERVER_MODE_SELECTOR} <BR>
+	 * Default: {@link #SERVER_MODE_BLOCKING}
+	 * </p>
+	 */
+	public static final String			PROP_SERVER_MODE						= "ServerMode";
+
+	/**
+	 * Property id to specify the number of event loops of the selector based
+	 * HTTP server.
+	 */
+	public static final String			PROP_SERVER_EVENT_LOOPS					= "ServerEventLoops";
+
+	/**
+	 * Property id to specify the size in bytes up to which the selector based
+	 * HTTP server buffers requests before they are handled.
+	 */
+	public static final String			PROP_SERVER_MAX_BUFFERED_REQUEST		= "ServerMaxBufferedRequest";
+
+	/**
+	 * Property id to specify the time in ms after which the selector based
+	 * HTTP server closes idle connections.
+	 */
+	public static final String			PROP_SERVER_IDLE_TIMEOUT				= "ServerIdleTimeout";
+
+	/**
+	 * Property id to specify the time in ms after which the HTTP client
+	 * closes idle connections.
+	 */
+	public static final String			PROP_CLIENT_IDLE_TIMEOUT				= "ClientIdleTimeout";
+
+	/**
+	 * Property id to specify the maximum number of requests the HTTP client
+	 * sends on one connection without waiting for their responses. The default
+	 * of 1 disables HTTP pipelining.
+	 */
+	public static final String			PROP_CLIENT_PIPELINE_DEPTH				= "ClientPipelineDepth";
+
+	/** one thread per connection, see <code>TCPListener</code> */
+	public static final String			SERVER_MODE_BLOCKING					= "Blocking";
+
+	/** event loops based on a selector, see <code>SelectorTCPListener</code> */
+	public static final String			SERVER_MODE_SELECTOR					= "Selector";
+
 	public static final String			SUBSUBSECTION_CONNECTION_CONFIG			= "ConnectionConfig";
 
 	public static final PropertyHeader	HEADER_SUBSUBSECTION_CONNECTION_CONFIG	= new PropertyHeader(SUBSUBSECTION_CONNECTION_CONFIG, Properties.HEADER_SECTION_HTTP);
@@ -41,6 +90,18 @@ public class HTTPProperties implements PropertiesHandler {
 
 	private int							maxCon									= 5;
 
+	private String						serverMode								= SERVER_MODE_BLOCKING;
+
+	private int							serverEventLoops						= SelectorTCPListener.DEFAULT_EVENT_LOOPS;
+
+	private int							serverMaxBufferedRequest				= SelectorTCPListener.DEFAULT_MAX_BUFFERED_REQUEST;
+
+	private long						serverIdleTimeout						= SelectorTCPListener.DEFAULT_IDLE_TIMEOUT;
+
+	private long						clientIdleTimeout						= 5000;
+
+	private int							clientPipelineDepth						= 1;
+
 	HTTPProperties() {
 		super();
 	}
@@ -65,6 +126,20 @@ public class HTTPProperties implements PropertiesHandler {
 			this.setDefaultUserAgent(property.value);
 		} else if (PROP_CHUNK_MODE.equals(property.key)) {
 			this.setDefaultChunkMode(Integer.parseInt(property.value));
+		} else if (PROP_MAX_CONNECTIONS.equals(property.key)) {
+			this.setMaxConnections(Integer.parseInt(property.value.trim()));
+		} else if (PROP_CLIENT_IDLE_TIMEOUT.equals(property.key)) {
+			this.setClientIdleTimeout(Long.parseLong(property.value.trim()));
+		} else if (PROP_CLIENT_PIPELINE_DEPTH.equals(property.key)) {
+			this.setClientPipelineDepth(Integer.parseInt(property.value.trim()));
+		} else if (PROP_SERVER_MODE.equals(property.key)) {
+			this.setServerMode(property.value);
+		} else if (PROP_SERVER_EVENT_LOOPS.equals(property.key)) {
+			this.setServerEventLoops(Integer.parseInt(property.value.trim()));
+		} else if (PROP_SERVER_MAX_BUFFERED_REQUEST.equals(property.key)) {
+			this.setServerMaxBufferedRequest(Integer.parseInt(property.value.trim()));
+		} else if (PROP_SERVER_IDLE_TIMEOUT.equals(property.key)) {
+			this.setServerIdleTimeout(Long.parseLong(property.value.trim()));
 		} else {
 
 		}
@@ -115,6 +190,68 @@ public class HTTPProperties implements PropertiesHandler {
 		this.maxCon = maxCon;
 	}
 
+	public long getClientIdleTimeout() {
+		return clientIdleTimeout;
+	}
+
+	public void setClientIdleTimeout(long clientIdleTimeout) {
+		this.clientIdleTimeout = clientIdleTimeout;
+	}
+
+	/**
+	 * @return maximum number of requests sent on one connection without
+	 *         waiting for their responses, 1 if pipelining is disabled.
+	 */
+	public int getClientPipelineDepth() {
+		return clientPipelineDepth;
+	}
+
+	public void setClientPipelineDepth(int clientPipelineDepth) {
+		this.clientPipelineDepth = clientPipelineDepth;
+	}
+
+	/**
+	 * @return {@link #SERVER_MODE_BLOCKING} or {@link #SERVER_MODE_SELECTOR}.
+	 */
+	public String getServerMode() {
+		return serverMode;
+	}
+
+	public void setServerMode(String serverMode) {
+		if (SERVER_MODE_SELECTOR.equalsIgnoreCase(serverMode)) {
+			this.serverMode = SERVER_MODE_SELECTOR;
+		} else if (SERVER_MODE_BLOCKING.equalsIgnoreCase(serverMode)) {
+			this.serverMode = SERVER_MODE_BLOCKING;
+		} else {
+			Log.warn("Unexpected HTTP server mode: " + serverMode + ", resetting to " + SERVER_MODE_BLOCKING);
+			this.serverMode = SERVER_MODE_BLOCKING;
+		}
+	}
+
+	public int getServerEventLoops() {
+		return serverEventLoops;
+	}
+
+	public void setServerEventLoops(int serverEventLoops) {
+		this.serverEventLoops = serverEventLoops;
+	}
+
+	public int getServerMaxBufferedRequest() {
+		return serverMaxBufferedRequest;
+	}
+
+	public void setServerMaxBufferedRequest(int serverMaxBufferedRequest) {
+		this.serverMaxBufferedRequest = serverMaxBufferedRequest;
+	}
+
+	public long getServerIdleTimeout() {
+		return serverIdleTimeout;
+	}
+
+	public void setServerIdleTimeout(long serverIdleTimeout) {
+		this.serverIdleTimeout = serverIdleTimeout;
+	}
+
 	public int getChunkMode(String address) {
 		ConnectionConfig c = (ConnectionConfig) ccMap.get(address);
 		if (c != null) {
@@ -18,6 +18,7 @@ import org.ws4d.java.constants.WSEConstants;
 import org.ws4d.java.constants.WSEConstants2009;
 import org.ws4d.java.constants.XMLConstants;
 import org.ws4d.java.description.DescriptionSerializer;
+import org.ws4d.java.io.xml.Ws4dXmlSerializer;
 import org.ws4d.java.io.xml.XmlParserSerializerFactory;
 import org.ws4d.java.schema.Schema;
 import org.ws4d.java.structures.DataStructure;
@@ -70,7 +71,15 @@ public class DefaultWSDLSerializer implements DescriptionSerializer {
 	 * java.io.OutputStream)
 	 */
 	public void serialize(WSDL wsdl, OutputStream out) throws IOException {
-		XmlSerializer serializer = XmlParserSerializerFactory.createSerializer();
+		Ws4dXmlSerializer serializer = XmlParserSerializerFactory.acquireSerializer();
+		try {
+			serialize(wsdl, out, serializer);
+		} finally {
+			XmlParserSerializerFactory.releaseSerializer(serializer);
+		}
+	}
+
+	private void serialize(WSDL wsdl, OutputStream out, XmlSerializer serializer) throws IOException {
 		// Define Output
 		serializer.setOutput(out, XMLConstants.ENCODING);
 		// Start Document
@@ -22,6 +22,7 @@ import org.ws4d.java.communication.listener.DefaultIncomingMessageListener;
 import org.ws4d.java.communication.structures.DiscoveryBinding;
 import org.ws4d.java.communication.structures.OutgoingDiscoveryInfo;
 import org.ws4d.java.concurrency.DeadlockException;
+import org.ws4d.java.concurrency.LockFactory;
 import org.ws4d.java.configuration.DispatchingProperties;
 import org.ws4d.java.constants.MessageConstants;
 import org.ws4d.java.message.Message;
@@ -73,16 +74,16 @@ public abstract class DeviceServiceRegistry {
 	private static final int			MAX_CACHE_SIZE					= DispatchingProperties.getInstance().getServiceReferenceCacheSize();
 
 	// epr -> SecurityKey2ReferenceMap (securityKey -> devRef)
-	static final LockedMap				DEVICE_REFS						= new LockedMap();
+	static final LockedMap				DEVICE_REFS						= new LockedMap(new HashMap(), LockFactory.newDeferredLock());
 
 	// epr -> SecurityKey2ReferenceMap (securityKey -> servRef)
-	static final LockedMap				SERVICE_REFS					= new LockedMap();
+	static final LockedMap				SERVICE_REFS					= new LockedMap(new HashMap(), LockFactory.newDeferredLock());
 
 	// default device instances
-	private static final LockedList		DEVICES							= new LockedList();
+	private static final LockedList		DEVICES							= new LockedList(new ArrayList(), LockFactory.newDeferredLock());
 
 	// default service instances
-	private static final LockedList		SERVICES						= new LockedList();
+	private static final LockedList		SERVICES						= new LockedList(new ArrayList(), LockFactory.newDeferredLock());
 
 	private static AppSequenceBuffer	appSequenceBuffer				= null;
 
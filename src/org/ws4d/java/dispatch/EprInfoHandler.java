@@ -69,6 +69,17 @@ public class EprInfoHandler {
 		unresolvedEPRs = otherHandler.unresolvedEPRs == null ? null : new ArrayList(otherHandler.unresolvedEPRs);
 	}
 
+	/**
+	 * Returns the preferred transport address if it is already known. In
+	 * contrast to {@link #getPreferredXAddressInfo()} this never resolves and
+	 * therefore never blocks.
+	 * 
+	 * @return the preferred transport address or <code>null</code>.
+	 */
+	public synchronized EprInfo getKnownPreferredXAddressInfo() {
+		return preferredXAddressInfo;
+	}
+
 	public EprInfo getPreferredXAddressInfo() throws CommunicationException {
 		ResolveRequestSynchronizer sync;
 		synchronized (this) {
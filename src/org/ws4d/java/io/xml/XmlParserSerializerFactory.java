@@ -9,17 +9,40 @@
  ******************************************************************************/
 package org.ws4d.java.io.xml;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
 import org.ws4d.java.constants.FrameworkConstants;
+import org.ws4d.java.structures.Stack;
 import org.ws4d.java.util.Clazz;
 import org.ws4d.java.util.Log;
 import org.ws4d.java.xmlpull.v1.XmlPullParser;
 import org.ws4d.java.xmlpull.v1.XmlPullParserException;
 
+/**
+ * Creates the XML parsers and serializers of the framework.
+ * <p>
+ * Parsers and serializers keep large buffers, so callers which need one only
+ * for a single document should use {@link #acquireParser()} and
+ * {@link #acquireSerializer()} and hand it back with
+ * {@link #releaseParser(XmlPullParser)} and
+ * {@link #releaseSerializer(Ws4dXmlSerializer)}. Up to {@link #POOL_SIZE}
+ * instances of each are kept for reuse.
+ * </p>
+ */
 public class XmlParserSerializerFactory {
 
-	private static Class	parser;
+	/** maximum number of idle parsers and of idle serializers kept */
+	public static final int		POOL_SIZE		= 16;
+
+	private static Class		parser;
+
+	private static Class		serializer;
+
+	private static final Stack	PARSER_POOL		= new Stack(POOL_SIZE);
 
-	private static Class	serializer;
+	private static final Stack	SERIALIZER_POOL	= new Stack(POOL_SIZE);
 
 	static {
 		try {
@@ -40,6 +63,9 @@ public class XmlParserSerializerFactory {
 		// .class
 		// if (Ws4dXmlPullParser.class.isAssignableFrom(_class)) {
 		parser = _class;
+		synchronized (PARSER_POOL) {
+			PARSER_POOL.clear();
+		}
 		// } else {
 		// throw new
 		// IllegalArgumentException("Class is not assignable to XmlPullParser");
@@ -49,6 +75,9 @@ public class XmlParserSerializerFactory {
 	public void setSerializer(Class _class) {
 		// if (Ws4dXmlSerializer.class.isAssignableFrom(_class)) {
 		serializer = _class;
+		synchronized (SERIALIZER_POOL) {
+			SERIALIZER_POOL.clear();
+		}
 		// } else {
 		// throw new
 		// IllegalArgumentException("Class is not assignable to Ws4dXmlSerializer");
@@ -57,7 +86,7 @@ public class XmlParserSerializerFactory {
 
 	public static XmlPullParser createParser() {
 		try {
-			XmlPullParser result = (XmlPullParser) parser.newInstance();
+			XmlPullParser result = parser == DefaultWs4dXmlPullParser.class ? new DefaultWs4dXmlPullParser() : (XmlPullParser) parser.newInstance();
 			result.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
 			return result;
 		} catch (InstantiationException e) {
@@ -76,7 +105,7 @@ public class XmlParserSerializerFactory {
 
 	public static Ws4dXmlSerializer createSerializer() {
 		try {
-			return (Ws4dXmlSerializer) serializer.newInstance();
+			return serializer == DefaultWs4dXmlSerializer.class ? new DefaultWs4dXmlSerializer() : (Ws4dXmlSerializer) serializer.newInstance();
 		} catch (InstantiationException e) {
 			if (Log.isError()) {
 				Log.printStackTrace(e);
@@ -88,4 +117,88 @@ public class XmlParserSerializerFactory {
 		}
 		return null;
 	}
+
+	/**
+	 * Returns an idle parser from the pool or creates a new one. The parser
+	 * must be passed to {@link #releaseParser(XmlPullParser)} when it is no
+	 * longer used.
+	 * 
+	 * @return a parser with namespace processing enabled.
+	 */
+	public static XmlPullParser acquireParser() {
+		synchronized (PARSER_POOL) {
+			if (PARSER_POOL.size() > 0) {
+				return (XmlPullParser) PARSER_POOL.pop();
+			}
+		}
+		return createParser();
+	}
+
+	/**
+	 * Resets the parser and keeps it for reuse. The parser must not be used by
+	 * the caller afterwards.
+	 * 
+	 * @param p the parser obtained from {@link #acquireParser()}, may be
+	 *            <code>null</code>.
+	 */
+	public static void releaseParser(XmlPullParser p) {
+		if (p == null || p.getClass() != parser) {
+			return;
+		}
+		try {
+			// releases the input and the listener
+			p.setInput((Reader) null);
+		} catch (XmlPullParserException e) {
+			return;
+		}
+		synchronized (PARSER_POOL) {
+			if (PARSER_POOL.size() < POOL_SIZE) {
+				PARSER_POOL.push(p);
+			}
+		}
+	}
+
+	/**
+	 * Returns an idle serializer from the pool or creates a new one. The
+	 * serializer must be passed to
+	 * {@link #releaseSerializer(Ws4dXmlSerializer)} when it is no longer used.
+	 * 
+	 * @return a serializer.
+	 */
+	public static Ws4dXmlSerializer acquireSerializer() {
+		synchronized (SERIALIZER_POOL) {
+			if (SERIALIZER_POOL.size() > 0) {
+				return (Ws4dXmlSerializer) SERIALIZER_POOL.pop();
+			}
+		}
+		return createSerializer();
+	}
+
+	/**
+	 * Resets the serializer and keeps it for reuse. The serializer must not be
+	 * used by the caller afterwards.
+	 * 
+	 * @param s the serializer obtained from {@link #acquireSerializer()}, may
+	 *            be <code>null</code>.
+	 */
+	public static void releaseSerializer(Ws4dXmlSerializer s) {
+		if (s == null || s.getClass() != serializer) {
+			return;
+		}
+		try {
+			s.resetSignaturePositions();
+			s.resetPrefixCounter();
+			// releases the output
+			s.setOutput((Writer) null);
+		} catch (IOException e) {
+			return;
+		} catch (RuntimeException e) {
+			return;
+		}
+		synchronized (SERIALIZER_POOL) {
+			if (SERIALIZER_POOL.size() < POOL_SIZE) {
+				SERIALIZER_POOL.push(s);
+			}
+		}
+	}
 }
@@ -32,7 +32,7 @@ import org.ws4d.java.communication.structures.DiscoveryAutoBinding;
 import org.ws4d.java.communication.structures.DiscoveryBinding;
 import org.ws4d.java.communication.structures.OutgoingDiscoveryInfo;
 import org.ws4d.java.concurrency.DeadlockException;
-import org.ws4d.java.concurrency.LockSupport;
+import org.ws4d.java.concurrency.LockFactory;
 import org.ws4d.java.concurrency.Lockable;
 import org.ws4d.java.configuration.DeviceProperties;
 import org.ws4d.java.configuration.DevicesPropertiesHandler;
@@ -184,7 +184,7 @@ public class DefaultDevice extends DeviceCommons implements LocalDevice {
 	protected final int											configurationId;
 
 	/** Lock */
-	private final Lockable										lockSupport							= new LockSupport();
+	private final Lockable										lockSupport							= LockFactory.newLock();
 
 	protected DiscoveryData										discoveryData;
 
@@ -249,6 +249,9 @@ public class DefaultDevice extends DeviceCommons implements LocalDevice {
 
 	private final MessageIdBuffer								messageIdBuffer						= new MessageIdBuffer();
 
+	/** relationship metadata of Get responses per protocol version */
+	private final HashMap										getResponseRelationships			= new HashMap();
+
 	public static final int										MAX_QNAME_SERIALIZATION				= 10;
 
 	/** Security */
@@ -1382,6 +1385,7 @@ public class DefaultDevice extends DeviceCommons implements LocalDevice {
 
 			running = true;
 			changed = false;
+			invalidateGetResponseCache();
 		} catch (Exception e) {
 			if (Log.isError()) {
 				Log.error("Exception thrown during start default device.");
@@ -1512,6 +1516,7 @@ public class DefaultDevice extends DeviceCommons implements LocalDevice {
 				sendBye();
 				DeviceServiceRegistry.announceDeviceBye(this);
 				running = false;
+				invalidateGetResponseCache();
 			} finally {
 				releaseExclusiveLock();
 			}
@@ -1619,6 +1624,32 @@ public class DefaultDevice extends DeviceCommons implements LocalDevice {
 
 	public void setServiceChanged() {
 		changed = true;
+		/*
+		 * The changed service has already discarded its own GetMetadata cache,
+		 * and the caches of the other services do not describe it. So only the
+		 * Get responses are affected, and the services map, which may be
+		 * modified concurrently without the device lock, is not iterated.
+		 */
+		synchronized (getResponseRelationships) {
+			getResponseRelationships.clear();
+		}
+	}
+
+	/**
+	 * Discards the relationship metadata kept for Get responses and for the
+	 * GetMetadata responses of the services. Called with the exclusive lock
+	 * whenever the metadata of this device may have changed.
+	 */
+	protected void invalidateGetResponseCache() {
+		synchronized (getResponseRelationships) {
+			getResponseRelationships.clear();
+		}
+		for (Iterator it = services.values().iterator(); it.hasNext();) {
+			Object service = it.next();
+			if (service instanceof DefaultService) {
+				((DefaultService) service).invalidateGetMetadataCache();
+			}
+		}
 	}
 
 	/**
@@ -1631,6 +1662,7 @@ public class DefaultDevice extends DeviceCommons implements LocalDevice {
 		Object[] container = null;
 
 		try {
+			invalidateGetResponseCache();
 			if (!isMetadataVersionSet) {
 				/*
 				 * We only increment version, if not set by user.
@@ -3403,46 +3435,7 @@ public class DefaultDevice extends DeviceCommons implements LocalDevice {
 
 				response.setThisModel(modelMetadata);
 				response.setThisDevice(deviceMetadata);
-				RelationshipMData relationship = new RelationshipMData();
-
-				// the host part
-				HostMData host = new HostMData();
-				host.setEndpointReference(getEndpointReference());
-
-				host.setTypes(getAppropriateTypes(null, connectionInfo));
-				relationship.setHost(host);
-
-				// the hosted parts
-				Iterator it = getServices();
-				while (it.hasNext()) {
-					HostedMData hosted = new HostedMData();
-					Service service = (Service) it.next();
-
-					/*
-					 * Filter endpoint references which are not transport
-					 * addresses. DPWS specification 2.5 R0042
-					 */
-					Iterator eprsCurrent = service.getEprInfos();
-					EprInfoSet eprsFiltered = new EprInfoSet();
-					while (eprsCurrent.hasNext()) {
-						EprInfo epr = (EprInfo) eprsCurrent.next();
-						if (epr.getXAddress() != null) {
-							eprsFiltered.add(epr);
-						}
-					}
-					hosted.setEprInfoSet(eprsFiltered);
-					Iterator typesCurrent = service.getPortTypes();
-					QNameSet typesFilled = new QNameSet();
-					while (typesCurrent.hasNext()) {
-						QName name = (QName) typesCurrent.next();
-						typesFilled.add(name);
-					}
-					hosted.setTypes(typesFilled);
-					hosted.setServiceId(service.getServiceId());
-					relationship.addHosted(hosted);
-				}
-
-				response.addRelationship(relationship);
+				response.addRelationship(getRelationship(connectionInfo));
 				if (customMData != null) {
 					response.setCustomMData(customMData);
 				}
@@ -3573,6 +3566,72 @@ public class DefaultDevice extends DeviceCommons implements LocalDevice {
 			}
 		}
 
+		/**
+		 * Returns the relationship metadata for a Get response on the given
+		 * connection. It is built once per protocol version and kept until
+		 * the metadata of this device or one of its services changes. Must be
+		 * called while holding the shared lock.
+		 * 
+		 * @param connectionInfo the connection the Get message was received
+		 *            on.
+		 * @return the relationship metadata, which must not be modified.
+		 */
+		private RelationshipMData getRelationship(ConnectionInfo connectionInfo) {
+			ProtocolVersion version = connectionInfo.getProtocolInfo().getVersion();
+			synchronized (getResponseRelationships) {
+				RelationshipMData relationship = (RelationshipMData) getResponseRelationships.get(version);
+				if (relationship != null) {
+					return relationship;
+				}
+			}
+
+			RelationshipMData relationship = new RelationshipMData();
+
+			// the host part
+			HostMData host = new HostMData();
+			host.setEndpointReference(getEndpointReference());
+
+			host.setTypes(getAppropriateTypes(null, connectionInfo));
+			relationship.setHost(host);
+
+			// the hosted parts
+			Iterator it = getServices();
+			while (it.hasNext()) {
+				HostedMData hosted = new HostedMData();
+				Service service = (Service) it.next();
+
+				/*
+				 * Filter endpoint references which are not transport
+				 * addresses. DPWS specification 2.5 R0042
+				 */
+				Iterator eprsCurrent = service.getEprInfos();
+				EprInfoSet eprsFiltered = new EprInfoSet();
+				while (eprsCurrent.hasNext()) {
+					EprInfo epr = (EprInfo) eprsCurrent.next();
+					if (epr.getXAddress() != null) {
+						eprsFiltered.add(epr);
+					}
+				}
+				hosted.setEprInfoSet(eprsFiltered);
+				Iterator typesCurrent = service.getPortTypes();
+				QNameSet typesFilled = new QNameSet();
+				while (typesCurrent.hasNext()) {
+					QName name = (QName) typesCurrent.next();
+					typesFilled.add(name);
+				}
+				hosted.setTypes(typesFilled);
+				hosted.setServiceId(service.getServiceId());
+				relationship.addHosted(hosted);
+			}
+
+			if (host.getTypes() != null) {
+				synchronized (getResponseRelationships) {
+					getResponseRelationships.put(version, relationship);
+				}
+			}
+			return relationship;
+		}
+
 		private QNameSet getAppropriateTypes(QNameSet searchedTypes, ConnectionInfo connectionInfo) {
 			/*
 			 * for general UDP probes, we may reduce the number of included
@@ -15,6 +15,8 @@ import org.ws4d.java.JMEDSFramework;
 import org.ws4d.java.communication.CommunicationException;
 import org.ws4d.java.communication.ConnectionInfo;
 import org.ws4d.java.communication.callback.DefaultResponseCallback;
+import org.ws4d.java.configuration.DispatchingProperties;
+import org.ws4d.java.configuration.EventingProperties;
 import org.ws4d.java.description.wsdl.WSDLOperation;
 import org.ws4d.java.dispatch.OutDispatcher;
 import org.ws4d.java.eventing.ClientSubscription;
@@ -33,7 +35,7 @@ import org.ws4d.java.structures.DataStructure;
 import org.ws4d.java.structures.HashMap;
 import org.ws4d.java.structures.HashSet;
 import org.ws4d.java.structures.Iterator;
-import org.ws4d.java.structures.LockedMap;
+import org.ws4d.java.structures.LinkedList;
 import org.ws4d.java.structures.LockedSet;
 import org.ws4d.java.types.AttributedURI;
 import org.ws4d.java.types.EprInfo;
@@ -43,6 +45,8 @@ import org.ws4d.java.types.URISet;
 import org.ws4d.java.types.XAddressInfo;
 import org.ws4d.java.util.IDGenerator;
 import org.ws4d.java.util.Log;
+import org.ws4d.java.util.TimedEntry;
+import org.ws4d.java.util.WatchDog;
 
 /**
  * Events are the source of server-side notifications to which interested
@@ -68,7 +72,8 @@ public class DefaultEventSource extends OperationCommons implements EventSource
 	/** set of all service subscriptions subscribed to this operation */
 	private LockedSet	subscriptions		= new LockedSet(new HashSet(5));
 
-	private HashMap		map_MsgId_2_Context	= new LockedMap(new HashMap(5));
+	/** remote notifications not sent yet, key = notify-to address */
+	private HashMap		destinations		= new HashMap();
 
 	/**
 	 * Creates a new event source instance with the given local <code>name</code> and <code>portType</code>.
@@ -97,6 +102,9 @@ public class DefaultEventSource extends OperationCommons implements EventSource
 	 * In case this event source represents a {@link #isSolicitResponse()
 	 * solicit-response} operation (in the sense of <a href="http://www.w3.org/TR/wsdl">WSDL 1.1 Specification</a>), the value of argument <code>eventNumber</code> can be used by callers to correlate incoming responses with this particular event source. It will be passed as the second argument to {@link #solicitResponseReceived(ParameterValue, int, ServiceSubscription)} . It is recommended to increment the supplied value whenever calling this method, but this is not checked for, so other means of providing reliable correlation based on this value can also be used.
 	 * </p>
+	 * <p>
+	 * Notifications to remote subscribers are queued per notify-to address and sent in order by one thread pool task per address. The number of notifications pending for one subscription can be limited with {@link EventingProperties#PROP_MAX_PENDING_NOTIFICATIONS}. Events which are dropped because of that limit are reported to {@link #solicitResponseException(Exception, int, ServiceSubscription)} for solicit-response operations.
+	 * </p>
 	 * 
 	 * @param paramValue the parameters to be sent to all subscribers with this
 	 *            event notification
@@ -106,6 +114,11 @@ public class DefaultEventSource extends OperationCommons implements EventSource
 	 */
 	public void fire(final ParameterValue paramValue, final int eventNumber, final CredentialInfo credentialInfo) {
 		final ArrayList outdatedSubscriptions = new ArrayList();
+		EventingProperties properties = EventingProperties.getInstance();
+		int maxPending = properties.getMaxPendingNotifications();
+		boolean coalesce = EventingProperties.NOTIFICATION_OVERFLOW_COALESCE.equals(properties.getNotificationOverflow());
+		ArrayList dropped = null;
+
 		subscriptions.sharedLock();
 		try {
 			long currentTime = System.currentTimeMillis();
@@ -121,8 +134,6 @@ public class DefaultEventSource extends OperationCommons implements EventSource
 					continue;
 				}
 
-				final OperationDescription op = this;
-
 				if (subscription.sink != null) {
 					/*
 					 * CASE: Local Client
@@ -147,65 +158,29 @@ public class DefaultEventSource extends OperationCommons implements EventSource
 					});
 				} else {
 					/*
-					 * CASE: Remote client
+					 * CASE: Remote client, queued per notify-to address
 					 */
-					JMEDSFramework.getThreadPool().execute(new Runnable() {
-
-						public void run() {
-							InvokeMessage notification = new InvokeMessage(new AttributedURI(getOutputAction()));
-							notification.setContent(paramValue);
-							SOAPHeader header = notification.getHeader();
-
-							EprInfo epr = subscription.getNotifyTo();
-
-							/*
-							 * Add client subscription id
-							 */
-							header.setEndpointReference(epr.getEndpointReference());
-
-							/*
-							 * Send the message
-							 */
-							if (getType() == WSDLOperation.TYPE_SOLICIT_RESPONSE) {
-								/*
-								 * CASE: Solicit response
-								 */
-								URI msgId = notification.getMessageId();
-								SolicitResponseContext msgContext = new SolicitResponseContext(msgId);
-
-								map_MsgId_2_Context.put(msgId, msgContext);
-								OutDispatcher.getInstance().send(notification, epr, credentialInfo, new DefaultEventSourceCallback(epr, subscription, op, credentialInfo, subscription.getHostedBlockVersionForNotifyTo()));
-
-								synchronized (msgId) {
-									while (msgContext.waitingForNotfication) {
-										try {
-											msgId.wait();
-										} catch (InterruptedException e) {
-											e.printStackTrace();
-										}
-									}
-								}
-								if (msgContext.rspParamValue != null) {
-									solicitResponseReceived(msgContext.rspParamValue, eventNumber, subscription);
-								} else if (msgContext.rspFault != null) {
-									solicitResponseFaultReceived(msgContext.rspFault, eventNumber, subscription);
-								} else {
-									solicitResponseException(msgContext.rspException, eventNumber, subscription);
-								}
-							} else {
-								/*
-								 * CASE: Notification
-								 */
-								OutDispatcher.getInstance().send(notification, epr, credentialInfo, new DefaultEventSourceCallback(epr, subscription, op, credentialInfo, subscription.getHostedBlockVersionForNotifyTo()));
-							}
+					Notification notification = new Notification(subscription, paramValue, eventNumber, credentialInfo);
+					Notification droppedNotification = getDestination(subscription).offer(notification, maxPending, coalesce);
+					if (droppedNotification != null) {
+						if (dropped == null) {
+							dropped = new ArrayList();
 						}
-					});
+						dropped.add(droppedNotification);
+					}
 				}
 			}
 		} finally {
 			subscriptions.releaseSharedLock();
 		}
 
+		if (dropped != null) {
+			for (Iterator it = dropped.iterator(); it.hasNext();) {
+				Notification notification = (Notification) it.next();
+				notificationDropped(notification, "Too many pending notifications for subscription");
+			}
+		}
+
 		/*
 		 * remove outdated subscriptions
 		 */
@@ -349,45 +324,271 @@ public class DefaultEventSource extends OperationCommons implements EventSource
 		}
 	}
 
+	// ------------------ INTERNAL NOTIFICATION FAN-OUT ----------------------
+
+	/**
+	 * Returns the queue for the notify-to address of the given subscription.
+	 * Subscriptions whose address is not resolved yet get a queue of their
+	 * own.
+	 */
+	private Destination getDestination(ServiceSubscription subscription) {
+		EprInfo epr = subscription.getKnownNotifyTo();
+		Object key = (epr != null && epr.getXAddress() != null) ? (Object) epr.getXAddress() : subscription;
+		synchronized (destinations) {
+			Destination destination = (Destination) destinations.get(key);
+			if (destination == null) {
+				destination = new Destination(key);
+				destinations.put(key, destination);
+			}
+			return destination;
+		}
+	}
+
+	private void send(Notification notification) {
+		ServiceSubscription subscription = notification.subscription;
+		EprInfo epr = subscription.getNotifyTo();
+		if (epr == null) {
+			subscription.removePendingNotification();
+			notificationDropped(notification, "No notify-to address");
+			return;
+		}
+
+		DefaultEventSourceCallback callback = new DefaultEventSourceCallback(epr, notification, subscription.getHostedBlockVersionForNotifyTo());
+		try {
+			InvokeMessage invoke = new InvokeMessage(new AttributedURI(getOutputAction()));
+			invoke.setContent(notification.paramValue);
+			SOAPHeader header = invoke.getHeader();
+
+			/*
+			 * Add client subscription id
+			 */
+			header.setEndpointReference(epr.getEndpointReference());
+
+			/*
+			 * Send the message, the callback continues with the response of a
+			 * solicit response operation
+			 */
+			callback.startTimeout();
+			OutDispatcher.getInstance().send(invoke, epr, notification.credentialInfo, callback);
+		} catch (RuntimeException e) {
+			/*
+			 * Released through the callback, so neither its timeout nor a
+			 * handler called before the exception releases it again.
+			 */
+			callback.complete();
+			throw e;
+		}
+	}
+
+	private void notificationDropped(Notification notification, String reason) {
+		if (getType() == WSDLOperation.TYPE_SOLICIT_RESPONSE) {
+			solicitResponseException(new CommunicationException(reason + ", event " + notification.eventNumber + " not sent."), notification.eventNumber, notification.subscription);
+		} else if (Log.isDebug()) {
+			Log.debug("DefaultEventSource.fire(): " + reason + ", event " + notification.eventNumber + " not sent.");
+		}
+	}
+
 	// =========================== INNER CLASSES ===========================
 
-	private class SolicitResponseContext {
+	private static class Notification {
+
+		final ServiceSubscription	subscription;
+
+		ParameterValue				paramValue;
+
+		int							eventNumber;
+
+		CredentialInfo				credentialInfo;
+
+		Notification(ServiceSubscription subscription, ParameterValue paramValue, int eventNumber, CredentialInfo credentialInfo) {
+			this.subscription = subscription;
+			this.paramValue = paramValue;
+			this.eventNumber = eventNumber;
+			this.credentialInfo = credentialInfo;
+		}
+
+	}
+
+	/**
+	 * Notifications waiting to be sent to one notify-to address. They are sent
+	 * in order by one thread pool task, which runs as long as the queue is not
+	 * empty.
+	 */
+	private class Destination implements Runnable {
+
+		private final Object		key;
 
-		final URI			messageId;
+		private final LinkedList	queue		= new LinkedList();
 
-		ParameterValue		rspParamValue			= null;
+		private boolean				scheduled	= false;
 
-		FaultMessage		rspFault				= null;
+		Destination(Object key) {
+			this.key = key;
+		}
 
-		Exception			rspException			= null;
+		/**
+		 * Queues the notification. If the subscription has reached the pending
+		 * limit, the notification either replaces the newest queued one of the
+		 * same subscription (coalesce) or is dropped. If all pending
+		 * notifications of the subscription are sent already, coalesce queues
+		 * the notification beyond the limit.
+		 * 
+		 * @return the notification which will not be sent, or
+		 *         <code>null</code>.
+		 */
+		Notification offer(Notification notification, int maxPending, boolean coalesce) {
+			Notification dropped = null;
+			boolean schedule = false;
+			synchronized (this) {
+				if (notification.subscription.addPendingNotification(maxPending)) {
+					queue.add(notification);
+				} else {
+					Notification queued = coalesce ? getLastQueued(notification.subscription) : null;
+					if (queued != null) {
+						dropped = new Notification(queued.subscription, queued.paramValue, queued.eventNumber, queued.credentialInfo);
+						queued.paramValue = notification.paramValue;
+						queued.eventNumber = notification.eventNumber;
+						queued.credentialInfo = notification.credentialInfo;
+					} else if (coalesce) {
+						/*
+						 * nothing to coalesce with, the newest value must not
+						 * get lost
+						 */
+						notification.subscription.addPendingNotification(0);
+						queue.add(notification);
+					} else {
+						dropped = notification;
+					}
+				}
+				if (!scheduled && queue.size() > 0) {
+					scheduled = true;
+					schedule = true;
+				}
+			}
+			if (schedule) {
+				JMEDSFramework.getThreadPool().execute(this);
+			}
+			return dropped;
+		}
 
-		volatile boolean	waitingForNotfication	= true;
+		private Notification getLastQueued(ServiceSubscription subscription) {
+			Notification last = null;
+			for (Iterator it = queue.iterator(); it.hasNext();) {
+				Notification queued = (Notification) it.next();
+				if (queued.subscription == subscription) {
+					last = queued;
+				}
+			}
+			return last;
+		}
 
-		SolicitResponseContext(URI messageId) {
-			this.messageId = messageId;
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+			while (true) {
+				Notification notification = null;
+				synchronized (this) {
+					if (queue.size() > 0) {
+						notification = (Notification) queue.removeFirst();
+					}
+				}
+				if (notification == null) {
+					synchronized (destinations) {
+						synchronized (this) {
+							if (queue.size() == 0) {
+								scheduled = false;
+								if (destinations.get(key) == this) {
+									destinations.remove(key);
+								}
+								return;
+							}
+						}
+					}
+					continue;
+				}
+				try {
+					send(notification);
+				} catch (RuntimeException e) {
+					// the pending notification has been released by send()
+					if (Log.isError()) {
+						Log.printStackTrace(e);
+					}
+				}
+			}
 		}
 
 	}
 
+	/**
+	 * Continues a sent notification. Responses of solicit response operations
+	 * are delivered to {@link DefaultEventSource#solicitResponseReceived}
+	 * directly from here, so no thread waits for them.
+	 */
 	private class DefaultEventSourceCallback extends DefaultResponseCallback {
 
-		private final ServiceSubscription	subscription;
+		private final Notification	notification;
 
-		private final OperationDescription	op;
+		private final int			hostedBlockVersion;
 
-		private int							hostedBlockVersion;
+		private boolean				completed	= false;
 
-		private CredentialInfo				credentialInfo;
+		/**
+		 * Releases the pending notification if none of the handle methods is
+		 * called.
+		 */
+		private final TimedEntry	timeout		= new TimedEntry() {
+
+													protected void timedOut() {
+														if (complete()) {
+															String reason = "No response to event " + notification.eventNumber + " within the response wait time";
+															if (isSolicitResponse()) {
+																solicitResponseException(new CommunicationException(reason), notification.eventNumber, notification.subscription);
+															} else {
+																notificationCommunicationException(new CommunicationException(reason), notification.eventNumber, notification.subscription);
+															}
+														}
+													}
+												};
 
 		/**
 		 * 
 		 */
-		public DefaultEventSourceCallback(XAddressInfo targetXAddressInfo, ServiceSubscription subscription, OperationDescription op, CredentialInfo credentialInfo, int hostedBlockVersion) {
+		public DefaultEventSourceCallback(XAddressInfo targetXAddressInfo, Notification notification, int hostedBlockVersion) {
 			super(targetXAddressInfo);
-			this.subscription = subscription;
-			this.op = op;
+			this.notification = notification;
 			this.hostedBlockVersion = hostedBlockVersion;
-			this.credentialInfo = credentialInfo;
+		}
+
+		/**
+		 * Starts the timeout releasing the pending notification. It is twice
+		 * the response wait time, so a timeout reported by the dispatcher is
+		 * handled first.
+		 */
+		void startTimeout() {
+			WatchDog.getInstance().register(timeout, 2L * DispatchingProperties.getInstance().getResponseWaitTime());
+		}
+
+		/**
+		 * Marks the notification as completed.
+		 * 
+		 * @return <code>false</code> if it was completed before.
+		 */
+		private boolean complete() {
+			synchronized (this) {
+				if (completed) {
+					return false;
+				}
+				completed = true;
+			}
+			WatchDog.getInstance().unregister(timeout);
+			notification.subscription.removePendingNotification();
+			return true;
+		}
+
+		private boolean isSolicitResponse() {
+			return getType() == WSDLOperation.TYPE_SOLICIT_RESPONSE;
 		}
 
 		/*
@@ -399,15 +600,8 @@ public class DefaultEventSource extends OperationCommons implements EventSource
 		 * org.ws4d.java.communication.ProtocolData)
 		 */
 		public void handle(InvokeMessage invokeRequest, InvokeMessage msg, ConnectionInfo connectionInfo, AttributedURI optionalMessageId) {
-			URI msgId = msg.getRelatesTo();
-
-			SolicitResponseContext msgContext = (SolicitResponseContext) map_MsgId_2_Context.remove(msgId);
-			if (msgContext != null) {
-				synchronized (msgContext.messageId) {
-					msgContext.rspParamValue = msg.getContent();
-					msgContext.waitingForNotfication = false;
-					msgContext.messageId.notify();
-				}
+			if (complete() && isSolicitResponse()) {
+				solicitResponseReceived(msg.getContent(), notification.eventNumber, notification.subscription);
 			}
 		}
 
@@ -420,15 +614,8 @@ public class DefaultEventSource extends OperationCommons implements EventSource
 		 * org.ws4d.java.communication.ProtocolData)
 		 */
 		public void handle(Message request, FaultMessage msg, ConnectionInfo connectionInfo, AttributedURI optionalMessageId) {
-			URI msgId = request.getMessageId();
-
-			SolicitResponseContext msgContext = (SolicitResponseContext) map_MsgId_2_Context.remove(msgId);
-			if (msgContext != null) {
-				synchronized (msgContext.messageId) {
-					msgContext.rspFault = msg;
-					msgContext.waitingForNotfication = false;
-					msgContext.messageId.notify();
-				}
+			if (complete() && isSolicitResponse()) {
+				solicitResponseFaultReceived(msg, notification.eventNumber, notification.subscription);
 			}
 		}
 
@@ -439,28 +626,14 @@ public class DefaultEventSource extends OperationCommons implements EventSource
 		 * java.lang.Exception, org.ws4d.java.communication.ProtocolData)
 		 */
 		public void handleMalformedResponseException(Message request, Exception exception, ConnectionInfo connectionInfo, AttributedURI optionalMessageId) {
-			URI msgId = request.getMessageId();
-
-			SolicitResponseContext msgContext = (SolicitResponseContext) map_MsgId_2_Context.remove(msgId);
-			if (msgContext != null) {
-				synchronized (msgContext.messageId) {
-					msgContext.rspException = exception;
-					msgContext.waitingForNotfication = false;
-					msgContext.messageId.notify();
-				}
+			if (complete() && isSolicitResponse()) {
+				solicitResponseException(exception, notification.eventNumber, notification.subscription);
 			}
 		}
 
 		public void handleNoContent(Message request, String reason, ConnectionInfo connectionInfo, AttributedURI optionalMessageId) {
-			URI msgId = request.getMessageId();
-
-			SolicitResponseContext msgContext = (SolicitResponseContext) map_MsgId_2_Context.remove(msgId);
-			if (msgContext != null) {
-				synchronized (msgContext.messageId) {
-					msgContext.rspException = new CommunicationException("Message without content received as solicit response (reason: " + reason + ").");
-					msgContext.waitingForNotfication = false;
-					msgContext.messageId.notify();
-				}
+			if (complete() && isSolicitResponse()) {
+				solicitResponseException(new CommunicationException("Message without content received as solicit response (reason: " + reason + ")."), notification.eventNumber, notification.subscription);
 			}
 		}
 
@@ -472,14 +645,14 @@ public class DefaultEventSource extends OperationCommons implements EventSource
 		 */
 		public void handleTransmissionException(Message request, Exception exception, ConnectionInfo connectionInfo, AttributedURI optionalMessageId) {
 			try {
-				XAddressInfo xAddressInfo = subscription.getNextXAddressInfoAfterFailureForNotifyTo(connectionInfo.getTransportAddress(), hostedBlockVersion);
+				XAddressInfo xAddressInfo = notification.subscription.getNextXAddressInfoAfterFailureForNotifyTo(connectionInfo.getTransportAddress(), hostedBlockVersion);
 				if (xAddressInfo != null) {
-					OutDispatcher.getInstance().send((InvokeMessage) request, xAddressInfo, credentialInfo, this);
+					OutDispatcher.getInstance().send((InvokeMessage) request, xAddressInfo, notification.credentialInfo, this);
 				} else {
-					terminateSubscription(request.getMessageId(), "Could not transmit notification message " + exception);
+					terminateSubscription("Could not transmit notification message " + exception);
 				}
 			} catch (Throwable e) {
-				terminateSubscription(request.getMessageId(), "Exception occured during transmission exception processing: " + e);
+				terminateSubscription("Exception occured during transmission exception processing: " + e);
 			}
 		}
 
@@ -490,22 +663,21 @@ public class DefaultEventSource extends OperationCommons implements EventSource
 		 * .java.communication.message.Message)
 		 */
 		public void handleTimeout(Message request, ConnectionInfo connectionInfo, AttributedURI optionalMessageId) {
-			terminateSubscription(request.getMessageId(), "Time out while waiting for solicit response " + connectionInfo + " " + request);
+			terminateSubscription("Time out while waiting for solicit response " + connectionInfo + " " + request);
 		}
 
-		private void terminateSubscription(URI msgId, String errorMessage) {
-			SolicitResponseContext msgContext = (SolicitResponseContext) map_MsgId_2_Context.remove(msgId);
-			if (msgContext != null) {
-				synchronized (msgContext.messageId) {
-					msgContext.rspException = new CommunicationException(errorMessage);
-					msgContext.waitingForNotfication = false;
-					msgContext.messageId.notify();
+		private void terminateSubscription(String errorMessage) {
+			if (complete()) {
+				if (isSolicitResponse()) {
+					solicitResponseException(new CommunicationException(errorMessage), notification.eventNumber, notification.subscription);
+				} else {
+					notificationCommunicationException(new CommunicationException(errorMessage), notification.eventNumber, notification.subscription);
 				}
 			}
 
 			subscriptions.exclusiveLock();
 			try {
-				subscriptions.remove(subscription);
+				subscriptions.remove(notification.subscription);
 				if (Log.isDebug()) {
 					Log.debug("DefaultEventSource.fire(): " + errorMessage);
 				}
@@ -519,7 +691,7 @@ public class DefaultEventSource extends OperationCommons implements EventSource
 		 * @see org.ws4d.java.communication.ResponseCallback#getOperation()
 		 */
 		public OperationDescription getOperation() {
-			return op;
+			return DefaultEventSource.this;
 		}
 	}
 
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+package org.ws4d.java.service.parameter;
+
+/**
+ * Value of an <code>xs:boolean</code> parameter.
+ * <p>
+ * The value can be set as <code>boolean</code> with {@link #set(boolean)},
+ * which uses the constant texts <code>true</code> and <code>false</code>. A
+ * value set as string, e.g. by the parser, is kept as it is and parsed by
+ * {@link #getBoolean()}.
+ * </p>
+ */
+public class BooleanValue extends StringValue {
+
+	private static final String	TRUE	= "true";
+
+	private static final String	FALSE	= "false";
+
+	public BooleanValue() {
+		super(null);
+	}
+
+	public BooleanValue(boolean value) {
+		super(value ? TRUE : FALSE);
+	}
+
+	/**
+	 * Returns the value of this parameter value.
+	 * 
+	 * @return <code>true</code> if the value is <code>true</code> or
+	 *         <code>1</code>.
+	 */
+	public boolean getBoolean() {
+		pvLock.sharedLock();
+		try {
+			if (value == null) {
+				return false;
+			}
+			String text = value.trim();
+			return TRUE.equals(text) || "1".equals(text);
+		} finally {
+			pvLock.releaseSharedLock();
+		}
+	}
+
+	/**
+	 * Sets the value of this parameter value.
+	 * 
+	 * @param value the value to set.
+	 */
+	public void set(boolean value) {
+		set(value ? TRUE : FALSE);
+	}
+}
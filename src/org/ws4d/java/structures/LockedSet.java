@@ -10,7 +10,7 @@
 
 package org.ws4d.java.structures;
 
-import org.ws4d.java.concurrency.LockSupport;
+import org.ws4d.java.concurrency.LockFactory;
 import org.ws4d.java.concurrency.Lockable;
 
 /**
@@ -39,7 +39,7 @@ public class LockedSet extends Set {
 	 * @param set Set which this will encapsulate.
 	 */
 	public LockedSet(Set set) {
-		this(set, new LockSupport());
+		this(set, LockFactory.newLock());
 	}
 
 	/**
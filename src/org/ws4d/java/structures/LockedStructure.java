@@ -10,7 +10,7 @@
 
 package org.ws4d.java.structures;
 
-import org.ws4d.java.concurrency.LockSupport;
+import org.ws4d.java.concurrency.LockFactory;
 import org.ws4d.java.concurrency.Lockable;
 
 /**
@@ -43,7 +43,7 @@ public class LockedStructure extends DataStructure implements Lockable {
 	 */
 	public LockedStructure(DataStructure data) {
 		this.dataToSynchronize = data;
-		this.lock = new LockSupport();
+		this.lock = LockFactory.newLock();
 	}
 
 	// ======================= LOCKABLE ================================
@@ -0,0 +1,98 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.i2ar.ctrlbox.io.RegType;
+import de.i2ar.ctrlbox.io.RegisterBatch;
+
+public class ModbusTCPBatchTest {
+
+	private ModbusTCPSlaveSimulator sim;
+	private ModbusTCP io;
+
+
+	@Before
+	public void setUp() throws IOException {
+		this.sim = new ModbusTCPSlaveSimulator(0);
+		this.io = new ModbusTCP();
+	}
+
+	@After
+	public void tearDown() {
+		this.io.stop();
+		this.sim.stop();
+	}
+
+
+	@Test
+	public void mergesAdjacentRegistersIntoFC16() throws Exception {
+		RegisterBatch batch = this.io.batch();
+		batch.set(register(RegType.MB_REG, 12), 3);
+		batch.set(register(RegType.MB_REG, 10), 1);
+		batch.set(register(RegType.MB_REG, 11), 99);
+		batch.set(register(RegType.MB_REG, 11), 2);	// spaeterer Write gewinnt
+		batch.set(register(RegType.MB_REG, 20), 4);
+		batch.commit().get(5, TimeUnit.SECONDS);
+
+		// FC16 fuer 10..12, FC6 fuer 20
+		assertEquals(2, this.sim.getRequests());
+		assertEquals(1, this.sim.getRegister(10));
+		assertEquals(2, this.sim.getRegister(11));
+		assertEquals(3, this.sim.getRegister(12));
+		assertEquals(4, this.sim.getRegister(20));
+	}
+
+	@Test
+	public void mergesAdjacentCoilsIntoFC15() throws Exception {
+		RegisterBatch batch = this.io.batch();
+		for (int i = 0; i < 10; i++) batch.set(register(RegType.MB_COIL, 100 + i), i % 2);
+		batch.set(register(RegType.MB_COIL, 200), 1);
+		batch.commit().get(5, TimeUnit.SECONDS);
+
+		// FC15 fuer 100..109, FC5 fuer 200
+		assertEquals(2, this.sim.getRequests());
+		for (int i = 0; i < 10; i++) assertEquals(i % 2 == 1, this.sim.getCoil(100 + i));
+		assertTrue(this.sim.getCoil(200));
+		assertFalse(this.sim.getCoil(110));
+	}
+
+	@Test
+	public void splitsAtRegisterLimit() throws Exception {
+		RegisterBatch batch = this.io.batch();
+		for (int i = 0; i < ModbusTCPBatch.MAX_WRITE_REGISTERS + 7; i++) batch.set(register(RegType.MB_REG, i), i + 1);
+		batch.commit().get(5, TimeUnit.SECONDS);
+
+		assertEquals(2, this.sim.getRequests());
+		for (int i = 0; i < ModbusTCPBatch.MAX_WRITE_REGISTERS + 7; i++) assertEquals(i + 1, this.sim.getRegister(i));
+	}
+
+	@Test
+	public void commitsOnlyOnce() throws Exception {
+		RegisterBatch batch = this.io.batch();
+		batch.set(register(RegType.MB_REG, 1), 1);
+		batch.commit().get(5, TimeUnit.SECONDS);
+
+		try {
+			batch.set(register(RegType.MB_REG, 2), 2);
+			fail("IllegalStateException erwartet");
+		} catch (IllegalStateException e) {
+			// erwartet
+		}
+	}
+
+
+	private ModbusTCPRegister register(RegType type, int addr) {
+		ModbusTCPEndpoint endpoint = this.sim.getEndpoint();
+		return new ModbusTCPRegister(type, endpoint.getAddr(), endpoint.getPort(), addr, 1000);
+	}
+}
@@ -0,0 +1,163 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+
+/**
+ * Prueft den Kanal gegen einen rohen Socket-Server, der die Reihenfolge und
+ * den Zeitpunkt der Antworten selbst bestimmt.
+ */
+public class ModbusTCPChannelTest {
+
+	private ServerSocket server;
+	private ModbusTCPEndpointHealth health;
+	private ModbusTCPChannel channel;
+
+
+	@Before
+	public void setUp() throws IOException {
+		this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		ModbusTCPEndpoint endpoint = new ModbusTCPEndpoint(this.server.getInetAddress(), this.server.getLocalPort());
+		this.health = new ModbusTCPEndpointHealth(endpoint);
+		this.channel = new ModbusTCPChannel(endpoint, this.health, 8, 300);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.channel.close();
+		this.server.close();
+	}
+
+
+	@Test
+	public void matchesResponsesByTransactionID() throws Exception {
+		CompletableFuture<ModbusResponse> first = this.channel.execute(new ReadMultipleRegistersRequest(10, 1));
+		CompletableFuture<ModbusResponse> second = this.channel.execute(new ReadMultipleRegistersRequest(20, 1));
+
+		try (Socket s = this.server.accept()) {
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+
+			int tid1 = readRequest(in);
+			int tid2 = readRequest(in);
+			assertTrue(tid1 != tid2);
+
+			// Antworten in umgekehrter Reihenfolge
+			writeResponse(out, tid2, 222);
+			writeResponse(out, tid1, 111);
+
+			assertEquals(111, value(first));
+			assertEquals(222, value(second));
+		}
+	}
+
+	@Test
+	public void failsRequestsAfterTimeout() throws Exception {
+		CompletableFuture<ModbusResponse> lost = this.channel.execute(new ReadMultipleRegistersRequest(10, 1));
+
+		try (Socket s = this.server.accept()) {
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+
+			int tid1 = readRequest(in);
+
+			try {
+				lost.get(2, TimeUnit.SECONDS);
+				fail("Timeout erwartet");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof ModbusIOException);
+			}
+
+			// verspaetete Antwort darf nicht dem naechsten Request zugeordnet werden
+			CompletableFuture<ModbusResponse> next = this.channel.execute(new ReadMultipleRegistersRequest(20, 1));
+			int tid2 = readRequest(in);
+			assertTrue(tid1 != tid2);
+
+			writeResponse(out, tid1, 111);
+			writeResponse(out, tid2, 222);
+
+			assertEquals(222, value(next));
+		}
+	}
+
+
+	@Test
+	public void marksSlaveDownAfterTimeouts() throws Exception {
+		ArrayList<CompletableFuture<ModbusResponse>> lost = new ArrayList<CompletableFuture<ModbusResponse>>();
+		for (int i = 0; i < ModbusTCPEndpointHealth.TIMEOUTS_UNTIL_DOWN; i++) lost.add(this.channel.execute(new ReadMultipleRegistersRequest(i, 1)));
+
+		try (Socket s = this.server.accept()) {
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+
+			// Slave nimmt die Requests an, antwortet aber nicht
+			int tid = 0;
+			for (int i = 0; i < lost.size(); i++) tid = readRequest(in);
+			for (CompletableFuture<ModbusResponse> f : lost) {
+				try {
+					f.get(2, TimeUnit.SECONDS);
+					fail("Timeout erwartet");
+				} catch (ExecutionException e) {
+					// erwartet
+				}
+			}
+
+			assertEquals(ModbusTCPEndpointHealth.State.DOWN, this.health.getState());
+			assertTrue(this.channel.execute(new ReadMultipleRegistersRequest(0, 1)).isCompletedExceptionally());
+
+			// die naechste Antwort macht den Slave wieder UP
+			writeResponse(out, tid, 1);
+			long deadline = System.currentTimeMillis() + 2000;
+			while (this.health.getState() != ModbusTCPEndpointHealth.State.UP && System.currentTimeMillis() < deadline) Thread.sleep(10);
+			assertEquals(ModbusTCPEndpointHealth.State.UP, this.health.getState());
+		}
+	}
+
+
+	// liest einen FC3 Request, liefert die Transaction-ID
+	private static int readRequest(DataInputStream in) throws IOException {
+		int tid = in.readUnsignedShort();
+		assertEquals(0, in.readUnsignedShort());
+		int len = in.readUnsignedShort();
+		byte[] rest = new byte[len];
+		in.readFully(rest);
+		assertEquals(3, rest[1]);
+		return tid;
+	}
+
+	private static void writeResponse(DataOutputStream out, int tid, int value) throws IOException {
+		out.writeShort(tid);
+		out.writeShort(0);
+		out.writeShort(5);
+		out.writeByte(0);
+		out.writeByte(3);
+		out.writeByte(2);
+		out.writeShort(value);
+		out.flush();
+	}
+
+	private static int value(CompletableFuture<ModbusResponse> f) throws Exception {
+		return ((ReadMultipleRegistersResponse)f.get(2, TimeUnit.SECONDS)).getRegisterValue(0);
+	}
+}
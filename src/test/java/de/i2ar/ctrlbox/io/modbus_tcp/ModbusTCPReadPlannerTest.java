@@ -0,0 +1,111 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import de.i2ar.ctrlbox.io.modbus_tcp.ModbusTCPReadPlanner.Block;
+import de.i2ar.ctrlbox.io.modbus_tcp.ModbusTCPReadPlanner.Table;
+
+public class ModbusTCPReadPlannerTest {
+
+	@Test
+	public void mergesGapsCheaperThanARequest() {
+		ModbusTCPReadPlanner planner = new ModbusTCPReadPlanner();
+
+		// Register: Luecken bis 50 Adressen werden mitgelesen
+		planner.add(Table.HOLDING_REGISTER, 0);
+		planner.add(Table.HOLDING_REGISTER, 10);
+		planner.add(Table.HOLDING_REGISTER, 60);
+		assertPlan(planner.getPlan(), "FC3 0+61");
+
+		// Luecke von 51 -> eigener Request
+		planner.add(Table.HOLDING_REGISTER, 112);
+		assertPlan(planner.getPlan(), "FC3 0+61", "FC3 112+1");
+	}
+
+	@Test
+	public void mergesCoilGapsUpTo800() {
+		ModbusTCPReadPlanner planner = new ModbusTCPReadPlanner();
+
+		planner.add(Table.COIL, 0);
+		planner.add(Table.COIL, 801);
+		planner.add(Table.COIL, 1603);
+		assertPlan(planner.getPlan(), "FC1 0+802", "FC1 1603+1");
+	}
+
+	@Test
+	public void splitsAtFunctionCodeLimits() {
+		ModbusTCPReadPlanner planner = new ModbusTCPReadPlanner();
+
+		for (int i = 0; i < 130; i++) planner.add(Table.HOLDING_REGISTER, 1000 + i);
+		for (int i = 0; i < 2100; i++) planner.add(Table.COIL, i);
+
+		assertPlan(planner.getPlan(), "FC1 0+2000", "FC1 2000+100", "FC3 1000+125", "FC3 1125+5");
+	}
+
+	@Test
+	public void countsSubscribers() {
+		ModbusTCPReadPlanner planner = new ModbusTCPReadPlanner();
+
+		assertTrue(planner.add(Table.HOLDING_REGISTER, 5));
+		assertFalse(planner.add(Table.HOLDING_REGISTER, 5));
+		assertTrue(planner.add(Table.HOLDING_REGISTER, 7));
+
+		// erst der letzte Abonnent entfernt die Adresse aus dem Plan
+		assertFalse(planner.remove(Table.HOLDING_REGISTER, 5));
+		assertPlan(planner.getPlan(), "FC3 5+3");
+		assertTrue(planner.remove(Table.HOLDING_REGISTER, 5));
+		assertPlan(planner.getPlan(), "FC3 7+1");
+		assertFalse(planner.remove(Table.HOLDING_REGISTER, 5));
+		assertFalse(planner.remove(Table.COIL, 5));
+	}
+
+	@Test
+	public void addAllMergesPlanners() {
+		ModbusTCPReadPlanner a = new ModbusTCPReadPlanner();
+		ModbusTCPReadPlanner b = new ModbusTCPReadPlanner();
+
+		a.add(Table.HOLDING_REGISTER, 0);
+		b.add(Table.HOLDING_REGISTER, 0);
+		b.add(Table.HOLDING_REGISTER, 20);
+		b.add(Table.COIL, 3);
+
+		a.addAll(b);
+		assertPlan(a.getPlan(), "FC1 3+1", "FC3 0+21");
+
+		// Adresse 0 hat jetzt zwei Abonnenten
+		assertFalse(a.remove(Table.HOLDING_REGISTER, 0));
+		assertTrue(a.remove(Table.HOLDING_REGISTER, 0));
+	}
+
+	@Test
+	public void coilBlocksAreAlignedToWords() {
+		Block block = new Block(Table.COIL, 14, 20);
+
+		// Coils 14..33 liegen in den Worten 0..2
+		assertEquals(0, block.firstWord());
+		assertEquals(3, block.words());
+		assertEquals(0xC000, block.mask(0));
+		assertEquals(0xFFFF, block.mask(1));
+		assertEquals(0x0003, block.mask(2));
+		assertEquals(14, block.addrOf(0, 14));
+		assertEquals(33, block.addrOf(2, 1));
+
+		Block regs = new Block(Table.HOLDING_REGISTER, 100, 3);
+		assertEquals(100, regs.firstWord());
+		assertEquals(3, regs.words());
+		assertEquals(0xFFFF, regs.mask(1));
+		assertEquals(102, regs.addrOf(2, 0));
+	}
+
+
+	private static void assertPlan(List<Block> plan, String... expected) {
+		assertEquals(expected.length, plan.size());
+		for (int i = 0; i < expected.length; i++) assertEquals(expected[i], plan.get(i).toString());
+	}
+}
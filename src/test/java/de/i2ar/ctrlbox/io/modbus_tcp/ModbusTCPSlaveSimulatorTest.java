@@ -0,0 +1,86 @@
+package de.i2ar.ctrlbox.io.modbus_tcp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ModbusTCPSlaveSimulatorTest {
+
+	private ModbusTCPSlaveSimulator sim;
+
+
+	@Before
+	public void setUp() throws IOException {
+		this.sim = new ModbusTCPSlaveSimulator(0);
+	}
+
+	@After
+	public void tearDown() {
+		this.sim.stop();
+	}
+
+
+	@Test
+	public void closesConnectionOnTooShortLength() throws IOException {
+		assertClosedAfterHeader(1);
+	}
+
+	@Test
+	public void closesConnectionOnTooLongLength() throws IOException {
+		assertClosedAfterHeader(255);
+	}
+
+	@Test
+	public void rejectsTruncatedWrite() throws IOException {
+		try (Socket s = connect()) {
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			DataInputStream in = new DataInputStream(s.getInputStream());
+
+			// FC16 ueber 10 Register, aber nur ein Wert im PDU
+			out.writeShort(7);
+			out.writeShort(0);
+			out.writeShort(9);
+			out.writeByte(1);
+			out.writeByte(16);
+			out.writeShort(0);
+			out.writeShort(10);
+			out.writeByte(20);
+			out.writeShort(0x1234);
+			out.flush();
+
+			assertEquals(7, in.readUnsignedShort());
+			in.readUnsignedShort();
+			assertEquals(3, in.readUnsignedShort());
+			assertEquals(1, in.readUnsignedByte());
+			assertEquals(0x90, in.readUnsignedByte());
+			assertEquals(3, in.readUnsignedByte());
+			assertEquals(0, this.sim.getRegister(0));
+		}
+	}
+
+
+	private void assertClosedAfterHeader(int len) throws IOException {
+		try (Socket s = connect()) {
+			DataOutputStream out = new DataOutputStream(s.getOutputStream());
+			out.writeShort(1);
+			out.writeShort(0);
+			out.writeShort(len);
+			out.flush();
+
+			assertEquals(-1, s.getInputStream().read());
+		}
+	}
+
+	private Socket connect() throws IOException {
+		Socket s = new Socket(this.sim.getEndpoint().getAddr(), this.sim.getEndpoint().getPort());
+		s.setSoTimeout(2000);
+		return s;
+	}
+}
@@ -0,0 +1,228 @@
+package de.i2ar.ctrlbox.ws.opcua;
+
+import static de.i2ar.ctrlbox.ws.opcua.HistoryTestSupport.time;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.DiagnosticInfo;
+import org.opcfoundation.ua.builtintypes.NodeId;
+import org.opcfoundation.ua.builtintypes.QualifiedName;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.Variant;
+import org.opcfoundation.ua.core.Attributes;
+import org.opcfoundation.ua.core.EventFilter;
+import org.opcfoundation.ua.core.HistoryEventFieldList;
+import org.opcfoundation.ua.core.Identifiers;
+import org.opcfoundation.ua.core.SimpleAttributeOperand;
+import org.opcfoundation.ua.core.StatusCodes;
+
+import com.prosysopc.ua.EventData;
+import com.prosysopc.ua.EventListener;
+import com.prosysopc.ua.server.nodes.UaObjectNode;
+
+public class EventHistoryTest {
+	private static final QualifiedName MESSAGE = new QualifiedName("Message");
+	private static final QualifiedName EVENT_TYPE = new QualifiedName("EventType");
+	private static final QualifiedName SOURCE_NODE = new QualifiedName("SourceNode");
+	private static final NodeId SOURCE = new NodeId(2, "Source");
+	private static final EventFilter MESSAGES = new EventFilter(new SimpleAttributeOperand[] {
+			new SimpleAttributeOperand(Identifiers.BaseEventType, new QualifiedName[] { MESSAGE }, Attributes.Value,
+					null) },
+			null);
+	// the capacity of the log
+	private static final int CAPACITY = 10000;
+
+	private UaObjectNode node;
+	private EventHistory history;
+	private EventListener listener;
+
+	@Before
+	public void setUp() {
+		node = mock(UaObjectNode.class, RETURNS_DEEP_STUBS);
+		history = new EventHistory(node);
+		ArgumentCaptor<EventListener> captor = ArgumentCaptor.forClass(EventListener.class);
+		verify(node).addEventListener(captor.capture());
+		listener = captor.getValue();
+	}
+
+	@Test
+	public void pagesForward() {
+		append(0, 100);
+
+		List<String> all = new ArrayList<String>();
+		Long cp = null;
+		int pages = 0;
+		do {
+			List<HistoryEventFieldList> page = new ArrayList<HistoryEventFieldList>();
+			cp = history.readEvents(new DateTime(time(10)), new DateTime(time(89)), 30, MESSAGES, page, cp);
+			all.addAll(messages(page));
+			pages++;
+		} while (cp != null);
+
+		// both ends are included
+		assertEquals(80, all.size());
+		assertEquals(3, pages);
+		for (int i = 0; i < all.size(); i++)
+			assertEquals(message(10 + i), all.get(i));
+	}
+
+	@Test
+	public void pagesBackward() {
+		append(0, 100);
+
+		List<String> all = new ArrayList<String>();
+		Long cp = null;
+		do {
+			List<HistoryEventFieldList> page = new ArrayList<HistoryEventFieldList>();
+			cp = history.readEvents(DateTime.MIN_VALUE, new DateTime(time(49)), 7, MESSAGES, page, cp);
+			all.addAll(messages(page));
+		} while (cp != null);
+
+		assertEquals(50, all.size());
+		for (int i = 0; i < all.size(); i++)
+			assertEquals(message(49 - i), all.get(i));
+	}
+
+	@Test
+	public void continuesAfterWrap() {
+		append(0, CAPACITY);
+		List<HistoryEventFieldList> page = new ArrayList<HistoryEventFieldList>();
+		Long cp = history.readEvents(new DateTime(time(0)), DateTime.MIN_VALUE, 10, MESSAGES, page, null);
+		assertEquals(message(0), messages(page).get(0));
+
+		// the next 20 events drop out of the log before the next page is read
+		append(CAPACITY, 30);
+		page.clear();
+		cp = history.readEvents(new DateTime(time(0)), DateTime.MIN_VALUE, 10, MESSAGES, page, cp);
+		assertEquals(message(30), messages(page).get(0));
+		assertEquals(message(39), messages(page).get(9));
+	}
+
+	@Test
+	public void sortsInLateEvents() {
+		append(0, 10);
+		listener.onEvent(node, event(10, time(3)));
+
+		List<HistoryEventFieldList> page = new ArrayList<HistoryEventFieldList>();
+		assertNull(history.readEvents(new DateTime(time(9)), new DateTime(time(9)), 0, MESSAGES, page, null));
+		assertEquals(2, page.size());
+		assertEquals(message(10), messages(page).get(1));
+	}
+
+	@Test
+	public void deletesByEventId() {
+		append(0, 10);
+
+		StatusCode[] results = new StatusCode[3];
+		history.deleteEvents(new byte[][] { id(4), id(99), null }, results, new DiagnosticInfo[3]);
+		assertEquals(StatusCode.GOOD, results[0]);
+		assertEquals(StatusCodes.Bad_EventIdUnknown, results[1].getValue());
+		assertEquals(StatusCodes.Bad_EventIdUnknown, results[2].getValue());
+
+		List<HistoryEventFieldList> page = new ArrayList<HistoryEventFieldList>();
+		history.readEvents(new DateTime(time(0)), DateTime.MIN_VALUE, 0, MESSAGES, page, null);
+		assertEquals(9, page.size());
+		assertEquals(message(5), messages(page).get(4));
+
+		// deleted already
+		history.deleteEvents(new byte[][] { id(4) }, results, new DiagnosticInfo[1]);
+		assertEquals(StatusCodes.Bad_EventIdUnknown, results[0].getValue());
+	}
+
+	@Test
+	public void dropsEvictedEventsFromIdIndex() {
+		append(0, CAPACITY + 5);
+
+		StatusCode[] results = new StatusCode[2];
+		history.deleteEvents(new byte[][] { id(4), id(5) }, results, new DiagnosticInfo[2]);
+		assertEquals(StatusCodes.Bad_EventIdUnknown, results[0].getValue());
+		assertEquals(StatusCode.GOOD, results[1]);
+	}
+
+	@Test
+	public void postingsReturnRanges() {
+		EventHistory.Postings postings = new EventHistory.Postings();
+		for (long seq = 0; seq < 100; seq += 3)
+			postings.add(seq);
+
+		assertArrayEquals(new long[] { 12, 15, 18 }, postings.range(10, 19));
+		assertArrayEquals(new long[] { 12, 15, 18, 21 }, postings.range(12, 22));
+		assertArrayEquals(new long[0], postings.range(13, 15));
+		assertArrayEquals(new long[0], postings.range(20, 10));
+		assertArrayEquals(new long[] { 99 }, postings.range(97, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void postingsTrimAndCompact() {
+		EventHistory.Postings postings = new EventHistory.Postings();
+		for (long seq = 0; seq < 1000; seq++) {
+			postings.add(seq);
+			// keep the last 10, as the log does on eviction
+			postings.trim(seq - 9);
+		}
+
+		// the array does not grow with the number of sequence numbers added
+		assertTrue(postings.seqs.length <= 32);
+		assertArrayEquals(new long[] { 990, 991 }, postings.range(0, 992));
+		assertFalse(postings.trim(999));
+		assertTrue(postings.trim(1000));
+		assertArrayEquals(new long[0], postings.range(0, Long.MAX_VALUE));
+	}
+
+	private void append(int from, int count) {
+		for (int i = from; i < from + count; i++)
+			listener.onEvent(node, event(i, time(i)));
+	}
+
+	/**
+	 * @return an event with id, time, message, event type and source node
+	 */
+	private static EventData event(int i, long time) {
+		final Object[] fields = { message(i), Identifiers.BaseEventType, SOURCE };
+		final QualifiedName[] names = { MESSAGE, EVENT_TYPE, SOURCE_NODE };
+		EventData event = mock(EventData.class);
+		when(event.getEventId()).thenReturn(id(i));
+		when(event.getTime()).thenReturn(new DateTime(time));
+		when(event.getFieldValues(any())).thenAnswer(invocation -> {
+			@SuppressWarnings("unchecked")
+			List<List<QualifiedName>> paths = (List<List<QualifiedName>>) invocation.getArguments()[0];
+			Variant[] values = new Variant[paths.size()];
+			for (int j = 0; j < values.length; j++)
+				for (int k = 0; k < names.length; k++)
+					if (paths.get(j).size() == 1 && names[k].equals(paths.get(j).get(0)))
+						values[j] = new Variant(fields[k]);
+			return values;
+		});
+		return event;
+	}
+
+	private static byte[] id(int i) {
+		return new byte[] { (byte) (i >> 16), (byte) (i >> 8), (byte) i };
+	}
+
+	private static String message(int i) {
+		return "Event " + i;
+	}
+
+	private static List<String> messages(List<HistoryEventFieldList> page) {
+		List<String> result = new ArrayList<String>();
+		for (HistoryEventFieldList fields : page)
+			result.add((String) fields.getEventFields()[0].getValue());
+		return result;
+	}
+}
@@ -0,0 +1,221 @@
+package de.i2ar.ctrlbox.ws.opcua;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HistorySegmentTest {
+	private static final long START = 1000000L;
+	// offset of the committed length in the header
+	private static final int H_LENGTH = 24;
+
+	private File dir;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("segment").toFile();
+		file = new File(dir, "0.seg");
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void readsBlocksAcrossKeyRecords() throws IOException {
+		HistorySegment s = HistorySegment.create(file, START, START + 100000, 64 << 10);
+		int n = 3 * HistorySegment.KEY_INTERVAL + 5;
+		for (int i = 0; i < n; i++)
+			assertTrue(s.append(time(i), HistorySegment.DOUBLE, bits(i), status(i)));
+
+		assertEquals(4, s.getBlockCount());
+		assertEquals(0, s.findBlock(START - 1));
+		assertEquals(0, s.findBlock(time(HistorySegment.KEY_INTERVAL)));
+		assertEquals(1, s.findBlock(time(HistorySegment.KEY_INTERVAL) + 1));
+		assertEquals(3, s.findBlock(Long.MAX_VALUE));
+
+		assertSamples(s, n);
+		s.close();
+
+		HistorySegment empty = HistorySegment.create(new File(dir, "1.seg"), START, START + 1, 4096);
+		assertEquals(-1, empty.findBlock(START));
+		assertEquals(0, empty.readBlock(0, new HistorySegment.Block()));
+		empty.close();
+	}
+
+	@Test
+	public void encodesRepeatedValuesAndTypes() throws IOException {
+		HistorySegment s = HistorySegment.create(file, START, START + 100000, 4096);
+		s.append(START, HistorySegment.INT, 7, 0);
+		s.append(START + 1, HistorySegment.INT, 7, 0);
+		s.append(START + 2, HistorySegment.BOOLEAN, 1, 0);
+		s.append(START + 2, HistorySegment.EMPTY, 0, 0x80310000);
+		s.append(START + 3, HistorySegment.DOUBLE, Double.doubleToRawLongBits(-1.0), 0);
+
+		HistorySegment.Block block = new HistorySegment.Block();
+		assertEquals(5, s.readBlock(0, block));
+		assertEquals(7, block.object(0));
+		assertEquals(7, block.object(1));
+		assertEquals(Boolean.TRUE, block.object(2));
+		assertTrue(Double.isNaN(block.value(3)));
+		assertEquals(0x80310000, block.status[3]);
+		assertEquals(START + 2, block.times[3]);
+		assertEquals(-1.0, block.value(4), 0);
+		s.close();
+	}
+
+	@Test
+	public void refusesSamplesWhenFull() throws IOException {
+		HistorySegment s = HistorySegment.create(file, START, START + 100000, 4096);
+		int n = 0;
+		while (s.append(time(n), HistorySegment.DOUBLE, bits(n), status(n)))
+			n++;
+		assertTrue(n > 100);
+		assertTrue(s.size() <= 4096);
+		assertSamples(s, n);
+		s.close();
+	}
+
+	@Test
+	public void keepsIndexWhenSealed() throws IOException {
+		HistorySegment s = HistorySegment.create(file, START, START + 100000, 64 << 10);
+		int n = 2 * HistorySegment.KEY_INTERVAL + 1;
+		for (int i = 0; i < n; i++)
+			s.append(time(i), HistorySegment.DOUBLE, bits(i), status(i));
+		s.seal();
+		assertTrue(s.isSealed());
+		assertFalse(s.append(time(n), HistorySegment.DOUBLE, bits(n), 0));
+		assertTrue(file.length() < 64 << 10);
+
+		HistorySegment reopened = HistorySegment.open(file);
+		assertTrue(reopened.isSealed());
+		assertEquals(START, reopened.start);
+		assertEquals(START + 100000, reopened.end);
+		assertEquals(3, reopened.getBlockCount());
+		assertSamples(reopened, n);
+		reopened.close();
+	}
+
+	@Test
+	public void recoversUncommittedTail() throws IOException {
+		HistorySegment s = HistorySegment.create(file, START, START + 100000, 64 << 10);
+		int n = 100;
+		int committed = 0;
+		for (int i = 0; i < n; i++) {
+			s.append(time(i), HistorySegment.DOUBLE, bits(i), status(i));
+			if (i == 69)
+				committed = readLength();
+		}
+		// crash after writing the records, before the committed length of the
+		// last 30 reached the file
+		writeLength(committed);
+
+		HistorySegment recovered = HistorySegment.open(file);
+		assertFalse(recovered.isSealed());
+		assertEquals(2, recovered.getBlockCount());
+		assertSamples(recovered, 70);
+
+		// the writer continues after the last committed sample
+		assertTrue(recovered.append(time(70), HistorySegment.DOUBLE, Double.doubleToRawLongBits(1000.0), 0));
+		HistorySegment.Block block = new HistorySegment.Block();
+		assertEquals(7, recovered.readBlock(1, block));
+		assertEquals(time(69), block.times[5]);
+		assertEquals(time(70), block.times[6]);
+		assertEquals(1000.0, block.value(6), 0);
+		recovered.close();
+		s.close();
+	}
+
+	@Test
+	public void recoversFromCorruptLength() throws IOException {
+		HistorySegment s = HistorySegment.create(file, START, START + 100000, 64 << 10);
+		int n = 150;
+		for (int i = 0; i < n; i++)
+			s.append(time(i), HistorySegment.DOUBLE, bits(i), status(i));
+		s.close();
+
+		// the committed length points into the zeroed space behind the records
+		writeLength(readLength() + 50);
+
+		HistorySegment recovered = HistorySegment.open(file);
+		assertEquals(3, recovered.getBlockCount());
+		assertSamples(recovered, n);
+		assertTrue(recovered.append(time(n), HistorySegment.DOUBLE, bits(n), status(n)));
+		assertSamples(recovered, n + 1);
+		recovered.close();
+	}
+
+	@Test
+	public void rejectsForeignFiles() throws IOException {
+		Files.write(file.toPath(), new byte[4096]);
+		try {
+			HistorySegment.open(file);
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static long time(int i) {
+		return START + 10L * i;
+	}
+
+	private static long bits(int i) {
+		return Double.doubleToRawLongBits(Math.sin(i / 10.0) * 100);
+	}
+
+	private static int status(int i) {
+		return i % 10 == 0 ? 0x80000000 : 0;
+	}
+
+	/**
+	 * Check that the segment holds the first count samples of the test pattern.
+	 */
+	private static void assertSamples(HistorySegment s, int count) {
+		HistorySegment.Block block = new HistorySegment.Block();
+		int i = 0;
+		for (int k = 0; k < s.getBlockCount(); k++) {
+			int n = s.readBlock(k, block);
+			for (int j = 0; j < n; j++, i++) {
+				assertEquals(time(i), block.times[j]);
+				assertEquals(bits(i), block.bits[j]);
+				assertEquals(status(i), block.status[j]);
+			}
+		}
+		assertEquals(count, i);
+	}
+
+	private int readLength() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(H_LENGTH);
+			return raf.readInt();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void writeLength(int length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(H_LENGTH);
+			raf.writeInt(length);
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package de.i2ar.ctrlbox.ws.opcua;
+
+import static de.i2ar.ctrlbox.ws.opcua.HistoryTestSupport.assertSample;
+import static de.i2ar.ctrlbox.ws.opcua.HistoryTestSupport.sample;
+import static de.i2ar.ctrlbox.ws.opcua.HistoryTestSupport.value;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.NodeId;
+
+public class HistorySeriesTest {
+	// DateTime ticks, 100 samples per segment window of one second
+	private static final long BASE = 1000000000L * 10000;
+	private static final long STEP = 100000;
+	private static final NodeId NODE = new NodeId(2, "Test");
+
+	private File root;
+	private final List<HistoryStore> stores = new ArrayList<HistoryStore>();
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("history").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (HistoryStore store : stores)
+			store.close();
+		delete(root);
+	}
+
+	@Test
+	public void pagesForwardAcrossSegments() throws IOException {
+		HistorySeries series = openStore().open(NODE);
+		for (int i = 0; i < 1000; i++)
+			series.append(sample(i, tick(i)));
+
+		List<DataValue> all = new ArrayList<DataValue>();
+		HistorySeries.Position cp = null;
+		int pages = 0;
+		do {
+			List<DataValue> page = new ArrayList<DataValue>();
+			cp = series.readRaw(tick(150), tick(850), false, 37, cp, page);
+			assertTrue(page.size() <= 37);
+			all.addAll(page);
+			pages++;
+		} while (cp != null);
+
+		assertEquals(700, all.size());
+		assertEquals(19, pages);
+		for (int i = 0; i < all.size(); i++)
+			assertSample(150 + i, tick(150 + i), all.get(i));
+	}
+
+	@Test
+	public void pagesBackwardAcrossSegments() throws IOException {
+		HistorySeries series = openStore().open(NODE);
+		for (int i = 0; i < 1000; i++)
+			series.append(sample(i, tick(i)));
+
+		List<DataValue> all = new ArrayList<DataValue>();
+		HistorySeries.Position cp = null;
+		do {
+			List<DataValue> page = new ArrayList<DataValue>();
+			cp = series.readRaw(Long.MIN_VALUE, tick(850), true, 100, cp, page);
+			all.addAll(page);
+		} while (cp != null);
+
+		assertEquals(850, all.size());
+		for (int i = 0; i < all.size(); i++)
+			assertSample(849 - i, tick(849 - i), all.get(i));
+	}
+
+	@Test
+	public void pagesThroughEqualTimestamps() throws IOException {
+		HistorySeries series = openStore().open(NODE);
+		// 100 samples per timestamp, so pages end in the middle of a timestamp
+		for (int i = 0; i < 300; i++)
+			series.append(sample(i, tick(i / 100)));
+
+		List<DataValue> all = new ArrayList<DataValue>();
+		HistorySeries.Position cp = null;
+		do {
+			List<DataValue> page = new ArrayList<DataValue>();
+			cp = series.readRaw(Long.MIN_VALUE, Long.MAX_VALUE, false, 7, cp, page);
+			all.addAll(page);
+		} while (cp != null);
+		assertEquals(300, all.size());
+		for (int i = 0; i < all.size(); i++)
+			assertSample(i, tick(i / 100), all.get(i));
+
+		all.clear();
+		do {
+			List<DataValue> page = new ArrayList<DataValue>();
+			cp = series.readRaw(Long.MIN_VALUE, Long.MAX_VALUE - 1, true, 7, cp, page);
+			all.addAll(page);
+		} while (cp != null);
+		assertEquals(300, all.size());
+		for (int i = 0; i < all.size(); i++)
+			assertSample(299 - i, tick((299 - i) / 100), all.get(i));
+	}
+
+	@Test
+	public void keepsContinuationPointWhileAppending() throws IOException {
+		HistorySeries series = openStore().open(NODE);
+		for (int i = 0; i < 100; i++)
+			series.append(sample(i, tick(i)));
+
+		List<DataValue> page = new ArrayList<DataValue>();
+		HistorySeries.Position cp = series.readRaw(Long.MIN_VALUE, Long.MAX_VALUE, false, 60, null, page);
+		for (int i = 100; i < 150; i++)
+			series.append(sample(i, tick(i)));
+
+		page.clear();
+		assertNull(series.readRaw(Long.MIN_VALUE, Long.MAX_VALUE, false, 100, cp, page));
+		assertEquals(90, page.size());
+		assertSample(60, tick(60), page.get(0));
+		assertSample(149, tick(149), page.get(89));
+	}
+
+	@Test
+	public void sortsInLateSamples() throws IOException {
+		HistorySeries series = openStore().open(NODE);
+		series.append(sample(0, tick(10)));
+		series.append(sample(1, tick(5)));
+
+		List<DataValue> all = new ArrayList<DataValue>();
+		series.readRaw(Long.MIN_VALUE, Long.MAX_VALUE, false, 0, null, all);
+		assertEquals(2, all.size());
+		assertSample(1, tick(10), all.get(1));
+	}
+
+	@Test
+	public void keepsValueTypes() throws IOException {
+		HistorySeries series = openStore().open(NODE);
+		series.append(value(Integer.valueOf(7), tick(0)));
+		series.append(value(Boolean.TRUE, tick(1)));
+		series.append(value("skipped", tick(2)));
+		series.append(value(Float.valueOf(1.5f), tick(3)));
+		series.append(value(null, tick(4)));
+
+		List<DataValue> all = new ArrayList<DataValue>();
+		series.readRaw(Long.MIN_VALUE, Long.MAX_VALUE, false, 0, null, all);
+		assertEquals(4, all.size());
+		assertEquals(Integer.valueOf(7), all.get(0).getValue().getValue());
+		assertEquals(Boolean.TRUE, all.get(1).getValue().getValue());
+		assertEquals(Float.valueOf(1.5f), all.get(2).getValue().getValue());
+		assertNull(all.get(3).getValue().getValue());
+	}
+
+	@Test
+	public void recoversAfterUncleanShutdown() throws IOException {
+		HistorySeries series = openStore().open(NODE);
+		for (int i = 0; i < 250; i++)
+			series.append(sample(i, tick(i)));
+
+		// a second store on the same directory, as after a restart without
+		// close(): the last segment was not sealed and is recovered
+		HistorySeries recovered = openStore().open(NODE);
+		List<DataValue> all = new ArrayList<DataValue>();
+		recovered.readRaw(Long.MIN_VALUE, Long.MAX_VALUE, false, 0, null, all);
+		assertEquals(250, all.size());
+
+		// continues after the last sample, late samples are still sorted in
+		recovered.append(sample(250, tick(250)));
+		recovered.append(sample(251, tick(100)));
+		all.clear();
+		recovered.readRaw(Long.MIN_VALUE, Long.MAX_VALUE, false, 0, null, all);
+		assertEquals(252, all.size());
+		for (int i = 0; i < 251; i++)
+			assertSample(i, tick(i), all.get(i));
+		assertSample(251, tick(250), all.get(251));
+	}
+
+	@Test
+	public void dropsOldSegments() throws IOException {
+		HistorySeries series = openStore().open(NODE);
+		for (int i = 0; i < 500; i++)
+			series.append(sample(i, tick(i)));
+
+		series.applyRetention(tick(250), 0);
+		List<DataValue> all = new ArrayList<DataValue>();
+		series.readRaw(Long.MIN_VALUE, Long.MAX_VALUE, false, 0, null, all);
+		// whole segments only: the one holding tick(250) is kept
+		assertEquals(300, all.size());
+		assertSample(200, tick(200), all.get(0));
+
+		// the active segment is never dropped
+		series.applyRetention(Long.MAX_VALUE, 0);
+		all.clear();
+		series.readRaw(Long.MIN_VALUE, Long.MAX_VALUE, false, 0, null, all);
+		assertEquals(100, all.size());
+	}
+
+	private HistoryStore openStore() throws IOException {
+		HistoryStore store = new HistoryStore(root);
+		store.setSegmentWindow(1000);
+		store.setSegmentBytes(4096);
+		stores.add(store);
+		return store;
+	}
+
+	private static long tick(int i) {
+		return BASE + i * STEP;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File f : files)
+				delete(f);
+		file.delete();
+	}
+}
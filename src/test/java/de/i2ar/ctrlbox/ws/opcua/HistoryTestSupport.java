@@ -0,0 +1,43 @@
+package de.i2ar.ctrlbox.ws.opcua;
+
+import static org.junit.Assert.assertEquals;
+
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.builtintypes.UnsignedShort;
+import org.opcfoundation.ua.builtintypes.Variant;
+
+/**
+ * Samples and checks shared by the history tests. Sample i has the value i
+ * as a Double.
+ */
+final class HistoryTestSupport {
+
+	private HistoryTestSupport() {
+	}
+
+	/**
+	 * @return the time of sample i, 10 ticks apart
+	 */
+	static long time(int i) {
+		return 100000 + 10L * i;
+	}
+
+	static DataValue value(Object o, long time) {
+		return new DataValue(new Variant(o), StatusCode.GOOD, new DateTime(time), UnsignedShort.ZERO, null, null);
+	}
+
+	static DataValue sample(int i, long time) {
+		return value(Double.valueOf(i), time);
+	}
+
+	static void assertSample(int i, DataValue value) {
+		assertSample(i, time(i), value);
+	}
+
+	static void assertSample(int i, long time, DataValue value) {
+		assertEquals(Double.valueOf(i), value.getValue().getValue());
+		assertEquals(time, value.getSourceTimestamp().getValue());
+	}
+}
@@ -0,0 +1,189 @@
+package de.i2ar.ctrlbox.ws.opcua;
+
+import static de.i2ar.ctrlbox.ws.opcua.HistoryTestSupport.assertSample;
+import static de.i2ar.ctrlbox.ws.opcua.HistoryTestSupport.sample;
+import static de.i2ar.ctrlbox.ws.opcua.HistoryTestSupport.time;
+import static de.i2ar.ctrlbox.ws.opcua.HistoryTestSupport.value;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opcfoundation.ua.builtintypes.DataValue;
+import org.opcfoundation.ua.builtintypes.DateTime;
+import org.opcfoundation.ua.builtintypes.DiagnosticInfo;
+import org.opcfoundation.ua.builtintypes.StatusCode;
+import org.opcfoundation.ua.core.StatusCodes;
+
+import com.prosysopc.ua.nodes.DataChangeListener;
+import com.prosysopc.ua.server.nodes.UaVariableNode;
+
+public class ValueHistoryTest {
+	private UaVariableNode node;
+	private ValueHistory history;
+	private DataChangeListener listener;
+
+	@Before
+	public void setUp() {
+		node = mock(UaVariableNode.class);
+		history = new ValueHistory(node);
+		ArgumentCaptor<DataChangeListener> captor = ArgumentCaptor.forClass(DataChangeListener.class);
+		verify(node).addDataChangeListener(captor.capture());
+		listener = captor.getValue();
+		history.setCapacity(10);
+	}
+
+	@Test
+	public void keepsNewestSamplesWhenWrapping() {
+		append(0, 25);
+
+		List<DataValue> all = readForward(null);
+		assertEquals(10, all.size());
+		for (int i = 0; i < 10; i++)
+			assertSample(15 + i, all.get(i));
+	}
+
+	@Test
+	public void continuesAfterWrap() {
+		append(0, 25);
+		List<DataValue> page = new ArrayList<DataValue>();
+		Long cp = readRaw(4, null, page);
+		assertEquals(4, page.size());
+		assertSample(15, page.get(0));
+
+		// the buffer wraps, the continuation point still refers to sample 19
+		append(25, 3);
+		page.clear();
+		cp = readRaw(4, cp, page);
+		assertEquals(4, page.size());
+		assertSample(19, page.get(0));
+		assertSample(22, page.get(3));
+
+		List<DataValue> rest = readForward(cp);
+		assertEquals(5, rest.size());
+		assertSample(23, rest.get(0));
+		assertSample(27, rest.get(4));
+	}
+
+	@Test
+	public void skipsSamplesDroppedBeforeContinuation() {
+		append(0, 25);
+		List<DataValue> page = new ArrayList<DataValue>();
+		Long cp = readRaw(4, null, page);
+
+		// samples 19..26 are overwritten before the next page is requested
+		append(25, 12);
+		List<DataValue> rest = readForward(cp);
+		assertEquals(10, rest.size());
+		assertSample(27, rest.get(0));
+	}
+
+	@Test
+	public void pagesBackward() {
+		append(0, 25);
+		List<DataValue> all = new ArrayList<DataValue>();
+		Long cp = null;
+		do {
+			List<DataValue> page = new ArrayList<DataValue>();
+			cp = history.readRaw(DateTime.MIN_VALUE, new DateTime(time(21)), 3, false, cp, page);
+			all.addAll(page);
+		} while (cp != null);
+
+		// newest first, up to (excluding) the end time
+		assertEquals(6, all.size());
+		for (int i = 0; i < 6; i++)
+			assertSample(20 - i, all.get(i));
+	}
+
+	@Test
+	public void returnsBounds() {
+		append(0, 10);
+		List<DataValue> page = new ArrayList<DataValue>();
+		history.readRaw(new DateTime(time(2)), new DateTime(time(5)), 0, false, null, page);
+		assertEquals(2, page.size());
+		assertSample(3, page.get(0));
+
+		page.clear();
+		history.readRaw(new DateTime(time(2)), new DateTime(time(5)), 0, true, null, page);
+		assertEquals(4, page.size());
+		assertSample(2, page.get(0));
+		assertSample(5, page.get(3));
+	}
+
+	@Test
+	public void deletesSamples() throws Exception {
+		append(0, 10);
+		history.deleteRaw(new DateTime(time(2)), new DateTime(time(5)));
+
+		StatusCode[] results = new StatusCode[2];
+		history.deleteAtTimes(new DateTime[] { new DateTime(time(7)), new DateTime(time(7) + 1) }, results,
+				new DiagnosticInfo[2]);
+		assertEquals(StatusCode.GOOD, results[0]);
+		assertEquals(StatusCodes.Bad_NoData, results[1].getValue());
+
+		List<DataValue> all = readForward(null);
+		assertEquals(6, all.size());
+		assertSample(1, all.get(1));
+		assertSample(5, all.get(2));
+		assertSample(8, all.get(4));
+	}
+
+	@Test
+	public void readsValuesAtTimes() {
+		append(0, 10);
+		DataValue[] values = history.readAtTimes(new DateTime[] { new DateTime(time(3) + 1),
+				new DateTime(time(0) - 1), new DateTime(time(100)) });
+		assertEquals(Double.valueOf(3), values[0].getValue().getValue());
+		assertEquals(time(3) + 1, values[0].getSourceTimestamp().getValue());
+		assertEquals(StatusCodes.Bad_NoData, values[1].getStatusCode().getValue());
+		assertEquals(Double.valueOf(9), values[2].getValue().getValue());
+	}
+
+	@Test
+	public void shrinksToNewestSamples() {
+		append(0, 10);
+		history.setCapacity(4);
+		assertEquals(4, history.getCapacity());
+
+		List<DataValue> all = readForward(null);
+		assertEquals(4, all.size());
+		assertSample(6, all.get(0));
+
+		append(10, 1);
+		all = readForward(null);
+		assertEquals(4, all.size());
+		assertSample(7, all.get(0));
+		assertSample(10, all.get(3));
+	}
+
+	@Test
+	public void keepsNonNumericValues() {
+		listener.onDataChange(node, null, value("text", time(0)));
+		List<DataValue> all = readForward(null);
+		assertEquals(1, all.size());
+		assertEquals("text", all.get(0).getValue().getValue());
+		assertTrue(all.get(0).getStatusCode().isGood());
+	}
+
+	private void append(int from, int count) {
+		for (int i = from; i < from + count; i++)
+			listener.onDataChange(node, null, sample(i, time(i)));
+	}
+
+	private Long readRaw(int maxValues, Long cp, List<DataValue> page) {
+		return history.readRaw(new DateTime(1), new DateTime(time(1000)), maxValues, false, cp, page);
+	}
+
+	private List<DataValue> readForward(Long cp) {
+		List<DataValue> all = new ArrayList<DataValue>();
+		assertNull(readRaw(0, cp, all));
+		return all;
+	}
+}
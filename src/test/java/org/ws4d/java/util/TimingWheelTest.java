@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2009 MATERNA Information & Communications. All rights reserved.
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html. For further
+ * project-related information visit http://www.ws4d.org. The most recent
+ * version of the JMEDS framework can be obtained from
+ * http://sourceforge.net/projects/ws4d-javame.
+ ******************************************************************************/
+
+package org.ws4d.java.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.ws4d.java.structures.ArrayList;
+import org.ws4d.java.structures.List;
+
+public class TimingWheelTest {
+
+	/** range of the wheel, see TimingWheel.MAX_DELTA */
+	private static final long	MAX_DELTA	= 1L << 26;
+
+	@Test
+	public void expiresAtDeadline() {
+		TimingWheel wheel = new TimingWheel(0);
+		Entry entry = new Entry();
+		wheel.schedule(entry, 10);
+		assertEquals(1, wheel.size());
+
+		List expired = new ArrayList();
+		wheel.advance(9, expired);
+		assertEquals(0, expired.size());
+		wheel.advance(10, expired);
+		assertEquals(1, expired.size());
+		assertTrue(expired.get(0) == entry);
+		assertEquals(0, wheel.size());
+		assertEquals(10, wheel.getCurrentTick());
+	}
+
+	@Test
+	public void movesPastDeadlinesToNextTick() {
+		TimingWheel wheel = new TimingWheel(100);
+		Entry entry = new Entry();
+		wheel.schedule(entry, 50);
+		assertEquals(101, wheel.nextTick());
+
+		List expired = new ArrayList();
+		wheel.advance(101, expired);
+		assertEquals(1, expired.size());
+	}
+
+	@Test
+	public void cancelsEntries() {
+		TimingWheel wheel = new TimingWheel(0);
+		Entry a = new Entry();
+		Entry b = new Entry();
+		Entry c = new Entry();
+		Entry far = new Entry();
+		wheel.schedule(a, 5);
+		wheel.schedule(b, 5);
+		wheel.schedule(c, 5);
+		wheel.schedule(far, 100000);
+
+		assertTrue(wheel.cancel(b));
+		assertFalse(wheel.cancel(b));
+		assertTrue(wheel.cancel(far));
+		assertEquals(2, wheel.size());
+
+		List expired = new ArrayList();
+		wheel.advance(200000, expired);
+		assertEquals(2, expired.size());
+		assertTrue(expired.contains(a));
+		assertTrue(expired.contains(c));
+		assertFalse(wheel.cancel(a));
+	}
+
+	@Test
+	public void cascadesFromUpperLevels() {
+		TimingWheel wheel = new TimingWheel(0);
+		// one entry on each of the levels 0 to 3
+		Entry[] entries = schedule(wheel, new long[] { 200, 300, 20000, 2000000 });
+		runUntilEmpty(wheel, 0);
+		assertExpiredAtDeadline(entries);
+	}
+
+	@Test
+	public void expiresAllEntriesInOrder() {
+		// a start tick which is not aligned to any slot boundary
+		long start = 12345;
+		TimingWheel wheel = new TimingWheel(start);
+		long[] deadlines = new long[500];
+		for (int i = 0; i < deadlines.length; i++) {
+			deadlines[i] = start + 1 + ((long) i * i * 37) % 5000000;
+		}
+		Entry[] entries = schedule(wheel, deadlines);
+		assertEquals(deadlines.length, wheel.size());
+
+		runUntilEmpty(wheel, start);
+		assertExpiredAtDeadline(entries);
+	}
+
+	@Test
+	public void parksEntriesBeyondRange() {
+		TimingWheel wheel = new TimingWheel(0);
+		Entry entry = new Entry();
+		long deadline = 2 * MAX_DELTA + 5;
+		wheel.schedule(entry, deadline);
+
+		List expired = new ArrayList();
+		wheel.advance(deadline - 1, expired);
+		assertEquals(0, expired.size());
+		assertEquals(1, wheel.size());
+		wheel.advance(deadline, expired);
+		assertEquals(1, expired.size());
+	}
+
+	@Test
+	public void returnsNextTick() {
+		TimingWheel wheel = new TimingWheel(0);
+		assertEquals(Long.MAX_VALUE, wheel.nextTick());
+
+		Entry entry = new Entry();
+		wheel.schedule(entry, 1000);
+		// nothing on level 0, the wheel must wake up to cascade
+		assertEquals(256, wheel.nextTick());
+
+		List expired = new ArrayList();
+		wheel.advance(768, expired);
+		assertEquals(0, expired.size());
+		assertEquals(1000, wheel.nextTick());
+
+		wheel.schedule(new Entry(), 800);
+		assertEquals(800, wheel.nextTick());
+	}
+
+	@Test
+	public void clearsAllLevels() {
+		TimingWheel wheel = new TimingWheel(0);
+		Entry[] entries = schedule(wheel, new long[] { 10, 1000, 100000, 10000000, 3 * MAX_DELTA });
+
+		List removed = new ArrayList();
+		wheel.clear(removed);
+		assertEquals(entries.length, removed.size());
+		assertEquals(0, wheel.size());
+		assertEquals(Long.MAX_VALUE, wheel.nextTick());
+		for (int i = 0; i < entries.length; i++) {
+			assertFalse(wheel.cancel(entries[i]));
+		}
+
+		List expired = new ArrayList();
+		wheel.advance(20000000, expired);
+		assertEquals(0, expired.size());
+	}
+
+	private static Entry[] schedule(TimingWheel wheel, long[] deadlines) {
+		Entry[] entries = new Entry[deadlines.length];
+		for (int i = 0; i < deadlines.length; i++) {
+			entries[i] = new Entry();
+			entries[i].deadline = deadlines[i];
+			wheel.schedule(entries[i], deadlines[i]);
+		}
+		return entries;
+	}
+
+	/**
+	 * Advances the wheel tick by tick and records the tick at which each entry
+	 * expires.
+	 */
+	private static void runUntilEmpty(TimingWheel wheel, long tick) {
+		List expired = new ArrayList();
+		while (wheel.size() > 0) {
+			tick++;
+			wheel.advance(tick, expired);
+			for (int i = 0; i < expired.size(); i++) {
+				((Entry) expired.get(i)).expiredAt = tick;
+			}
+			expired.clear();
+		}
+	}
+
+	private static void assertExpiredAtDeadline(Entry[] entries) {
+		for (int i = 0; i < entries.length; i++) {
+			assertEquals(entries[i].deadline, entries[i].expiredAt);
+		}
+	}
+
+	private static class Entry extends TimedEntry {
+
+		long	deadline;
+
+		long	expiredAt	= -1;
+
+		protected void timedOut() {}
+
+	}
+
+}